@@ -49,6 +49,18 @@ public class Icon implements MapboxConstants {
         }
     }
 
+    /**
+     * Shrinks the memory cache of icons to a fraction of its maximum size, or lets it grow back.
+     *
+     * @param ratio the fraction of the maximum size the cache is trimmed to, 1 for no limit
+     */
+    public static void setMemoryCacheLimitRatio(final float ratio) {
+        final BitmapLruCache cache = sIconCache;
+        if (cache != null) {
+            cache.setMemoryCacheLimit((int) (cache.getMemoryCacheMaxSize() * ratio), false);
+        }
+    }
+
     protected BitmapLruCache getCache() {
         return getCache(null);
     }
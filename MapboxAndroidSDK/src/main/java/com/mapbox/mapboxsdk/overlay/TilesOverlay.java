@@ -11,10 +11,13 @@ import android.graphics.Shader;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
 import com.mapbox.mapboxsdk.tileprovider.MapTileLayerBase;
+import com.mapbox.mapboxsdk.tileprovider.modules.ConfigurablePriorityThreadFactory;
 import com.mapbox.mapboxsdk.util.GeometryMath;
 import com.mapbox.mapboxsdk.util.TileLooper;
 import com.mapbox.mapboxsdk.util.constants.UtilConstants;
@@ -23,7 +26,12 @@ import com.mapbox.mapboxsdk.views.safecanvas.ISafeCanvas;
 import com.mapbox.mapboxsdk.views.safecanvas.SafePaint;
 import com.mapbox.mapboxsdk.views.util.Projection;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
@@ -37,6 +45,17 @@ public class TilesOverlay extends SafeDrawOverlay {
 
     public static final int MENU_OFFLINE = getSafeMenuId();
 
+    /**
+     * How many zoom levels up a missing tile is looked for, a quarter of the tile at most being
+     * scaled up 16 times.
+     */
+    private static final int FALLBACK_MAXIMUM_ZOOM_DIFF = 4;
+
+    /**
+     * Width and height of the window of fallback tiles whose keys are kept.
+     */
+    private static final int FALLBACK_KEYS_SIDE = 32;
+
     /**
      * Current tile source
      */
@@ -50,13 +69,24 @@ public class TilesOverlay extends SafeDrawOverlay {
     private final Rect mTileRect = new Rect();
     private final Rect mViewPort = new Rect();
     private final Rect mClipRect = new Rect();
+    private final Rect mFallbackSrcRect = new Rect();
+    private final Rect mFallbackDestRect = new Rect();
+    private final Paint mFallbackPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    // The keys of the tiles drawn in place of missing ones, by their coordinates modulo the window
+    private final MapTile[] mFallbackKeys = new MapTile[FALLBACK_KEYS_SIDE * FALLBACK_KEYS_SIDE];
     float mCurrentZoomFactor = 1;
     private float mRescaleZoomDiffMax = 4;
-    private boolean isAnimating = false;
+    // Read by the drawing code, may be set from another thread
+    private volatile boolean isAnimating = false;
     private boolean mOptionsMenuEnabled = true;
 
     private int mWorldSize_2;
 
+    // Rescaling runs on a single background thread, a rescale being cancelled by the next one
+    private ExecutorService mRescaleExecutor;
+    private final AtomicInteger mRescaleGeneration = new AtomicInteger();
+    private final Handler mRescaleHandler = new Handler(Looper.getMainLooper());
+
     private int mLoadingBackgroundColor = Color.rgb(216, 208, 208);
     private int mLoadingLineColor = Color.rgb(200, 192, 192);
 
@@ -85,6 +115,11 @@ public class TilesOverlay extends SafeDrawOverlay {
 
     @Override
     public void onDetach(final MapView pMapView) {
+        mRescaleGeneration.incrementAndGet();
+        if (mRescaleExecutor != null) {
+            mRescaleExecutor.shutdownNow();
+            mRescaleExecutor = null;
+        }
         this.mTileProvider.detach();
     }
 
@@ -223,6 +258,8 @@ public class TilesOverlay extends SafeDrawOverlay {
                 }
                 drawable.setBounds(mTileRect);
                 drawable.draw(pCanvas);
+            } else {
+                drawFallback(pCanvas, pCacheKey, pTile);
             }
             if (UtilConstants.DEBUGMODE) {
                 ISafeCanvas canvas = (ISafeCanvas) pCanvas;
@@ -231,6 +268,75 @@ public class TilesOverlay extends SafeDrawOverlay {
                 canvas.drawRect(mTileRect, mDebugPaint);
             }
         }
+
+        /**
+         * Draw a tile still loading from the tiles already in memory: the part of its nearest
+         * ancestor covering it scaled up, or else its children scaled down. Nothing is loaded and
+         * no bitmap is allocated, the loading pattern shows through wherever none is found.
+         */
+        private void drawFallback(final Canvas pCanvas, final String pCacheKey,
+                final MapTile pTile) {
+            final int z = pTile.getZ();
+            final int maxDiff = Math.min(z, FALLBACK_MAXIMUM_ZOOM_DIFF);
+            for (int diff = 1; diff <= maxDiff; diff++) {
+                final CacheableBitmapDrawable ancestor = getFallbackTile(pCacheKey, z - diff,
+                        pTile.getX() >> diff, pTile.getY() >> diff);
+                if (ancestor != null) {
+                    final int size = ancestor.getBitmap().getWidth() >> diff;
+                    final int mask = (1 << diff) - 1;
+                    final int left = (pTile.getX() & mask) * size;
+                    final int top = (pTile.getY() & mask) * size;
+                    mFallbackSrcRect.set(left, top, left + size, top + size);
+                    pCanvas.drawBitmap(ancestor.getBitmap(), mFallbackSrcRect, mTileRect,
+                            mFallbackPaint);
+                    return;
+                }
+            }
+            if (z + 1 > mTileProvider.getMaximumZoomLevel()) {
+                return;
+            }
+            final int centerX = mTileRect.centerX();
+            final int centerY = mTileRect.centerY();
+            for (int i = 0; i < 4; i++) {
+                final int right = i & 1;
+                final int bottom = i >> 1;
+                final CacheableBitmapDrawable child = getFallbackTile(pCacheKey, z + 1,
+                        (pTile.getX() << 1) + right, (pTile.getY() << 1) + bottom);
+                if (child != null) {
+                    mFallbackDestRect.set(right == 0 ? mTileRect.left : centerX,
+                            bottom == 0 ? mTileRect.top : centerY,
+                            right == 0 ? centerX : mTileRect.right,
+                            bottom == 0 ? centerY : mTileRect.bottom);
+                    pCanvas.drawBitmap(child.getBitmap(), null, mFallbackDestRect,
+                            mFallbackPaint);
+                }
+            }
+        }
+
+        /**
+         * Get a tile from the memory cache to draw in place of another, and keep it from being
+         * reused until the frame is drawn.
+         *
+         * @return the tile, or null if it isn't in memory
+         */
+        private CacheableBitmapDrawable getFallbackTile(final String pCacheKey, final int z,
+                final int x, final int y) {
+            final int slot = ((y + (z << 3)) & (FALLBACK_KEYS_SIDE - 1)) * FALLBACK_KEYS_SIDE
+                    + (x & (FALLBACK_KEYS_SIDE - 1));
+            MapTile key = mFallbackKeys[slot];
+            if (key == null || key.getX() != x || key.getY() != y || key.getZ() != z
+                    || !pCacheKey.equals(key.getLayerKey())) {
+                key = new MapTile(pCacheKey, z, x, y);
+                mFallbackKeys[slot] = key;
+            }
+            final CacheableBitmapDrawable drawable = mTileProvider.peekMapTileFromMemory(key);
+            if (drawable == null || !drawable.isBitmapValid()) {
+                return null;
+            }
+            drawable.setBeingUsed(true);
+            mBeingUsedDrawables.add(drawable);
+            return drawable;
+        }
     };
 
     public int getLoadingBackgroundColor() {
@@ -306,7 +412,9 @@ public class TilesOverlay extends SafeDrawOverlay {
     }
 
     /**
-     * Recreate the cache using scaled versions of the tiles currently in it
+     * Recreate the cache using scaled versions of the tiles currently in it. The tiles are scaled
+     * in background and put in the cache all at once on the main thread, unless the zoom level
+     * changed again in the meantime.
      *
      * @param pNewZoomLevel the zoom level that we need now
      * @param pOldZoomLevel the previous zoom level that we should get the tiles to rescale
@@ -315,29 +423,46 @@ public class TilesOverlay extends SafeDrawOverlay {
     public void rescaleCache(final float pNewZoomLevel, final float pOldZoomLevel,
                              final Projection projection) {
 
-        if (mTileProvider.hasNoSource() || Math.floor(pNewZoomLevel) == Math.floor(pOldZoomLevel) || projection == null || Math.abs(pOldZoomLevel - pNewZoomLevel) > mRescaleZoomDiffMax) {
+        if (Math.floor(pNewZoomLevel) == Math.floor(pOldZoomLevel)) {
+            return;
+        }
+        // Any rescale still running is for another zoom level
+        final int generation = mRescaleGeneration.incrementAndGet();
+        if (mTileProvider.hasNoSource() || projection == null || Math.abs(pOldZoomLevel - pNewZoomLevel) > mRescaleZoomDiffMax) {
             return;
         }
-
-        final long startMs = System.currentTimeMillis();
 
         if (UtilConstants.DEBUGMODE) {
             Log.d(TAG, "rescale tile cache from " + pOldZoomLevel + " to " + pNewZoomLevel);
         }
 
+        // The projection is only valid on the main thread
         final int tileSize = Projection.getTileSize();
         final Rect viewPort =
                 GeometryMath.viewPortRectForTileDrawing(pNewZoomLevel, projection, null);
+        final String cacheKey = mTileProvider.getCacheKey();
 
         final ScaleTileLooper tileLooper =
-                pNewZoomLevel > pOldZoomLevel ? new ZoomInTileLooper(pOldZoomLevel)
-                        : new ZoomOutTileLooper(pOldZoomLevel);
-        tileLooper.loop(null, mTileProvider.getCacheKey(), pNewZoomLevel, tileSize, viewPort, null);
-
-        final long endMs = System.currentTimeMillis();
-        if (UtilConstants.DEBUGMODE) {
-            Log.d(TAG, "Finished rescale in " + (endMs - startMs) + "ms");
+                pNewZoomLevel > pOldZoomLevel ? new ZoomInTileLooper(pOldZoomLevel, generation)
+                        : new ZoomOutTileLooper(pOldZoomLevel, generation);
+        if (mRescaleExecutor == null) {
+            mRescaleExecutor = Executors.newSingleThreadExecutor(
+                    new ConfigurablePriorityThreadFactory(Thread.NORM_PRIORITY, TAG));
         }
+        mRescaleExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (tileLooper.isCancelled()) {
+                    return;
+                }
+                final long startMs = System.currentTimeMillis();
+                tileLooper.loop(null, cacheKey, pNewZoomLevel, tileSize, viewPort, null);
+                if (UtilConstants.DEBUGMODE) {
+                    Log.d(TAG, "Finished rescale in " + (System.currentTimeMillis() - startMs)
+                            + "ms" + (tileLooper.isCancelled() ? ", cancelled" : ""));
+                }
+            }
+        });
     }
 
     private abstract class ScaleTileLooper extends TileLooper {
@@ -348,7 +473,12 @@ public class TilesOverlay extends SafeDrawOverlay {
          * otherwise the ones we need will be pushed out
          */
         protected final HashMap<MapTile, Bitmap> mNewTiles;
+        /**
+         * old tiles to remove from cache, along with adding the new ones
+         */
+        protected final List<MapTile> mOldTiles;
 
+        protected final int mGeneration;
         protected final float mOldZoomLevel;
         protected final int mOldZoomRound;
         protected final int mOldTileUpperBound;
@@ -358,16 +488,25 @@ public class TilesOverlay extends SafeDrawOverlay {
         protected Rect mDestRect;
         protected Paint mDebugPaint;
 
-        public ScaleTileLooper(final float pOldZoomLevel) {
+        public ScaleTileLooper(final float pOldZoomLevel, final int pGeneration) {
+            mGeneration = pGeneration;
             mOldZoomLevel = pOldZoomLevel;
             mOldZoomRound = (int) Math.floor(mOldZoomLevel);
             mOldTileUpperBound = 1 << mOldZoomRound;
             mNewTiles = new HashMap<MapTile, Bitmap>();
+            mOldTiles = new ArrayList<MapTile>();
             mSrcRect = new Rect();
             mDestRect = new Rect();
             mDebugPaint = new Paint();
         }
 
+        /**
+         * @return true if the zoom level changed since this rescale was started
+         */
+        public boolean isCancelled() {
+            return mGeneration != mRescaleGeneration.get();
+        }
+
         @Override
         public void initializeLoop(final float pZoomLevel, final int pTileSizePx) {
             mDiff = (float) Math.abs(Math.floor(pZoomLevel) - Math.floor(mOldZoomLevel));
@@ -378,12 +517,13 @@ public class TilesOverlay extends SafeDrawOverlay {
         public void handleTile(final Canvas pCanvas, final String pCacheKey, final int pTileSizePx,
                                final MapTile pTile, final int pX, final int pY, final Rect pClipRect) {
 
-            // Get tile from cache.
-            // If it's found then no need to created scaled version.
-            // If not found (null) them we've initiated a new request for it,
-            // and now we'll create a scaled version until the request completes.
-            final Drawable requestedTile = mTileProvider.getMapTile(pTile, !isAnimating);
-            if (requestedTile == null) {
+            if (isCancelled()) {
+                return;
+            }
+            // Look the tile up in the memory cache only: this runs on the rescale thread, the
+            // tile is requested by the next frame drawn. If it's found then no need to create a
+            // scaled version, which is only shown until the request completes.
+            if (mTileProvider.peekMapTileFromMemory(pTile) == null) {
                 try {
                     handleScaleTile(pCacheKey, pTileSizePx, pTile, pX, pY);
                 } catch (final OutOfMemoryError e) {
@@ -395,13 +535,22 @@ public class TilesOverlay extends SafeDrawOverlay {
         @Override
         public void finalizeLoop() {
             super.finalizeLoop();
-            // now add the new ones, pushing out the old ones
-            while (!mNewTiles.isEmpty()) {
-
-                final MapTile tile = mNewTiles.keySet().iterator().next();
-                final Bitmap bitmap = mNewTiles.remove(tile);
-                mTileProvider.putExpiredTileIntoCache(tile, bitmap);
+            if (isCancelled()) {
+                return;
             }
+            // now add the new ones, pushing out the old ones, between two frames
+            mRescaleHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (isCancelled()) {
+                        return;
+                    }
+                    for (int i = 0; i < mOldTiles.size(); i++) {
+                        mTileProvider.removeTileFromMemory(mOldTiles.get(i));
+                    }
+                    mTileProvider.putExpiredTilesIntoCache(mNewTiles);
+                }
+            });
         }
 
         protected abstract void handleScaleTile(final String pCacheKey, final int pTileSizePx,
@@ -409,8 +558,8 @@ public class TilesOverlay extends SafeDrawOverlay {
     }
 
     private class ZoomInTileLooper extends ScaleTileLooper {
-        public ZoomInTileLooper(final float pOldZoomLevel) {
-            super(pOldZoomLevel);
+        public ZoomInTileLooper(final float pOldZoomLevel, final int pGeneration) {
+            super(pOldZoomLevel, pGeneration);
         }
 
         @Override
@@ -422,7 +571,7 @@ public class TilesOverlay extends SafeDrawOverlay {
             // get the correct fraction of the tile from cache and scale up
             final MapTile oldTile = new MapTile(pCacheKey,
                     mOldZoomRound, oldTileX, oldTileY);
-            final Drawable oldDrawable = mTileProvider.getMapTileFromMemory(oldTile);
+            final Drawable oldDrawable = mTileProvider.peekMapTileFromMemory(oldTile);
 
             if (oldDrawable instanceof BitmapDrawable) {
                 if (oldDrawable instanceof CacheableBitmapDrawable) {
@@ -434,18 +583,24 @@ public class TilesOverlay extends SafeDrawOverlay {
                 mSrcRect.set(xx, yy, xx + mTileSize_2, yy + mTileSize_2);
                 mDestRect.set(0, 0, pTileSizePx, pTileSizePx);
 
+                final Bitmap oldBitmap = ((BitmapDrawable) oldDrawable).getBitmap();
+                // The scaled tile covers the whole destination, so it keeps the config of
+                // the original tile
+                final Bitmap.Config config = oldBitmap != null && oldBitmap.getConfig() != null
+                        ? oldBitmap.getConfig() : Bitmap.Config.ARGB_8888;
+
                 // Try to get a bitmap from the pool, otherwise allocate a new one
-                Bitmap bitmap = mTileProvider.getBitmapFromRemoved(pTileSizePx, pTileSizePx);
+                Bitmap bitmap = mTileProvider.getBitmapFromRemoved(pTileSizePx, pTileSizePx,
+                        config);
 
                 if (bitmap == null) {
-                    bitmap = Bitmap.createBitmap(pTileSizePx, pTileSizePx, Bitmap.Config.ARGB_8888);
+                    bitmap = Bitmap.createBitmap(pTileSizePx, pTileSizePx, config);
                 }
 
                 final Canvas canvas = new Canvas(bitmap);
                 final boolean isReusable = oldDrawable instanceof CacheableBitmapDrawable;
                 boolean success = false;
                 if (!isReusable || ((CacheableBitmapDrawable) oldDrawable).isBitmapValid()) {
-                    final Bitmap oldBitmap = ((BitmapDrawable) oldDrawable).getBitmap();
                     canvas.drawBitmap(oldBitmap, mSrcRect, mDestRect, null);
                     success = true;
                 }
@@ -459,8 +614,8 @@ public class TilesOverlay extends SafeDrawOverlay {
     private class ZoomOutTileLooper extends ScaleTileLooper {
         private static final int MAX_ZOOM_OUT_DIFF = 8;
 
-        public ZoomOutTileLooper(final float pOldZoomLevel) {
-            super(pOldZoomLevel);
+        public ZoomOutTileLooper(final float pOldZoomLevel, final int pGeneration) {
+            super(pOldZoomLevel, pGeneration);
         }
 
         @Override
@@ -485,7 +640,7 @@ public class TilesOverlay extends SafeDrawOverlay {
                     oldTileX = GeometryMath.mod(xx + x, mOldTileUpperBound);
                     final MapTile oldTile = new MapTile(pCacheKey,
                             mOldZoomRound, oldTileX, oldTileY);
-                    Drawable oldDrawable = mTileProvider.getMapTileFromMemory(oldTile);
+                    Drawable oldDrawable = mTileProvider.peekMapTileFromMemory(oldTile);
 
                     if (oldDrawable instanceof BitmapDrawable) {
                         if (oldDrawable instanceof CacheableBitmapDrawable) {
@@ -507,7 +662,7 @@ public class TilesOverlay extends SafeDrawOverlay {
                             mDestRect.set(x * mTileSize_2, y * mTileSize_2, (x + 1) * mTileSize_2,
                                     (y + 1) * mTileSize_2);
                             canvas.drawBitmap(oldBitmap, null, mDestRect, null);
-                            mTileProvider.removeTileFromMemory(oldTile);
+                            mOldTiles.add(oldTile);
                         }
                     }
                 }
@@ -16,12 +16,14 @@ public class MapTile {
     public static final int MAPTILE_FAIL_ID = MAPTILE_SUCCESS_ID + 1;
 
     // This class must be immutable because it's used as the key in the cache hash map
-    // (ie all the fields are final).
+    // (ie all the fields are final, the strings are only derived from them).
     private final int x;
     private final int y;
     private final int z;
-    private final String path;
-    private final String cacheKey;
+    // Built when first needed: most tiles drawn on a frame are only compared
+    private String path;
+    private String cacheKey;
+    private final String layerKey;
     private final int code;
     private Rect mTileRect;
 
@@ -33,10 +35,7 @@ public class MapTile {
         this.z = az;
         this.x = ax;
         this.y = ay;
-        this.path = String.valueOf(z) + "/" +
-                String.valueOf(x) + "/" +
-                String.valueOf(y);
-        this.cacheKey = aCacheKey + "/" + path;
+        this.layerKey = aCacheKey;
         this.code = ((17 * (37 + z)) * (37 * x)) * (37 + y);
     }
 
@@ -53,12 +52,34 @@ public class MapTile {
     }
 
     public String getCacheKey() {
-        return cacheKey;
+        // Strings are safely published, at worst two threads build the same one
+        String key = cacheKey;
+        if (key == null) {
+            key = layerKey + "/" + getPath();
+            cacheKey = key;
+        }
+        return key;
+    }
+
+    private String getPath() {
+        String p = path;
+        if (p == null) {
+            p = String.valueOf(z) + "/" + String.valueOf(x) + "/" + String.valueOf(y);
+            path = p;
+        }
+        return p;
+    }
+
+    /**
+     * @return the cache key of the layer this tile belongs to
+     */
+    public String getLayerKey() {
+        return layerKey;
     }
 
     @Override
     public String toString() {
-        return path;
+        return getPath();
     }
 
     @Override
@@ -81,10 +102,21 @@ public class MapTile {
         return this.code;
     }
 
+    /**
+     * Set where the tile was last drawn, in map coordinates. The rect is copied, the caller may
+     * reuse it for the next tile.
+     */
     public void setTileRect(final Rect rect) {
-        mTileRect = rect;
+        if (mTileRect == null) {
+            mTileRect = new Rect(rect);
+        } else {
+            mTileRect.set(rect);
+        }
     }
 
+    /**
+     * @return where the tile was last drawn, in map coordinates, or null if it never was
+     */
     public final Rect getTileRect() {
         return mTileRect;
     }
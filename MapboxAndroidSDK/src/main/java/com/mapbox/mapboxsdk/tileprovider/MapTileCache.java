@@ -7,13 +7,24 @@ import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
+import com.google.common.hash.Hashing;
 import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
 import com.mapbox.mapboxsdk.util.BitmapUtils;
 import com.mapbox.mapboxsdk.util.constants.UtilConstants;
 
 import java.io.File;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import uk.co.senab.bitmapcache.BitmapLruCache;
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
@@ -24,6 +35,56 @@ import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 public class MapTileCache implements TileLayerConstants {
 
     protected static BitmapLruCache sCachedTiles = null;
+
+    /**
+     * The share of the memory cache each tile cache asks for, sized from the map showing its
+     * tiles. The memory cache, shared by every map, should have the sum of them.
+     */
+    private static final Map<MapTileCache, Integer> sMemoryCacheTargetSizes =
+            new WeakHashMap<MapTileCache, Integer>();
+
+    /**
+     * The cache key of the tile owning each recently cached content hash. Identical tiles (open
+     * water, empty overlay tiles...) share the bitmap and the disk entry of their owner. The
+     * content keys include the decoding options, see {@link #getDecodedContentKey(String,
+     * BitmapFactory.Options)}: layers decoding the same content differently don't share bitmaps.
+     */
+    private static final Map<String, String> sContentOwners =
+            new LinkedHashMap<String, String>(CACHE_CONTENT_INDEX_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+                    return size() > CACHE_CONTENT_INDEX_SIZE;
+                }
+            };
+    private static final AtomicLong sDeduplicatedTiles = new AtomicLong(0);
+    private static final AtomicLong sDeduplicatedMemoryBytes = new AtomicLong(0);
+    private static final AtomicLong sDeduplicatedDiskBytes = new AtomicLong(0);
+
+    /**
+     * The statistics of each layer, by layer cache key.
+     */
+    private static final ConcurrentHashMap<String, MapTileCacheStats.Counters> sStats =
+            new ConcurrentHashMap<String, MapTileCacheStats.Counters>();
+    private static final BitmapLruCache.EvictionListener sEvictionListener =
+            new BitmapLruCache.EvictionListener() {
+                @Override
+                public void onEvicted(final String url, final int size) {
+                    getCounters(getLayerKey(url)).increment(MapTileCacheStats.Counters.EVICTIONS);
+                }
+            };
+    private static final Handler sStatsHandler = new Handler(Looper.getMainLooper());
+    private static MapTileCacheStatsListener sStatsListener;
+    private static long sStatsInterval;
+    private static final Runnable sStatsReporter = new Runnable() {
+        @Override
+        public void run() {
+            final MapTileCacheStatsListener listener = sStatsListener;
+            if (listener != null) {
+                listener.onMapTileCacheStats(getStats(), getLayerStats());
+                sStatsHandler.postDelayed(this, sStatsInterval);
+            }
+        }
+    };
     private Context context;
     static final String TAG = "MapTileCache";
     private static final String DISK_CACHE_SUBDIR = "mapbox_tiles_cache";
@@ -58,11 +119,15 @@ public class MapTileCache implements TileLayerConstants {
                     Log.e(TAG, "can't create cacheDir " + cacheDir);
                 }
             }
+            final int memoryCacheSize = BitmapUtils.calculateMemoryCacheSize(context);
             sCachedTiles = (new BitmapLruCache.Builder(context)).setMemoryCacheEnabled(true)
-                    .setMemoryCacheMaxSize(BitmapUtils.calculateMemoryCacheSize(context))
+                    .setMemoryCacheMaxSize(memoryCacheSize)
+                    .setCompressedMemoryCacheMaxSize(
+                            (int) (memoryCacheSize * CACHE_COMPRESSED_MEMORY_RATIO))
                     .setDiskCacheEnabled(mDiskCacheEnabled)
                     .setDiskCacheMaxSize(this.mMaximumCacheSize)
                     .setDiskCacheLocation(cacheDir)
+                    .setEvictionListener(sEvictionListener)
                     .build();
         }
         return sCachedTiles;
@@ -79,31 +144,425 @@ public class MapTileCache implements TileLayerConstants {
     }
 
     public CacheableBitmapDrawable getMapTile(final MapTile aTile) {
-        String key = getCacheKey(aTile);
-        CacheableBitmapDrawable result = getCache().getFromMemoryCache(key);
+        CacheableBitmapDrawable result = getMapTileFromMemory(aTile);
         if (result == null) {
-            result = getCache().getFromDiskCache(key, null);
+            result = getMapTileFromDisk(aTile, null);
         }
         return result;
     }
 
+    /**
+     * Get a tile from the memory cache. The lookup isn't counted in the statistics, see {@link
+     * #countMemoryLookup(MapTile, CacheableBitmapDrawable)}.
+     */
     public CacheableBitmapDrawable getMapTileFromMemory(final MapTile aTile) {
         return getCache().getFromMemoryCache(getCacheKey(aTile));
     }
 
+    /**
+     * Count a memory cache hit or miss in the statistics, for a lookup requesting the tile to be
+     * shown: a hit each time it is drawn from memory, a miss when it is requested. Lookups
+     * while it is already requested, or made for the cache's own bookkeeping, aren't counted.
+     *
+     * @param aTile the tile looked up
+     * @param result the tile found in memory, or null
+     */
+    public void countMemoryLookup(final MapTile aTile, final CacheableBitmapDrawable result) {
+        final MapTileCacheStats.Counters counters = getCounters(aTile.getLayerKey());
+        if (result != null) {
+            counters.increment(MapTileCacheStats.Counters.MEMORY_HITS);
+            counters.add(MapTileCacheStats.Counters.MEMORY_BYTES, getByteCount(result));
+        } else {
+            counters.increment(MapTileCacheStats.Counters.MEMORY_MISSES);
+        }
+    }
+
+    /**
+     * Get a tile from the memory cache without counting a hit or a miss, and without making it
+     * the most recently used tile, for lookups which don't request the tile itself, such as
+     * drawing it in place of another one still loading.
+     */
+    public CacheableBitmapDrawable peekMapTileFromMemory(final MapTile aTile) {
+        return getCache().peekFromMemoryCache(getCacheKey(aTile));
+    }
+
     public CacheableBitmapDrawable getMapTileFromDisk(final MapTile aTile) {
-        return getCache().getFromDiskCache(getCacheKey(aTile), null);
+        return getMapTileFromDisk(aTile, null);
+    }
+
+    public CacheableBitmapDrawable getMapTileFromDisk(final MapTile aTile,
+            final BitmapFactory.Options decodeOpts) {
+        final String key = getCacheKey(aTile);
+        final MapTileCacheStats.Counters counters = getCounters(aTile.getLayerKey());
+        CacheableBitmapDrawable result = getCache().getFromCompressedMemoryCache(key, decodeOpts);
+        if (result != null) {
+            counters.increment(MapTileCacheStats.Counters.COMPRESSED_HITS);
+            counters.add(MapTileCacheStats.Counters.COMPRESSED_BYTES, getByteCount(result));
+            countDecoded(counters, result);
+            return result;
+        }
+        result = getCache().getFromDiskCache(key, decodeOpts);
+        if (result != null) {
+            counters.increment(MapTileCacheStats.Counters.DISK_HITS);
+            counters.add(MapTileCacheStats.Counters.DISK_BYTES, getByteCount(result));
+            countDecoded(counters, result);
+        } else {
+            counters.increment(MapTileCacheStats.Counters.DISK_MISSES);
+        }
+        return result;
     }
 
     public CacheableBitmapDrawable putTileStream(final MapTile aTile, final InputStream inputStream,
             final BitmapFactory.Options decodeOpts) {
-        return getCache().put(getCacheKey(aTile), inputStream, decodeOpts);
+        final CacheableBitmapDrawable result =
+                getCache().put(getCacheKey(aTile), inputStream, decodeOpts);
+        countDecoded(getCounters(aTile.getLayerKey()), result);
+        return result;
+    }
+
+    /**
+     * Put the encoded content of a tile in the memory and disk caches. If a tile with identical
+     * content is already cached, its bitmap and its disk entry are shared instead of decoding and
+     * storing the content again.
+     *
+     * @param aTile the tile
+     * @param data the encoded tile
+     * @param decodeOpts the options used to decode the tile, may be null
+     * @param expirationTime the expiration time in milliseconds since the epoch, or 0 if unknown
+     * @return the cached drawable
+     */
+    public CacheableBitmapDrawable putTileData(final MapTile aTile, final byte[] data,
+            final BitmapFactory.Options decodeOpts, final long expirationTime) {
+        if (data == null) {
+            return null;
+        }
+        return putTileData(aTile, data, Hashing.md5().hashBytes(data).toString(), decodeOpts,
+                expirationTime);
+    }
+
+    /**
+     * Put the encoded content of a tile in the memory and disk caches, sharing the bitmap and
+     * the disk entry of a cached tile with the same content key if there is one.
+     *
+     * @param aTile the tile
+     * @param data the encoded tile
+     * @param contentKey a key identifying the content, such as its hash
+     * @param decodeOpts the options used to decode the tile, may be null
+     * @param expirationTime the expiration time in milliseconds since the epoch, or 0 if unknown
+     * @return the cached drawable
+     */
+    public CacheableBitmapDrawable putTileData(final MapTile aTile, final byte[] data,
+            final String aContentKey, final BitmapFactory.Options decodeOpts,
+            final long expirationTime) {
+        if (data == null) {
+            return null;
+        }
+        final String contentKey = getDecodedContentKey(aContentKey, decodeOpts);
+        final String key = getCacheKey(aTile);
+        final CacheableBitmapDrawable shared = shareTile(key, contentKey, data.length);
+        if (shared != null) {
+            return shared;
+        }
+        return onContentCached(aTile, key, contentKey,
+                getCache().put(key, data, decodeOpts, expirationTime, contentKey));
+    }
+
+    /**
+     * Put the encoded content of a tile, read from an archive, in the memory and disk caches.
+     * Content backed by an array is decoded in place; any other content, such as a slice of a
+     * memory-mapped file, is copied once.
+     *
+     * @param aTile the tile
+     * @param buffer the encoded tile, from its position to its limit
+     * @param contentKey a key identifying the content, or null to use its hash
+     * @param decodeOpts the options used to decode the tile, may be null
+     * @param expirationTime the expiration time in milliseconds since the epoch, or 0 if unknown
+     * @return the cached drawable
+     * @see com.mapbox.mapboxsdk.tileprovider.modules.IByteBufferArchiveFile
+     */
+    public CacheableBitmapDrawable putTileBuffer(final MapTile aTile, final ByteBuffer buffer,
+            final String aContentKey, final BitmapFactory.Options decodeOpts,
+            final long expirationTime) {
+        if (buffer == null) {
+            return null;
+        }
+        if (aContentKey == null && !buffer.hasArray()) {
+            final byte[] data = new byte[buffer.remaining()];
+            buffer.duplicate().get(data);
+            return putTileData(aTile, data, decodeOpts, expirationTime);
+        }
+        final String contentKey = getDecodedContentKey((aContentKey != null) ? aContentKey
+                : Hashing.md5().hashBytes(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                        buffer.remaining()).toString(), decodeOpts);
+        final String key = getCacheKey(aTile);
+        final CacheableBitmapDrawable shared = shareTile(key, contentKey, buffer.remaining());
+        if (shared != null) {
+            return shared;
+        }
+        return onContentCached(aTile, key, contentKey,
+                getCache().put(key, buffer, decodeOpts, expirationTime, contentKey));
+    }
+
+    /**
+     * Count a decoded tile, and make it the owner of its content so that the next tiles with
+     * identical content share its bitmap.
+     *
+     * @param result the drawable cached for the tile, or null if it couldn't be decoded
+     * @return {@code result}
+     */
+    private CacheableBitmapDrawable onContentCached(final MapTile aTile, final String key,
+            final String contentKey, final CacheableBitmapDrawable result) {
+        countDecoded(getCounters(aTile.getLayerKey()), result);
+        if (result != null) {
+            synchronized (sContentOwners) {
+                sContentOwners.put(contentKey, key);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the bitmap of a cached tile with the given content key, for a tile whose content is
+     * known to be identical without reading it.
+     *
+     * @param aTile the tile
+     * @param contentKey the key identifying the content of the tile
+     * @param decodeOpts the options the tile would be decoded with, may be null
+     * @return the shared bitmap, now cached for {@code aTile} as well, or null if no tile with
+     * this content is in the memory cache
+     */
+    public CacheableBitmapDrawable getSharedTile(final MapTile aTile, final String contentKey,
+            final BitmapFactory.Options decodeOpts) {
+        return shareTile(getCacheKey(aTile), getDecodedContentKey(contentKey, decodeOpts), 0);
+    }
+
+    /**
+     * Get the key under which tiles share a bitmap: the same content decoded with different
+     * options, such as another {@link Bitmap.Config}, doesn't give the same bitmap.
+     *
+     * @param contentKey the key identifying the encoded content
+     * @param decodeOpts the options the content is decoded with, may be null
+     * @return the key identifying the decoded content
+     */
+    private static String getDecodedContentKey(final String contentKey,
+            final BitmapFactory.Options decodeOpts) {
+        if (decodeOpts == null) {
+            return contentKey;
+        }
+        return contentKey + "@" + decodeOpts.inPreferredConfig + "/" + decodeOpts.inSampleSize
+                + "/" + decodeOpts.inDensity + ":" + decodeOpts.inTargetDensity;
+    }
+
+    /**
+     * Cache the bitmap of the tile owning {@code contentKey} for {@code key} as well.
+     *
+     * @param dataLength the size of the encoded content, for the statistics, or 0 if unknown
+     * @return the shared bitmap, or null if the owner isn't in the memory cache anymore
+     */
+    private CacheableBitmapDrawable shareTile(final String key, final String contentKey,
+            final int dataLength) {
+        final String owner;
+        synchronized (sContentOwners) {
+            owner = sContentOwners.get(contentKey);
+        }
+        if (owner == null || owner.equals(key)) {
+            return null;
+        }
+        final CacheableBitmapDrawable shared = getCache().getFromMemoryCache(owner);
+        // The owner may have been refreshed with different content since
+        if (shared == null || !contentKey.equals(shared.getContentKey())) {
+            return null;
+        }
+        getCache().putAliasInMemoryCache(key, shared);
+        final Bitmap bitmap = shared.getBitmap();
+        sDeduplicatedMemoryBytes.addAndGet(bitmap.getRowBytes() * bitmap.getHeight());
+        if (getCache().isDiskCacheEnabled()) {
+            getCache().putAliasInDiskCache(key, owner, contentKey, shared);
+            sDeduplicatedDiskBytes.addAndGet(dataLength);
+        }
+        sDeduplicatedTiles.incrementAndGet();
+        return shared;
+    }
+
+    /**
+     * @return the number of tiles that shared the content of another cached tile
+     */
+    public static long getDeduplicatedTileCount() {
+        return sDeduplicatedTiles.get();
+    }
+
+    /**
+     * @return the number of bitmap bytes that didn't have to be allocated thanks to tiles sharing
+     * their content
+     */
+    public static long getDeduplicatedMemoryBytes() {
+        return sDeduplicatedMemoryBytes.get();
+    }
+
+    /**
+     * @return the number of bytes that didn't have to be written to the disk cache thanks to tiles
+     * sharing their content
+     */
+    public static long getDeduplicatedDiskBytes() {
+        return sDeduplicatedDiskBytes.get();
+    }
+
+    /**
+     * Count a tile downloaded from the network, to be reported in the statistics of the cache.
+     *
+     * @param aTile the tile
+     * @param byteCount the size of the encoded tile
+     */
+    public void onTileDownloaded(final MapTile aTile, final long byteCount) {
+        final MapTileCacheStats.Counters counters = getCounters(aTile.getLayerKey());
+        counters.increment(MapTileCacheStats.Counters.NETWORK_FETCHES);
+        counters.add(MapTileCacheStats.Counters.NETWORK_BYTES, byteCount);
+    }
+
+    /**
+     * Count an expired tile shown for lack of a fresh one, to be reported in the statistics of
+     * the cache.
+     *
+     * @param aTile the tile
+     */
+    public void onExpiredTileServed(final MapTile aTile) {
+        getCounters(aTile.getLayerKey()).increment(MapTileCacheStats.Counters.EXPIRED_SERVES);
+    }
+
+    /**
+     * @return the statistics of the cache for all the layers
+     */
+    public static MapTileCacheStats getStats() {
+        return MapTileCacheStats.Counters.total(sStats.values());
+    }
+
+    /**
+     * @param layerKey the cache key of a layer
+     * @return the statistics of the cache for that layer
+     */
+    public static MapTileCacheStats getStats(final String layerKey) {
+        return getCounters(layerKey).snapshot(layerKey);
+    }
+
+    /**
+     * @return the statistics of the cache for each layer, by layer cache key
+     */
+    public static Map<String, MapTileCacheStats> getLayerStats() {
+        final Map<String, MapTileCacheStats> result = new HashMap<String, MapTileCacheStats>();
+        for (Map.Entry<String, MapTileCacheStats.Counters> entry : sStats.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().snapshot(entry.getKey()));
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Set all the statistics of the cache back to zero.
+     */
+    public static void resetStats() {
+        sStats.clear();
+    }
+
+    /**
+     * Set a listener receiving the statistics of the cache on the main thread, every {@code
+     * intervalMillis} milliseconds.
+     *
+     * @param listener the listener, or null to stop reporting
+     * @param intervalMillis the delay between two reports
+     */
+    public static void setStatsListener(final MapTileCacheStatsListener listener,
+            final long intervalMillis) {
+        sStatsHandler.removeCallbacks(sStatsReporter);
+        sStatsListener = listener;
+        sStatsInterval = intervalMillis;
+        if (listener != null) {
+            sStatsHandler.postDelayed(sStatsReporter, intervalMillis);
+        }
+    }
+
+    private static MapTileCacheStats.Counters getCounters(final String layerKey) {
+        final String key = layerKey != null ? layerKey : "";
+        MapTileCacheStats.Counters counters = sStats.get(key);
+        if (counters == null) {
+            counters = new MapTileCacheStats.Counters();
+            final MapTileCacheStats.Counters previous = sStats.putIfAbsent(key, counters);
+            if (previous != null) {
+                counters = previous;
+            }
+        }
+        return counters;
+    }
+
+    /**
+     * Get the layer cache key from a tile cache key, which ends with "/z/x/y".
+     */
+    private static String getLayerKey(final String cacheKey) {
+        int end = cacheKey.length();
+        for (int i = 0; i < 3 && end > 0; i++) {
+            end = cacheKey.lastIndexOf('/', end - 1);
+        }
+        return end > 0 ? cacheKey.substring(0, end) : "";
+    }
+
+    private static long getByteCount(final CacheableBitmapDrawable drawable) {
+        final Bitmap bitmap = drawable.getBitmap();
+        return bitmap != null ? bitmap.getRowBytes() * bitmap.getHeight() : 0;
+    }
+
+    private static void countDecoded(final MapTileCacheStats.Counters counters,
+            final CacheableBitmapDrawable drawable) {
+        if (drawable != null && drawable.getSource() == CacheableBitmapDrawable.SOURCE_INBITMAP) {
+            counters.increment(MapTileCacheStats.Counters.INBITMAP_REUSES);
+        }
+    }
+
+    /**
+     * @return the number of disk cache writes waiting to be applied in background
+     */
+    public int getDiskCacheWriteQueueSize() {
+        return getCache().getDiskCacheWriteQueueSize();
+    }
+
+    /**
+     * @return the average time between queuing a disk cache write and having it applied, in
+     * milliseconds
+     */
+    public long getDiskCacheAverageWriteLatency() {
+        return getCache().getDiskCacheAverageWriteLatency();
+    }
+
+    /**
+     * @return the longest time between queuing a disk cache write and having it applied, in
+     * milliseconds
+     */
+    public long getDiskCacheMaxWriteLatency() {
+        return getCache().getDiskCacheMaxWriteLatency();
+    }
+
+    /**
+     * @return the number of disk cache writes dropped because the queue was full
+     */
+    public long getDiskCacheDroppedWriteCount() {
+        return getCache().getDiskCacheDroppedWriteCount();
     }
 
     public CacheableBitmapDrawable putTileBitmap(final MapTile aTile, final Bitmap bitmap) {
         return getCache().put(getCacheKey(aTile), bitmap);
     }
 
+    /**
+     * Put a tile in the memory and disk caches, along with the expiration time given by the
+     * tile server.
+     *
+     * @param aTile the tile
+     * @param bitmap the decoded tile
+     * @param expirationTime the expiration time in milliseconds since the epoch, or 0 if unknown
+     * @return the cached drawable
+     */
+    public CacheableBitmapDrawable putTileBitmap(final MapTile aTile, final Bitmap bitmap,
+            final long expirationTime) {
+        return getCache().put(getCacheKey(aTile), bitmap, expirationTime);
+    }
+
     public CacheableBitmapDrawable putTile(final MapTile aTile, final Drawable aDrawable) {
         if (aDrawable != null && aDrawable instanceof BitmapDrawable) {
             String key = getCacheKey(aTile);
@@ -112,13 +571,11 @@ public class MapTileCache implements TileLayerConstants {
                 drawable = getCache().putInMemoryCache(getCacheKey(aTile),
                         ((BitmapDrawable) aDrawable).getBitmap());
             }
-            if (getCache().isDiskCacheEnabled() && !getCache().containsInDiskCache(key)) {
-                if (drawable != null) {
-                    getCache().putInDiskCache(getCacheKey(aTile), drawable);
-                } else {
-                    getCache().putInDiskCache(getCacheKey(aTile),
-                            ((BitmapDrawable) aDrawable).getBitmap());
-                }
+            if (getCache().isDiskCacheEnabled()) {
+                // Whether the tile is already on disk is checked by the writer, off this thread
+                getCache().putInDiskCacheIfAbsent(key, drawable != null ? drawable
+                        : createCacheableBitmapDrawable(((BitmapDrawable) aDrawable).getBitmap(),
+                                aTile));
             }
             return drawable;
         }
@@ -178,6 +635,66 @@ public class MapTileCache implements TileLayerConstants {
         getCache().purgeMemoryCache();
     }
 
+    /**
+     * Shrinks the memory cache of tiles to {@code limit} bytes, or lets it grow back up to its
+     * maximum size.
+     *
+     * @param limit the size in bytes the memory cache is trimmed to
+     * @param demote whether the evicted tiles are kept compressed in memory
+     */
+    public void setMemoryCacheLimit(final int limit, final boolean demote) {
+        getCache().setMemoryCacheLimit(limit, demote);
+    }
+
+    public int getMemoryCacheLimit() {
+        return getCache().getMemoryCacheLimit();
+    }
+
+    public int getMemoryCacheMaxSize() {
+        return getCache().getMemoryCacheMaxSize();
+    }
+
+    /**
+     * Set the share of the memory cache of tiles this cache needs, such as the tiles of the map
+     * using it. The memory cache is shared by every map, its size is the sum of their shares, at
+     * most its maximum size. The cache is trimmed to it right away, unless it is currently
+     * trimmed further because of memory pressure: it will then grow back up to that size.
+     *
+     * @param size the size in bytes, or 0 to give the share up
+     */
+    public void setMemoryCacheTargetSize(final int size) {
+        final boolean underPressure = getMemoryCacheLimit() < getMemoryCacheTargetSize();
+        synchronized (sMemoryCacheTargetSizes) {
+            if (size > 0) {
+                sMemoryCacheTargetSizes.put(this, size);
+            } else {
+                sMemoryCacheTargetSizes.remove(this);
+            }
+        }
+        if (!underPressure) {
+            setMemoryCacheLimit(getMemoryCacheTargetSize(), true);
+        }
+    }
+
+    /**
+     * @return the size the memory cache of tiles should have when there is no memory pressure:
+     * the shares of the tile caches, or its maximum size if none was set
+     */
+    public int getMemoryCacheTargetSize() {
+        long size = 0;
+        synchronized (sMemoryCacheTargetSizes) {
+            for (final Integer share : sMemoryCacheTargetSizes.values()) {
+                size += share;
+            }
+        }
+        final int maxSize = getMemoryCacheMaxSize();
+        return size > 0 ? (int) Math.min(size, maxSize) : maxSize;
+    }
+
+    public void purgeCompressedMemoryCache() {
+        getCache().purgeCompressedMemoryCache();
+    }
+
     public void purgeDiskCache() {
         getCache().purgeDiskCache();
     }
@@ -191,6 +708,11 @@ public class MapTileCache implements TileLayerConstants {
         return getCache().getBitmapFromRemoved(width, height);
     }
 
+    public Bitmap getBitmapFromRemoved(final int width, final int height,
+            final Bitmap.Config config) {
+        return getCache().getBitmapFromRemoved(width, height, config);
+    }
+
     public Bitmap decodeBitmap(final byte[] data, final BitmapFactory.Options opts) {
         return getCache().decodeBitmap(new BitmapLruCache.ByteArrayInputStreamProvider(data), opts);
     }
@@ -219,6 +741,10 @@ public class MapTileCache implements TileLayerConstants {
     public void setDiskCacheEnabled(final boolean enabled) {
         if (mDiskCacheEnabled != enabled) {
             mDiskCacheEnabled = enabled;
+            if (sCachedTiles != null) {
+                // Stops the disk writer of the cache being replaced
+                sCachedTiles.close();
+            }
             this.sCachedTiles = null;
         }
     }
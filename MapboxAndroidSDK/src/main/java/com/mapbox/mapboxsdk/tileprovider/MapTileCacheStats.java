@@ -0,0 +1,220 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A snapshot of the statistics of the tile cache, for one tile layer or for all of them.
+ * <p/>
+ * Lookups go through the tiers in order: the bitmap memory cache, the compressed memory cache,
+ * the disk cache, and finally the network. Byte counts are the size of the bitmaps served by the
+ * memory tiers and the disk, and the size of the encoded tiles downloaded. The memory cache is
+ * counted once for each tile the map requests, not on each frame redrawing it.
+ */
+public class MapTileCacheStats {
+
+    private final String mLayerKey;
+    private final long mMemoryHits;
+    private final long mMemoryMisses;
+    private final long mCompressedHits;
+    private final long mDiskHits;
+    private final long mDiskMisses;
+    private final long mNetworkFetches;
+    private final long mEvictions;
+    private final long mExpiredServes;
+    private final long mInBitmapReuses;
+    private final long mMemoryBytes;
+    private final long mCompressedBytes;
+    private final long mDiskBytes;
+    private final long mNetworkBytes;
+
+    private MapTileCacheStats(final String layerKey, final long[] values) {
+        mLayerKey = layerKey;
+        mMemoryHits = values[Counters.MEMORY_HITS];
+        mMemoryMisses = values[Counters.MEMORY_MISSES];
+        mCompressedHits = values[Counters.COMPRESSED_HITS];
+        mDiskHits = values[Counters.DISK_HITS];
+        mDiskMisses = values[Counters.DISK_MISSES];
+        mNetworkFetches = values[Counters.NETWORK_FETCHES];
+        mEvictions = values[Counters.EVICTIONS];
+        mExpiredServes = values[Counters.EXPIRED_SERVES];
+        mInBitmapReuses = values[Counters.INBITMAP_REUSES];
+        mMemoryBytes = values[Counters.MEMORY_BYTES];
+        mCompressedBytes = values[Counters.COMPRESSED_BYTES];
+        mDiskBytes = values[Counters.DISK_BYTES];
+        mNetworkBytes = values[Counters.NETWORK_BYTES];
+    }
+
+    /**
+     * @return the cache key of the layer, or null for the statistics of all the layers
+     */
+    public String getLayerKey() {
+        return mLayerKey;
+    }
+
+    public long getMemoryHits() {
+        return mMemoryHits;
+    }
+
+    public long getMemoryMisses() {
+        return mMemoryMisses;
+    }
+
+    /**
+     * @return the number of tiles decoded back from the compressed memory cache
+     */
+    public long getCompressedHits() {
+        return mCompressedHits;
+    }
+
+    public long getDiskHits() {
+        return mDiskHits;
+    }
+
+    public long getDiskMisses() {
+        return mDiskMisses;
+    }
+
+    public long getNetworkFetches() {
+        return mNetworkFetches;
+    }
+
+    /**
+     * @return the number of tiles evicted from the bitmap memory cache
+     */
+    public long getEvictions() {
+        return mEvictions;
+    }
+
+    /**
+     * @return the number of expired tiles shown because no fresh tile was available
+     */
+    public long getExpiredServes() {
+        return mExpiredServes;
+    }
+
+    /**
+     * @return the number of tiles decoded into the bitmap of an evicted tile
+     */
+    public long getInBitmapReuses() {
+        return mInBitmapReuses;
+    }
+
+    public long getMemoryBytes() {
+        return mMemoryBytes;
+    }
+
+    public long getCompressedBytes() {
+        return mCompressedBytes;
+    }
+
+    public long getDiskBytes() {
+        return mDiskBytes;
+    }
+
+    public long getNetworkBytes() {
+        return mNetworkBytes;
+    }
+
+    /**
+     * @return the share of the memory cache lookups that found the tile, between 0 and 1
+     */
+    public float getMemoryHitRate() {
+        return rate(mMemoryHits, mMemoryMisses);
+    }
+
+    /**
+     * @return the share of the lookups below the memory cache that were answered by the
+     * compressed memory cache or the disk, between 0 and 1
+     */
+    public float getDiskHitRate() {
+        return rate(mCompressedHits + mDiskHits, mDiskMisses);
+    }
+
+    /**
+     * @return the share of the tiles decoded from the compressed memory cache or the disk which
+     * reused the bitmap of an evicted tile, between 0 and 1
+     */
+    public float getInBitmapReuseRate() {
+        final long decoded = mCompressedHits + mDiskHits;
+        return decoded > 0 ? Math.min(1f, (float) mInBitmapReuses / decoded) : 0f;
+    }
+
+    private static float rate(final long hits, final long misses) {
+        final long total = hits + misses;
+        return total > 0 ? (float) hits / total : 0f;
+    }
+
+    @Override
+    public String toString() {
+        return "MapTileCacheStats{" + (mLayerKey != null ? mLayerKey : "all")
+                + ", memory " + mMemoryHits + "/" + (mMemoryHits + mMemoryMisses)
+                + " (" + mMemoryBytes + " B)"
+                + ", compressed " + mCompressedHits + " (" + mCompressedBytes + " B)"
+                + ", disk " + mDiskHits + "/" + (mDiskHits + mDiskMisses)
+                + " (" + mDiskBytes + " B)"
+                + ", network " + mNetworkFetches + " (" + mNetworkBytes + " B)"
+                + ", evictions " + mEvictions
+                + ", expired " + mExpiredServes
+                + ", inBitmap " + mInBitmapReuses + "}";
+    }
+
+    /**
+     * The live counters of a layer, updated from any thread.
+     */
+    static final class Counters {
+
+        static final int MEMORY_HITS = 0;
+        static final int MEMORY_MISSES = 1;
+        static final int COMPRESSED_HITS = 2;
+        static final int DISK_HITS = 3;
+        static final int DISK_MISSES = 4;
+        static final int NETWORK_FETCHES = 5;
+        static final int EVICTIONS = 6;
+        static final int EXPIRED_SERVES = 7;
+        static final int INBITMAP_REUSES = 8;
+        static final int MEMORY_BYTES = 9;
+        static final int COMPRESSED_BYTES = 10;
+        static final int DISK_BYTES = 11;
+        static final int NETWORK_BYTES = 12;
+        private static final int COUNT = 13;
+
+        private final AtomicLong[] mValues = new AtomicLong[COUNT];
+
+        Counters() {
+            for (int i = 0; i < COUNT; i++) {
+                mValues[i] = new AtomicLong(0);
+            }
+        }
+
+        void add(final int counter, final long delta) {
+            mValues[counter].addAndGet(delta);
+        }
+
+        void increment(final int counter) {
+            mValues[counter].incrementAndGet();
+        }
+
+        /**
+         * Add the current values to {@code values}.
+         */
+        void addTo(final long[] values) {
+            for (int i = 0; i < COUNT; i++) {
+                values[i] += mValues[i].get();
+            }
+        }
+
+        MapTileCacheStats snapshot(final String layerKey) {
+            final long[] values = new long[COUNT];
+            addTo(values);
+            return new MapTileCacheStats(layerKey, values);
+        }
+
+        static MapTileCacheStats total(final Iterable<Counters> counters) {
+            final long[] values = new long[COUNT];
+            for (Counters c : counters) {
+                c.addTo(values);
+            }
+            return new MapTileCacheStats(null, values);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+import java.util.Map;
+
+/**
+ * Receives the statistics of the tile cache at a regular interval, for instance to report them.
+ */
+public interface MapTileCacheStatsListener {
+
+    /**
+     * Called on the main thread. The counters are cumulative since the cache was created or its
+     * statistics reset.
+     *
+     * @param total the statistics of all the layers
+     * @param layers the statistics of each layer, by cache key
+     */
+    public void onMapTileCacheStats(MapTileCacheStats total, Map<String, MapTileCacheStats> layers);
+}
@@ -1,10 +1,13 @@
 package com.mapbox.mapboxsdk.tileprovider;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
 import android.util.Log;
 import com.mapbox.mapboxsdk.geometry.BoundingBox;
 import com.mapbox.mapboxsdk.geometry.LatLng;
+import com.mapbox.mapboxsdk.tileprovider.modules.MapTileDiskCacheProvider;
+import com.mapbox.mapboxsdk.tileprovider.modules.MapTileDownloader;
 import com.mapbox.mapboxsdk.tileprovider.modules.MapTileModuleLayerBase;
 import com.mapbox.mapboxsdk.tileprovider.modules.NetworkAvailabilityCheck;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
@@ -12,15 +15,18 @@ import com.mapbox.mapboxsdk.util.BitmapUtils;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
 /**
  * This top-level tile provider allows a consumer to provide an array of modular asynchronous tile
  * providers to be used to obtain map tiles. When a tile is requested, the
- * {@link MapTileLayerArray} first checks the {@link MapTileCache} (synchronously) and returns
- * the tile if available. If not, then the {@link MapTileLayerArray} returns null and sends the
- * tile request through the asynchronous tile request chain. Each asynchronous tile provider
+ * {@link MapTileLayerArray} first checks the memory cache of the {@link MapTileCache}
+ * (synchronously) and returns the tile if available. If not, then the {@link MapTileLayerArray}
+ * returns null and sends the tile request through the asynchronous tile request chain, which
+ * starts with a {@link MapTileDiskCacheProvider} reading the disk cache. Each asynchronous tile provider
  * returns
  * success/failure to the {@link MapTileLayerArray}. If successful, the
  * {@link MapTileLayerArray} passes the result to the base class. If failed, then the next
@@ -37,10 +43,25 @@ public class MapTileLayerArray extends MapTileLayerBase {
 
     protected final List<MapTileModuleLayerBase> mTileProviderList;
 
+    /**
+     * Reads tiles from the disk cache, ahead of the providers of {@link #mTileProviderList}.
+     */
+    protected final MapTileDiskCacheProvider mDiskCacheProvider;
+
     protected final List<MapTile> mUnaccessibleTiles;
 
     protected final NetworkAvailabilityCheck mNetworkAvailabilityCheck;
 
+    /**
+     * Last time a refresh was started for recently revalidated tiles, so a stale tile is not
+     * requested again before the minimum revalidation interval of the layer.
+     */
+    protected final LinkedHashMap<MapTile, Long> mRevalidationTimes;
+
+    private int mRevalidationCount = 0;
+
+    private static final int REVALIDATION_HISTORY_SIZE = 256;
+
     /**
      * Creates an {@link MapTileLayerArray} with no tile providers.
      *
@@ -64,9 +85,20 @@ public class MapTileLayerArray extends MapTileLayerBase {
 
         mWorking = new HashMap<MapTile, MapTileRequestState>();
         mUnaccessibleTiles = new ArrayList<MapTile>();
+        mRevalidationTimes = new LinkedHashMap<MapTile, Long>(REVALIDATION_HISTORY_SIZE, 0.75f, true) {
+
+            private static final long serialVersionUID = 2907553211467281834L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<MapTile, Long> pEldest) {
+                return size() > REVALIDATION_HISTORY_SIZE;
+            }
+        };
 
         mNetworkAvailabilityCheck = new NetworkAvailabilityCheck(context);
 
+        mDiskCacheProvider = new MapTileDiskCacheProvider(this);
+
         mTileProviderList = new ArrayList<MapTileModuleLayerBase>();
         if (pTileProviderArray != null) {
             mCacheKey = pTileProviderArray[0].getCacheKey();
@@ -85,9 +117,16 @@ public class MapTileLayerArray extends MapTileLayerBase {
                 tileProvider.detach();
             }
         }
+        mDiskCacheProvider.detach();
+        // The tiles of this map don't need room in the shared memory cache anymore
+        mTileCache.setMemoryCacheTargetSize(0);
 
         synchronized (mWorking) {
             mWorking.clear();
+            mRevalidationCount = 0;
+        }
+        synchronized (mRevalidationTimes) {
+            mRevalidationTimes.clear();
         }
     }
 
@@ -95,6 +134,13 @@ public class MapTileLayerArray extends MapTileLayerBase {
         return mNetworkAvailabilityCheck == null || mNetworkAvailabilityCheck.getNetworkAvailable();
     }
 
+    /**
+     * Whether tiles can be fetched through the data connection.
+     */
+    private boolean remoteAvailable() {
+        return useDataConnection() && networkAvailable();
+    }
+
     /**
      * Checks whether this tile is unavailable and the system is offline.
      *
@@ -102,28 +148,52 @@ public class MapTileLayerArray extends MapTileLayerBase {
      * @return whether the tile is unavailable
      */
     private boolean tileUnavailable(final MapTile pTile) {
-        if (mUnaccessibleTiles.size() > 0) {
-            if (networkAvailable()) {
-                mUnaccessibleTiles.clear();
-            } else if (mUnaccessibleTiles.contains(pTile)) {
-                return true;
+        synchronized (mUnaccessibleTiles) {
+            if (mUnaccessibleTiles.size() > 0) {
+                if (remoteAvailable()) {
+                    mUnaccessibleTiles.clear();
+                } else if (mUnaccessibleTiles.contains(pTile)) {
+                    return true;
+                }
             }
         }
         return false;
     }
 
+    /**
+     * Remembers that the request of a tile went through every provider it could use offline, so
+     * that it isn't requested again until the data connection is back.
+     */
+    private void setTileUnavailable(final MapTile pTile) {
+        synchronized (mUnaccessibleTiles) {
+            if (!mUnaccessibleTiles.contains(pTile)) {
+                mUnaccessibleTiles.add(pTile);
+            }
+        }
+    }
+
     @Override
     public Drawable getMapTile(final MapTile pTile, final boolean allowRemote) {
         if (tileUnavailable(pTile)) {
             if (DEBUG_TILE_PROVIDERS) {
                 Log.i(TAG, "MapTileLayerArray.getMapTile() tileUnavailable: " + pTile);
             }
-            return null;
+            // An expired tile is still drawn as a placeholder, without being requested again
+            final CacheableBitmapDrawable placeholder = mTileCache.getMapTileFromMemory(pTile);
+            return placeholder != null && placeholder.isBitmapValid() ? placeholder : null;
         }
         final CacheableBitmapDrawable tileDrawable = mTileCache.getMapTileFromMemory(pTile);
+        final int freshness = getFreshnessPolicy().getFreshness(tileDrawable,
+                System.currentTimeMillis());
         if (tileDrawable != null && tileDrawable.isBitmapValid() &&
-                !BitmapUtils.isCacheDrawableExpired(tileDrawable)) {
+                !BitmapUtils.isCacheDrawableExpired(tileDrawable)
+                && freshness != TileFreshnessPolicy.EXPIRED) {
             tileDrawable.setBeingUsed(true);
+            mTileCache.countMemoryLookup(pTile, tileDrawable);
+            if (freshness == TileFreshnessPolicy.STALE && allowRemote) {
+                // draw it now, and refresh it in the background
+                revalidateMapTile(pTile);
+            }
             return tileDrawable;
         } else if (allowRemote) {
             boolean alreadyInProgress = false;
@@ -143,9 +213,12 @@ public class MapTileLayerArray extends MapTileLayerBase {
 
                 synchronized (mTileProviderList) {
                     final MapTileModuleLayerBase[] providerArray =
-                            new MapTileModuleLayerBase[mTileProviderList.size()];
-                    state = new MapTileRequestState(pTile, mTileProviderList.toArray(providerArray),
-                            this);
+                            new MapTileModuleLayerBase[mTileProviderList.size() + 1];
+                    providerArray[0] = mDiskCacheProvider;
+                    for (int i = 0; i < mTileProviderList.size(); i++) {
+                        providerArray[i + 1] = mTileProviderList.get(i);
+                    }
+                    state = new MapTileRequestState(pTile, providerArray, this);
                 }
 
                 synchronized (mWorking) {
@@ -156,6 +229,8 @@ public class MapTileLayerArray extends MapTileLayerBase {
                     }
                     mWorking.put(pTile, state);
                 }
+                // A miss is counted once for the request, not for each frame waiting for it
+                mTileCache.countMemoryLookup(pTile, null);
 
                 final MapTileModuleLayerBase provider = findNextAppropriateProvider(state);
                 if (provider != null) {
@@ -169,13 +244,87 @@ public class MapTileLayerArray extends MapTileLayerBase {
         return null;
     }
 
+    /**
+     * Refresh a stale tile in the background, using only the providers which fetch tiles through
+     * the data connection. The stale tile keeps being drawn in the meantime. Refreshes are
+     * throttled: a tile is not refreshed again before the minimum revalidation interval of the
+     * layer, and only {@link #TILE_MAXIMUM_CONCURRENT_REVALIDATIONS} refreshes run at a time.
+     *
+     * @param pTile the stale tile
+     */
+    protected void revalidateMapTile(final MapTile pTile) {
+        final long now = System.currentTimeMillis();
+        synchronized (mRevalidationTimes) {
+            final Long lastRevalidation = mRevalidationTimes.get(pTile);
+            if (lastRevalidation != null
+                    && now - lastRevalidation < getFreshnessPolicy().getMinRevalidateInterval()) {
+                return;
+            }
+        }
+
+        final MapTileRequestState state;
+        synchronized (mTileProviderList) {
+            final List<MapTileModuleLayerBase> networkProviders =
+                    new ArrayList<MapTileModuleLayerBase>();
+            for (final MapTileModuleLayerBase tileProvider : mTileProviderList) {
+                if (tileProvider.getUsesDataConnection()) {
+                    networkProviders.add(tileProvider);
+                }
+            }
+            state = new MapTileRequestState(pTile, networkProviders.toArray(
+                    new MapTileModuleLayerBase[networkProviders.size()]), this, true);
+        }
+
+        synchronized (mWorking) {
+            if (mWorking.containsKey(pTile)
+                    || mRevalidationCount >= TILE_MAXIMUM_CONCURRENT_REVALIDATIONS) {
+                return;
+            }
+            mWorking.put(pTile, state);
+            mRevalidationCount++;
+        }
+        synchronized (mRevalidationTimes) {
+            mRevalidationTimes.put(pTile, now);
+        }
+
+        if (DEBUG_TILE_PROVIDERS) {
+            Log.i(TAG, "MapTileLayerArray.revalidateMapTile() refreshing stale tile: " + pTile);
+        }
+
+        final MapTileModuleLayerBase provider = findNextAppropriateProvider(state);
+        if (provider != null) {
+            provider.loadMapTileAsync(state);
+        } else {
+            finishRequest(state);
+        }
+    }
+
+    /**
+     * Remove a request that went through the whole provider chain from the working set.
+     */
+    private void finishRequest(final MapTileRequestState aState) {
+        synchronized (mWorking) {
+            if (mWorking.get(aState.getMapTile()) == aState) {
+                mWorking.remove(aState.getMapTile());
+            }
+            if (aState.isRevalidation()) {
+                mRevalidationCount--;
+            }
+        }
+    }
+
     @Override
     public void mapTileRequestCompleted(final MapTileRequestState aState,
             final Drawable aDrawable) {
-        synchronized (mWorking) {
-            mWorking.remove(aState.getMapTile());
-        }
+        finishRequest(aState);
         super.mapTileRequestCompleted(aState, aDrawable);
+
+        // A tile served from a cache may need a refresh
+        if (!aState.isRevalidation() && aDrawable instanceof CacheableBitmapDrawable
+                && getFreshnessPolicy().getFreshness((CacheableBitmapDrawable) aDrawable,
+                System.currentTimeMillis()) == TileFreshnessPolicy.STALE) {
+            revalidateMapTile(aState.getMapTile());
+        }
     }
 
     @Override
@@ -184,11 +333,11 @@ public class MapTileLayerArray extends MapTileLayerBase {
         if (nextProvider != null) {
             nextProvider.loadMapTileAsync(aState);
         } else {
-            synchronized (mWorking) {
-                mWorking.remove(aState.getMapTile());
-            }
-            if (!networkAvailable()) {
-                mUnaccessibleTiles.add(aState.getMapTile());
+            finishRequest(aState);
+            // A failed refresh leaves the stale tile in place. An expired tile read from the
+            // disk cache is kept as a placeholder, but isn't requested again while offline.
+            if (!aState.isRevalidation() && !remoteAvailable()) {
+                setTileUnavailable(aState.getMapTile());
             }
             super.mapTileRequestFailed(aState);
         }
@@ -206,8 +355,11 @@ public class MapTileLayerArray extends MapTileLayerBase {
         if (nextProvider != null) {
             nextProvider.loadMapTileAsync(aState);
         } else {
-            synchronized (mWorking) {
-                mWorking.remove(aState.getMapTile());
+            finishRequest(aState);
+            // Nothing can replace the expired tile until the data connection is back: requesting
+            // it on every frame would read it from the disk cache again and again
+            if (!aState.isRevalidation() && !remoteAvailable()) {
+                setTileUnavailable(aState.getMapTile());
             }
         }
     }
@@ -243,7 +395,65 @@ public class MapTileLayerArray extends MapTileLayerBase {
         return provider;
     }
 
+    @Override
+    public TileFreshnessPolicy getFreshnessPolicy() {
+        // Tiles are cached under the key of the first provider, so its layer decides
+        synchronized (mTileProviderList) {
+            for (final MapTileModuleLayerBase tileProvider : mTileProviderList) {
+                final ITileLayer tileSource = tileProvider.getTileSource();
+                if (tileSource != null) {
+                    return tileSource.getFreshnessPolicy();
+                }
+            }
+        }
+        return TileFreshnessPolicy.DEFAULT;
+    }
+
+    @Override
+    public Bitmap.Config getBitmapConfig() {
+        // Like the freshness policy, the layer of the first provider decides
+        synchronized (mTileProviderList) {
+            for (final MapTileModuleLayerBase tileProvider : mTileProviderList) {
+                final ITileLayer tileSource = tileProvider.getTileSource();
+                if (tileSource != null) {
+                    return tileSource.getBitmapConfig();
+                }
+            }
+        }
+        return Bitmap.Config.ARGB_8888;
+    }
+
+    @Override
+    public boolean isHdpi() {
+        // Any layer downloading high resolution tiles makes the tiles of the map that large
+        synchronized (mTileProviderList) {
+            for (final MapTileModuleLayerBase tileProvider : mTileProviderList) {
+                if (tileProvider instanceof MapTileDownloader
+                        && ((MapTileDownloader) tileProvider).isHdpi()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int getTileLayerCount() {
+        int count = 0;
+        synchronized (mTileProviderList) {
+            for (final MapTileModuleLayerBase tileProvider : mTileProviderList) {
+                if (tileProvider.getTileSource() != null) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
     public boolean getProviderExists(final MapTileModuleLayerBase provider) {
+        if (provider == mDiskCacheProvider) {
+            return true;
+        }
         synchronized (mTileProviderList) {
             return mTileProviderList.contains(provider);
         }
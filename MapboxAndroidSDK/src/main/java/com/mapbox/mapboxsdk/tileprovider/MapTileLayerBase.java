@@ -4,9 +4,7 @@ package com.mapbox.mapboxsdk.tileprovider;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
 import android.os.Handler;
-import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
 import com.mapbox.mapboxsdk.geometry.BoundingBox;
@@ -14,6 +12,7 @@ import com.mapbox.mapboxsdk.geometry.LatLng;
 import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
 import com.mapbox.mapboxsdk.util.BitmapUtils;
+import java.util.Map;
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
 /**
@@ -127,6 +126,44 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
         return mTileSource;
     }
 
+    /**
+     * Gets the policy deciding how long the cached tiles of this provider stay fresh.
+     *
+     * @return the freshness policy
+     */
+    public TileFreshnessPolicy getFreshnessPolicy() {
+        return (mTileSource != null) ? mTileSource.getFreshnessPolicy()
+                : TileFreshnessPolicy.DEFAULT;
+    }
+
+    /**
+     * Gets the bitmap configuration the tiles of this provider are decoded with.
+     *
+     * @return the bitmap configuration
+     */
+    public Bitmap.Config getBitmapConfig() {
+        return (mTileSource != null) ? mTileSource.getBitmapConfig() : Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * Gets whether the tiles of this provider are decoded at twice their size on screen, being
+     * downloaded for a high density screen.
+     *
+     * @return true for high resolution tiles
+     */
+    public boolean isHdpi() {
+        return false;
+    }
+
+    /**
+     * Gets the number of tile layers drawn on top of each other by this provider.
+     *
+     * @return the number of layers
+     */
+    public int getTileLayerCount() {
+        return (mTileSource != null) ? 1 : 0;
+    }
+
     /**
      * Gets the cache key for that layer
      *
@@ -136,6 +173,15 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
         return mCacheKey;
     }
 
+    /**
+     * Gets the cache holding the tiles of this provider.
+     *
+     * @return the tile cache
+     */
+    public MapTileCache getTileCache() {
+        return mTileCache;
+    }
+
     /**
      * Creates a {@link MapTileCache} to be used to cache tiles in memory.
      */
@@ -167,10 +213,8 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
             final Drawable pDrawable) {
         // tell our caller we've finished and it should update its view
         if (mTileRequestCompleteHandler != null) {
-            Message msg = new Message();
-            msg.obj = pState.getMapTile().getTileRect();
-            msg.what = MapTile.MAPTILE_SUCCESS_ID;
-            mTileRequestCompleteHandler.sendMessage(msg);
+            mTileRequestCompleteHandler.obtainMessage(MapTile.MAPTILE_SUCCESS_ID,
+                    pState.getMapTile().getTileRect()).sendToTarget();
         }
 
         if (DEBUG_TILE_PROVIDERS) {
@@ -208,6 +252,7 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
             CacheableBitmapDrawable pDrawable) {
         // Put the expired tile into the cache
         putExpiredTileIntoCache(pState.getMapTile(), pDrawable.getBitmap());
+        mTileCache.onExpiredTileServed(pState.getMapTile());
 
         // tell our caller we've finished and it should update its view
         if (mTileRequestCompleteHandler != null) {
@@ -219,26 +264,10 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
         }
     }
 
-    private void putTileIntoCacheInternal(final MapTile pTile, final Drawable pDrawable) {
-        mTileCache.putTile(pTile, pDrawable);
-    }
-
-    private class CacheTask extends AsyncTask<Object, Void, Void> {
-
-        @Override
-        protected Void doInBackground(Object... params) {
-            putTileIntoCacheInternal((MapTile) params[0], (Drawable) params[1]);
-            return null;
-        }
-    }
-
     private void putTileIntoCache(final MapTile pTile, final Drawable pDrawable) {
         if (pDrawable != null) {
-            if (Looper.myLooper() == Looper.getMainLooper()) {
-                (new CacheTask()).execute(pTile, pDrawable);
-            } else {
-                putTileIntoCacheInternal(pTile, pDrawable);
-            }
+            // Safe on the main thread, the disk cache is written in background
+            mTileCache.putTile(pTile, pDrawable);
         }
     }
 
@@ -261,6 +290,21 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
         }
     }
 
+    /**
+     * Put tiles rescaled from another zoom level into the cache at once, expired so they are
+     * replaced once loaded, and tell our caller to update its view.
+     *
+     * @param pTiles the rescaled tiles
+     */
+    public void putExpiredTilesIntoCache(final Map<MapTile, Bitmap> pTiles) {
+        for (Map.Entry<MapTile, Bitmap> tile : pTiles.entrySet()) {
+            putExpiredTileIntoCache(tile.getKey(), tile.getValue());
+        }
+        if (!pTiles.isEmpty() && mTileRequestCompleteHandler != null) {
+            mTileRequestCompleteHandler.sendEmptyMessage(MapTile.MAPTILE_SUCCESS_ID);
+        }
+    }
+
     public void setTileRequestCompleteHandler(final Handler handler) {
         mTileRequestCompleteHandler = handler;
     }
@@ -303,6 +347,14 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
         return (mTileCache != null) ? mTileCache.getMapTileFromMemory(pTile) : null;
     }
 
+    /**
+     * Get a tile from the memory cache, leaving the cache statistics and the order of use of its
+     * tiles unchanged.
+     */
+    public CacheableBitmapDrawable peekMapTileFromMemory(final MapTile pTile) {
+        return (mTileCache != null) ? mTileCache.peekMapTileFromMemory(pTile) : null;
+    }
+
     public CacheableBitmapDrawable createCacheableBitmapDrawable(Bitmap bitmap, MapTile aTile) {
         return (mTileCache != null) ? mTileCache.createCacheableBitmapDrawable(bitmap, aTile)
                 : null;
@@ -312,6 +364,12 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
         return (mTileCache != null) ? mTileCache.getBitmapFromRemoved(width, height) : null;
     }
 
+    public Bitmap getBitmapFromRemoved(final int width, final int height,
+            final Bitmap.Config config) {
+        return (mTileCache != null) ? mTileCache.getBitmapFromRemoved(width, height, config)
+                : null;
+    }
+
     /**
      * If a given MapTile is present in this cache, remove it from memory.
      * @param aTile
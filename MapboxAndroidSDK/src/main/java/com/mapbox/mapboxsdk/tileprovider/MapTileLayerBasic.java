@@ -1,6 +1,7 @@
 package com.mapbox.mapboxsdk.tileprovider;
 
 import android.content.Context;
+import com.mapbox.mapboxsdk.tileprovider.modules.MBTilesTileSink;
 import com.mapbox.mapboxsdk.tileprovider.modules.MapTileDownloader;
 import com.mapbox.mapboxsdk.tileprovider.modules.MapTileModuleLayerBase;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
@@ -72,6 +73,28 @@ public class MapTileLayerBasic extends MapTileLayerArray implements IMapTileProv
         }
     }
 
+    /**
+     * Keep the tiles downloaded for a layer in an MBTiles file. Only the tiles of layers with a
+     * single URL are kept, composited tiles aren't. The sink previously set on the layer is
+     * closed, and so is this one when the map is detached.
+     *
+     * @param pTileSource a layer of the map
+     * @param sink the file receiving the tiles, or null to stop keeping them
+     * @return false if the layer isn't on the map
+     */
+    public boolean setTileSink(final ITileLayer pTileSource, final MBTilesTileSink sink) {
+        synchronized (mTileProviderList) {
+            for (MapTileModuleLayerBase provider : mTileProviderList) {
+                if (provider.getTileSource() == pTileSource
+                        && provider instanceof MapTileDownloader) {
+                    ((MapTileDownloader) provider).setTileSink(sink);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     public void removeTileSource(final int index) {
         synchronized (mTileProviderList) {
             if (index >= 0 & index < mTileProviderList.size()) {
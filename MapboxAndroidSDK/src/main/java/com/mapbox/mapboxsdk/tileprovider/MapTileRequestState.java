@@ -14,6 +14,7 @@ public class MapTileRequestState {
     private final Queue<MapTileModuleLayerBase> mProviderQueue;
     private final MapTile mMapTile;
     private final IMapTileProviderCallback mCallback;
+    private final boolean mRevalidation;
     private MapTileModuleLayerBase mCurrentProvider;
 
     /**
@@ -21,12 +22,24 @@ public class MapTileRequestState {
      */
     public MapTileRequestState(final MapTile mapTile, final MapTileModuleLayerBase[] providers,
             final IMapTileProviderCallback callback) {
+        this(mapTile, providers, callback, false);
+    }
+
+    /**
+     * Initialize a new state to keep track of a map tile
+     *
+     * @param revalidation true if this request refreshes a stale tile that is already cached, in
+     * which case providers should not answer it from their cache
+     */
+    public MapTileRequestState(final MapTile mapTile, final MapTileModuleLayerBase[] providers,
+            final IMapTileProviderCallback callback, final boolean revalidation) {
         mProviderQueue = new LinkedList<MapTileModuleLayerBase>();
         if (providers != null) {
             Collections.addAll(mProviderQueue, providers);
         }
         mMapTile = mapTile;
         mCallback = callback;
+        mRevalidation = revalidation;
     }
 
     /**
@@ -47,6 +60,15 @@ public class MapTileRequestState {
         return mCallback;
     }
 
+    /**
+     * Whether this request refreshes a stale tile that is already cached
+     *
+     * @return true for a refresh request
+     */
+    public boolean isRevalidation() {
+        return mRevalidation;
+    }
+
     public MapTileModuleLayerBase getNextProvider() {
         mCurrentProvider = mProviderQueue.poll();
         return mCurrentProvider;
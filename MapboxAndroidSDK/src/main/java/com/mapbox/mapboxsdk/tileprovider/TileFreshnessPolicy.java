@@ -0,0 +1,183 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+import android.text.TextUtils;
+import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
+
+/**
+ * Describes how long the tiles of a layer stay valid once they have been fetched.
+ * <p/>
+ * A tile is <b>fresh</b> until it reaches its maximum age. After that it is <b>stale</b> for the
+ * duration of the stale-while-revalidate window: it is still drawn straight away, while a
+ * refresh is requested in the background. Past that window the tile is <b>expired</b> and is
+ * requested again like a missing tile (it is still used as a placeholder until then).
+ * <p/>
+ * When Cache-Control is honoured, the max-age (or Expires header) sent by the tile server takes
+ * precedence over the maximum age of the policy.
+ */
+public class TileFreshnessPolicy {
+
+    public static final int FRESH = 0;
+    public static final int STALE = FRESH + 1;
+    public static final int EXPIRED = STALE + 1;
+
+    public static final long NEVER_EXPIRES = -1;
+
+    /**
+     * Minimum delay between two background refreshes of the same tile.
+     */
+    public static final long DEFAULT_MIN_REVALIDATE_INTERVAL = 30 * 1000;
+
+    /**
+     * The default policy: tiles never expire and Cache-Control is ignored, which is how the
+     * tile cache always behaved.
+     */
+    public static final TileFreshnessPolicy DEFAULT =
+            new TileFreshnessPolicy(NEVER_EXPIRES, 0, false);
+
+    private final long mMaxAge;
+    private final long mStaleWhileRevalidate;
+    private final boolean mHonourCacheControl;
+    private final long mMinRevalidateInterval;
+
+    /**
+     * @param maxAge how long a tile is fresh after being fetched, in milliseconds, or
+     * {@link #NEVER_EXPIRES}
+     * @param staleWhileRevalidate how long a tile can still be drawn while being refreshed once
+     * it is no longer fresh, in milliseconds
+     * @param honourCacheControl whether the Cache-Control and Expires headers of the tile server
+     * override maxAge
+     */
+    public TileFreshnessPolicy(final long maxAge, final long staleWhileRevalidate,
+            final boolean honourCacheControl) {
+        this(maxAge, staleWhileRevalidate, honourCacheControl, DEFAULT_MIN_REVALIDATE_INTERVAL);
+    }
+
+    /**
+     * @param maxAge how long a tile is fresh after being fetched, in milliseconds, or
+     * {@link #NEVER_EXPIRES}
+     * @param staleWhileRevalidate how long a tile can still be drawn while being refreshed once
+     * it is no longer fresh, in milliseconds
+     * @param honourCacheControl whether the Cache-Control and Expires headers of the tile server
+     * override maxAge
+     * @param minRevalidateInterval minimum delay between two refreshes of the same tile, in
+     * milliseconds
+     */
+    public TileFreshnessPolicy(final long maxAge, final long staleWhileRevalidate,
+            final boolean honourCacheControl, final long minRevalidateInterval) {
+        mMaxAge = maxAge;
+        mStaleWhileRevalidate = Math.max(0, staleWhileRevalidate);
+        mHonourCacheControl = honourCacheControl;
+        mMinRevalidateInterval = Math.max(0, minRevalidateInterval);
+    }
+
+    public long getMaxAge() {
+        return mMaxAge;
+    }
+
+    public long getStaleWhileRevalidate() {
+        return mStaleWhileRevalidate;
+    }
+
+    public boolean getHonourCacheControl() {
+        return mHonourCacheControl;
+    }
+
+    public long getMinRevalidateInterval() {
+        return mMinRevalidateInterval;
+    }
+
+    /**
+     * Whether tiles can ever become stale under this policy.
+     *
+     * @return true if tiles may expire
+     */
+    public boolean canExpire() {
+        return mMaxAge != NEVER_EXPIRES || mHonourCacheControl;
+    }
+
+    /**
+     * Get the time at which a tile stops being fresh.
+     *
+     * @param fetchedTime the time the tile was fetched, in milliseconds since the epoch
+     * @param serverExpirationTime the expiration time given by the tile server, or 0 if unknown
+     * @return the expiration time, or {@link Long#MAX_VALUE} if the tile never expires
+     */
+    public long getExpirationTime(final long fetchedTime, final long serverExpirationTime) {
+        if (mHonourCacheControl && serverExpirationTime > 0) {
+            return serverExpirationTime;
+        }
+        if (mMaxAge == NEVER_EXPIRES) {
+            return Long.MAX_VALUE;
+        }
+        return fetchedTime + mMaxAge;
+    }
+
+    /**
+     * Get the freshness of a tile.
+     *
+     * @param fetchedTime the time the tile was fetched, in milliseconds since the epoch
+     * @param serverExpirationTime the expiration time given by the tile server, or 0 if unknown
+     * @param now the current time
+     * @return one of {@link #FRESH}, {@link #STALE} or {@link #EXPIRED}
+     */
+    public int getFreshness(final long fetchedTime, final long serverExpirationTime,
+            final long now) {
+        final long expirationTime = getExpirationTime(fetchedTime, serverExpirationTime);
+        if (now < expirationTime) {
+            return FRESH;
+        }
+        if (now - expirationTime < mStaleWhileRevalidate) {
+            return STALE;
+        }
+        return EXPIRED;
+    }
+
+    /**
+     * Get the freshness of a cached tile drawable.
+     *
+     * @param drawable the cached tile
+     * @param now the current time
+     * @return one of {@link #FRESH}, {@link #STALE} or {@link #EXPIRED}
+     */
+    public int getFreshness(final CacheableBitmapDrawable drawable, final long now) {
+        if (drawable == null || !canExpire()) {
+            return FRESH;
+        }
+        return getFreshness(drawable.getFetchedTime(), drawable.getExpirationTime(), now);
+    }
+
+    /**
+     * Compute the expiration time announced by a tile server.
+     *
+     * @param now the time the response was received
+     * @param cacheControl the value of the Cache-Control header, may be null
+     * @param expires the value of the Expires header in milliseconds since the epoch, or 0
+     * @return the expiration time, or 0 if the server didn't give one
+     */
+    public static long parseExpirationTime(final long now, final String cacheControl,
+            final long expires) {
+        if (!TextUtils.isEmpty(cacheControl)) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim();
+                if (directive.equals("no-cache") || directive.equals("no-store")) {
+                    return now;
+                }
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        return now + 1000L * Long.parseLong(directive.substring(8).trim());
+                    } catch (NumberFormatException e) {
+                        // fall through to the Expires header
+                    }
+                }
+            }
+        }
+        return expires > 0 ? expires : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "TileFreshnessPolicy [maxAge=" + mMaxAge
+                + ", staleWhileRevalidate=" + mStaleWhileRevalidate
+                + ", honourCacheControl=" + mHonourCacheControl + "]";
+    }
+}
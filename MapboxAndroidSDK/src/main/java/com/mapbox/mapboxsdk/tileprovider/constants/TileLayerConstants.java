@@ -33,6 +33,26 @@ public interface TileLayerConstants {
     public static final int CACHE_MAPTILECOUNT_DEFAULT = 9;
 
     public static final int CACHE_MAPTILEDISKSIZE_DEFAULT = 100 * 1024 * 1024;
+
+    /**
+     * size of the compressed memory tier of the tile cache, relative to its bitmap tier
+     */
+    public static final float CACHE_COMPRESSED_MEMORY_RATIO = 0.25f;
+
+    /**
+     * number of screens of tiles kept in the memory cache, counting the visible one
+     */
+    public static final float CACHE_MEMORY_SCREENS_DEFAULT = 3f;
+
+    /**
+     * number of tile layers the memory cache is sized for, 0 for the layers of the map
+     */
+    public static final int CACHE_MEMORY_LAYERS_DEFAULT = 0;
+
+    /**
+     * number of content hashes remembered to share identical tiles
+     */
+    public static final int CACHE_CONTENT_INDEX_SIZE = 256;
     /**
      * number of tile download threads, conforming to OSM policy:
      * http://wiki.openstreetmap.org/wiki/Tile_usage_policy
@@ -40,4 +60,75 @@ public interface TileLayerConstants {
     public static final int NUMBER_OF_TILE_DOWNLOAD_THREADS = 8;
 
     public static final int TILE_DOWNLOAD_MAXIMUM_QUEUE_SIZE = 40;
+
+    /**
+     * maximum number of tiles of the same zoom level read from an MBTiles file in one query
+     */
+    public static final int TILE_ARCHIVE_MAXIMUM_BATCH_SIZE = 32;
+
+    /**
+     * maximum number of tiles covered by the range read in one query for each requested tile,
+     * sparser batches are read one tile at a time rather than reading the tiles in between
+     */
+    public static final int TILE_ARCHIVE_MAXIMUM_RANGE_PER_TILE = 2;
+
+    /**
+     * maximum number of read-only connections opened on an MBTiles file, so that several threads
+     * can read tiles at the same time
+     */
+    public static final int TILE_ARCHIVE_MAXIMUM_READERS = 4;
+
+    /**
+     * zoom level up to which the index of the tiles of a read-only MBTiles file is exact, above
+     * it each entry of the index covers a block of tiles
+     */
+    public static final int TILE_ARCHIVE_INDEX_EXACT_ZOOM = 9;
+
+    /**
+     * maximum number of MBTiles files kept open by a layer made of several files
+     */
+    public static final int TILE_ARCHIVE_MAXIMUM_OPEN = 8;
+
+    /**
+     * number of threads reading tiles from the disk cache
+     */
+    public static final int NUMBER_OF_TILE_DISK_CACHE_THREADS = 2;
+
+    public static final int TILE_DISK_CACHE_MAXIMUM_QUEUE_SIZE = 40;
+
+    /**
+     * number of stale tiles that can be refreshed in the background at the same time
+     */
+    public static final int TILE_MAXIMUM_CONCURRENT_REVALIDATIONS = 4;
+
+    /**
+     * number of threads downloading an offline region
+     */
+    public static final int OFFLINE_DEFAULT_THREAD_COUNT = 2;
+
+    /**
+     * maximum number of tile requests per second made when downloading an offline region
+     */
+    public static final float OFFLINE_DEFAULT_REQUESTS_PER_SECOND = 10;
+
+    /**
+     * number of downloaded tiles written to an offline region in a single transaction
+     */
+    public static final int OFFLINE_WRITE_BATCH_SIZE = 50;
+
+    /**
+     * number of tiles an offline region download may get ahead of its oldest unfinished tile
+     */
+    public static final int OFFLINE_PROGRESS_WINDOW = 4096;
+
+    /**
+     * maximum time a downloaded tile waits before being written to a tile sink, in milliseconds
+     */
+    public static final long TILE_SINK_MAXIMUM_DELAY = 10 * 1000;
+
+    /**
+     * average size of a tile, used to estimate the size of an offline region before downloading
+     * it
+     */
+    public static final int OFFLINE_ESTIMATED_TILE_SIZE = 15 * 1024;
 }
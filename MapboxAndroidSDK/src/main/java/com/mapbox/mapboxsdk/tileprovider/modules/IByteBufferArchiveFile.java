@@ -0,0 +1,20 @@
+package com.mapbox.mapboxsdk.tileprovider.modules;
+
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
+import java.nio.ByteBuffer;
+
+/**
+ * An archive handing out the content of its tiles as buffers, which the tile cache decodes in
+ * place rather than through a stream.
+ */
+public interface IByteBufferArchiveFile extends IArchiveFile {
+
+    /**
+     * Get the content of the requested tile.
+     *
+     * @return a buffer over the encoded tile, from its position to its limit, or null if the
+     * archive doesn't contain an entry for the requested tile
+     */
+    ByteBuffer getByteBuffer(ITileLayer tileSource, MapTile tile);
+}
@@ -1,151 +1,1059 @@
 package com.mapbox.mapboxsdk.tileprovider.modules;
 
+import android.annotation.TargetApi;
+import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteQuery;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 import com.mapbox.mapboxsdk.geometry.BoundingBox;
 import com.mapbox.mapboxsdk.geometry.LatLng;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
+import com.mapbox.mapboxsdk.tileprovider.util.StreamUtils;
+import com.mapbox.mapboxsdk.util.constants.UtilConstants;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * An access layer to the MBTiles format. This is useful for offline tiles
  * that one would pre-package with an app.
  */
-public class MBTilesFileArchive implements IArchiveFile {
+public class MBTilesFileArchive implements IByteBufferArchiveFile {
 
     private final SQLiteDatabase mDatabase;
 
+    // Connections reading tiles, the first one is mDatabase and the others are opened on demand.
+    // A database handle serializes its queries, separate handles read in parallel.
+    private final SQLiteDatabase[] mReaders;
+    private final AtomicInteger mNextReader = new AtomicInteger(0);
+
+    // The metadata table, loaded when the archive is opened and again after it is written to.
+    // Each write bumps the version, a copy loaded before the write is then not kept.
+    private volatile MBTilesMetadata mMetadata;
+    private final Object mMetadataLock = new Object();
+    private int mMetadataVersion = 0;
+
+    // Each thread sticks to one reader, spreading the threads evenly over the readers
+    private final ThreadLocal<SQLiteDatabase> mThreadReader = new ThreadLocal<SQLiteDatabase>() {
+        /**
+         * @throws IllegalStateException once the archive is closed
+         */
+        @Override
+        public SQLiteDatabase get() {
+            if (mClosed) {
+                throw new IllegalStateException("Closed " + mDatabase.getPath());
+            }
+            return super.get();
+        }
+
+        @Override
+        protected SQLiteDatabase initialValue() {
+            return getReader(mNextReader.getAndIncrement() % mReaders.length);
+        }
+    };
+
     // TABLE tiles (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, tile_data BLOB);
     public static final String TABLE_TILES = "tiles";
     public static final String TABLE_METADATA = "metadata";
+    // Deduplicated layout, where identical tiles share one image:
+    // TABLE map (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, tile_id TEXT);
+    // TABLE images (tile_data BLOB, tile_id TEXT);
+    public static final String TABLE_MAP = "map";
+    public static final String TABLE_IMAGES = "images";
+    public static final String COL_TILE_ID = "tile_id";
+    public static final String COL_TILES_ZOOM_LEVEL = "zoom_level";
+    public static final String COL_TILES_TILE_COLUMN = "tile_column";
+    public static final String COL_TILES_TILE_ROW = "tile_row";
     public static final String COL_TILES_TILE_DATA = "tile_data";
+    public static final String COL_NAME = "name";
     public static final String COL_VALUE = "value";
 
+    private static final String SQL_WHERE_TILE = " WHERE " + COL_TILES_ZOOM_LEVEL + "=? AND "
+            + COL_TILES_TILE_COLUMN + "=? AND " + COL_TILES_TILE_ROW + "=?";
+    private static final String SQL_SELECT_TILE =
+            "SELECT " + COL_TILES_TILE_DATA + " FROM " + TABLE_TILES + SQL_WHERE_TILE;
+    private static final String SQL_COUNT_TILE =
+            "SELECT COUNT(*) FROM " + TABLE_TILES + SQL_WHERE_TILE;
+    private static final String SQL_SELECT_TILE_RANGE = "SELECT " + COL_TILES_TILE_COLUMN + ", "
+            + COL_TILES_TILE_ROW + ", " + COL_TILES_TILE_DATA + " FROM " + TABLE_TILES
+            + " WHERE " + COL_TILES_ZOOM_LEVEL + "=? AND " + COL_TILES_TILE_COLUMN
+            + " BETWEEN ? AND ? AND " + COL_TILES_TILE_ROW + " BETWEEN ? AND ?";
+
+    // Both tables are queried directly with their indexes, rather than through the tiles view
+    // such files usually have
+    private static final String SQL_WHERE_MAP = " WHERE " + TABLE_MAP + "." + COL_TILES_ZOOM_LEVEL
+            + "=? AND " + TABLE_MAP + "." + COL_TILES_TILE_COLUMN + "=? AND " + TABLE_MAP + "."
+            + COL_TILES_TILE_ROW + "=?";
+    private static final String SQL_JOIN_IMAGES = " FROM " + TABLE_MAP + " JOIN " + TABLE_IMAGES
+            + " ON " + TABLE_IMAGES + "." + COL_TILE_ID + "=" + TABLE_MAP + "." + COL_TILE_ID;
+    private static final String SQL_SELECT_MAP_TILE = "SELECT " + TABLE_IMAGES + "."
+            + COL_TILES_TILE_DATA + SQL_JOIN_IMAGES + SQL_WHERE_MAP;
+    private static final String SQL_COUNT_MAP_TILE =
+            "SELECT COUNT(*) FROM " + TABLE_MAP + SQL_WHERE_MAP;
+    private static final String SQL_SELECT_TILE_ID =
+            "SELECT " + COL_TILE_ID + " FROM " + TABLE_MAP + SQL_WHERE_MAP;
+    private static final String SQL_SELECT_IMAGE = "SELECT " + COL_TILES_TILE_DATA + " FROM "
+            + TABLE_IMAGES + " WHERE " + COL_TILE_ID + "=?";
+    private static final String SQL_WHERE_MAP_RANGE = " WHERE " + TABLE_MAP + "."
+            + COL_TILES_ZOOM_LEVEL + "=? AND " + TABLE_MAP + "." + COL_TILES_TILE_COLUMN
+            + " BETWEEN ? AND ? AND " + TABLE_MAP + "." + COL_TILES_TILE_ROW + " BETWEEN ? AND ?";
+    private static final String SQL_SELECT_MAP_TILE_RANGE = "SELECT " + TABLE_MAP + "."
+            + COL_TILES_TILE_COLUMN + ", " + TABLE_MAP + "." + COL_TILES_TILE_ROW + ", "
+            + TABLE_IMAGES + "." + COL_TILES_TILE_DATA + SQL_JOIN_IMAGES + SQL_WHERE_MAP_RANGE;
+    private static final String SQL_SELECT_TILE_ID_RANGE = "SELECT " + COL_TILES_TILE_COLUMN
+            + ", " + COL_TILES_TILE_ROW + ", " + COL_TILE_ID + " FROM " + TABLE_MAP
+            + SQL_WHERE_MAP_RANGE;
+    private static final String SQL_SELECT_ZOOM_TILES = "SELECT " + COL_TILES_TILE_COLUMN + ", "
+            + COL_TILES_TILE_ROW + " FROM %s WHERE " + COL_TILES_ZOOM_LEVEL + "=?";
+    private static final String SQL_SELECT_ZOOM_RANGE = "SELECT MIN(" + COL_TILES_ZOOM_LEVEL
+            + "), MAX(" + COL_TILES_ZOOM_LEVEL + ") FROM %s";
+    private static final String SQL_COUNT_DEDUPLICATED_TABLES = "SELECT COUNT(*) FROM "
+            + "sqlite_master WHERE type='table' AND name IN ('" + TABLE_MAP + "', '"
+            + TABLE_IMAGES + "')";
+
+    /**
+     * Receives the tiles read by {@link #getTilesData(int, int, int, int, int, TileDataReceiver)}.
+     */
+    public interface TileDataReceiver {
+        /**
+         * Called on the reading thread for each tile, as soon as it is read.
+         *
+         * @param x the x coordinate of the tile
+         * @param y the y coordinate of the tile, top to bottom like {@link MapTile#getY()}
+         * @param data the encoded tile
+         */
+        void onTileData(int x, int y, byte[] data);
+    }
+
+    /**
+     * Receives the tiles read by {@link #getTileIds(int, int, int, int, int, TileIdReceiver)}.
+     */
+    public interface TileIdReceiver {
+        /**
+         * Called on the reading thread for each tile, as soon as it is read.
+         *
+         * @param x the x coordinate of the tile
+         * @param y the y coordinate of the tile, top to bottom like {@link MapTile#getY()}
+         * @param tileId the identifier of the image of the tile
+         */
+        void onTileId(int x, int y, String tileId);
+    }
+
+    // Whether the file has the deduplicated map and images tables
+    private final boolean mDeduplicated;
+    private final String mSelectTileSql;
+    private final String mSelectTileRangeSql;
+
+    // Compiled once per thread: a statement must not be used by two threads at the same time
+    private final ThreadLocal<SQLiteStatement> mSelectTileStatement;
+    private final ThreadLocal<SQLiteStatement> mCountTileStatement;
+    private final ThreadLocal<SQLiteStatement> mSelectTileIdStatement =
+            new StatementThreadLocal(SQL_SELECT_TILE_ID);
+    private final ThreadLocal<SQLiteStatement> mSelectImageStatement =
+            new StatementThreadLocal(SQL_SELECT_IMAGE);
+
+    // Which tiles exist, for each zoom level of a read-only file: built in the background after
+    // the first request at that level, so that misses are answered without querying the file.
+    // Shared by the archives opening the same unchanged file, so that reopening it doesn't read
+    // the tiles again.
+    private final AtomicReferenceArray<BitSet> mTileIndex;
+    private static final int TILE_INDEX_ZOOM_LEVELS = 31;
+    // Placeholders in mTileIndex for a level being indexed, and for one which isn't indexed
+    private static final BitSet TILE_INDEX_BUILDING = new BitSet(0);
+    private static final BitSet TILE_INDEX_NONE = new BitSet(0);
+    private static final int TILE_INDEX_FILES = 16;
+    private static final Map<String, AtomicReferenceArray<BitSet>> sTileIndexes =
+            new LinkedHashMap<String, AtomicReferenceArray<BitSet>>(TILE_INDEX_FILES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        final Map.Entry<String, AtomicReferenceArray<BitSet>> eldest) {
+                    return size() > TILE_INDEX_FILES;
+                }
+            };
+    // A single low priority thread indexes the levels of every file, and stops when idle
+    private static final ExecutorService sTileIndexExecutor;
+
+    static {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ConfigurablePriorityThreadFactory(Thread.MIN_PRIORITY, "MBTilesIndex"));
+        executor.allowCoreThreadTimeOut(true);
+        sTileIndexExecutor = executor;
+    }
+
+    // Every statement compiled on any thread, closed along with the archive or once their
+    // thread has died
+    private final List<ThreadStatement> mStatements = new ArrayList<ThreadStatement>();
+
+    // Set by close(), the statements of the threads can't be used anymore
+    private volatile boolean mClosed;
+
     public MBTilesFileArchive(final SQLiteDatabase pDatabase) {
+        this(pDatabase, 1);
+    }
+
+    /**
+     * @param pDatabase the database, used for writes, metadata and as the first reader
+     * @param readerCount the number of read-only connections reading tiles, including
+     * {@code pDatabase}
+     */
+    public MBTilesFileArchive(final SQLiteDatabase pDatabase, final int readerCount) {
         mDatabase = pDatabase;
+        mReaders = new SQLiteDatabase[Math.max(1, readerCount)];
+        mReaders[0] = pDatabase;
+        mDeduplicated = DatabaseUtils.longForQuery(pDatabase, SQL_COUNT_DEDUPLICATED_TABLES,
+                null) == 2;
+        mSelectTileSql = mDeduplicated ? SQL_SELECT_MAP_TILE : SQL_SELECT_TILE;
+        mSelectTileRangeSql = mDeduplicated ? SQL_SELECT_MAP_TILE_RANGE : SQL_SELECT_TILE_RANGE;
+        mSelectTileStatement = new StatementThreadLocal(mSelectTileSql);
+        mCountTileStatement =
+                new StatementThreadLocal(mDeduplicated ? SQL_COUNT_MAP_TILE : SQL_COUNT_TILE);
+        // Tiles written to the file would make the index stale
+        mTileIndex = pDatabase.isReadOnly() ? getSharedTileIndex(pDatabase.getPath()) : null;
+        mMetadata = loadMetadata();
     }
 
+    /**
+     * @throws IllegalStateException once the archive is closed, rather than opening a reader
+     * which would never be closed
+     */
+    private SQLiteDatabase getReader(final int index) {
+        synchronized (mReaders) {
+            if (mClosed) {
+                throw new IllegalStateException("Closed " + mDatabase.getPath());
+            }
+            if (mReaders[index] == null) {
+                try {
+                    mReaders[index] = openReadOnly(mDatabase.getPath());
+                } catch (final SQLiteException e) {
+                    Log.w(TAG, "Can't open another reader, sharing the first one: " + e);
+                    return mDatabase;
+                }
+            }
+            return mReaders[index];
+        }
+    }
+
+    private static SQLiteDatabase openReadOnly(final String path) throws SQLiteException {
+        return SQLiteDatabase.openDatabase(path, null,
+                SQLiteDatabase.NO_LOCALIZED_COLLATORS | SQLiteDatabase.OPEN_READONLY);
+    }
+
+    private static class ThreadStatement {
+        final Thread mThread;
+        final SQLiteStatement mStatement;
+
+        ThreadStatement(final Thread thread, final SQLiteStatement statement) {
+            mThread = thread;
+            mStatement = statement;
+        }
+    }
+
+    private class StatementThreadLocal extends ThreadLocal<SQLiteStatement> {
+        private final String mSql;
+
+        StatementThreadLocal(final String sql) {
+            mSql = sql;
+        }
+
+        /**
+         * @return the statement of the calling thread, or null once the archive is closed
+         */
+        @Override
+        public SQLiteStatement get() {
+            return mClosed ? null : super.get();
+        }
+
+        @Override
+        protected SQLiteStatement initialValue() {
+            final SQLiteStatement statement = mThreadReader.get().compileStatement(mSql);
+            synchronized (mStatements) {
+                if (mClosed) {
+                    statement.close();
+                    return null;
+                }
+                pruneStatements();
+                mStatements.add(new ThreadStatement(Thread.currentThread(), statement));
+            }
+            return statement;
+        }
+    }
+
+    /**
+     * Close the statements of the threads which have died, such as the threads of a pool which
+     * was shut down. Must be called with mStatements locked.
+     */
+    private void pruneStatements() {
+        for (int i = mStatements.size() - 1; i >= 0; i--) {
+            final ThreadStatement threadStatement = mStatements.get(i);
+            if (!threadStatement.mThread.isAlive()) {
+                threadStatement.mStatement.close();
+                mStatements.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Open an MBTiles file for reading, with up to one reader per core.
+     *
+     * @param pFile the MBTiles file
+     * @return the archive
+     */
     public static MBTilesFileArchive getDatabaseFileArchive(final File pFile)
             throws SQLiteException {
-        return new MBTilesFileArchive(SQLiteDatabase.openDatabase(pFile.getAbsolutePath(), null,
-                SQLiteDatabase.NO_LOCALIZED_COLLATORS | SQLiteDatabase.OPEN_READONLY)
-        );
+        return getDatabaseFileArchive(pFile, Math.min(Runtime.getRuntime().availableProcessors(),
+                TileLayerConstants.TILE_ARCHIVE_MAXIMUM_READERS));
     }
 
-    @Override
-    public InputStream getInputStream(final ITileLayer pTileSource, final MapTile pTile) {
+    /**
+     * Open an MBTiles file for reading.
+     *
+     * @param pFile the MBTiles file
+     * @param readerCount the number of read-only connections used to read tiles in parallel
+     * @return the archive
+     */
+    public static MBTilesFileArchive getDatabaseFileArchive(final File pFile,
+            final int readerCount) throws SQLiteException {
+        return new MBTilesFileArchive(openReadOnly(pFile.getAbsolutePath()), readerCount);
+    }
+
+    /**
+     * @return whether identical tiles share one image, in the map and images tables
+     */
+    public boolean isDeduplicated() {
+        return mDeduplicated;
+    }
+
+    /**
+     * Open an MBTiles file for writing, creating it and its tables if needed.
+     *
+     * @param pFile the MBTiles file
+     * @return the archive
+     */
+    public static MBTilesFileArchive createDatabaseFileArchive(final File pFile)
+            throws SQLiteException {
+        final SQLiteDatabase database = SQLiteDatabase.openDatabase(pFile.getAbsolutePath(), null,
+                SQLiteDatabase.NO_LOCALIZED_COLLATORS | SQLiteDatabase.OPEN_READWRITE
+                        | SQLiteDatabase.CREATE_IF_NECESSARY);
+        database.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_TILES + " ("
+                + COL_TILES_ZOOM_LEVEL + " INTEGER, " + COL_TILES_TILE_COLUMN + " INTEGER, "
+                + COL_TILES_TILE_ROW + " INTEGER, " + COL_TILES_TILE_DATA + " BLOB)");
+        database.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS tile_index ON " + TABLE_TILES + " ("
+                + COL_TILES_ZOOM_LEVEL + ", " + COL_TILES_TILE_COLUMN + ", " + COL_TILES_TILE_ROW
+                + ")");
+        database.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_METADATA + " (" + COL_NAME
+                + " TEXT, " + COL_VALUE + " TEXT)");
+        database.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS name ON " + TABLE_METADATA + " ("
+                + COL_NAME + ")");
+        return new MBTilesFileArchive(database);
+    }
 
+    /**
+     * Convert the y coordinate of a tile to the TMS row used by MBTiles.
+     */
+    private static int getTileRow(final MapTile pTile) {
+        return (1 << pTile.getZ()) - pTile.getY() - 1;
+    }
+
+    /**
+     * Whether the archive contains the given tile.
+     *
+     * @param pTile the tile
+     * @return true if the tile is stored in the archive
+     */
+    public boolean containsTile(final MapTile pTile) {
+        if (!mayContainTile(pTile)) {
+            return false;
+        }
         try {
-            InputStream ret = null;
-            final String[] tile = { COL_TILES_TILE_DATA };
-            final String[] xyz = {
-                    Integer.toString(pTile.getX()),
-                    Double.toString(Math.pow(2, pTile.getZ()) - pTile.getY() - 1),
-                    Integer.toString(pTile.getZ())
-            };
+            final SQLiteStatement statement = mCountTileStatement.get();
+            if (statement == null) {
+                return false;
+            }
+            bindTile(statement, pTile);
+            return statement.simpleQueryForLong() > 0;
+        } catch (final IllegalStateException e) {
+            // Closed meanwhile
+            return false;
+        }
+    }
+
+    /**
+     * Get the index of the tiles of a file, shared with the other archives which opened it since
+     * it was last modified.
+     */
+    private static AtomicReferenceArray<BitSet> getSharedTileIndex(final String path) {
+        final File file = new File(path);
+        final String key = path + ":" + file.length() + ":" + file.lastModified();
+        synchronized (sTileIndexes) {
+            AtomicReferenceArray<BitSet> index = sTileIndexes.get(key);
+            if (index == null) {
+                index = new AtomicReferenceArray<BitSet>(TILE_INDEX_ZOOM_LEVELS);
+                sTileIndexes.put(key, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Whether the archive may contain the given tile, answered from the index of the tiles of
+     * its zoom level without querying the file. The first request at a zoom level starts reading
+     * the coordinates of its tiles in the background; until they are read, every tile may be
+     * contained. The index is exact up to
+     * {@link TileLayerConstants#TILE_ARCHIVE_INDEX_EXACT_ZOOM}; above, it tells whether there is
+     * any tile in a block of tiles around the given one. Writable archives have no index.
+     *
+     * @param pTile the tile
+     * @return false if the archive doesn't contain the tile, true if it may
+     */
+    public boolean mayContainTile(final MapTile pTile) {
+        if (mTileIndex == null) {
+            return true;
+        }
+        final int z = pTile.getZ();
+        if (z < 0 || z >= TILE_INDEX_ZOOM_LEVELS) {
+            return false;
+        }
+        final int x = pTile.getX();
+        final int y = pTile.getY();
+        if (x < 0 || y < 0 || x >= (1 << z) || y >= (1 << z)) {
+            return false;
+        }
+        final BitSet index = mTileIndex.get(z);
+        if (index == null) {
+            // Only the first request at this level starts indexing it
+            if (mTileIndex.compareAndSet(z, null, TILE_INDEX_BUILDING)) {
+                scheduleTileIndex(z);
+            }
+            return true;
+        }
+        if (index == TILE_INDEX_BUILDING || index == TILE_INDEX_NONE) {
+            return true;
+        }
+        // Never modified once built
+        return index.get(getTileIndexBit(z, x, y));
+    }
+
+    private void scheduleTileIndex(final int z) {
+        try {
+            sTileIndexExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // Left for another archive of the same file to build if this one was closed
+                    mTileIndex.set(z, buildTileIndex(z));
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            mTileIndex.set(z, null);
+        }
+    }
 
-            final Cursor cur = mDatabase.query(TABLE_TILES, tile,
-                    "tile_column=? and tile_row=? and zoom_level=?", xyz, null, null, null);
+    private static int getTileIndexBit(final int z, final int x, final int y) {
+        final int shift = Math.max(0, z - TileLayerConstants.TILE_ARCHIVE_INDEX_EXACT_ZOOM);
+        return ((y >> shift) << (z - shift)) + (x >> shift);
+    }
 
-            if (cur.getCount() != 0) {
-                cur.moveToFirst();
-                ret = new ByteArrayInputStream(cur.getBlob(0));
+    /**
+     * Read the coordinates of every tile of a zoom level into an index. However many tiles the
+     * level has, the index has at most one bit per block of tiles, and reading stops once every
+     * block has a tile.
+     *
+     * @return the index, {@link #TILE_INDEX_NONE} if the tiles couldn't be read, or null if the
+     * archive was closed meanwhile
+     */
+    private BitSet buildTileIndex(final int z) {
+        final long start = System.currentTimeMillis();
+        final int side = 1 << Math.min(z, TileLayerConstants.TILE_ARCHIVE_INDEX_EXACT_ZOOM);
+        final BitSet index = new BitSet(side * side);
+        int count = 0;
+        int blocks = 0;
+        Cursor cur = null;
+        try {
+            cur = queryWithLongs(mThreadReader.get(), String.format(SQL_SELECT_ZOOM_TILES,
+                    mDeduplicated ? TABLE_MAP : TABLE_TILES), z);
+            while (blocks < side * side && cur.moveToNext()) {
+                final int x = cur.getInt(0);
+                final int y = (1 << z) - cur.getInt(1) - 1;
+                if (x >= 0 && y >= 0 && x < (1 << z) && y < (1 << z)) {
+                    final int bit = getTileIndexBit(z, x, y);
+                    if (!index.get(bit)) {
+                        index.set(bit);
+                        blocks++;
+                    }
+                    count++;
+                }
             }
-            cur.close();
-            if (ret != null) {
-                return ret;
+        } catch (final SQLiteException e) {
+            Log.w(TAG, "Can't index the tiles at zoom " + z + ": " + e);
+            return TILE_INDEX_NONE;
+        } catch (final IllegalStateException e) {
+            // Closed meanwhile
+            return null;
+        } finally {
+            if (cur != null) {
+                cur.close();
             }
-        } catch (final Throwable e) {
-            Log.e(TAG, "Error getting db stream: " + pTile, e);
         }
+        if (UtilConstants.DEBUGMODE) {
+            Log.d(TAG, "Indexed " + count + " tiles in " + blocks + " blocks at zoom " + z + " in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        }
+        return index;
+    }
+
+    private static void bindTile(final SQLiteStatement statement, final MapTile pTile) {
+        statement.bindLong(1, pTile.getZ());
+        statement.bindLong(2, pTile.getX());
+        statement.bindLong(3, getTileRow(pTile));
+    }
+
+    /**
+     * Run a query with integer arguments, bound as integers rather than as strings converted
+     * back by SQLite.
+     */
+    private static Cursor queryWithLongs(final SQLiteDatabase pDatabase, final String sql,
+            final long... args) {
+        return pDatabase.rawQueryWithFactory(new SQLiteDatabase.CursorFactory() {
+            @SuppressWarnings("deprecation")
+            @Override
+            public Cursor newCursor(final SQLiteDatabase db, final SQLiteCursorDriver driver,
+                    final String editTable, final SQLiteQuery query) {
+                for (int i = 0; i < args.length; i++) {
+                    query.bindLong(i + 1, args[i]);
+                }
+                // The constructor without the database only exists from Honeycomb
+                return new SQLiteCursor(db, driver, editTable, query);
+            }
+        }, sql, null, null);
+    }
+
+    /**
+     * Store a tile in the archive, replacing any existing one. The archive must have been opened
+     * with {@link #createDatabaseFileArchive(File)}, and must not be deduplicated.
+     *
+     * @param pTile the tile
+     * @param data the encoded tile
+     * @return true if the tile was stored, false if it couldn't be or the archive is deduplicated
+     */
+    public boolean putTile(final MapTile pTile, final byte[] data) {
+        if (mDeduplicated) {
+            Log.w(TAG, "Can't add " + pTile + " to the deduplicated " + mDatabase.getPath());
+            return false;
+        }
+        final ContentValues values = new ContentValues();
+        values.put(COL_TILES_ZOOM_LEVEL, pTile.getZ());
+        values.put(COL_TILES_TILE_COLUMN, pTile.getX());
+        values.put(COL_TILES_TILE_ROW, getTileRow(pTile));
+        values.put(COL_TILES_TILE_DATA, data);
+        return mDatabase.insertWithOnConflict(TABLE_TILES, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE) != -1;
+    }
+
+    /**
+     * Set a metadata value of the archive, replacing any existing one.
+     *
+     * @param name the metadata name, for instance "bounds" or "minzoom"
+     * @param value the value
+     */
+    public void setMetadata(final String name, final String value) {
+        final ContentValues values = new ContentValues();
+        values.put(COL_NAME, name);
+        values.put(COL_VALUE, value);
+        mDatabase.insertWithOnConflict(TABLE_METADATA, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+        // Loaded again on the next read
+        synchronized (mMetadataLock) {
+            mMetadataVersion++;
+            mMetadata = null;
+        }
+    }
 
+    /**
+     * Get a metadata value of the archive.
+     *
+     * @param name the metadata name
+     * @return the value, or null if it isn't set
+     */
+    public String getMetadata(final String name) {
+        return getMetadata().get(name);
+    }
+
+    /**
+     * @return the metadata of the archive, read from the file only once
+     */
+    public MBTilesMetadata getMetadata() {
+        MBTilesMetadata metadata = mMetadata;
+        if (metadata == null) {
+            final int version;
+            synchronized (mMetadataLock) {
+                version = mMetadataVersion;
+            }
+            // Not loaded under the lock: a transaction writing the file would hold it up
+            metadata = loadMetadata();
+            synchronized (mMetadataLock) {
+                if (version == mMetadataVersion) {
+                    mMetadata = metadata;
+                }
+            }
+        }
+        return metadata;
+    }
+
+    /**
+     * Get the zoom levels of the tiles stored in the archive, which the metadata may leave out or
+     * get wrong.
+     *
+     * @return the smallest and the largest zoom levels, or null if there is no tile
+     */
+    public int[] getTileZoomRange() {
+        Cursor cur = null;
+        try {
+            cur = mThreadReader.get().rawQuery(String.format(SQL_SELECT_ZOOM_RANGE,
+                    mDeduplicated ? TABLE_MAP : TABLE_TILES), null);
+            if (cur.moveToFirst() && !cur.isNull(0)) {
+                return new int[] { cur.getInt(0), cur.getInt(1) };
+            }
+        } catch (final SQLiteException e) {
+            Log.w(TAG, "Can't read the zoom levels of " + mDatabase.getPath() + ": " + e);
+        } catch (final IllegalStateException e) {
+            // Closed meanwhile
+        } finally {
+            if (cur != null) {
+                cur.close();
+            }
+        }
         return null;
     }
 
+    private MBTilesMetadata loadMetadata() {
+        final Map<String, String> values = new HashMap<String, String>();
+        Cursor c = null;
+        try {
+            c = mDatabase.query(TABLE_METADATA, new String[] { COL_NAME, COL_VALUE }, null, null,
+                    null, null, null);
+            while (c.moveToNext()) {
+                values.put(c.getString(0), c.getString(1));
+            }
+        } catch (final SQLiteException e) {
+            Log.w(TAG, "Can't read the metadata of " + mDatabase.getPath() + ": " + e);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        return new MBTilesMetadata(values);
+    }
+
+    /**
+     * Start a transaction grouping several writes. Must be matched by a call to
+     * {@link #endTransaction(boolean)} on the same thread.
+     */
+    public void beginTransaction() {
+        mDatabase.beginTransaction();
+    }
+
+    /**
+     * End the current transaction.
+     *
+     * @param successful whether the writes of the transaction should be committed
+     */
+    public void endTransaction(final boolean successful) {
+        if (successful) {
+            mDatabase.setTransactionSuccessful();
+        }
+        mDatabase.endTransaction();
+    }
+
     @Override
-    public String toString() {
-        return "MBTiles [mDatabase=" + mDatabase.getPath() + "]";
+    public InputStream getInputStream(final ITileLayer pTileSource, final MapTile pTile) {
+        final byte[] data = getTileData(pTile);
+        return data != null ? new ByteArrayInputStream(data) : null;
+    }
+
+    @Override
+    public ByteBuffer getByteBuffer(final ITileLayer pTileSource, final MapTile pTile) {
+        final byte[] data = getTileData(pTile);
+        return data != null ? ByteBuffer.wrap(data) : null;
+    }
+
+    /**
+     * Get the encoded content of a tile, read with a statement compiled once per thread.
+     *
+     * @param pTile the tile
+     * @return the encoded tile, or null if the archive doesn't contain it
+     */
+    public byte[] getTileData(final MapTile pTile) {
+        if (!mayContainTile(pTile)) {
+            return null;
+        }
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                final SQLiteStatement statement = mSelectTileStatement.get();
+                if (statement == null) {
+                    return null;
+                }
+                bindTile(statement, pTile);
+                return StatementHoneycomb.queryForBlob(statement);
+            }
+            // No way to read a blob with a statement
+            final Cursor cur = queryWithLongs(mThreadReader.get(), mSelectTileSql, pTile.getZ(),
+                    pTile.getX(), getTileRow(pTile));
+            try {
+                return cur.moveToFirst() ? cur.getBlob(0) : null;
+            } finally {
+                cur.close();
+            }
+        } catch (final SQLiteDoneException e) {
+            // No such tile
+        } catch (final IllegalStateException e) {
+            // Closed meanwhile
+        } catch (final Throwable e) {
+            Log.e(TAG, "Error getting db stream: " + pTile, e);
+        }
+        return null;
+    }
+
+    /**
+     * Read every tile of a zoom level within a range of coordinates with a single query. The tiles
+     * are handed to {@code receiver} while the query results are being read, in no particular
+     * order.
+     *
+     * @param zoom the zoom level
+     * @param minX the smallest x coordinate
+     * @param maxX the largest x coordinate
+     * @param minY the smallest y coordinate
+     * @param maxY the largest y coordinate
+     * @param receiver receives the tiles
+     * @return the number of tiles read
+     */
+    public int getTilesData(final int zoom, final int minX, final int maxX, final int minY,
+            final int maxY, final TileDataReceiver receiver) {
+        return getTilesData(zoom, minX, maxX, minY, maxY, null, receiver);
     }
 
-    private String getStringValue(String key) {
-        final String[] column = { COL_VALUE };
-        final String[] query = { key };
+    /**
+     * Read a batch of tiles of the same zoom level. Tiles close to each other are read with a
+     * single query on the range they cover, skipping the tiles in between which weren't
+     * requested; sparser ones are read one by one, so that a query never covers more than
+     * {@link TileLayerConstants#TILE_ARCHIVE_MAXIMUM_RANGE_PER_TILE} tiles per requested tile.
+     * The tiles are handed to {@code receiver} as soon as they are read, in no particular order,
+     * and the missing ones are left out.
+     *
+     * @param tiles the tiles, all at the same zoom level
+     * @param receiver receives the tiles
+     * @return the number of tiles read
+     */
+    public int getTilesData(final Collection<MapTile> tiles, final TileDataReceiver receiver) {
+        if (tiles.isEmpty()) {
+            return 0;
+        }
+        int minX = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        for (MapTile tile : tiles) {
+            minX = Math.min(minX, tile.getX());
+            maxX = Math.max(maxX, tile.getX());
+            minY = Math.min(minY, tile.getY());
+            maxY = Math.max(maxY, tile.getY());
+        }
+        final long range = (long) (maxX - minX + 1) * (maxY - minY + 1);
+        if (range <= (long) tiles.size() * TileLayerConstants.TILE_ARCHIVE_MAXIMUM_RANGE_PER_TILE) {
+            final int zoom = tiles.iterator().next().getZ();
+            return getTilesData(zoom, minX, maxX, minY, maxY,
+                    tiles instanceof Set ? tiles : new HashSet<MapTile>(tiles), receiver);
+        }
+        int count = 0;
+        for (MapTile tile : tiles) {
+            final byte[] data = getTileData(tile);
+            if (data != null) {
+                receiver.onTileData(tile.getX(), tile.getY(), data);
+                count++;
+            }
+        }
+        return count;
+    }
 
-        Cursor c =
-                this.mDatabase.query(TABLE_METADATA, column, "name = ?", query, null, null, null);
+    /**
+     * @param wanted the tiles to hand to the receiver, or null for all of them
+     */
+    private int getTilesData(final int zoom, final int minX, final int maxX, final int minY,
+            final int maxY, final Collection<MapTile> wanted, final TileDataReceiver receiver) {
+        // Rows count from the bottom, which swaps the bounds
+        final int maxRow = (1 << zoom) - minY - 1;
+        final int minRow = (1 << zoom) - maxY - 1;
+        int count = 0;
+        Cursor cur = null;
         try {
-            c.moveToFirst();
-            return c.getString(0);
-        } catch (Exception e) {
+            cur = queryWithLongs(mThreadReader.get(), mSelectTileRangeSql, zoom, minX, maxX,
+                    minRow, maxRow);
+            while (cur.moveToNext()) {
+                final int x = cur.getInt(0);
+                final int y = (1 << zoom) - cur.getInt(1) - 1;
+                if (wanted != null && !wanted.contains(new MapTile(zoom, x, y))) {
+                    // Within the range but not requested: not copied out of the cursor window,
+                    // which the range cap keeps from holding many such tiles
+                    continue;
+                }
+                receiver.onTileData(x, y, cur.getBlob(2));
+                count++;
+            }
+        } catch (final SQLiteException e) {
+            Log.e(TAG, "Error getting tiles at zoom " + zoom + ": " + e);
+        } catch (final IllegalStateException e) {
+            // Closed meanwhile
+        } finally {
+            if (cur != null) {
+                cur.close();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the identifier of the image of a tile, shared by identical tiles. Only deduplicated
+     * archives have one.
+     *
+     * @param pTile the tile
+     * @return the identifier, or null if the archive doesn't contain the tile or isn't
+     * deduplicated
+     */
+    public String getTileId(final MapTile pTile) {
+        if (!mDeduplicated || !mayContainTile(pTile)) {
             return null;
+        }
+        try {
+            final SQLiteStatement statement = mSelectTileIdStatement.get();
+            if (statement == null) {
+                return null;
+            }
+            bindTile(statement, pTile);
+            return statement.simpleQueryForString();
+        } catch (final SQLiteDoneException e) {
+            // No such tile
+        } catch (final SQLiteException e) {
+            Log.e(TAG, "Error getting the id of " + pTile + ": " + e);
+        } catch (final IllegalStateException e) {
+            // Closed meanwhile
+        }
+        return null;
+    }
+
+    /**
+     * Read the identifiers of the images of every tile of a zoom level within a range of
+     * coordinates, with a single query on the map table. Only deduplicated archives have them.
+     *
+     * @param zoom the zoom level
+     * @param minX the smallest x coordinate
+     * @param maxX the largest x coordinate
+     * @param minY the smallest y coordinate
+     * @param maxY the largest y coordinate
+     * @param receiver receives the identifiers
+     * @return the number of tiles read
+     */
+    public int getTileIds(final int zoom, final int minX, final int maxX, final int minY,
+            final int maxY, final TileIdReceiver receiver) {
+        if (!mDeduplicated) {
+            return 0;
+        }
+        final int maxRow = (1 << zoom) - minY - 1;
+        final int minRow = (1 << zoom) - maxY - 1;
+        int count = 0;
+        Cursor cur = null;
+        try {
+            cur = queryWithLongs(mThreadReader.get(), SQL_SELECT_TILE_ID_RANGE, zoom, minX, maxX,
+                    minRow, maxRow);
+            while (cur.moveToNext()) {
+                final int row = cur.getInt(1);
+                receiver.onTileId(cur.getInt(0), (1 << zoom) - row - 1, cur.getString(2));
+                count++;
+            }
+        } catch (final SQLiteException e) {
+            Log.e(TAG, "Error getting tile ids at zoom " + zoom + ": " + e);
+        } catch (final IllegalStateException e) {
+            // Closed meanwhile
         } finally {
-            c.close();
+            if (cur != null) {
+                cur.close();
+            }
         }
+        return count;
     }
 
-    public float getMinZoomLevel() {
-        String result = getStringValue("minzoom");
-        if (result != null) {
-            return Float.parseFloat(result);
+    /**
+     * Get an image of a deduplicated archive.
+     *
+     * @param tileId the identifier of the image, from {@link #getTileId(MapTile)}
+     * @return the encoded image, or null if there is none
+     */
+    public byte[] getImageData(final String tileId) {
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                final SQLiteStatement statement = mSelectImageStatement.get();
+                if (statement == null) {
+                    return null;
+                }
+                statement.bindString(1, tileId);
+                return StatementHoneycomb.queryForBlob(statement);
+            }
+            final Cursor cur = mThreadReader.get().rawQuery(SQL_SELECT_IMAGE,
+                    new String[] { tileId });
+            try {
+                return cur.moveToFirst() ? cur.getBlob(0) : null;
+            } finally {
+                cur.close();
+            }
+        } catch (final SQLiteDoneException e) {
+            // No such image
+        } catch (final IllegalStateException e) {
+            // Closed meanwhile
+        } catch (final Throwable e) {
+            Log.e(TAG, "Error getting image " + tileId, e);
+        }
+        return null;
+    }
+
+    /**
+     * Get the key identifying the content of an image in the tile cache, so the tiles sharing it
+     * share a single bitmap without hashing their content.
+     *
+     * @param tileId the identifier of the image
+     * @return the content key
+     */
+    public String getContentKey(final String tileId) {
+        return "mbtiles:" + mDatabase.getPath() + "#" + tileId;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static class StatementHoneycomb {
+        /**
+         * Run a statement selecting a single blob, which is handed over in shared memory rather
+         * than copied through a cursor window. When the size of the shared memory is known, the
+         * blob is read straight into an array of that size.
+         *
+         * @throws SQLiteDoneException if there is no row
+         */
+        static byte[] queryForBlob(final SQLiteStatement statement) throws IOException {
+            final ParcelFileDescriptor descriptor = statement.simpleQueryForBlobFileDescriptor();
+            if (descriptor == null) {
+                return null;
+            }
+            final InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
+            try {
+                final long size = descriptor.getStatSize();
+                if (size > 0 && size <= Integer.MAX_VALUE) {
+                    final byte[] data = new byte[(int) size];
+                    int read = 0;
+                    while (read < data.length) {
+                        final int count = in.read(data, read, data.length - read);
+                        if (count < 0) {
+                            throw new IOException("Blob truncated at " + read + " of " + size
+                                    + " bytes");
+                        }
+                        read += count;
+                    }
+                    return data;
+                }
+                final ByteArrayOutputStream data =
+                        new ByteArrayOutputStream(StreamUtils.IO_BUFFER_SIZE);
+                StreamUtils.copy(in, data);
+                return data.toByteArray();
+            } finally {
+                StreamUtils.closeStream(in);
+            }
         }
-        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "MBTiles [mDatabase=" + mDatabase.getPath() + "]";
+    }
+
+    public float getMinZoomLevel() {
+        return getMetadata().getMinZoomLevel();
     }
 
     public float getMaxZoomLevel() {
-        String result = getStringValue("maxzoom");
-        if (result != null) {
-            return Float.parseFloat(result);
-        }
-        return 22;
+        return getMetadata().getMaxZoomLevel();
     }
 
     public String getName() {
-        return getStringValue("name");
+        return getMetadata().getName();
     }
 
     public String getType() {
-        return getStringValue("template");
+        return getMetadata().getType();
     }
 
     public String getVersion() {
-        return getStringValue("version");
+        return getMetadata().getVersion();
     }
 
     public String getDescription() {
-        return getStringValue("description");
+        return getMetadata().getDescription();
     }
 
     public String getAttribution() {
-        return getStringValue("attribution");
+        return getMetadata().getAttribution();
     }
 
     public BoundingBox getBounds() {
-        String result = getStringValue("bounds");
-        if (result != null) {
-            String[] boundsArray = result.split(",\\s*");
-            return new BoundingBox(Double.parseDouble(boundsArray[3]),
-                    Double.parseDouble(boundsArray[2]), Double.parseDouble(boundsArray[1]),
-                    Double.parseDouble(boundsArray[0]));
-        }
-        return null;
+        return getMetadata().getBounds();
     }
 
     public LatLng getCenter() {
-        String result = getStringValue("center");
-        if (result != null) {
-            String[] centerArray = result.split(",\\s*");
-            return new LatLng(Double.parseDouble(centerArray[0]),
-                    Double.parseDouble(centerArray[1]), Double.parseDouble(centerArray[2]));
-        }
-        return null;
+        return getMetadata().getCenter();
     }
 
+    /**
+     * Close the file. The archive can't be read afterwards, reads find no tiles.
+     */
     public void close() {
+        synchronized (mStatements) {
+            mClosed = true;
+            for (ThreadStatement threadStatement : mStatements) {
+                threadStatement.mStatement.close();
+            }
+            mStatements.clear();
+        }
+        synchronized (mReaders) {
+            for (int i = 1; i < mReaders.length; i++) {
+                if (mReaders[i] != null) {
+                    mReaders[i].close();
+                    mReaders[i] = null;
+                }
+            }
+        }
         if (mDatabase != null) {
             mDatabase.close();
         }
@@ -0,0 +1,134 @@
+package com.mapbox.mapboxsdk.tileprovider.modules;
+
+import android.util.Log;
+import com.mapbox.mapboxsdk.geometry.BoundingBox;
+import com.mapbox.mapboxsdk.geometry.LatLng;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The content of the metadata table of an MBTiles file, parsed once.
+ */
+public final class MBTilesMetadata {
+
+    public static final float DEFAULT_MIN_ZOOM = 0;
+    public static final float DEFAULT_MAX_ZOOM = 22;
+
+    private final Map<String, String> mValues;
+    private final float mMinZoomLevel;
+    private final float mMaxZoomLevel;
+    private final BoundingBox mBounds;
+    private final LatLng mCenter;
+
+    /**
+     * @param values the metadata values, by name
+     */
+    public MBTilesMetadata(final Map<String, String> values) {
+        mValues = Collections.unmodifiableMap(new HashMap<String, String>(values));
+        mMinZoomLevel = parseFloat(values.get("minzoom"), DEFAULT_MIN_ZOOM);
+        mMaxZoomLevel = parseFloat(values.get("maxzoom"), DEFAULT_MAX_ZOOM);
+        mBounds = parseBounds(values.get("bounds"));
+        mCenter = parseCenter(values.get("center"));
+    }
+
+    /**
+     * @param name the metadata name
+     * @return the raw value, or null if it isn't set
+     */
+    public String get(final String name) {
+        return mValues.get(name);
+    }
+
+    /**
+     * @return every metadata value, by name
+     */
+    public Map<String, String> getValues() {
+        return mValues;
+    }
+
+    public float getMinZoomLevel() {
+        return mMinZoomLevel;
+    }
+
+    public float getMaxZoomLevel() {
+        return mMaxZoomLevel;
+    }
+
+    public String getName() {
+        return mValues.get("name");
+    }
+
+    public String getType() {
+        return mValues.get("template");
+    }
+
+    public String getVersion() {
+        return mValues.get("version");
+    }
+
+    public String getDescription() {
+        return mValues.get("description");
+    }
+
+    public String getAttribution() {
+        return mValues.get("attribution");
+    }
+
+    public String getFormat() {
+        return mValues.get("format");
+    }
+
+    public BoundingBox getBounds() {
+        return mBounds;
+    }
+
+    public LatLng getCenter() {
+        return mCenter;
+    }
+
+    private static float parseFloat(final String value, final float defaultValue) {
+        if (value != null) {
+            try {
+                return Float.parseFloat(value);
+            } catch (final NumberFormatException e) {
+                Log.w(TAG, "Invalid zoom level: " + value);
+            }
+        }
+        return defaultValue;
+    }
+
+    private static BoundingBox parseBounds(final String value) {
+        if (value != null) {
+            try {
+                String[] boundsArray = value.split(",\\s*");
+                return new BoundingBox(Double.parseDouble(boundsArray[3]),
+                        Double.parseDouble(boundsArray[2]), Double.parseDouble(boundsArray[1]),
+                        Double.parseDouble(boundsArray[0]));
+            } catch (final RuntimeException e) {
+                Log.w(TAG, "Invalid bounds: " + value);
+            }
+        }
+        return null;
+    }
+
+    private static LatLng parseCenter(final String value) {
+        if (value != null) {
+            try {
+                String[] centerArray = value.split(",\\s*");
+                return new LatLng(Double.parseDouble(centerArray[0]),
+                        Double.parseDouble(centerArray[1]), Double.parseDouble(centerArray[2]));
+            } catch (final RuntimeException e) {
+                Log.w(TAG, "Invalid center: " + value);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "MBTilesMetadata " + mValues;
+    }
+
+    private static final String TAG = "MBTilesMetadata";
+}
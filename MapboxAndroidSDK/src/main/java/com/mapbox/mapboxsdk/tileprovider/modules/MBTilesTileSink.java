@@ -0,0 +1,335 @@
+package com.mapbox.mapboxsdk.tileprovider.modules;
+
+import android.database.sqlite.SQLiteException;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+import com.mapbox.mapboxsdk.geometry.BoundingBox;
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
+import com.mapbox.mapboxsdk.util.constants.UtilConstants;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the tiles downloaded for a layer in an MBTiles file, so the areas browsed online can be
+ * displayed later with an {@link com.mapbox.mapboxsdk.tileprovider.tilesource.MBTilesLayer}.
+ * <p/>
+ * Set it on the layer with
+ * {@link com.mapbox.mapboxsdk.tileprovider.MapTileLayerBasic#setTileSink(ITileLayer,
+ * MBTilesTileSink)}. Tiles are written in batches, in a single transaction along with the
+ * metadata describing the zoom levels and the bounds of every tile stored so far. Tiles waiting
+ * to be written are lost if the app is killed before {@link #flush()} or {@link #close()}. The
+ * layer closes the sink when another one is set, or when the map is detached.
+ * <p/>
+ * Only the tiles downloaded from the server of the layer reach the sink: tiles found in the
+ * memory or disk cache were downloaded earlier, and aren't stored unless the sink was already
+ * set then.
+ */
+public class MBTilesTileSink implements TileLayerConstants {
+
+    private final File mFile;
+    private final ITileLayer mTileLayer;
+
+    // Guards the pending tiles, which are swapped for empty lists when written so that the
+    // download threads keep queueing tiles while a batch is written
+    private final Object mLock = new Object();
+    private ArrayList<MapTile> mPendingTiles = new ArrayList<MapTile>();
+    private ArrayList<byte[]> mPendingData = new ArrayList<byte[]>();
+    private ScheduledExecutorService mFlushExecutor;
+    private ScheduledFuture<?> mScheduledFlush;
+    private boolean mClosed = false;
+
+    // Guards the file and the metadata, one batch is written at a time
+    private final Object mWriteLock = new Object();
+    private MBTilesFileArchive mArchive;
+    private volatile boolean mWriteFailed = false;
+    private String mFormat;
+    private int mMinZoom = Integer.MAX_VALUE;
+    private int mMaxZoom = Integer.MIN_VALUE;
+    private double mNorth = Double.NaN;
+    private double mEast;
+    private double mSouth;
+    private double mWest;
+
+    /**
+     * Open an MBTiles file, creating it if needed. Tiles already in the file are kept, and the
+     * metadata is extended to cover the new ones.
+     *
+     * @param file the MBTiles file
+     * @param tileLayer the layer whose tiles are stored, used to describe the file
+     * @throws SQLiteException if the file can't be opened for writing
+     * @throws IllegalArgumentException if the file is deduplicated, tiles can't be added to it
+     */
+    public MBTilesTileSink(final File file, final ITileLayer tileLayer) throws SQLiteException {
+        mFile = file;
+        mTileLayer = tileLayer;
+        mArchive = MBTilesFileArchive.createDatabaseFileArchive(file);
+        if (mArchive.isDeduplicated()) {
+            mArchive.close();
+            throw new IllegalArgumentException("Can't add tiles to the deduplicated " + file);
+        }
+
+        final MBTilesMetadata metadata = mArchive.getMetadata();
+        mFormat = metadata.getFormat();
+        if (metadata.get("minzoom") != null && metadata.get("maxzoom") != null) {
+            mMinZoom = (int) metadata.getMinZoomLevel();
+            mMaxZoom = (int) metadata.getMaxZoomLevel();
+        }
+        final BoundingBox bounds = metadata.getBounds();
+        if (bounds != null) {
+            mNorth = bounds.getLatNorth();
+            mEast = bounds.getLonEast();
+            mSouth = bounds.getLatSouth();
+            mWest = bounds.getLonWest();
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public ITileLayer getTileLayer() {
+        return mTileLayer;
+    }
+
+    /**
+     * Queue a downloaded tile, and write the queued tiles once there are enough of them. Queued
+     * tiles are written by a background thread at the latest
+     * {@link TileLayerConstants#TILE_SINK_MAXIMUM_DELAY} after the first of them was queued.
+     * Called from the download threads.
+     *
+     * @param tile the tile
+     * @param data the encoded tile, as downloaded
+     */
+    public void putTile(final MapTile tile, final byte[] data) {
+        final Batch batch;
+        synchronized (mLock) {
+            if (mClosed || mWriteFailed) {
+                return;
+            }
+            mPendingTiles.add(tile);
+            mPendingData.add(data);
+            if (mPendingTiles.size() < OFFLINE_WRITE_BATCH_SIZE) {
+                if (mPendingTiles.size() == 1) {
+                    scheduleFlush();
+                }
+                return;
+            }
+            batch = takePending();
+        }
+        write(batch);
+    }
+
+    /**
+     * Write the queued tiles now.
+     */
+    public void flush() {
+        final Batch batch;
+        synchronized (mLock) {
+            if (mClosed || mWriteFailed) {
+                return;
+            }
+            batch = takePending();
+        }
+        write(batch);
+    }
+
+    /**
+     * Write the queued tiles and close the file. Tiles received afterwards are ignored.
+     */
+    public void close() {
+        final Batch batch;
+        synchronized (mLock) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            batch = takePending();
+            if (mFlushExecutor != null) {
+                mFlushExecutor.shutdown();
+                mFlushExecutor = null;
+            }
+        }
+        synchronized (mWriteLock) {
+            write(batch);
+            mArchive.close();
+            mArchive = null;
+        }
+    }
+
+    /**
+     * Write the queued tiles after the longest delay they may wait. Must be called with mLock
+     * held.
+     */
+    private void scheduleFlush() {
+        if (mFlushExecutor == null) {
+            final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+                    new ConfigurablePriorityThreadFactory(Thread.MIN_PRIORITY, TAG));
+            // The thread only lives while tiles are queued, a sink left open doesn't keep it
+            executor.setKeepAliveTime(TILE_SINK_MAXIMUM_DELAY, TimeUnit.MILLISECONDS);
+            executor.allowCoreThreadTimeOut(true);
+            mFlushExecutor = executor;
+        }
+        try {
+            mScheduledFlush = mFlushExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, TILE_SINK_MAXIMUM_DELAY, TimeUnit.MILLISECONDS);
+        } catch (final RejectedExecutionException e) {
+            // Shut down, the tiles are written by close()
+        }
+    }
+
+    /**
+     * Take the queued tiles, leaving empty lists for the next ones. Must be called with mLock
+     * held.
+     */
+    private Batch takePending() {
+        if (mScheduledFlush != null) {
+            mScheduledFlush.cancel(false);
+            mScheduledFlush = null;
+        }
+        if (mPendingTiles.isEmpty()) {
+            return null;
+        }
+        final Batch batch = new Batch(mPendingTiles, mPendingData);
+        mPendingTiles = new ArrayList<MapTile>();
+        mPendingData = new ArrayList<byte[]>();
+        return batch;
+    }
+
+    private static final class Batch {
+        final List<MapTile> mTiles;
+        final List<byte[]> mData;
+
+        Batch(final List<MapTile> tiles, final List<byte[]> data) {
+            mTiles = tiles;
+            mData = data;
+        }
+    }
+
+    /**
+     * Write a batch of tiles, along with the updated metadata, in a single transaction. Called
+     * without mLock held, so the download threads don't wait for the file.
+     *
+     * @param batch the tiles, or null if there were none
+     */
+    private void write(final Batch batch) {
+        if (batch == null) {
+            return;
+        }
+        synchronized (mWriteLock) {
+            if (mArchive == null || mWriteFailed) {
+                // Closed while the batch was taken
+                return;
+            }
+            final long start = SystemClock.elapsedRealtime();
+            if (mFormat == null) {
+                mFormat = getFormat(batch.mData.get(0));
+            }
+            boolean success = false;
+            mArchive.beginTransaction();
+            try {
+                for (int i = 0; i < batch.mTiles.size(); i++) {
+                    final MapTile tile = batch.mTiles.get(i);
+                    mArchive.putTile(tile, batch.mData.get(i));
+                    extend(tile);
+                }
+                writeMetadata();
+                success = true;
+            } catch (Exception e) {
+                // Most likely the storage is full, stop writing rather than fail on every batch
+                Log.e(TAG, "can't write tiles to " + mFile, e);
+                mWriteFailed = true;
+            } finally {
+                mArchive.endTransaction(success);
+                if (UtilConstants.DEBUGMODE) {
+                    Log.d(TAG, "wrote " + batch.mTiles.size() + " tiles to " + mFile + " in "
+                            + (SystemClock.elapsedRealtime() - start) + "ms");
+                }
+            }
+        }
+    }
+
+    /**
+     * Extend the zoom levels and the bounds of the file to cover a tile.
+     */
+    private void extend(final MapTile tile) {
+        final int z = tile.getZ();
+        mMinZoom = Math.min(mMinZoom, z);
+        mMaxZoom = Math.max(mMaxZoom, z);
+
+        final double north = tileToLatitude(tile.getY(), z);
+        final double south = tileToLatitude(tile.getY() + 1, z);
+        final double west = tileToLongitude(tile.getX(), z);
+        final double east = tileToLongitude(tile.getX() + 1, z);
+        if (Double.isNaN(mNorth)) {
+            mNorth = north;
+            mEast = east;
+            mSouth = south;
+            mWest = west;
+        } else {
+            mNorth = Math.max(mNorth, north);
+            mEast = Math.max(mEast, east);
+            mSouth = Math.min(mSouth, south);
+            mWest = Math.min(mWest, west);
+        }
+    }
+
+    private static double tileToLongitude(final int x, final int z) {
+        return x * 360.0 / (1 << z) - 180.0;
+    }
+
+    private static double tileToLatitude(final int y, final int z) {
+        final double n = Math.PI * (1 - 2.0 * y / (1 << z));
+        return Math.toDegrees(Math.atan(0.5 * (Math.exp(n) - Math.exp(-n))));
+    }
+
+    private static String getFormat(final byte[] data) {
+        if (data.length > 1 && (data[0] & 0xff) == 0xff && (data[1] & 0xff) == 0xd8) {
+            return "jpg";
+        }
+        return "png";
+    }
+
+    /**
+     * Write the MBTiles metadata describing the tiles stored so far.
+     */
+    private void writeMetadata() {
+        if (mArchive.getMetadata("name") == null) {
+            final String name = mTileLayer.getName();
+            mArchive.setMetadata("name",
+                    !TextUtils.isEmpty(name) ? name : mTileLayer.getCacheKey());
+            mArchive.setMetadata("type", "baselayer");
+            mArchive.setMetadata("version", "1.1");
+            if (!TextUtils.isEmpty(mTileLayer.getDescription())) {
+                mArchive.setMetadata("description", mTileLayer.getDescription());
+            }
+            if (!TextUtils.isEmpty(mTileLayer.getAttribution())) {
+                mArchive.setMetadata("attribution", mTileLayer.getAttribution());
+            }
+        }
+        if (mFormat != null) {
+            mArchive.setMetadata("format", mFormat);
+        }
+        mArchive.setMetadata("bounds", String.format(Locale.US, "%f,%f,%f,%f", mWest, mSouth,
+                mEast, mNorth));
+        mArchive.setMetadata("center", String.format(Locale.US, "%f,%f,%d", (mWest + mEast) / 2,
+                (mSouth + mNorth) / 2, mMinZoom));
+        mArchive.setMetadata("minzoom", Integer.toString(mMinZoom));
+        mArchive.setMetadata("maxzoom", Integer.toString(mMaxZoom));
+    }
+
+    private static final String TAG = "MBTilesTileSink";
+}
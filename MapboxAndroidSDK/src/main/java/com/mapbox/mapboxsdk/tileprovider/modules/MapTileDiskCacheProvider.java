@@ -0,0 +1,122 @@
+package com.mapbox.mapboxsdk.tileprovider.modules;
+
+import android.graphics.drawable.Drawable;
+import com.mapbox.mapboxsdk.geometry.BoundingBox;
+import com.mapbox.mapboxsdk.geometry.LatLng;
+import com.mapbox.mapboxsdk.tileprovider.MapTileCache;
+import com.mapbox.mapboxsdk.tileprovider.MapTileLayerArray;
+import com.mapbox.mapboxsdk.tileprovider.MapTileRequestState;
+import com.mapbox.mapboxsdk.tileprovider.TileFreshnessPolicy;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
+import com.mapbox.mapboxsdk.util.BitmapUtils;
+import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
+
+/**
+ * The {@link MapTileDiskCacheProvider} loads tiles from the disk cache of a
+ * {@link MapTileLayerArray}. It comes first in the provider chain and has its own small pool of
+ * threads, so tiles which are on disk don't wait in the queue of the downloader behind tiles
+ * which are being fetched from the network.
+ * <p/>
+ * Fresh and stale tiles are returned as they are (the layer array refreshes stale ones in
+ * background). Expired tiles are returned as expired, so they are drawn while the next
+ * providers of the chain fetch them again.
+ */
+public class MapTileDiskCacheProvider extends MapTileModuleLayerBase {
+
+    private final MapTileLayerArray mTileProvider;
+
+    public MapTileDiskCacheProvider(final MapTileLayerArray pTileProvider) {
+        super(NUMBER_OF_TILE_DISK_CACHE_THREADS, TILE_DISK_CACHE_MAXIMUM_QUEUE_SIZE);
+        mTileProvider = pTileProvider;
+    }
+
+    public MapTileCache getCache() {
+        return mTileProvider.getTileCache();
+    }
+
+    @Override
+    public boolean getUsesDataConnection() {
+        return false;
+    }
+
+    @Override
+    protected String getName() {
+        return "Disk Cache Tile Provider";
+    }
+
+    @Override
+    protected String getThreadGroupName() {
+        return "diskcache";
+    }
+
+    @Override
+    protected Runnable getTileLoader() {
+        return new TileLoader();
+    }
+
+    @Override
+    public float getMinimumZoomLevel() {
+        return MINIMUM_ZOOMLEVEL;
+    }
+
+    @Override
+    public float getMaximumZoomLevel() {
+        return MAXIMUM_ZOOMLEVEL;
+    }
+
+    @Override
+    public BoundingBox getBoundingBox() {
+        return null;
+    }
+
+    @Override
+    public LatLng getCenterCoordinate() {
+        return null;
+    }
+
+    @Override
+    public float getCenterZoom() {
+        return (getMaximumZoomLevel() + getMinimumZoomLevel()) / 2;
+    }
+
+    @Override
+    public int getTileSizePixels() {
+        return mTileProvider.getTileSizePixels();
+    }
+
+    @Override
+    public void setTileSource(final ITileLayer tileSource) {
+        // Tiles are read from the cache of the layer array, whatever their source
+    }
+
+    @Override
+    public ITileLayer getTileSource() {
+        return null;
+    }
+
+    @Override
+    public String getCacheKey() {
+        return mTileProvider.getCacheKey();
+    }
+
+    protected class TileLoader extends MapTileModuleLayerBase.TileLoader {
+
+        @Override
+        public Drawable loadTile(final MapTileRequestState aState) throws CantContinueException {
+            final MapTileCache cache = getCache();
+            // A refresh request must go to the network
+            if (aState.isRevalidation() || cache == null) {
+                return null;
+            }
+            // Tiles the disk cache has never seen are answered by its index without any I/O
+            final CacheableBitmapDrawable cached = cache.getMapTileFromDisk(aState.getMapTile(),
+                    BitmapUtils.getBitmapOptions(mTileProvider.getBitmapConfig()));
+            if (cached != null && mTileProvider.getFreshnessPolicy().getFreshness(cached,
+                    System.currentTimeMillis()) == TileFreshnessPolicy.EXPIRED) {
+                // An expired tile is still better than no tile at all
+                BitmapUtils.setCacheDrawableExpired(cached);
+            }
+            return cached;
+        }
+    }
+}
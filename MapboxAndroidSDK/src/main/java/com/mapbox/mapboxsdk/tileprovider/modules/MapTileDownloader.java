@@ -8,10 +8,16 @@ import com.mapbox.mapboxsdk.tileprovider.MapTile;
 import com.mapbox.mapboxsdk.tileprovider.MapTileCache;
 import com.mapbox.mapboxsdk.tileprovider.MapTileRequestState;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.MBTilesLayer;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.TileLayer;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.WebSourceTileLayer;
 import com.mapbox.mapboxsdk.views.MapView;
 import com.mapbox.mapboxsdk.views.util.TileLoadedListener;
 import com.mapbox.mapboxsdk.views.util.TilesLoadedListener;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicReference;
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
@@ -24,6 +30,9 @@ public class MapTileDownloader extends MapTileModuleLayerBase {
     private final AtomicReference<TileLayer> mTileSource = new AtomicReference<TileLayer>();
     private final AtomicReference<MapTileCache> mTileCache = new AtomicReference<MapTileCache>();
 
+    private final AtomicReference<MBTilesTileSink> mTileSink =
+            new AtomicReference<MBTilesTileSink>();
+
     private final NetworkAvailabilityCheck mNetworkAvailabilityCheck;
     private MapView mapView;
     boolean hdpi;
@@ -49,6 +58,36 @@ public class MapTileDownloader extends MapTileModuleLayerBase {
         return mTileCache.get();
     }
 
+    /**
+     * Keep the tiles downloaded from now on in an MBTiles file. The previous sink is closed, and
+     * so is this one when the downloader is detached.
+     *
+     * @param sink the file receiving the tiles, or null to stop keeping them
+     */
+    public void setTileSink(final MBTilesTileSink sink) {
+        final MBTilesTileSink previous = mTileSink.getAndSet(sink);
+        if (previous != null && previous != sink) {
+            previous.close();
+        }
+    }
+
+    public MBTilesTileSink getTileSink() {
+        return mTileSink.get();
+    }
+
+    /**
+     * Called by the tile layer with each tile downloaded as is from its server.
+     *
+     * @param tile the tile
+     * @param data the encoded tile
+     */
+    public void onTileDownloaded(final MapTile tile, final byte[] data) {
+        final MBTilesTileSink sink = mTileSink.get();
+        if (sink != null) {
+            sink.putTile(tile, data);
+        }
+    }
+
     public boolean isNetworkAvailable() {
         return (mNetworkAvailabilityCheck == null
                 || mNetworkAvailabilityCheck.getNetworkAvailable());
@@ -82,6 +121,16 @@ public class MapTileDownloader extends MapTileModuleLayerBase {
         return new TileLoader();
     }
 
+    @Override
+    public void detach() {
+        super.detach();
+        // Nothing reaches the sink anymore, release its file
+        final MBTilesTileSink sink = mTileSink.getAndSet(null);
+        if (sink != null) {
+            sink.close();
+        }
+    }
+
     @Override
     public float getMinimumZoomLevel() {
         TileLayer tileLayer = mTileSource.get();
@@ -119,6 +168,15 @@ public class MapTileDownloader extends MapTileModuleLayerBase {
         return (tileLayer != null) ? tileLayer.getTileSizePixels() : 0;
     }
 
+    /**
+     * @return whether the tiles downloaded are twice the size they are drawn at
+     */
+    public boolean isHdpi() {
+        final TileLayer tileLayer = mTileSource.get();
+        return hdpi && tileLayer instanceof WebSourceTileLayer
+                && ((WebSourceTileLayer) tileLayer).hasHdpiTiles();
+    }
+
     @Override
     public void setTileSource(final ITileLayer tileSource) {
         if (mTileSource.get() != null) {
@@ -143,15 +201,67 @@ public class MapTileDownloader extends MapTileModuleLayerBase {
 
         @Override
         public Drawable loadTile(final MapTileRequestState aState) throws CantContinueException {
-            final MapTile tile = aState.getMapTile();
-            if (mTileCache != null && mTileCache.get().containsTileInDiskCache(tile)) {
-                return mTileCache.get().getMapTileFromDisk(tile);
-            }
+            // The disk cache has already been read by the MapTileDiskCacheProvider
             TileLayer tileLayer = mTileSource.get();
-            Drawable result =
-                    (tileLayer != null) ? tileLayer.getDrawableFromTile(MapTileDownloader.this,
-                            tile, hdpi) : null;
-            return result;
+            if (tileLayer instanceof MBTilesLayer) {
+                return loadTiles((MBTilesLayer) tileLayer, aState);
+            }
+            return (tileLayer != null) ? tileLayer.getDrawableFromTile(MapTileDownloader.this,
+                    aState.getMapTile(), hdpi) : null;
+        }
+
+        /**
+         * Load the tile of {@code aState} along with the other pending tiles of its zoom level,
+         * with a single query on the MBTiles file. The other tiles are completed as they are read.
+         */
+        private Drawable loadTiles(final MBTilesLayer tileLayer, final MapTileRequestState aState) {
+            final MapTile first = aState.getMapTile();
+            final List<MapTileRequestState> others =
+                    nextTiles(first.getZ(), TILE_ARCHIVE_MAXIMUM_BATCH_SIZE - 1);
+            if (others.isEmpty()) {
+                return tileLayer.getDrawableFromTile(MapTileDownloader.this, first, hdpi);
+            }
+
+            final Map<MapTile, MapTileRequestState> states =
+                    new HashMap<MapTile, MapTileRequestState>(others.size() * 2);
+            final List<MapTile> tiles = new ArrayList<MapTile>(others.size() + 1);
+            tiles.add(first);
+            for (MapTileRequestState state : others) {
+                states.put(state.getMapTile(), state);
+                tiles.add(state.getMapTile());
+            }
+
+            final CacheableBitmapDrawable[] firstResult = new CacheableBitmapDrawable[1];
+            try {
+                tileLayer.getDrawablesFromTiles(MapTileDownloader.this, tiles,
+                        new MBTilesLayer.TileReceiver() {
+                            @Override
+                            public void onTileLoaded(final MapTile tile,
+                                    final CacheableBitmapDrawable drawable) {
+                                if (tile == first) {
+                                    // Completed by the caller
+                                    firstResult[0] = drawable;
+                                    return;
+                                }
+                                final MapTileRequestState state = states.remove(tile);
+                                if (state == null) {
+                                    return;
+                                }
+                                if (drawable != null) {
+                                    tileLoaded(state, drawable);
+                                } else {
+                                    tileLoadedFailed(state);
+                                }
+                            }
+                        }
+                );
+            } finally {
+                // The tiles missing from the file go to the next provider
+                for (MapTileRequestState state : states.values()) {
+                    tileLoadedFailed(state);
+                }
+            }
+            return firstResult[0];
         }
     }
 
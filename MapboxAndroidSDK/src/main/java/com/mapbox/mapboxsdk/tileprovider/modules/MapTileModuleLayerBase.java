@@ -10,8 +10,11 @@ import com.mapbox.mapboxsdk.tileprovider.MapTileRequestState;
 import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
 import com.mapbox.mapboxsdk.util.BitmapUtils;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -265,6 +268,31 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
             }
         }
 
+        /**
+         * Take the pending tiles of a zoom level, so that they can be loaded together. They are
+         * moved to the working queue, and each of them must then be completed with one of the
+         * tileLoaded methods.
+         *
+         * @param zoom the zoom level
+         * @param max the maximum number of tiles taken
+         * @return the tiles, possibly empty
+         */
+        protected List<MapTileRequestState> nextTiles(final int zoom, final int max) {
+            final List<MapTileRequestState> result = new ArrayList<MapTileRequestState>();
+            synchronized (mQueueLockObject) {
+                final Iterator<MapTileRequestState> it = mPending.values().iterator();
+                while (it.hasNext() && result.size() < max) {
+                    final MapTileRequestState state = it.next();
+                    if (state.getMapTile().getZ() == zoom) {
+                        it.remove();
+                        mWorking.put(state.getMapTile(), state);
+                        result.add(state);
+                    }
+                }
+            }
+            return result;
+        }
+
         /**
          * A tile has loaded.
          */
@@ -0,0 +1,587 @@
+package com.mapbox.mapboxsdk.tileprovider.modules;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Point;
+import android.graphics.PointF;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+import com.mapbox.mapboxsdk.geometry.BoundingBox;
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.WebSourceTileLayer;
+import com.mapbox.mapboxsdk.util.constants.UtilConstants;
+import com.mapbox.mapboxsdk.views.util.Projection;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads every tile of a layer covering a region, over a range of zoom levels, into an
+ * MBTiles file that can then be displayed with an
+ * {@link com.mapbox.mapboxsdk.tileprovider.tilesource.MBTilesLayer}.
+ * <p/>
+ * Tiles are downloaded by a few threads, within a maximum number of requests per second, and
+ * written in batches. Each batch also records how far the download went, so a download that was
+ * cancelled or interrupted resumes where it stopped when it is started again for the same region
+ * and file. Tiles that failed to download are retried on the next start.
+ */
+public class OfflineRegionDownloader implements TileLayerConstants {
+
+    private static final String TAG = "OfflineRegionDownloader";
+
+    /**
+     * Receives the progress of a download. Methods are called from the download threads.
+     */
+    public interface Listener {
+        /**
+         * Called each time a tile has been downloaded, or found in the file already.
+         *
+         * @param completedTiles the number of tiles stored so far
+         * @param totalTiles the number of tiles of the region
+         * @param downloadedBytes the number of bytes downloaded since the download started
+         */
+        void onProgress(long completedTiles, long totalTiles, long downloadedBytes);
+
+        /**
+         * Called once every tile has been processed.
+         *
+         * @param failedTiles the number of tiles that couldn't be downloaded; starting the
+         * download again retries them
+         */
+        void onComplete(long failedTiles);
+
+        /**
+         * Called once the download has stopped after {@link #cancel()}.
+         */
+        void onCancel();
+
+        /**
+         * Called if the download had to stop because the MBTiles file couldn't be written.
+         */
+        void onError(Exception e);
+    }
+
+    /**
+     * The size of a region, known before downloading it.
+     */
+    public static class Estimate {
+        private final long mTileCount;
+        private final long mByteCount;
+
+        public Estimate(final long tileCount, final long byteCount) {
+            mTileCount = tileCount;
+            mByteCount = byteCount;
+        }
+
+        public long getTileCount() {
+            return mTileCount;
+        }
+
+        /**
+         * @return the approximate size of the MBTiles file, in bytes
+         */
+        public long getByteCount() {
+            return mByteCount;
+        }
+
+        @Override
+        public String toString() {
+            return "Estimate [tileCount=" + mTileCount + ", byteCount=" + mByteCount + "]";
+        }
+    }
+
+    static final String METADATA_REGION = "mapbox_offline_region";
+    static final String METADATA_CHECKPOINT = "mapbox_offline_checkpoint";
+
+    private final WebSourceTileLayer mTileLayer;
+    private final BoundingBox mBoundingBox;
+    private final int mMinZoom;
+    private final int mMaxZoom;
+    private final File mFile;
+
+    // Tiles are numbered zoom level by zoom level, column by column
+    private final int[] mMinX;
+    private final int[] mMinY;
+    private final int[] mRows;
+    private final long[] mZoomStart;
+    private final long mTileCount;
+
+    private int mThreadCount = OFFLINE_DEFAULT_THREAD_COUNT;
+    private float mRequestsPerSecond = OFFLINE_DEFAULT_REQUESTS_PER_SECOND;
+    private boolean mHdpi = false;
+    private Listener mListener;
+
+    // Download state
+    private final Object mLock = new Object();
+    private final Object mRequestLock = new Object();
+    private ExecutorService mExecutor;
+    private MBTilesFileArchive mArchive;
+    private volatile boolean mCancelled;
+    private boolean mWriteFailed;
+    private final AtomicLong mNextIndex = new AtomicLong(0);
+    private final AtomicInteger mRunningThreads = new AtomicInteger(0);
+    private long mNextRequestTime;
+    private long mCompleted;
+    private long mFailed;
+    private long mDownloadedBytes;
+    private String mFormat;
+    // Every tile before mProcessed was downloaded or failed, mDone has the tiles processed after
+    // it, by their index modulo OFFLINE_PROGRESS_WINDOW: no tile is handed out further ahead
+    private long mProcessed;
+    private BitSet mDone;
+    // The first tile that failed, stored tiles start at the smallest of both
+    private long mFirstFailed;
+    private final ArrayList<MapTile> mPendingTiles = new ArrayList<MapTile>();
+    private final ArrayList<byte[]> mPendingData = new ArrayList<byte[]>();
+
+    /**
+     * @param tileLayer the layer to download, tiles are fetched from its tile URLs
+     * @param boundingBox the region to download
+     * @param minZoom the lowest zoom level to download
+     * @param maxZoom the highest zoom level to download
+     * @param file the MBTiles file to write, created if needed
+     * @throws IllegalArgumentException if the layer isn't downloadable or the region is invalid
+     */
+    public OfflineRegionDownloader(final ITileLayer tileLayer, final BoundingBox boundingBox,
+            final int minZoom, final int maxZoom, final File file) {
+        if (!(tileLayer instanceof WebSourceTileLayer)) {
+            throw new IllegalArgumentException("Only web tile layers can be downloaded");
+        }
+        if (boundingBox == null || minZoom < 0 || maxZoom < minZoom || maxZoom > MAXIMUM_ZOOMLEVEL
+                || file == null) {
+            throw new IllegalArgumentException("Invalid offline region");
+        }
+        mTileLayer = (WebSourceTileLayer) tileLayer;
+        mBoundingBox = boundingBox;
+        mMinZoom = minZoom;
+        mMaxZoom = maxZoom;
+        mFile = file;
+
+        final int zoomCount = maxZoom - minZoom + 1;
+        mMinX = new int[zoomCount];
+        mMinY = new int[zoomCount];
+        mRows = new int[zoomCount];
+        mZoomStart = new long[zoomCount + 1];
+        final PointF pixel = new PointF();
+        final Point northWest = new Point();
+        final Point southEast = new Point();
+        for (int i = 0; i < zoomCount; i++) {
+            Projection.latLongToPixelXY(boundingBox.getLatNorth(), boundingBox.getLonWest(),
+                    minZoom + i, pixel);
+            Projection.pixelXYToTileXY((int) pixel.x, (int) pixel.y, northWest);
+            Projection.latLongToPixelXY(boundingBox.getLatSouth(), boundingBox.getLonEast(),
+                    minZoom + i, pixel);
+            Projection.pixelXYToTileXY((int) pixel.x, (int) pixel.y, southEast);
+            mMinX[i] = northWest.x;
+            mMinY[i] = northWest.y;
+            mRows[i] = southEast.y - northWest.y + 1;
+            mZoomStart[i + 1] = mZoomStart[i] + (long) (southEast.x - northWest.x + 1) * mRows[i];
+        }
+        mTileCount = mZoomStart[zoomCount];
+    }
+
+    /**
+     * Sets the number of threads downloading tiles.
+     */
+    public OfflineRegionDownloader setThreadCount(final int threadCount) {
+        mThreadCount = Math.max(1, threadCount);
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of tile requests per second, or 0 for no limit.
+     */
+    public OfflineRegionDownloader setRequestsPerSecond(final float requestsPerSecond) {
+        mRequestsPerSecond = Math.max(0, requestsPerSecond);
+        return this;
+    }
+
+    /**
+     * Sets whether the high resolution tiles of the layer are downloaded.
+     */
+    public OfflineRegionDownloader setHdpi(final boolean hdpi) {
+        mHdpi = hdpi;
+        return this;
+    }
+
+    public OfflineRegionDownloader setListener(final Listener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    /**
+     * @return the number of tiles covering the region
+     */
+    public long getTileCount() {
+        return mTileCount;
+    }
+
+    /**
+     * Estimate the size of the region before downloading it.
+     *
+     * @return the estimate
+     */
+    public Estimate estimate() {
+        return new Estimate(mTileCount, mTileCount * OFFLINE_ESTIMATED_TILE_SIZE);
+    }
+
+    public boolean isRunning() {
+        synchronized (mLock) {
+            return mExecutor != null;
+        }
+    }
+
+    /**
+     * Start downloading the region, or resume a previous download into the same file.
+     *
+     * @throws IllegalStateException if the download is already running
+     */
+    public void start() {
+        synchronized (mLock) {
+            if (mExecutor != null) {
+                throw new IllegalStateException("The region is already being downloaded");
+            }
+            try {
+                mArchive = MBTilesFileArchive.createDatabaseFileArchive(mFile);
+                if (mArchive.isDeduplicated()) {
+                    mArchive.close();
+                    mArchive = null;
+                    throw new IllegalArgumentException("Can't add tiles to the deduplicated "
+                            + mFile);
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "can't open " + mFile + " for writing", e);
+                if (mListener != null) {
+                    mListener.onError(e);
+                }
+                return;
+            }
+            long checkpoint = 0;
+            if (getRegionKey().equals(mArchive.getMetadata(METADATA_REGION))) {
+                try {
+                    checkpoint = Long.parseLong(mArchive.getMetadata(METADATA_CHECKPOINT));
+                } catch (NumberFormatException e) {
+                    checkpoint = 0;
+                }
+            }
+            mProcessed = checkpoint;
+            mFirstFailed = Long.MAX_VALUE;
+            mDone = new BitSet(OFFLINE_PROGRESS_WINDOW);
+            mCompleted = checkpoint;
+            mFailed = 0;
+            mDownloadedBytes = 0;
+            mCancelled = false;
+            mWriteFailed = false;
+            mNextIndex.set(checkpoint);
+            // The file describes the region from the start, even if the download never finishes
+            try {
+                writeMetadata();
+            } catch (Exception e) {
+                Log.e(TAG, "can't write metadata to " + mFile, e);
+            }
+            if (UtilConstants.DEBUGMODE) {
+                Log.d(TAG, "downloading " + mTileCount + " tiles into " + mFile + " from tile "
+                        + checkpoint);
+            }
+
+            mRunningThreads.set(mThreadCount);
+            mExecutor = Executors.newFixedThreadPool(mThreadCount,
+                    new ConfigurablePriorityThreadFactory(Thread.MIN_PRIORITY, TAG));
+            for (int i = 0; i < mThreadCount; i++) {
+                mExecutor.execute(new DownloadRunnable());
+            }
+            mExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Stop downloading. Tiles already downloaded are kept, and starting again resumes the
+     * download.
+     */
+    public void cancel() {
+        synchronized (mLock) {
+            mCancelled = true;
+            // Wakes up the threads waiting for the window to move
+            mLock.notifyAll();
+        }
+    }
+
+    private String getRegionKey() {
+        return String.format(Locale.US, "%s/%f,%f,%f,%f/%d-%d%s", mTileLayer.getCacheKey(),
+                mBoundingBox.getLonWest(), mBoundingBox.getLatSouth(), mBoundingBox.getLonEast(),
+                mBoundingBox.getLatNorth(), mMinZoom, mMaxZoom, mHdpi ? "@2x" : "");
+    }
+
+    private MapTile getTile(final long index) {
+        int i = 0;
+        while (index >= mZoomStart[i + 1]) {
+            i++;
+        }
+        final long offset = index - mZoomStart[i];
+        return new MapTile(mTileLayer.getCacheKey(), mMinZoom + i,
+                mMinX[i] + (int) (offset / mRows[i]), mMinY[i] + (int) (offset % mRows[i]));
+    }
+
+    /**
+     * Wait until the next request is allowed by the rate limit.
+     */
+    private void throttle() throws InterruptedException {
+        if (mRequestsPerSecond <= 0) {
+            return;
+        }
+        final long wait;
+        synchronized (mRequestLock) {
+            final long now = SystemClock.elapsedRealtime();
+            final long next = Math.max(now, mNextRequestTime);
+            mNextRequestTime = next + (long) (1000 / mRequestsPerSecond);
+            wait = next - now;
+        }
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+    }
+
+    /**
+     * Download a tile. Layers made of several tile URLs are composited into a single PNG.
+     *
+     * @return the encoded tile, or null if it couldn't be downloaded
+     */
+    private byte[] downloadTile(final MapTile tile) {
+        final String[] urls = mTileLayer.getTileURLs(tile, mHdpi);
+        if (urls == null || urls.length == 0) {
+            return null;
+        }
+        if (urls.length == 1) {
+            return mTileLayer.getDataFromURL(urls[0], null);
+        }
+        Bitmap result = null;
+        try {
+            Canvas canvas = null;
+            for (final String url : urls) {
+                final byte[] data = mTileLayer.getDataFromURL(url, null);
+                final Bitmap bitmap =
+                        data != null ? BitmapFactory.decodeByteArray(data, 0, data.length) : null;
+                if (bitmap == null) {
+                    return null;
+                }
+                if (result == null) {
+                    result = Bitmap.createBitmap(bitmap.getWidth(), bitmap.getHeight(),
+                            Bitmap.Config.ARGB_8888);
+                    canvas = new Canvas(result);
+                }
+                canvas.drawBitmap(bitmap, 0, 0, null);
+                bitmap.recycle();
+            }
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            result.compress(Bitmap.CompressFormat.PNG, 100, out);
+            return out.toByteArray();
+        } catch (final OutOfMemoryError e) {
+            Log.e(TAG, "OutOfMemoryError compositing tile " + tile);
+            return null;
+        } finally {
+            if (result != null) {
+                result.recycle();
+            }
+        }
+    }
+
+    private void onTileProcessed(final long index, final MapTile tile, final byte[] data,
+            final boolean success) {
+        final long completed;
+        final long downloadedBytes;
+        synchronized (mLock) {
+            mDone.set((int) (index % OFFLINE_PROGRESS_WINDOW));
+            while (mDone.get((int) (mProcessed % OFFLINE_PROGRESS_WINDOW))) {
+                mDone.clear((int) (mProcessed % OFFLINE_PROGRESS_WINDOW));
+                mProcessed++;
+            }
+            mLock.notifyAll();
+            if (success) {
+                mCompleted++;
+                if (data != null) {
+                    mDownloadedBytes += data.length;
+                    mPendingTiles.add(tile);
+                    mPendingData.add(data);
+                    if (mFormat == null) {
+                        mFormat = getFormat(data);
+                    }
+                }
+            } else {
+                mFailed++;
+                mFirstFailed = Math.min(mFirstFailed, index);
+            }
+            if (mPendingTiles.size() >= OFFLINE_WRITE_BATCH_SIZE && !mWriteFailed) {
+                flush();
+            }
+            completed = mCompleted;
+            downloadedBytes = mDownloadedBytes;
+        }
+        if (mListener != null) {
+            mListener.onProgress(completed, mTileCount, downloadedBytes);
+        }
+    }
+
+    /**
+     * Wait until a tile is within the window of tiles being downloaded.
+     *
+     * @return false if the download was cancelled meanwhile
+     */
+    private boolean waitForWindow(final long index) throws InterruptedException {
+        synchronized (mLock) {
+            while (!mCancelled && index - mProcessed >= OFFLINE_PROGRESS_WINDOW) {
+                mLock.wait();
+            }
+            return !mCancelled;
+        }
+    }
+
+    /**
+     * Write the pending tiles, along with the new checkpoint, in a single transaction. Must be
+     * called with mLock held.
+     */
+    private void flush() {
+        // Failed tiles are downloaded again on the next start
+        final long checkpoint = Math.min(mProcessed, mFirstFailed);
+        boolean success = false;
+        mArchive.beginTransaction();
+        try {
+            for (int i = 0; i < mPendingTiles.size(); i++) {
+                mArchive.putTile(mPendingTiles.get(i), mPendingData.get(i));
+            }
+            mArchive.setMetadata(METADATA_REGION, getRegionKey());
+            mArchive.setMetadata(METADATA_CHECKPOINT, Long.toString(checkpoint));
+            success = true;
+        } catch (Exception e) {
+            Log.e(TAG, "can't write tiles to " + mFile, e);
+            mCancelled = true;
+            if (mListener != null && !mWriteFailed) {
+                mListener.onError(e);
+            }
+            mWriteFailed = true;
+        } finally {
+            mArchive.endTransaction(success);
+            mPendingTiles.clear();
+            mPendingData.clear();
+        }
+    }
+
+    private static String getFormat(final byte[] data) {
+        if (data.length > 1 && (data[0] & 0xff) == 0xff && (data[1] & 0xff) == 0xd8) {
+            return "jpg";
+        }
+        return "png";
+    }
+
+    /**
+     * Write the MBTiles metadata describing the region, in a single transaction.
+     */
+    private void writeMetadata() {
+        boolean success = false;
+        mArchive.beginTransaction();
+        try {
+            writeMetadataValues();
+            success = true;
+        } finally {
+            mArchive.endTransaction(success);
+        }
+    }
+
+    private void writeMetadataValues() {
+        final String name = mTileLayer.getName();
+        mArchive.setMetadata("name", !TextUtils.isEmpty(name) ? name : mTileLayer.getCacheKey());
+        mArchive.setMetadata("type", "baselayer");
+        mArchive.setMetadata("version", "1.1");
+        if (!TextUtils.isEmpty(mTileLayer.getDescription())) {
+            mArchive.setMetadata("description", mTileLayer.getDescription());
+        }
+        if (!TextUtils.isEmpty(mTileLayer.getAttribution())) {
+            mArchive.setMetadata("attribution", mTileLayer.getAttribution());
+        }
+        if (mFormat != null) {
+            mArchive.setMetadata("format", mFormat);
+        }
+        mArchive.setMetadata("bounds", String.format(Locale.US, "%f,%f,%f,%f",
+                mBoundingBox.getLonWest(), mBoundingBox.getLatSouth(), mBoundingBox.getLonEast(),
+                mBoundingBox.getLatNorth()));
+        mArchive.setMetadata("center", String.format(Locale.US, "%f,%f,%d",
+                mBoundingBox.getCenter().getLongitude(), mBoundingBox.getCenter().getLatitude(),
+                mMinZoom));
+        mArchive.setMetadata("minzoom", Integer.toString(mMinZoom));
+        mArchive.setMetadata("maxzoom", Integer.toString(mMaxZoom));
+    }
+
+    /**
+     * Called by each download thread when it stops, the last one closes the file.
+     */
+    private void onThreadFinished() {
+        if (mRunningThreads.decrementAndGet() > 0) {
+            return;
+        }
+        final boolean cancelled;
+        final boolean writeFailed;
+        final long failed;
+        synchronized (mLock) {
+            if (!mWriteFailed) {
+                flush();
+            }
+            cancelled = mCancelled;
+            writeFailed = mWriteFailed;
+            failed = mFailed;
+            // Cancelled downloads as well, the format is only known once a tile was downloaded
+            if (!writeFailed) {
+                try {
+                    writeMetadata();
+                } catch (Exception e) {
+                    Log.e(TAG, "can't write metadata to " + mFile, e);
+                }
+            }
+            mArchive.close();
+            mArchive = null;
+            mExecutor = null;
+            mDone = null;
+        }
+        if (mListener != null && !writeFailed) {
+            if (cancelled) {
+                mListener.onCancel();
+            } else {
+                mListener.onComplete(failed);
+            }
+        }
+    }
+
+    private class DownloadRunnable implements Runnable {
+        @Override
+        public void run() {
+            try {
+                while (!mCancelled) {
+                    final long index = mNextIndex.getAndIncrement();
+                    if (index >= mTileCount || !waitForWindow(index)) {
+                        break;
+                    }
+                    final MapTile tile = getTile(index);
+                    if (mArchive.containsTile(tile)) {
+                        onTileProcessed(index, tile, null, true);
+                        continue;
+                    }
+                    throttle();
+                    final byte[] data = downloadTile(tile);
+                    onTileProcessed(index, tile, data, data != null);
+                }
+            } catch (InterruptedException e) {
+                mCancelled = true;
+            } finally {
+                onThreadFinished();
+            }
+        }
+    }
+}
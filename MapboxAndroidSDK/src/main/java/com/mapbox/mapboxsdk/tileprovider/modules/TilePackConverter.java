@@ -0,0 +1,197 @@
+package com.mapbox.mapboxsdk.tileprovider.modules;
+
+import android.util.Log;
+import com.google.common.hash.Hashing;
+import com.mapbox.mapboxsdk.tileprovider.util.StreamUtils;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts an MBTiles file into a tile pack, read by {@link TilePackFileArchive}.
+ * <p/>
+ * Both the plain and the deduplicated MBTiles layouts can be converted. Identical tiles are
+ * stored once in the pack.
+ */
+public final class TilePackConverter {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * This is a utility class with only static members.
+     */
+    private TilePackConverter() {
+    }
+
+    /**
+     * Convert an MBTiles file. Takes a while for large files, don't call it on the main thread.
+     *
+     * @param mbtiles the MBTiles file
+     * @param pack the tile pack written, replaced if it exists
+     * @return the number of tiles converted
+     * @throws IOException if the tile pack can't be written
+     */
+    public static int convert(final File mbtiles, final File pack) throws IOException {
+        final long start = System.currentTimeMillis();
+        final MBTilesFileArchive archive = MBTilesFileArchive.getDatabaseFileArchive(mbtiles, 1);
+        final File temp = new File(pack.getPath() + TEMP_SUFFIX);
+        final int count;
+        try {
+            count = write(archive, temp);
+            if (pack.exists() && !pack.delete()) {
+                throw new IOException("Can't replace " + pack);
+            }
+            if (!temp.renameTo(pack)) {
+                throw new IOException("Can't rename " + temp + " to " + pack);
+            }
+        } finally {
+            archive.close();
+            temp.delete();
+        }
+        Log.i(TAG, "Converted " + count + " tiles of " + mbtiles + " in "
+                + (System.currentTimeMillis() - start) + "ms");
+        return count;
+    }
+
+    private static int write(final MBTilesFileArchive archive, final File file)
+            throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.seek(TilePackFileArchive.HEADER_SIZE);
+            final TileWriter writer = new TileWriter(raf);
+            final MBTilesMetadata metadata = archive.getMetadata();
+            // The levels of the tiles themselves, the metadata may not list them all
+            final int[] zoomRange = archive.getTileZoomRange();
+            if (zoomRange != null) {
+                for (int z = zoomRange[0]; z <= zoomRange[1]; z++) {
+                    final int last = (1 << z) - 1;
+                    writer.mZoom = z;
+                    archive.getTilesData(z, 0, last, 0, last, writer);
+                    if (writer.mException != null) {
+                        throw writer.mException;
+                    }
+                }
+            }
+
+            final long metadataOffset = raf.getFilePointer();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(raf.getFD()), StreamUtils.IO_BUFFER_SIZE));
+            out.writeInt(metadata.getValues().size());
+            for (Map.Entry<String, String> value : metadata.getValues().entrySet()) {
+                writeString(out, value.getKey());
+                writeString(out, value.getValue() != null ? value.getValue() : "");
+            }
+            out.flush();
+            final long directoryOffset = raf.getFilePointer();
+            final int metadataLength = (int) (directoryOffset - metadataOffset);
+
+            final List<Entry> entries = writer.mEntries;
+            Collections.sort(entries, new Comparator<Entry>() {
+                @Override
+                public int compare(final Entry lhs, final Entry rhs) {
+                    return lhs.mKey < rhs.mKey ? -1 : (lhs.mKey == rhs.mKey ? 0 : 1);
+                }
+            });
+            for (Entry entry : entries) {
+                out.writeLong(entry.mKey);
+                out.writeLong(entry.mOffset);
+                out.writeInt(entry.mLength);
+            }
+            out.flush();
+
+            raf.seek(0);
+            raf.writeInt(TilePackFileArchive.MAGIC);
+            raf.writeInt(TilePackFileArchive.VERSION);
+            raf.writeInt(entries.size());
+            raf.writeLong(directoryOffset);
+            raf.writeLong(metadataOffset);
+            raf.writeInt(metadataLength);
+            raf.getFD().sync();
+            return entries.size();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Write a string as its length followed by its UTF-8 bytes. Unlike
+     * {@link DataOutputStream#writeUTF(String)}, there is no 64 KB limit: a metadata value, such
+     * as a legend or a UTFGrid template, may be longer.
+     */
+    private static void writeString(final DataOutputStream out, final String value)
+            throws IOException {
+        final byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * A tile of the directory.
+     */
+    private static final class Entry {
+        final long mKey;
+        final long mOffset;
+        final int mLength;
+
+        Entry(final long key, final long offset, final int length) {
+            mKey = key;
+            mOffset = offset;
+            mLength = length;
+        }
+    }
+
+    /**
+     * Appends the tiles read from the MBTiles file, storing identical tiles once.
+     */
+    private static final class TileWriter implements MBTilesFileArchive.TileDataReceiver {
+        private final RandomAccessFile mFile;
+        private final List<Entry> mEntries = new ArrayList<Entry>();
+        private final Map<String, Long> mOffsets = new HashMap<String, Long>();
+        int mZoom;
+        IOException mException;
+
+        TileWriter(final RandomAccessFile file) {
+            mFile = file;
+        }
+
+        @Override
+        public void onTileData(final int x, final int y, final byte[] data) {
+            if (mException != null || data == null) {
+                return;
+            }
+            try {
+                final String hash = Hashing.md5().hashBytes(data).toString();
+                Long offset = mOffsets.get(hash);
+                if (offset == null) {
+                    long position = mFile.getFilePointer();
+                    final long segmentEnd = (position / TilePackFileArchive.SEGMENT_SIZE + 1)
+                            * TilePackFileArchive.SEGMENT_SIZE;
+                    if (position + data.length > segmentEnd) {
+                        // A tile must be within a single mapping
+                        position = segmentEnd;
+                        mFile.seek(position);
+                    }
+                    mFile.write(data);
+                    offset = position;
+                    mOffsets.put(hash, offset);
+                }
+                mEntries.add(new Entry(TilePackFileArchive.getKey(mZoom, x, y), offset,
+                        data.length));
+            } catch (final IOException e) {
+                mException = e;
+            }
+        }
+    }
+
+    private static final String TAG = "TilePackConverter";
+}
@@ -0,0 +1,312 @@
+package com.mapbox.mapboxsdk.tileprovider.modules;
+
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A read-only archive of tiles in a single memory-mapped file, written by
+ * {@link TilePackConverter}. Finding a tile is a binary search in the directory of the file, and
+ * its content is a slice of the mapped file: there is no database, no cursor and no copy.
+ * <p/>
+ * The file is made of:
+ * <ul>
+ * <li>a header: {@link #MAGIC}, {@link #VERSION}, the number of tiles, the offset of the
+ * directory, the offset and the length of the metadata,</li>
+ * <li>the tiles, one after the other; identical tiles are stored once, and a tile never crosses
+ * a multiple of {@link #SEGMENT_SIZE},</li>
+ * <li>the metadata: a count followed by name and value pairs, each string being its length
+ * followed by its UTF-8 bytes,</li>
+ * <li>the directory: for each tile sorted by {@link #getKey(int, int, int)}, its key, the offset
+ * and the length of its content.</li>
+ * </ul>
+ * Numbers are big-endian. There is nothing to close: the file is unmapped once the archive is
+ * garbage collected.
+ */
+public class TilePackFileArchive implements IByteBufferArchiveFile {
+
+    public static final int MAGIC = 0x54504b00; // "TPK\0"
+    public static final int VERSION = 2;
+    public static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 8 + 4;
+    public static final int ENTRY_SIZE = 8 + 8 + 4;
+
+    /**
+     * The size of the parts the file is mapped in, a mapping being limited to 2 GB.
+     */
+    public static final long SEGMENT_SIZE = 1L << 30;
+
+    private final File mFile;
+    private final int mTileCount;
+    private final MappedByteBuffer mDirectory;
+    private final MappedByteBuffer[] mSegments;
+    private final MBTilesMetadata mMetadata;
+
+    /**
+     * Map a tile pack file.
+     *
+     * @param file the file
+     * @throws IOException if the file can't be read or isn't a tile pack
+     */
+    public TilePackFileArchive(final File file) throws IOException {
+        mFile = file;
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final long size = channel.size();
+            if (size < HEADER_SIZE) {
+                throw new IOException(file + " is not a tile pack");
+            }
+            final ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC) {
+                throw new IOException(file + " is not a tile pack");
+            }
+            final int version = header.getInt();
+            // Version 1 only differs by its metadata strings, limited to 64 KB
+            if (version != VERSION && version != 1) {
+                throw new IOException("Unsupported version " + version + " of " + file);
+            }
+            mTileCount = header.getInt();
+            final long directoryOffset = header.getLong();
+            final long metadataOffset = header.getLong();
+            final int metadataLength = header.getInt();
+            final long directoryLength = (long) mTileCount * ENTRY_SIZE;
+            if (mTileCount < 0 || directoryLength > Integer.MAX_VALUE
+                    || directoryOffset + directoryLength > size
+                    || metadataOffset + metadataLength > size) {
+                throw new IOException("Corrupted tile pack " + file);
+            }
+
+            // The mappings stay valid once the channel is closed
+            mDirectory = channel.map(FileChannel.MapMode.READ_ONLY, directoryOffset,
+                    directoryLength);
+            mSegments = new MappedByteBuffer[(int) ((metadataOffset + SEGMENT_SIZE - 1)
+                    / SEGMENT_SIZE)];
+            for (int i = 0; i < mSegments.length; i++) {
+                final long start = i * SEGMENT_SIZE;
+                mSegments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(SEGMENT_SIZE, metadataOffset - start));
+            }
+            mMetadata = readMetadata(
+                    channel.map(FileChannel.MapMode.READ_ONLY, metadataOffset, metadataLength),
+                    version);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static MBTilesMetadata readMetadata(final ByteBuffer buffer, final int version)
+            throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteBufferInputStream(buffer));
+        final int count = in.readInt();
+        final Map<String, String> values = new HashMap<String, String>(count * 2);
+        for (int i = 0; i < count; i++) {
+            if (version == 1) {
+                values.put(in.readUTF(), in.readUTF());
+            } else {
+                values.put(readString(in), readString(in));
+            }
+        }
+        return new MBTilesMetadata(values);
+    }
+
+    /**
+     * Read a string written as its length followed by its UTF-8 bytes.
+     */
+    private static String readString(final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Corrupted metadata");
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Get the key ordering the directory: by zoom level, then x, then y.
+     */
+    public static long getKey(final int z, final int x, final int y) {
+        return ((long) z << 58) | ((long) x << 29) | y;
+    }
+
+    /**
+     * Find a tile in the directory, so that its offset and its content can be read without
+     * searching again.
+     *
+     * @param pTile the tile
+     * @return the position of its entry in the directory, or -1 if there is none
+     */
+    public int findEntry(final MapTile pTile) {
+        final long key = getKey(pTile.getZ(), pTile.getX(), pTile.getY());
+        int low = 0;
+        int high = mTileCount - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final long middleKey = mDirectory.getLong(middle * ENTRY_SIZE);
+            if (middleKey < key) {
+                low = middle + 1;
+            } else if (middleKey > key) {
+                high = middle - 1;
+            } else {
+                return middle * ENTRY_SIZE;
+            }
+        }
+        return -1;
+    }
+
+    public boolean containsTile(final MapTile pTile) {
+        return findEntry(pTile) >= 0;
+    }
+
+    /**
+     * Get the offset of the content of a tile in the file. Identical tiles share their content,
+     * the offset therefore identifies it.
+     *
+     * @param pTile the tile
+     * @return the offset, or -1 if the archive doesn't contain the tile
+     */
+    public long getTileOffset(final MapTile pTile) {
+        final int entry = findEntry(pTile);
+        return entry >= 0 ? getEntryOffset(entry) : -1;
+    }
+
+    /**
+     * @param entry the position of the entry of a tile, from {@link #findEntry(MapTile)}
+     * @return the offset of the content of the tile
+     */
+    public long getEntryOffset(final int entry) {
+        return mDirectory.getLong(entry + 8);
+    }
+
+    /**
+     * Get the content of a tile, without copying it.
+     *
+     * @param pTile the tile
+     * @return a read-only buffer over the encoded tile, or null if the archive doesn't contain it
+     */
+    public ByteBuffer getTileBuffer(final MapTile pTile) {
+        final int entry = findEntry(pTile);
+        return entry >= 0 ? getEntryBuffer(entry) : null;
+    }
+
+    /**
+     * Get the content of a tile found in the directory, without copying it.
+     *
+     * @param entry the position of the entry of the tile, from {@link #findEntry(MapTile)}
+     * @return a read-only buffer over the encoded tile
+     */
+    public ByteBuffer getEntryBuffer(final int entry) {
+        final long offset = mDirectory.getLong(entry + 8);
+        final int length = mDirectory.getInt(entry + 16);
+        // Each caller gets its own position and limit over the shared mapping
+        final ByteBuffer buffer = mSegments[(int) (offset / SEGMENT_SIZE)].duplicate();
+        final int position = (int) (offset % SEGMENT_SIZE);
+        buffer.limit(position + length);
+        buffer.position(position);
+        return buffer.slice();
+    }
+
+    /**
+     * Get the content of a tile, copied into an array for the decoders which need one.
+     *
+     * @param pTile the tile
+     * @return the encoded tile, or null if the archive doesn't contain it
+     */
+    public byte[] getTileData(final MapTile pTile) {
+        final ByteBuffer buffer = getTileBuffer(pTile);
+        if (buffer == null) {
+            return null;
+        }
+        final byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return data;
+    }
+
+    @Override
+    public ByteBuffer getByteBuffer(final ITileLayer pTileSource, final MapTile pTile) {
+        return getTileBuffer(pTile);
+    }
+
+    @Override
+    public InputStream getInputStream(final ITileLayer pTileSource, final MapTile pTile) {
+        final ByteBuffer buffer = getTileBuffer(pTile);
+        return buffer != null ? new ByteBufferInputStream(buffer) : null;
+    }
+
+    public int getTileCount() {
+        return mTileCount;
+    }
+
+    /**
+     * @return the metadata of the MBTiles file the pack was converted from
+     */
+    public MBTilesMetadata getMetadata() {
+        return mMetadata;
+    }
+
+    /**
+     * Get the key identifying the content of a tile in the tile cache, so the tiles sharing it
+     * share a single bitmap without hashing their content.
+     *
+     * @param offset the offset of the content, from {@link #getTileOffset(MapTile)}
+     * @return the content key
+     */
+    public String getContentKey(final long offset) {
+        return "tilepack:" + mFile.getAbsolutePath() + "#" + offset;
+    }
+
+    @Override
+    public String toString() {
+        return "TilePackFileArchive [mFile=" + mFile + ", mTileCount=" + mTileCount + "]";
+    }
+
+    /**
+     * Reads a buffer from its position to its limit.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        ByteBufferInputStream(final ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? (mBuffer.get() & 0xff) : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            final int count = Math.min(len, mBuffer.remaining());
+            mBuffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+
+        @Override
+        public long skip(final long n) {
+            final int count = (int) Math.max(0, Math.min(n, mBuffer.remaining()));
+            mBuffer.position(mBuffer.position() + count);
+            return count;
+        }
+    }
+}
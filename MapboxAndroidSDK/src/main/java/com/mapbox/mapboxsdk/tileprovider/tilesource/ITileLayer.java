@@ -1,9 +1,11 @@
 package com.mapbox.mapboxsdk.tileprovider.tilesource;
 
+import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
 import com.mapbox.mapboxsdk.geometry.BoundingBox;
 import com.mapbox.mapboxsdk.geometry.LatLng;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.TileFreshnessPolicy;
 import com.mapbox.mapboxsdk.tileprovider.modules.MapTileDownloader;
 
 public interface ITileLayer {
@@ -104,4 +106,18 @@ public interface ITileLayer {
      * @return the cache key
      */
     public String getCacheKey();
+
+    /**
+     * Get the policy deciding how long cached tiles of this layer stay fresh
+     *
+     * @return the freshness policy
+     */
+    public TileFreshnessPolicy getFreshnessPolicy();
+
+    /**
+     * Get the config tiles of this layer are decoded with
+     *
+     * @return the bitmap config
+     */
+    public Bitmap.Config getBitmapConfig();
 }
@@ -1,20 +1,26 @@
 package com.mapbox.mapboxsdk.tileprovider.tilesource;
 
 import android.content.Context;
-import android.content.res.AssetManager;
 import android.database.sqlite.SQLiteDatabase;
+import android.graphics.BitmapFactory;
 import android.os.Environment;
 import android.util.Log;
 import com.mapbox.mapboxsdk.constants.MapboxConstants;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
 import com.mapbox.mapboxsdk.tileprovider.modules.MBTilesFileArchive;
+import com.mapbox.mapboxsdk.tileprovider.modules.MBTilesMetadata;
 import com.mapbox.mapboxsdk.tileprovider.modules.MapTileDownloader;
+import com.mapbox.mapboxsdk.tileprovider.util.AssetExtractor;
+import com.mapbox.mapboxsdk.util.BitmapUtils;
 import com.mapbox.mapboxsdk.views.util.constants.MapViewConstants;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
 /**
@@ -26,6 +32,20 @@ public class MBTilesLayer extends TileLayer implements MapViewConstants, MapboxC
     private static final String TAG = "MBTilesLayer";
     MBTilesFileArchive mbTilesFileArchive;
 
+    /**
+     * Receives the tiles loaded by
+     * {@link #getDrawablesFromTiles(MapTileDownloader, Collection, TileReceiver)}.
+     */
+    public interface TileReceiver {
+        /**
+         * Called on the loading thread for each tile found in the file, as soon as it is loaded.
+         *
+         * @param tile the requested tile
+         * @param drawable the tile, or null if it couldn't be decoded
+         */
+        void onTileLoaded(MapTile tile, CacheableBitmapDrawable drawable);
+    }
+
     /**
      * Initialize a new tile layer, represented by a MBTiles file.
      *
@@ -77,31 +97,6 @@ public class MBTilesLayer extends TileLayer implements MapViewConstants, MapboxC
         return path.substring(path.lastIndexOf('/') + 1, path.lastIndexOf('.'));
     }
 
-    /**
-     * Creates a file from an input stream by reading it byte by byte.
-     * todo: same as MapViewFactory's createFileFromInputStream
-     */
-    private static File createFileFromInputStream(InputStream inputStream, String URL) {
-        try {
-            File f = new File(URL);
-            OutputStream outputStream = new FileOutputStream(f);
-            byte[] buffer = new byte[1024];
-            int length = 0;
-
-            while ((length = inputStream.read(buffer)) > 0) {
-                outputStream.write(buffer, 0, length);
-            }
-
-            outputStream.close();
-            inputStream.close();
-
-            return f;
-        } catch (IOException e) {
-            Log.e(TAG, "Failed to create file from input stream.", e);
-        }
-        return null;
-    }
-
     /**
      * Reads and opens a MBTiles file and loads its tiles into this layer.
      * @param file
@@ -111,14 +106,22 @@ public class MBTilesLayer extends TileLayer implements MapViewConstants, MapboxC
             mbTilesFileArchive = MBTilesFileArchive.getDatabaseFileArchive(file);
         }
 
+        initializeMetadata();
+    }
+
+    /**
+     * Sets up this layer from the metadata of the archive, which is read only once.
+     */
+    private void initializeMetadata() {
         if (mbTilesFileArchive != null) {
-            mMaximumZoomLevel = mbTilesFileArchive.getMaxZoomLevel();
-            mMinimumZoomLevel = mbTilesFileArchive.getMinZoomLevel();
-            mName = mbTilesFileArchive.getName();
-            mDescription = mbTilesFileArchive.getDescription();
-            mAttribution = mbTilesFileArchive.getAttribution();
-            mBoundingBox = mbTilesFileArchive.getBounds();
-            mCenter = mbTilesFileArchive.getCenter();
+            final MBTilesMetadata metadata = mbTilesFileArchive.getMetadata();
+            mMaximumZoomLevel = metadata.getMaxZoomLevel();
+            mMinimumZoomLevel = metadata.getMinZoomLevel();
+            mName = metadata.getName();
+            mDescription = metadata.getDescription();
+            mAttribution = metadata.getAttribution();
+            mBoundingBox = metadata.getBounds();
+            mCenter = metadata.getCenter();
         }
     }
 
@@ -130,15 +133,7 @@ public class MBTilesLayer extends TileLayer implements MapViewConstants, MapboxC
             mbTilesFileArchive = new MBTilesFileArchive(db);
         }
 
-        if (mbTilesFileArchive != null) {
-            mMaximumZoomLevel = mbTilesFileArchive.getMaxZoomLevel();
-            mMinimumZoomLevel = mbTilesFileArchive.getMinZoomLevel();
-            mName = mbTilesFileArchive.getName();
-            mDescription = mbTilesFileArchive.getDescription();
-            mAttribution = mbTilesFileArchive.getAttribution();
-            mBoundingBox = mbTilesFileArchive.getBounds();
-            mCenter = mbTilesFileArchive.getCenter();
-        }
+        initializeMetadata();
     }
 
     /**
@@ -150,13 +145,10 @@ public class MBTilesLayer extends TileLayer implements MapViewConstants, MapboxC
 
     private File getFile(String url, final Context context) {
         if (context != null) {
-            //we assume asset here
-            AssetManager am = context.getAssets();
-            InputStream inputStream;
+            //we assume asset here, only copied the first time
             try {
-                inputStream = am.open(url);
-                return createFileFromInputStream(inputStream,
-                        Environment.getExternalStorageDirectory() + File.separator + url);
+                return AssetExtractor.extract(context, url,
+                        new File(Environment.getExternalStorageDirectory(), url));
             } catch (IOException e) {
                 Log.e(TAG, "MBTiles file not found in assets: " + e.toString());
                 return null;
@@ -181,11 +173,19 @@ public class MBTilesLayer extends TileLayer implements MapViewConstants, MapboxC
     @Override
     public CacheableBitmapDrawable getDrawableFromTile(final MapTileDownloader downloader,
             final MapTile aTile, boolean hdpi) {
-        if (mbTilesFileArchive != null) {
-            InputStream stream = mbTilesFileArchive.getInputStream(this, aTile);
-            if (stream != null) {
-                CacheableBitmapDrawable result =
-                        downloader.getCache().putTileStream(aTile, stream, null);
+        final MBTilesFileArchive archive = mbTilesFileArchive;
+        if (archive != null && archive.isDeduplicated()) {
+            final String tileId = archive.getTileId(aTile);
+            return (tileId != null) ? getDrawableFromImage(downloader, archive, aTile, tileId)
+                    : null;
+        }
+        if (archive != null) {
+            // The whole tile is read so identical tiles can share the same bitmap, and decoded
+            // straight from the array the blob was read into
+            final ByteBuffer data = archive.getByteBuffer(this, aTile);
+            if (data != null) {
+                final CacheableBitmapDrawable result = downloader.getCache().putTileBuffer(aTile,
+                        data, null, BitmapUtils.getBitmapOptions(getBitmapConfig()), 0);
                 if (result == null) {
                     Log.d(TAG, "error reading stream from mbtiles");
                 }
@@ -194,4 +194,98 @@ public class MBTilesLayer extends TileLayer implements MapViewConstants, MapboxC
         }
         return null;
     }
+
+    /**
+     * Get a tile of a deduplicated file. The image is only read and decoded if no tile sharing it
+     * is in the memory cache.
+     */
+    private CacheableBitmapDrawable getDrawableFromImage(final MapTileDownloader downloader,
+            final MBTilesFileArchive archive, final MapTile aTile, final String tileId) {
+        final String contentKey = archive.getContentKey(tileId);
+        final BitmapFactory.Options opts = BitmapUtils.getBitmapOptions(getBitmapConfig());
+        final CacheableBitmapDrawable shared =
+                downloader.getCache().getSharedTile(aTile, contentKey, opts);
+        if (shared != null) {
+            return shared;
+        }
+        final byte[] data = archive.getImageData(tileId);
+        return (data != null) ? downloader.getCache().putTileData(aTile, data, contentKey, opts,
+                0) : null;
+    }
+
+    /**
+     * Load several tiles of the same zoom level, such as the tiles of a viewport, with a single
+     * query on the MBTiles file when they are close to each other. Tiles which aren't in the file aren't passed to {@code receiver}.
+     *
+     * @param downloader the downloader the tiles are loaded for
+     * @param tiles the tiles, all at the same zoom level
+     * @param receiver receives the tiles as they are loaded
+     */
+    public void getDrawablesFromTiles(final MapTileDownloader downloader,
+            final Collection<MapTile> tiles, final TileReceiver receiver) {
+        final MBTilesFileArchive archive = mbTilesFileArchive;
+        if (archive == null || tiles.isEmpty()) {
+            return;
+        }
+        final Map<MapTile, MapTile> requested = new HashMap<MapTile, MapTile>(tiles.size() * 2);
+        int minX = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        for (MapTile tile : tiles) {
+            if (!archive.mayContainTile(tile)) {
+                // Known to be missing, no need to widen the query for it
+                continue;
+            }
+            requested.put(tile, tile);
+            minX = Math.min(minX, tile.getX());
+            maxX = Math.max(maxX, tile.getX());
+            minY = Math.min(minY, tile.getY());
+            maxY = Math.max(maxY, tile.getY());
+        }
+        if (requested.isEmpty()) {
+            return;
+        }
+        final int zoom = tiles.iterator().next().getZ();
+        if (archive.isDeduplicated()) {
+            // Read the ids first, then each image shared by several tiles only once
+            final Map<String, List<MapTile>> byImage = new HashMap<String, List<MapTile>>();
+            archive.getTileIds(zoom, minX, maxX, minY, maxY,
+                    new MBTilesFileArchive.TileIdReceiver() {
+                        @Override
+                        public void onTileId(final int x, final int y, final String tileId) {
+                            final MapTile tile = requested.get(new MapTile(zoom, x, y));
+                            if (tile == null || tileId == null) {
+                                return;
+                            }
+                            List<MapTile> sharing = byImage.get(tileId);
+                            if (sharing == null) {
+                                sharing = new ArrayList<MapTile>(1);
+                                byImage.put(tileId, sharing);
+                            }
+                            sharing.add(tile);
+                        }
+                    }
+            );
+            for (Map.Entry<String, List<MapTile>> entry : byImage.entrySet()) {
+                for (MapTile tile : entry.getValue()) {
+                    receiver.onTileLoaded(tile,
+                            getDrawableFromImage(downloader, archive, tile, entry.getKey()));
+                }
+            }
+            return;
+        }
+        archive.getTilesData(requested.keySet(),
+                new MBTilesFileArchive.TileDataReceiver() {
+                    @Override
+                    public void onTileData(final int x, final int y, final byte[] data) {
+                        final MapTile tile = requested.get(new MapTile(zoom, x, y));
+                        if (tile != null) {
+                            receiver.onTileLoaded(tile, downloader.getCache().putTileData(tile,
+                                    data, BitmapUtils.getBitmapOptions(getBitmapConfig()), 0));
+                        }
+                    }
+                }
+        );
+    }
 }
@@ -0,0 +1,397 @@
+package com.mapbox.mapboxsdk.tileprovider.tilesource;
+
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+import com.mapbox.mapboxsdk.geometry.BoundingBox;
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.modules.MBTilesFileArchive;
+import com.mapbox.mapboxsdk.tileprovider.modules.MBTilesMetadata;
+import com.mapbox.mapboxsdk.tileprovider.modules.MapTileDownloader;
+import com.mapbox.mapboxsdk.util.BitmapUtils;
+import com.mapbox.mapboxsdk.util.constants.UtilConstants;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
+
+/**
+ * A single layer showing many MBTiles files, such as extracts of countries or regions.
+ * <p/>
+ * Nothing is read when the layer is created: the metadata of the files is read by the tile
+ * loading thread which first requests a tile. Each tile is then routed to the files whose bounds
+ * and zoom levels cover it, through a grid over the world, and the files are opened when a tile
+ * is first read from them. At most {@link #TILE_ARCHIVE_MAXIMUM_OPEN} files are kept open: the
+ * least recently used one is closed to make room for another.
+ */
+public class RegionalMBTilesLayer extends TileLayer {
+
+    private static final String TAG = "RegionalMBTilesLayer";
+
+    /**
+     * Zoom level of the cells of the grid routing the tiles, 64 by 64 cells.
+     */
+    private static final int GRID_ZOOM = 6;
+    private static final int GRID_SIZE = 1 << GRID_ZOOM;
+
+    private final List<File> mFiles;
+    // Read from the files on the first request, see getRegions()
+    private final Object mRegionsLock = new Object();
+    private volatile boolean mRegionsRead = false;
+    private final List<Region> mRegions = new ArrayList<Region>();
+    // The regions overlapping each cell of the grid, null for cells without any
+    @SuppressWarnings("unchecked")
+    private final List<Region>[] mGrid = new List[GRID_SIZE * GRID_SIZE];
+    // The regions with an open archive, the least recently used first
+    private final LinkedHashSet<Region> mOpenRegions = new LinkedHashSet<Region>();
+    private final Object mLock = new Object();
+    private boolean mDetached = false;
+
+    /**
+     * Initialize a new tile layer, represented by several MBTiles files, covering the whole
+     * world at every zoom level.
+     *
+     * @param name the name of the layer, also used as its cache key
+     * @param files the MBTiles files; those which can't be read are left out
+     */
+    public RegionalMBTilesLayer(final String name, final Collection<File> files) {
+        this(name, files, WORLD_BOUNDING_BOX, MINIMUM_ZOOMLEVEL, MAXIMUM_ZOOMLEVEL);
+    }
+
+    /**
+     * Initialize a new tile layer, represented by several MBTiles files. The metadata of the
+     * files isn't read here, the area they cover together is given instead.
+     *
+     * @param name the name of the layer, also used as its cache key
+     * @param files the MBTiles files; those which can't be read are left out
+     * @param bounds the bounds of the layer
+     * @param minZoom the minimum zoom level of the layer
+     * @param maxZoom the maximum zoom level of the layer
+     */
+    public RegionalMBTilesLayer(final String name, final Collection<File> files,
+            final BoundingBox bounds, final float minZoom, final float maxZoom) {
+        super(name, name);
+        mName = name;
+        mFiles = new ArrayList<File>(files);
+        mBoundingBox = bounds;
+        mCenter = bounds.getCenter();
+        mMinimumZoomLevel = minZoom;
+        mMaximumZoomLevel = maxZoom;
+    }
+
+    /**
+     * Read the metadata of the files the first time the regions are needed. Blocks the other
+     * threads needing them meanwhile.
+     *
+     * @return the regions of the files which could be read
+     */
+    private List<Region> getRegions() {
+        if (!mRegionsRead) {
+            synchronized (mRegionsLock) {
+                if (!mRegionsRead) {
+                    final long start = System.currentTimeMillis();
+                    for (File file : mFiles) {
+                        final Region region = Region.read(file);
+                        if (region != null) {
+                            mRegions.add(region);
+                            addToGrid(region);
+                        }
+                    }
+                    if (UtilConstants.DEBUGMODE) {
+                        Log.d(TAG, "read " + mRegions.size() + " regions in "
+                                + (System.currentTimeMillis() - start) + "ms");
+                    }
+                    // Published to the threads which don't lock
+                    mRegionsRead = true;
+                }
+            }
+        }
+        return mRegions;
+    }
+
+    private void addToGrid(final Region region) {
+        final int[] range = region.getTileRange(GRID_ZOOM);
+        // Regions crossing the antimeridian wrap around to the first column
+        final int columns = (range[1] - range[0] + GRID_SIZE) % GRID_SIZE + 1;
+        for (int y = range[2]; y <= range[3]; y++) {
+            for (int i = 0; i < columns; i++) {
+                final int cell = y * GRID_SIZE + (range[0] + i) % GRID_SIZE;
+                if (mGrid[cell] == null) {
+                    mGrid[cell] = new ArrayList<Region>(1);
+                }
+                mGrid[cell].add(region);
+            }
+        }
+    }
+
+    /**
+     * Get the number of MBTiles files of the layer which could be read. Reads their metadata if
+     * no tile was requested yet, don't call it on the main thread.
+     *
+     * @return the number of MBTiles files of the layer
+     */
+    public int getRegionCount() {
+        return getRegions().size();
+    }
+
+    /**
+     * Get the number of MBTiles files of the layer kept open, at most
+     * {@link #TILE_ARCHIVE_MAXIMUM_OPEN}.
+     *
+     * @return the number of open MBTiles files
+     */
+    public int getOpenRegionCount() {
+        synchronized (mLock) {
+            return mOpenRegions.size();
+        }
+    }
+
+    @Override
+    public void detach() {
+        synchronized (mLock) {
+            mDetached = true;
+            for (Region region : mOpenRegions) {
+                // Archives being read are closed once released
+                if (region.mUsers == 0) {
+                    region.close();
+                }
+            }
+            mOpenRegions.clear();
+        }
+    }
+
+    @Override
+    public CacheableBitmapDrawable getDrawableFromTile(final MapTileDownloader downloader,
+            final MapTile aTile, boolean hdpi) {
+        final int z = aTile.getZ();
+        final int x = aTile.getX();
+        final int y = aTile.getY();
+        if (z < 0 || z > 30 || x < 0 || y < 0 || x >= (1 << z) || y >= (1 << z)) {
+            return null;
+        }
+        final List<Region> regions = getRegions();
+        // Tiles above the grid span several cells, every region is checked
+        final List<Region> candidates = (z >= GRID_ZOOM)
+                ? mGrid[(y >> (z - GRID_ZOOM)) * GRID_SIZE + (x >> (z - GRID_ZOOM))] : regions;
+        if (candidates == null) {
+            return null;
+        }
+        for (Region region : candidates) {
+            if (!region.covers(z, x, y)) {
+                continue;
+            }
+            final MBTilesFileArchive archive = acquire(region);
+            if (archive == null) {
+                continue;
+            }
+            try {
+                final ByteBuffer data = archive.getByteBuffer(this, aTile);
+                if (data != null) {
+                    return downloader.getCache().putTileBuffer(aTile, data, null,
+                            BitmapUtils.getBitmapOptions(getBitmapConfig()), 0);
+                }
+            } finally {
+                release(region);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Open the archive of a region if needed, and keep it open until {@link #release(Region)}.
+     * The file is opened without holding the lock, so the threads reading the other regions
+     * aren't blocked meanwhile; the threads needing the same region wait for it instead.
+     *
+     * @return the archive, or null if it can't be opened
+     */
+    private MBTilesFileArchive acquire(final Region region) {
+        synchronized (mLock) {
+            while (region.mOpening && !mDetached) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            if (mDetached) {
+                return null;
+            }
+            if (region.mArchive != null) {
+                return use(region);
+            }
+            region.mOpening = true;
+        }
+        MBTilesFileArchive archive = null;
+        try {
+            // Each of the open files gets a single reader, rather than one per core
+            archive = MBTilesFileArchive.getDatabaseFileArchive(region.mFile, 1);
+            if (UtilConstants.DEBUGMODE) {
+                Log.d(TAG, "opened " + region.mFile);
+            }
+        } catch (SQLiteException e) {
+            Log.e(TAG, "can't open " + region.mFile + ": " + e.toString());
+        }
+        synchronized (mLock) {
+            region.mOpening = false;
+            mLock.notifyAll();
+            if (archive == null) {
+                return null;
+            }
+            if (mDetached) {
+                archive.close();
+                return null;
+            }
+            closeLeastRecentlyUsed();
+            region.mArchive = archive;
+            return use(region);
+        }
+    }
+
+    /**
+     * Count a reader of an open archive, and move its region to the end of the open ones, as the
+     * most recently used. Must be called with mLock held.
+     */
+    private MBTilesFileArchive use(final Region region) {
+        mOpenRegions.remove(region);
+        mOpenRegions.add(region);
+        region.mUsers++;
+        return region.mArchive;
+    }
+
+    private void release(final Region region) {
+        synchronized (mLock) {
+            region.mUsers--;
+            if (region.mUsers == 0 && !mOpenRegions.contains(region)) {
+                // Closed while in use, see closeLeastRecentlyUsed()
+                region.close();
+            }
+        }
+    }
+
+    /**
+     * Close the least recently used archives beyond the limit. Archives being read are closed
+     * once released. Must be called with mLock held.
+     */
+    private void closeLeastRecentlyUsed() {
+        final Iterator<Region> iterator = mOpenRegions.iterator();
+        while (mOpenRegions.size() >= TILE_ARCHIVE_MAXIMUM_OPEN && iterator.hasNext()) {
+            final Region eldest = iterator.next();
+            iterator.remove();
+            if (eldest.mUsers == 0) {
+                eldest.close();
+            }
+        }
+    }
+
+    /**
+     * An MBTiles file of the layer, with the area it covers.
+     */
+    private static final class Region {
+        final File mFile;
+        final BoundingBox mBounds;
+        final int mMinZoom;
+        final int mMaxZoom;
+        // The westernmost and easternmost x, then the smallest and largest y of the tiles covering
+        // the bounds, for each zoom level up to the maximum and the grid
+        private final int[][] mTileRanges;
+        // Guarded by the lock of the layer
+        MBTilesFileArchive mArchive;
+        boolean mOpening;
+        int mUsers;
+
+        Region(final File file, final BoundingBox bounds, final int minZoom, final int maxZoom) {
+            mFile = file;
+            mBounds = bounds;
+            mMinZoom = minZoom;
+            mMaxZoom = Math.min(maxZoom, 30);
+            mTileRanges = new int[Math.max(mMaxZoom, GRID_ZOOM) + 1][];
+            final boolean antimeridian = bounds.getLonWest() > bounds.getLonEast();
+            for (int z = 0; z < mTileRanges.length; z++) {
+                final int[] range = new int[] {
+                        getTileX(bounds.getLonWest(), z), getTileX(bounds.getLonEast(), z),
+                        getTileY(bounds.getLatNorth(), z), getTileY(bounds.getLatSouth(), z)
+                };
+                if (antimeridian && range[0] <= range[1]) {
+                    // Both edges in the same column: the bounds go round the world
+                    range[0] = 0;
+                    range[1] = (1 << z) - 1;
+                }
+                mTileRanges[z] = range;
+            }
+        }
+
+        /**
+         * Read the metadata of an MBTiles file.
+         *
+         * @return the region, or null if the file can't be read
+         */
+        static Region read(final File file) {
+            MBTilesFileArchive archive = null;
+            try {
+                archive = MBTilesFileArchive.getDatabaseFileArchive(file, 1);
+                final MBTilesMetadata metadata = archive.getMetadata();
+                final BoundingBox bounds = metadata.getBounds();
+                return new Region(file, bounds != null ? bounds : WORLD_BOUNDING_BOX,
+                        (int) metadata.getMinZoomLevel(), (int) metadata.getMaxZoomLevel());
+            } catch (SQLiteException e) {
+                Log.e(TAG, "can't load MBTiles " + file + ": " + e.toString());
+                return null;
+            } finally {
+                if (archive != null) {
+                    archive.close();
+                }
+            }
+        }
+
+        boolean covers(final int z, final int x, final int y) {
+            if (z < mMinZoom || z > mMaxZoom) {
+                return false;
+            }
+            final int[] range = getTileRange(z);
+            if (y < range[2] || y > range[3]) {
+                return false;
+            }
+            // The bounds of a region crossing the antimeridian have their west edge east of their
+            // east edge
+            return (range[0] <= range[1]) ? (x >= range[0] && x <= range[1])
+                    : (x >= range[0] || x <= range[1]);
+        }
+
+        /**
+         * @return the westernmost and easternmost x, then the smallest and largest y of the tiles
+         * covering the bounds at zoom level {@code z}, the first x being larger than the second
+         * when the bounds cross the antimeridian, at most the maximum zoom level or the zoom
+         * level of the grid
+         */
+        int[] getTileRange(final int z) {
+            return mTileRanges[z];
+        }
+
+        void close() {
+            if (mArchive != null) {
+                mArchive.close();
+                mArchive = null;
+                if (UtilConstants.DEBUGMODE) {
+                    Log.d(TAG, "closed " + mFile);
+                }
+            }
+        }
+
+        private static int getTileX(final double longitude, final int z) {
+            final int x = (int) Math.floor((longitude + 180) / 360 * (1 << z));
+            return Math.max(0, Math.min((1 << z) - 1, x));
+        }
+
+        private static int getTileY(final double latitude, final int z) {
+            final double lat = Math.toRadians(Math.max(-85.05112878, Math.min(85.05112878,
+                    latitude)));
+            final int y = (int) Math.floor(
+                    (1 - Math.log(Math.tan(lat) + 1 / Math.cos(lat)) / Math.PI) / 2 * (1 << z));
+            return Math.max(0, Math.min((1 << z) - 1, y));
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package com.mapbox.mapboxsdk.tileprovider.tilesource;
 
+import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
 import com.mapbox.mapboxsdk.geometry.BoundingBox;
 import com.mapbox.mapboxsdk.geometry.LatLng;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.TileFreshnessPolicy;
 import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
 import com.mapbox.mapboxsdk.tileprovider.modules.MapTileDownloader;
 import com.mapbox.mapboxsdk.views.util.constants.MapViewConstants;
@@ -21,6 +23,8 @@ public class TileLayer implements ITileLayer, TileLayerConstants, MapViewConstan
     protected float mMaximumZoomLevel = TileLayerConstants.MAXIMUM_ZOOMLEVEL;
     protected BoundingBox mBoundingBox = WORLD_BOUNDING_BOX;
     protected LatLng mCenter = new LatLng(0, 0);
+    protected TileFreshnessPolicy mFreshnessPolicy = TileFreshnessPolicy.DEFAULT;
+    protected Bitmap.Config mBitmapConfig = Bitmap.Config.ARGB_8888;
     private final int mTileSizePixels = DEFAULT_TILE_SIZE;
 
     public TileLayer(final String pId, final String aUrl) {
@@ -76,6 +80,26 @@ public class TileLayer implements ITileLayer, TileLayerConstants, MapViewConstan
         return this;
     }
 
+    /**
+     * Sets the policy deciding how long cached tiles of this layer stay fresh.
+     */
+    public TileLayer setFreshnessPolicy(final TileFreshnessPolicy aFreshnessPolicy) {
+        this.mFreshnessPolicy =
+                aFreshnessPolicy != null ? aFreshnessPolicy : TileFreshnessPolicy.DEFAULT;
+        return this;
+    }
+
+    /**
+     * Sets the config used to decode the tiles of this layer. Opaque base maps can use
+     * {@link Bitmap.Config#RGB_565}, which takes half the memory of the default
+     * {@link Bitmap.Config#ARGB_8888}, so twice as many tiles fit in the memory cache.
+     * Layers with transparency must keep ARGB_8888.
+     */
+    public TileLayer setBitmapConfig(final Bitmap.Config aBitmapConfig) {
+        this.mBitmapConfig = aBitmapConfig != null ? aBitmapConfig : Bitmap.Config.ARGB_8888;
+        return this;
+    }
+
     public Drawable getDrawableFromTile(final MapTileDownloader downloader, final MapTile aTile,
             boolean hdpi) {
         return null;
@@ -143,4 +167,14 @@ public class TileLayer implements ITileLayer, TileLayerConstants, MapViewConstan
     public String getLegend() {
         return mLegend;
     }
+
+    @Override
+    public TileFreshnessPolicy getFreshnessPolicy() {
+        return mFreshnessPolicy;
+    }
+
+    @Override
+    public Bitmap.Config getBitmapConfig() {
+        return mBitmapConfig;
+    }
 }
@@ -0,0 +1,81 @@
+package com.mapbox.mapboxsdk.tileprovider.tilesource;
+
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.MapTileCache;
+import com.mapbox.mapboxsdk.tileprovider.modules.MBTilesMetadata;
+import com.mapbox.mapboxsdk.tileprovider.modules.MapTileDownloader;
+import com.mapbox.mapboxsdk.tileprovider.modules.TilePackFileArchive;
+import com.mapbox.mapboxsdk.util.BitmapUtils;
+import java.io.File;
+import java.io.IOException;
+import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
+
+/**
+ * A layer that pulls tiles from a tile pack, a read-only alternative to MBTiles for large
+ * offline maps. Tile packs are converted from MBTiles files with
+ * {@link com.mapbox.mapboxsdk.tileprovider.modules.TilePackConverter}.
+ */
+public class TilePackLayer extends TileLayer {
+
+    private static final String TAG = "TilePackLayer";
+    private TilePackFileArchive mArchive;
+
+    /**
+     * Initialize a new tile layer, represented by a tile pack.
+     *
+     * @param file a tile pack
+     */
+    public TilePackLayer(final File file) {
+        super(file.getName(), file.getAbsolutePath());
+        try {
+            mArchive = new TilePackFileArchive(file);
+        } catch (IOException e) {
+            Log.e(TAG, "can't load tile pack: " + e.toString());
+            return;
+        }
+
+        final MBTilesMetadata metadata = mArchive.getMetadata();
+        mMaximumZoomLevel = metadata.getMaxZoomLevel();
+        mMinimumZoomLevel = metadata.getMinZoomLevel();
+        mName = metadata.getName();
+        mDescription = metadata.getDescription();
+        mAttribution = metadata.getAttribution();
+        mBoundingBox = metadata.getBounds();
+        mCenter = metadata.getCenter();
+    }
+
+    public TilePackFileArchive getArchive() {
+        return mArchive;
+    }
+
+    @Override
+    public void detach() {
+        mArchive = null;
+    }
+
+    @Override
+    public CacheableBitmapDrawable getDrawableFromTile(final MapTileDownloader downloader,
+            final MapTile aTile, boolean hdpi) {
+        final TilePackFileArchive archive = mArchive;
+        if (archive == null) {
+            return null;
+        }
+        // Searched once, both the offset and the content come from the entry
+        final int entry = archive.findEntry(aTile);
+        if (entry < 0) {
+            return null;
+        }
+        // Identical tiles share their offset, the tile is only read if none of them is cached
+        final MapTileCache cache = downloader.getCache();
+        final String contentKey = archive.getContentKey(archive.getEntryOffset(entry));
+        final BitmapFactory.Options opts = BitmapUtils.getBitmapOptions(getBitmapConfig());
+        final CacheableBitmapDrawable shared = cache.getSharedTile(aTile, contentKey, opts);
+        if (shared != null) {
+            return shared;
+        }
+        // A slice of the mapped file, copied only once for the decoder
+        return cache.putTileBuffer(aTile, archive.getEntryBuffer(entry), contentKey, opts, 0);
+    }
+}
@@ -7,8 +7,10 @@ import android.text.TextUtils;
 import android.util.Log;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
 import com.mapbox.mapboxsdk.tileprovider.MapTileCache;
+import com.mapbox.mapboxsdk.tileprovider.TileFreshnessPolicy;
 import com.mapbox.mapboxsdk.tileprovider.modules.MapTileDownloader;
 import com.mapbox.mapboxsdk.tileprovider.util.StreamUtils;
+import com.mapbox.mapboxsdk.util.BitmapUtils;
 import com.mapbox.mapboxsdk.util.NetworkUtils;
 import com.mapbox.mapboxsdk.util.constants.UtilConstants;
 import com.mapbox.mapboxsdk.views.util.TileLoadedListener;
@@ -20,6 +22,7 @@ import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
 /**
@@ -61,6 +64,14 @@ public class WebSourceTileLayer extends TileLayer {
         this.setURL(aUrl);
     }
 
+    /**
+     * @return whether the layer has tiles twice the regular size for high density screens,
+     * which its URL template asks for with "{2x}"
+     */
+    public boolean hasHdpiTiles() {
+        return mUrl != null && mUrl.contains("{2x}");
+    }
+
     /**
      * Gets a list of Tile URLs used by this layer for a specific tile.
      *
@@ -111,25 +122,54 @@ public class WebSourceTileLayer extends TileLayer {
             String[] urls = getTileURLs(aTile, hdpi);
             CacheableBitmapDrawable result = null;
             Bitmap resultBitmap = null;
+            // The earliest expiration announced by the servers of the composited tiles
+            long expirationTime = 0;
+            final AtomicLong urlExpirationTime = new AtomicLong(0);
             if (urls != null) {
                 MapTileCache cache = downloader.getCache();
                 if (listener != null) {
                     listener.onTilesLoadStarted();
                 }
-                for (final String url : urls) {
-                    Bitmap bitmap = getBitmapFromURL(url, cache);
-                    if (bitmap == null) {
-                        continue;
+                if (urls.length == 1) {
+                    // Keep the original encoded tile, identical tiles can then share it
+                    final byte[] data = getDataFromURL(urls[0], urlExpirationTime);
+                    if (data != null) {
+                        cache.onTileDownloaded(aTile, data.length);
+                        downloader.onTileDownloaded(aTile, data);
+                        result = cache.putTileData(aTile, data,
+                                BitmapUtils.getBitmapOptions(getBitmapConfig()),
+                                urlExpirationTime.get());
                     }
-                    if (resultBitmap == null) {
-                        resultBitmap = bitmap;
-                    } else {
-                        resultBitmap = compositeBitmaps(bitmap, resultBitmap);
+                } else {
+                    long downloadedBytes = 0;
+                    for (final String url : urls) {
+                        final byte[] data = getDataFromURL(url, urlExpirationTime);
+                        if (data == null) {
+                            continue;
+                        }
+                        downloadedBytes += data.length;
+                        Bitmap bitmap = cache.decodeBitmap(data,
+                                BitmapUtils.getBitmapOptions(getBitmapConfig()));
+                        if (bitmap == null) {
+                            continue;
+                        }
+                        if (urlExpirationTime.get() > 0 && (expirationTime == 0
+                                || urlExpirationTime.get() < expirationTime)) {
+                            expirationTime = urlExpirationTime.get();
+                        }
+                        if (resultBitmap == null) {
+                            resultBitmap = bitmap;
+                        } else {
+                            resultBitmap = compositeBitmaps(bitmap, resultBitmap);
+                        }
+                    }
+                    if (downloadedBytes > 0) {
+                        cache.onTileDownloaded(aTile, downloadedBytes);
+                    }
+                    if (resultBitmap != null) {
+                        //get drawable by putting it into cache (memory and disk)
+                        result = cache.putTileBitmap(aTile, resultBitmap, expirationTime);
                     }
-                }
-                if (resultBitmap != null) {
-                    //get drawable by putting it into cache (memory and disk)
-                    result = cache.putTileBitmap(aTile, resultBitmap);
                 }
                 if (checkThreadControl()) {
                     if (listener != null) {
@@ -160,6 +200,37 @@ public class WebSourceTileLayer extends TileLayer {
      * @return the tile if valid, otherwise null
      */
     public Bitmap getBitmapFromURL(final String url, final MapTileCache aCache) {
+        return getBitmapFromURL(url, aCache, null);
+    }
+
+    /**
+     * Requests and returns a bitmap object from a given URL, using aCache to decode it.
+     *
+     * @param url the map tile url. should refer to a valid bitmap resource.
+     * @param aCache a cache, an instance of MapTileCache
+     * @param expirationTime if not null, receives the expiration time announced by the server
+     * through its Cache-Control or Expires headers, or 0 if there is none
+     * @return the tile if valid, otherwise null
+     */
+    public Bitmap getBitmapFromURL(final String url, final MapTileCache aCache,
+            final AtomicLong expirationTime) {
+        final byte[] data = getDataFromURL(url, expirationTime);
+        return (data != null)
+                ? aCache.decodeBitmap(data, BitmapUtils.getBitmapOptions(getBitmapConfig())) : null;
+    }
+
+    /**
+     * Requests and returns the encoded tile at a given URL.
+     *
+     * @param url the map tile url. should refer to a valid bitmap resource.
+     * @param expirationTime if not null, receives the expiration time announced by the server
+     * through its Cache-Control or Expires headers, or 0 if there is none
+     * @return the encoded tile, or null if it couldn't be downloaded
+     */
+    public byte[] getDataFromURL(final String url, final AtomicLong expirationTime) {
+        if (expirationTime != null) {
+            expirationTime.set(0);
+        }
         // We track the active threads here, every exit point should decrement this value.
         activeThreads.incrementAndGet();
         InputStream in = null;
@@ -173,6 +244,11 @@ public class WebSourceTileLayer extends TileLayer {
         try {
             HttpURLConnection connection = NetworkUtils.getHttpURLConnection(new URL(url));
             in = connection.getInputStream();
+            if (expirationTime != null) {
+                expirationTime.set(TileFreshnessPolicy.parseExpirationTime(
+                        System.currentTimeMillis(), connection.getHeaderField("Cache-Control"),
+                        connection.getExpiration()));
+            }
 
             if (in == null) {
                 if (UtilConstants.DEBUGMODE) {
@@ -185,8 +261,7 @@ public class WebSourceTileLayer extends TileLayer {
             out = new BufferedOutputStream(dataStream, StreamUtils.IO_BUFFER_SIZE);
             StreamUtils.copy(in, out);
             out.flush();
-            final byte[] data = dataStream.toByteArray();
-            return aCache.decodeBitmap(data, null);
+            return dataStream.toByteArray();
         } catch (final Throwable e) {
             if (UtilConstants.DEBUGMODE) {
                 Log.d(TAG, "Error downloading MapTile: " + url + ":" + e);
@@ -0,0 +1,224 @@
+package com.mapbox.mapboxsdk.tileprovider.util;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.util.Log;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Extracts files bundled as assets, such as MBTiles packages, which can only be used from the
+ * file system.
+ * <p/>
+ * An asset is extracted once: a small file next to the copy records the version of the app it
+ * comes from, along with its length and checksum. The copy is reused as long as the app isn't
+ * updated, and after an update if the asset didn't change.
+ */
+public final class AssetExtractor {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String STAMP_SUFFIX = ".version";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * This is a utility class with only static members.
+     */
+    private AssetExtractor() {
+    }
+
+    /**
+     * Copy an asset to {@code destination}, unless it was already copied.
+     *
+     * @param context a context
+     * @param assetPath the path of the asset
+     * @param destination the file the asset is copied to
+     * @return {@code destination}
+     * @throws IOException if the asset can't be read or copied
+     */
+    public static File extract(final Context context, final String assetPath,
+            final File destination) throws IOException {
+        final AssetManager am = context.getAssets();
+        final String appVersion = getAppVersion(context);
+        final File stampFile = new File(destination.getPath() + STAMP_SUFFIX);
+        final Stamp stamp = Stamp.read(stampFile);
+        if (stamp != null && destination.length() == stamp.mLength) {
+            if (appVersion.equals(stamp.mAppVersion)) {
+                return destination;
+            }
+            // The app was updated, but reading the asset is still cheaper than writing it
+            if (checksum(am.open(assetPath)) == stamp.mChecksum) {
+                new Stamp(appVersion, stamp.mLength, stamp.mChecksum).write(stampFile);
+                return destination;
+            }
+        }
+
+        final long start = System.currentTimeMillis();
+        final File parent = destination.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Can't create " + parent);
+        }
+        stampFile.delete();
+        final File temp = new File(destination.getPath() + TEMP_SUFFIX);
+        try {
+            final long checksum = copy(am, assetPath, temp);
+            if (destination.exists() && !destination.delete()) {
+                throw new IOException("Can't replace " + destination);
+            }
+            if (!temp.renameTo(destination)) {
+                throw new IOException("Can't rename " + temp + " to " + destination);
+            }
+            new Stamp(appVersion, destination.length(), checksum).write(stampFile);
+        } finally {
+            temp.delete();
+        }
+        Log.i(TAG, "Extracted " + assetPath + " (" + destination.length() + " bytes) in "
+                + (System.currentTimeMillis() - start) + "ms");
+        return destination;
+    }
+
+    /**
+     * Copy an asset to a file.
+     *
+     * @return the checksum of the copy
+     */
+    private static long copy(final AssetManager am, final String assetPath, final File file)
+            throws IOException {
+        AssetFileDescriptor descriptor = null;
+        try {
+            descriptor = am.openFd(assetPath);
+        } catch (final FileNotFoundException e) {
+            // The asset is compressed, it can only be streamed
+        }
+
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            if (descriptor != null) {
+                // Stored as is in the package: let the kernel copy the bytes
+                final FileInputStream in = descriptor.createInputStream();
+                try {
+                    final FileChannel source = in.getChannel();
+                    final FileChannel target = out.getChannel();
+                    final long offset = descriptor.getStartOffset();
+                    final long length = descriptor.getLength();
+                    long position = 0;
+                    while (position < length) {
+                        final long count = source.transferTo(offset + position,
+                                length - position, target);
+                        if (count <= 0) {
+                            throw new IOException("Unexpected end of " + assetPath);
+                        }
+                        position += count;
+                    }
+                } finally {
+                    StreamUtils.closeStream(in);
+                }
+                out.getFD().sync();
+                return checksum(new FileInputStream(file));
+            }
+
+            final CRC32 crc = new CRC32();
+            final InputStream in = new CheckedInputStream(am.open(assetPath), crc);
+            try {
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                StreamUtils.closeStream(in);
+            }
+            out.getFD().sync();
+            return crc.getValue();
+        } finally {
+            StreamUtils.closeStream(out);
+            if (descriptor != null) {
+                descriptor.close();
+            }
+        }
+    }
+
+    /**
+     * Compute the CRC32 of a stream, and close it.
+     */
+    private static long checksum(final InputStream stream) throws IOException {
+        final CRC32 crc = new CRC32();
+        try {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        } finally {
+            StreamUtils.closeStream(stream);
+        }
+        return crc.getValue();
+    }
+
+    private static String getAppVersion(final Context context) {
+        try {
+            final PackageInfo info =
+                    context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+            return info.versionCode + "-" + info.lastUpdateTime;
+        } catch (final PackageManager.NameNotFoundException e) {
+            return "";
+        }
+    }
+
+    /**
+     * What is known about an extracted asset.
+     */
+    private static final class Stamp {
+        final String mAppVersion;
+        final long mLength;
+        final long mChecksum;
+
+        Stamp(final String appVersion, final long length, final long checksum) {
+            mAppVersion = appVersion;
+            mLength = length;
+            mChecksum = checksum;
+        }
+
+        static Stamp read(final File file) {
+            if (!file.exists()) {
+                return null;
+            }
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new FileReader(file));
+                final String[] fields = reader.readLine().split(",");
+                return new Stamp(fields[0], Long.parseLong(fields[1]),
+                        Long.parseLong(fields[2], 16));
+            } catch (final Exception e) {
+                Log.w(TAG, "Ignoring invalid " + file + ": " + e);
+                return null;
+            } finally {
+                StreamUtils.closeStream(reader);
+            }
+        }
+
+        void write(final File file) throws IOException {
+            final Writer writer = new FileWriter(file);
+            try {
+                writer.write(mAppVersion + "," + mLength + "," + Long.toHexString(mChecksum));
+            } finally {
+                StreamUtils.closeStream(writer);
+            }
+        }
+    }
+
+    private static final String TAG = "AssetExtractor";
+}
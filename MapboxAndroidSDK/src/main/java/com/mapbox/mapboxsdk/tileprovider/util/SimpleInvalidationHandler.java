@@ -1,12 +1,36 @@
 package com.mapbox.mapboxsdk.tileprovider.util;
 
+import android.annotation.TargetApi;
+import android.graphics.Rect;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Message;
+import android.view.View;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
 import com.mapbox.mapboxsdk.views.MapView;
 
+/**
+ * Redraws the map as tiles arrive. The tiles arriving before the next frame are redrawn together,
+ * the view being invalidated once, and only over the tiles which changed.
+ */
 public class SimpleInvalidationHandler extends Handler {
+
+    /**
+     * Delay before redrawing the tiles which arrived, where frames can't be waited for.
+     */
+    private static final long FRAME_DELAY = 16;
+
     private final MapView mView;
+    // The union of the tiles which arrived since the last frame, in map coordinates
+    private final Rect mDirtyRect = new Rect();
+    private boolean mDirtyAll = false;
+    private boolean mFrameScheduled = false;
+    private final Runnable mFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            invalidateDirty();
+        }
+    };
 
     public SimpleInvalidationHandler(final MapView pView) {
         super();
@@ -17,9 +41,45 @@ public class SimpleInvalidationHandler extends Handler {
     public void handleMessage(final Message msg) {
         switch (msg.what) {
             case MapTile.MAPTILE_SUCCESS_ID:
-                mView.invalidate();
-                //                mView.invalidate((Rect) msg.obj);
+                // Tiles without a rect were never drawn, or the whole map changed
+                final Rect tileRect = (Rect) msg.obj;
+                if (tileRect == null || tileRect.isEmpty()) {
+                    mDirtyAll = true;
+                } else {
+                    mDirtyRect.union(tileRect);
+                }
+                scheduleFrame();
                 break;
         }
     }
+
+    private void scheduleFrame() {
+        if (mFrameScheduled) {
+            return;
+        }
+        mFrameScheduled = true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            ViewJellyBean.postOnAnimation(mView, mFrameRunnable);
+        } else {
+            postDelayed(mFrameRunnable, FRAME_DELAY);
+        }
+    }
+
+    private void invalidateDirty() {
+        mFrameScheduled = false;
+        if (mDirtyAll) {
+            mView.invalidate();
+        } else if (!mDirtyRect.isEmpty()) {
+            mView.invalidateMapCoordinates(mDirtyRect);
+        }
+        mDirtyAll = false;
+        mDirtyRect.setEmpty();
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static class ViewJellyBean {
+        static void postOnAnimation(final View view, final Runnable action) {
+            view.postOnAnimation(action);
+        }
+    }
 }
@@ -9,6 +9,7 @@ import android.annotation.TargetApi;
 import android.app.ActivityManager;
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
+import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
@@ -41,6 +42,23 @@ public class BitmapUtils {
         return null;
     }
 
+    /**
+     * Get decoding options for the given config. A new instance is returned on each call since
+     * decoding fills in the options.
+     *
+     * @param config the preferred config, or null for the default ARGB_8888
+     * @return the options
+     */
+    public static BitmapFactory.Options getBitmapOptions(final Bitmap.Config config) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = config != null ? config : Bitmap.Config.ARGB_8888;
+        if (options.inPreferredConfig == Bitmap.Config.RGB_565) {
+            // Dithering hides most of the banding of the reduced color depth
+            options.inDither = true;
+        }
+        return options;
+    }
+
     public static boolean isCacheDrawableExpired(Drawable drawable) {
         if (drawable != null && drawable.getState() == EXPIRED) {
             return true;
@@ -54,6 +72,68 @@ public class BitmapUtils {
         }
     }
 
+    /**
+     * Get the number of tiles needed to cover a viewport in any position, plus a ring of tiles
+     * around it.
+     *
+     * @param width the width of the viewport in pixels
+     * @param height the height of the viewport in pixels
+     * @param tileSizePx the size of a tile in pixels
+     * @param ring the number of rows and columns of tiles around the viewport
+     * @return the number of tiles
+     */
+    public static int getViewportTileCount(final int width, final int height,
+            final int tileSizePx, final int ring) {
+        if (tileSizePx <= 0) {
+            return 0;
+        }
+        // A viewport which isn't aligned with the tile grid overlaps one more row and column
+        final int columns = (width + tileSizePx - 1) / tileSizePx + 1 + 2 * ring;
+        final int rows = (height + tileSizePx - 1) / tileSizePx + 1 + 2 * ring;
+        return columns * rows;
+    }
+
+    /**
+     * Get the number of bytes used by the bitmap of a tile.
+     *
+     * @param tileSizePx the size of a tile in pixels
+     * @param config the config of the bitmap, or null for the default ARGB_8888
+     * @return the number of bytes
+     */
+    public static int getTileByteCount(final int tileSizePx, final Bitmap.Config config) {
+        final int bytesPerPixel = config == Bitmap.Config.RGB_565
+                || config == Bitmap.Config.ARGB_4444 ? 2 : config == Bitmap.Config.ALPHA_8 ? 1 : 4;
+        return tileSizePx * tileSizePx * bytesPerPixel;
+    }
+
+    /**
+     * Calculate the memory budget of tiles for a map, from the number of tiles it shows: the
+     * visible tiles times the number of screens of tiles to keep, times the number of layers. It
+     * is capped by {@link #calculateMemoryCacheSize(Context)}, which depends on the heap class.
+     *
+     * @param context a context
+     * @param width the width of the map in pixels
+     * @param height the height of the map in pixels
+     * @param tileSizePx the size of a tile on screen, in pixels
+     * @param hdpi whether the tiles are decoded at twice their size on screen
+     * @param config the config of the tile bitmaps
+     * @param screens the number of screens of tiles to keep
+     * @param layers the number of tile layers
+     * @return the memory budget in bytes
+     */
+    public static int calculateMemoryCacheSize(final Context context, final int width,
+            final int height, final int tileSizePx, final boolean hdpi,
+            final Bitmap.Config config, final float screens, final int layers) {
+        final int maxSize = calculateMemoryCacheSize(context);
+        if (width <= 0 || height <= 0 || tileSizePx <= 0) {
+            return maxSize;
+        }
+        final long tileBytes = getTileByteCount(hdpi ? 2 * tileSizePx : tileSizePx, config);
+        final long budget = (long) (getViewportTileCount(width, height, tileSizePx, 0)
+                * tileBytes * Math.max(1f, screens)) * Math.max(1, layers);
+        return (int) Math.min(maxSize, budget);
+    }
+
     @TargetApi(Build.VERSION_CODES.HONEYCOMB)
     private static class ActivityManagerHoneycomb {
         static int getLargeMemoryClass(ActivityManager activityManager) {
@@ -4,6 +4,7 @@ import android.graphics.Canvas;
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.os.Handler;
+import android.os.Looper;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
 import com.mapbox.mapboxsdk.views.util.Projection;
 import java.util.ArrayList;
@@ -12,15 +13,38 @@ import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
 /**
  * A class that will loop around all the map tiles in the given viewport.
+ * <p/>
+ * Looping over an unchanged or panned viewport allocates nothing for the tiles already drawn on
+ * the previous frames: their {@link MapTile} keys are kept, and the drawables used by a frame are
+ * released by a single reused callback.
  */
 public abstract class TileLooper {
 
+    /**
+     * Initial width and height of the window of tiles whose keys are kept, a power of two. The
+     * window grows to the next power of two when a viewport is wider or taller.
+     */
+    private static final int TILE_KEYS_SIDE = 32;
+
     protected final Point mUpperLeft = new Point();
     protected final Point mLowerRight = new Point();
     protected final Point center = new Point();
     protected List<CacheableBitmapDrawable> mBeingUsedDrawables =
             new ArrayList<CacheableBitmapDrawable>();
 
+    // The keys of the tiles last drawn, by their coordinates modulo the window: the window is at
+    // least as large as the viewport, so its tiles never share a slot
+    private int mTileKeysSide = TILE_KEYS_SIDE;
+    private MapTile[] mTileKeys = new MapTile[TILE_KEYS_SIDE * TILE_KEYS_SIDE];
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mReleaseRunnable = new Runnable() {
+        @Override
+        public void run() {
+            releaseDrawables();
+        }
+    };
+
     public final void loop(final Canvas pCanvas, final String pCacheKey, final float pZoomLevel,
             final int pTileSizePx, final Rect pViewPort, final Rect pClipRect) {
         // Calculate the amount of tiles needed for each side around the center one.
@@ -31,6 +55,8 @@ public abstract class TileLooper {
         mLowerRight.offset(1, 1);
 
         center.set((mUpperLeft.x + mLowerRight.x) / 2, (mUpperLeft.y + mLowerRight.y) / 2);
+        ensureTileKeysSide(
+                Math.max(mLowerRight.x - mUpperLeft.x, mLowerRight.y - mUpperLeft.y) + 1);
 
         final int roundedZoom = (int) Math.floor(pZoomLevel);
         final int mapTileUpperBound = 1 << roundedZoom;
@@ -42,13 +68,44 @@ public abstract class TileLooper {
             for (int x = mUpperLeft.x; x <= mLowerRight.x; x++) {
                 tileY = GeometryMath.mod(y, mapTileUpperBound);
                 tileX = GeometryMath.mod(x, mapTileUpperBound);
-                final MapTile tile = new MapTile(pCacheKey, roundedZoom, tileX, tileY);
+                final MapTile tile = getTileKey(pCacheKey, roundedZoom, tileX, tileY);
                 handleTile(pCanvas, pCacheKey, pTileSizePx, tile, x, y, pClipRect);
             }
         }
         finalizeLoop();
     }
 
+    /**
+     * Grow the window of kept keys to a viewport of {@code span} tiles on its largest side. The
+     * keys kept so far are dropped, once for each larger viewport.
+     */
+    private void ensureTileKeysSide(final int span) {
+        if (span <= mTileKeysSide) {
+            return;
+        }
+        int side = mTileKeysSide;
+        while (side < span) {
+            side <<= 1;
+        }
+        mTileKeysSide = side;
+        mTileKeys = new MapTile[side * side];
+    }
+
+    /**
+     * Get the key of a tile, the same instance as on the previous frames if the tile was drawn.
+     */
+    private MapTile getTileKey(final String pCacheKey, final int z, final int x, final int y) {
+        final int mask = mTileKeysSide - 1;
+        final int slot = (y & mask) * mTileKeysSide + (x & mask);
+        MapTile tile = mTileKeys[slot];
+        if (tile == null || tile.getX() != x || tile.getY() != y || tile.getZ() != z
+                || !pCacheKey.equals(tile.getLayerKey())) {
+            tile = new MapTile(pCacheKey, z, x, y);
+            mTileKeys[slot] = tile;
+        }
+        return tile;
+    }
+
     public abstract void initializeLoop(float pZoomLevel, int pTileSizePx);
 
     public abstract void handleTile(Canvas pCanvas, final String pCacheKey, int pTileSizePx,
@@ -56,14 +113,16 @@ public abstract class TileLooper {
 
     public void finalizeLoop() {
         //we delay just to make sure drawable bitmaps are not reused while being drawn.
-        (new Handler()).postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                for (CacheableBitmapDrawable drawable : mBeingUsedDrawables) {
-                    drawable.setBeingUsed(false);
-                }
-                mBeingUsedDrawables.clear();
-            }
-        }, 1);
+        // A pending release also covers the drawables of this frame
+        mHandler.removeCallbacks(mReleaseRunnable);
+        mHandler.postDelayed(mReleaseRunnable, 1);
+    }
+
+    private void releaseDrawables() {
+        // Indexed, an iterator would be an allocation per frame
+        for (int i = 0; i < mBeingUsedDrawables.size(); i++) {
+            mBeingUsedDrawables.get(i).setBeingUsed(false);
+        }
+        mBeingUsedDrawables.clear();
     }
 }
@@ -1,6 +1,7 @@
 package com.mapbox.mapboxsdk.views;
 
 import android.content.Context;
+import android.content.res.Configuration;
 import android.content.res.TypedArray;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
@@ -54,6 +55,8 @@ import com.mapbox.mapboxsdk.util.DataLoadingUtils;
 import com.mapbox.mapboxsdk.util.GeometryMath;
 import com.mapbox.mapboxsdk.util.NetworkUtils;
 import com.mapbox.mapboxsdk.util.constants.UtilConstants;
+import com.mapbox.mapboxsdk.views.util.MemoryPressureHandler;
+import com.mapbox.mapboxsdk.views.util.MemoryPressureListener;
 import com.mapbox.mapboxsdk.views.util.Projection;
 import com.mapbox.mapboxsdk.views.util.TileLoadedListener;
 import com.mapbox.mapboxsdk.views.util.TilesLoadedListener;
@@ -141,6 +144,8 @@ public class MapView extends ViewGroup
     private float mapOrientation = 0;
     private final float[] mRotatePoints = new float[2];
     private final Rect mInvalidateRect = new Rect();
+    private final RectF mInvalidateRectF = new RectF();
+    private final Matrix mInvalidateMatrix = new Matrix();
 
     protected BoundingBox mScrollableAreaBoundingBox = null;
     protected RectF mScrollableAreaLimit = null;
@@ -155,6 +160,13 @@ public class MapView extends ViewGroup
 
     private final Handler mTileRequestCompleteHandler;
 
+    // Trims the caches under memory pressure, null before ICS
+    private final MemoryPressureHandler mMemoryPressureHandler;
+
+    // Size of the tile memory cache, relative to the tiles of the viewport
+    private float mTileCacheScreens = TileLayerConstants.CACHE_MEMORY_SCREENS_DEFAULT;
+    private int mTileCacheLayers = TileLayerConstants.CACHE_MEMORY_LAYERS_DEFAULT;
+
     /* a point that will be reused to design added views */
     private final PointF mPoint = new PointF();
 
@@ -196,6 +208,8 @@ public class MapView extends ViewGroup
                         : tileRequestCompleteHandler;
         mTileProvider = tileProvider;
         mTileProvider.setTileRequestCompleteHandler(mTileRequestCompleteHandler);
+        mMemoryPressureHandler = Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH
+                ? new MemoryPressureHandler(aContext, mTileProvider) : null;
 
         this.mMapOverlay = new TilesOverlay(mTileProvider);
         mOverlayManager = new OverlayManager(mMapOverlay);
@@ -309,6 +323,7 @@ public class MapView extends ViewGroup
         if (!isLayedOut()) {
             return;
         }
+        updateTileCacheSize();
         this.scrollTo(mDScroll.x, mDScroll.y);
         postInvalidate();
     }
@@ -1178,42 +1193,37 @@ public class MapView extends ViewGroup
         return mLayedOut;
     }
 
+    /**
+     * Invalidate the part of the view showing a rect of the map, rotated and scaled as in
+     * {@link #onDraw(Canvas)}.
+     *
+     * @param dirty the rect, in map coordinates
+     */
     public void invalidateMapCoordinates(final Rect dirty) {
-        mInvalidateRect.set(dirty);
-        final int width_2 = this.getWidth() / 2;
-        final int height_2 = this.getHeight() / 2;
-
-        // Since the canvas is shifted by getWidth/2, we can just return our natural scrollX/Y value
-        // since that is the same as the shifted center.
-        int centerX = this.getScrollX();
-        int centerY = this.getScrollY();
-
-        if (this.getMapOrientation() != 0) {
-            GeometryMath.getBoundingBoxForRotatedRectangle(mInvalidateRect, centerX, centerY,
-                    this.getMapOrientation() + 180, mInvalidateRect);
-        }
-        mInvalidateRect.offset(width_2, height_2);
-
-        super.invalidate(mInvalidateRect);
+        mInvalidateRectF.set(dirty);
+        invalidateMapCoordinates(mInvalidateRectF);
     }
 
+    /**
+     * Invalidate the part of the view showing a rect of the map, rotated and scaled as in
+     * {@link #onDraw(Canvas)}.
+     *
+     * @param dirty the rect, in map coordinates
+     */
     public void invalidateMapCoordinates(final RectF dirty) {
-        dirty.roundOut(mInvalidateRect);
-        final int width_2 = this.getWidth() / 2;
-        final int height_2 = this.getHeight() / 2;
-
-        // Since the canvas is shifted by getWidth/2, we can just return our natural scrollX/Y value
-        // since that is the same as the shifted center.
-        int centerX = this.getScrollX();
-        int centerY = this.getScrollY();
-
-        if (this.getMapOrientation() != 0) {
-            GeometryMath.getBoundingBoxForRotatedRectangle(mInvalidateRect, centerX, centerY,
-                    this.getMapOrientation() + 180, mInvalidateRect);
+        // Since the canvas is shifted by getWidth/2, the map is rotated around our natural
+        // scrollX/Y value, which is the same as the shifted center.
+        mInvalidateMatrix.setRotate(mapOrientation, getScrollX(), getScrollY());
+        mInvalidateMatrix.postScale(mMultiTouchScale, mMultiTouchScale, mMultiTouchScalePoint.x,
+                mMultiTouchScalePoint.y);
+        mInvalidateMatrix.postTranslate(getWidth() / 2, getHeight() / 2);
+        if (dirty != mInvalidateRectF) {
+            mInvalidateRectF.set(dirty);
         }
-        mInvalidateRect.offset(width_2, height_2);
+        mInvalidateMatrix.mapRect(mInvalidateRectF);
+        mInvalidateRectF.roundOut(mInvalidateRect);
 
-        super.invalidate(mInvalidateRect);
+        invalidate(mInvalidateRect);
     }
 
     /**
@@ -1330,8 +1340,12 @@ public class MapView extends ViewGroup
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         super.onSizeChanged(w, h, oldw, oldh);
+        if (mMemoryPressureHandler != null) {
+            mMemoryPressureHandler.setViewportSize(w, h);
+        }
         if (w != 0 && h != 0) {
             mProjection = null;
+            updateTileCacheSize();
             if (!mLayedOut) {
                 mLayedOut = true;
                 //first layout: if some actions were triggered before, they were enqueued
@@ -1824,12 +1838,91 @@ public class MapView extends ViewGroup
         }
     }
 
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (mMemoryPressureHandler != null) {
+            mMemoryPressureHandler.register();
+        }
+    }
+
     @Override
     protected void onDetachedFromWindow() {
+        if (mMemoryPressureHandler != null) {
+            mMemoryPressureHandler.unregister();
+        }
         this.onDetach();
         super.onDetachedFromWindow();
     }
 
+    @Override
+    protected void onConfigurationChanged(final Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        // The density may have changed along with the orientation
+        updateTileCacheSize();
+    }
+
+    /**
+     * Set how many screens of tiles the memory cache should hold, counting the visible one. The
+     * cache is sized from the tiles covering the map, and never gets more than a share of the
+     * heap which depends on the device.
+     *
+     * @param screens the number of screens, 3 by default
+     */
+    public void setTileCacheScreens(final float screens) {
+        mTileCacheScreens = screens;
+        updateTileCacheSize();
+    }
+
+    public float getTileCacheScreens() {
+        return mTileCacheScreens;
+    }
+
+    /**
+     * Set how many tile layers the memory cache should hold tiles for, such as the layers drawn
+     * on top of each other by this map.
+     *
+     * @param layers the number of layers, or 0 for the number of tile layers of the map
+     */
+    public void setTileCacheLayers(final int layers) {
+        mTileCacheLayers = layers;
+        updateTileCacheSize();
+    }
+
+    public int getTileCacheLayers() {
+        return mTileCacheLayers;
+    }
+
+    /**
+     * Size the share of the memory cache of tiles held for this map from the tiles covering it,
+     * as decoded from its tile source. The maps sharing the cache add up their shares.
+     */
+    private void updateTileCacheSize() {
+        if (getWidth() == 0 || getHeight() == 0) {
+            return;
+        }
+        final int size = BitmapUtils.calculateMemoryCacheSize(getContext(), getWidth(),
+                getHeight(), Projection.getTileSize(), mTileProvider.isHdpi(),
+                mTileProvider.getBitmapConfig(), mTileCacheScreens,
+                mTileCacheLayers > 0 ? mTileCacheLayers : mTileProvider.getTileLayerCount());
+        mTileProvider.getTileCache().setMemoryCacheTargetSize(size);
+        if (UtilConstants.DEBUGMODE) {
+            Log.d(TAG, "tile memory cache size: " + size);
+        }
+    }
+
+    /**
+     * Set a listener notified when the caches of the map shrink in response to memory pressure,
+     * and when they grow back. Memory pressure is only followed from Android 4.0.
+     *
+     * @param listener the listener, or null
+     */
+    public void setOnMemoryPressureListener(final MemoryPressureListener listener) {
+        if (mMemoryPressureHandler != null) {
+            mMemoryPressureHandler.setListener(listener);
+        }
+    }
+
     /**
      * Determines if maps are animating a zoom operation. Useful for overlays to avoid
      * recalculating
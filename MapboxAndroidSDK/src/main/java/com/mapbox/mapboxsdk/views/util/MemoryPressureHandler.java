@@ -0,0 +1,208 @@
+package com.mapbox.mapboxsdk.views.util;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import com.mapbox.mapboxsdk.overlay.Icon;
+import com.mapbox.mapboxsdk.tileprovider.MapTileCache;
+import com.mapbox.mapboxsdk.tileprovider.MapTileLayerBase;
+import com.mapbox.mapboxsdk.util.BitmapUtils;
+import com.mapbox.mapboxsdk.util.constants.UtilConstants;
+
+/**
+ * Shrinks the tile and icon memory caches of a map in steps matching the memory pressure
+ * reported by the system, instead of dropping everything at once.
+ * <p/>
+ * Under moderate pressure the tile cache keeps about the viewport and a ring of tiles around it,
+ * the evicted tiles are kept compressed in memory. Under critical pressure it keeps only the
+ * visible tiles, and the compressed tiles are dropped as well. Once the system stops reporting
+ * pressure, the caches grow back gradually to their usual size.
+ * <p/>
+ * Hiding the UI trims nothing, and a process moved to the background only drops the compressed
+ * tiles: the visible tiles are needed as soon as the map is shown again.
+ */
+@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+public class MemoryPressureHandler implements ComponentCallbacks2 {
+
+    public static final int PRESSURE_NONE = 0;
+    public static final int PRESSURE_MODERATE = PRESSURE_NONE + 1;
+    public static final int PRESSURE_CRITICAL = PRESSURE_MODERATE + 1;
+    /**
+     * The caches are growing back after some pressure.
+     */
+    public static final int PRESSURE_RECOVERING = PRESSURE_CRITICAL + 1;
+
+    /**
+     * Delay between two steps of the caches growing back, in milliseconds.
+     */
+    public static final long REGROW_INTERVAL = 10 * 1000;
+
+    /**
+     * Fraction of the usual cache size regained at each step.
+     */
+    public static final float REGROW_STEP = 0.25f;
+
+    private static final float ICON_CACHE_MODERATE_RATIO = 0.5f;
+    private static final float ICON_CACHE_CRITICAL_RATIO = 0.25f;
+
+    private final Context mContext;
+    private final MapTileLayerBase mTileProvider;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private MemoryPressureListener mListener;
+
+    private int mLevel = PRESSURE_NONE;
+    private float mIconCacheRatio = 1f;
+    private int mViewportWidth;
+    private int mViewportHeight;
+    private boolean mRegistered = false;
+
+    private final Runnable mRegrowRunnable = new Runnable() {
+        @Override
+        public void run() {
+            regrow();
+        }
+    };
+
+    public MemoryPressureHandler(final Context context, final MapTileLayerBase tileProvider) {
+        mContext = context.getApplicationContext();
+        mTileProvider = tileProvider;
+    }
+
+    /**
+     * Start receiving the memory pressure reported by the system.
+     */
+    public void register() {
+        if (!mRegistered) {
+            mContext.registerComponentCallbacks(this);
+            mRegistered = true;
+        }
+    }
+
+    /**
+     * Stop receiving the memory pressure, the caches are given back their usual size.
+     */
+    public void unregister() {
+        if (mRegistered) {
+            mContext.unregisterComponentCallbacks(this);
+            mRegistered = false;
+        }
+        mHandler.removeCallbacks(mRegrowRunnable);
+        if (mLevel != PRESSURE_NONE) {
+            setIconCacheRatio(1f);
+            final MapTileCache cache = mTileProvider.getTileCache();
+            cache.setMemoryCacheLimit(cache.getMemoryCacheTargetSize(), false);
+            setLevel(PRESSURE_NONE, cache.getMemoryCacheLimit());
+        }
+    }
+
+    /**
+     * Set the size of the map, used to know how many tiles are visible.
+     */
+    public void setViewportSize(final int width, final int height) {
+        mViewportWidth = width;
+        mViewportHeight = height;
+    }
+
+    public void setListener(final MemoryPressureListener listener) {
+        mListener = listener;
+    }
+
+    public int getLevel() {
+        return mLevel;
+    }
+
+    @Override
+    public void onTrimMemory(final int level) {
+        if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            // The process is about to be killed, or the device is really short of memory
+            onPressure(PRESSURE_CRITICAL);
+        } else if (level >= TRIM_MEMORY_BACKGROUND) {
+            // Only cached in the background list, the visible tiles are needed again when the
+            // map comes back: just drop what is cheap to get back
+            mTileProvider.getTileCache().purgeCompressedMemoryCache();
+        } else if (level >= TRIM_MEMORY_RUNNING_MODERATE && level < TRIM_MEMORY_UI_HIDDEN) {
+            onPressure(PRESSURE_MODERATE);
+        }
+        // TRIM_MEMORY_UI_HIDDEN isn't a shortage of memory, the map is only hidden
+    }
+
+    @Override
+    public void onLowMemory() {
+        onPressure(PRESSURE_CRITICAL);
+    }
+
+    @Override
+    public void onConfigurationChanged(final Configuration newConfig) {
+        // Nothing to do
+    }
+
+    /**
+     * Get the number of bytes needed by the tiles of the viewport and a ring around it.
+     */
+    private int getTileBudget(final int ring) {
+        final int tileSize = Projection.getTileSize();
+        return BitmapUtils.getViewportTileCount(mViewportWidth, mViewportHeight, tileSize, ring)
+                * BitmapUtils.getTileByteCount(tileSize, mTileProvider.getBitmapConfig());
+    }
+
+    private void onPressure(final int level) {
+        final MapTileCache cache = mTileProvider.getTileCache();
+        final int limit;
+        if (level == PRESSURE_CRITICAL) {
+            limit = getTileBudget(0);
+            cache.setMemoryCacheLimit(Math.min(limit, cache.getMemoryCacheLimit()), false);
+            cache.purgeCompressedMemoryCache();
+            setIconCacheRatio(Math.min(mIconCacheRatio, ICON_CACHE_CRITICAL_RATIO));
+        } else {
+            limit = getTileBudget(1);
+            cache.setMemoryCacheLimit(Math.min(limit, cache.getMemoryCacheLimit()), true);
+            setIconCacheRatio(Math.min(mIconCacheRatio, ICON_CACHE_MODERATE_RATIO));
+        }
+
+        // A lower pressure doesn't give memory back, the caches only grow back over time
+        setLevel(mLevel == PRESSURE_CRITICAL ? PRESSURE_CRITICAL : level,
+                cache.getMemoryCacheLimit());
+        mHandler.removeCallbacks(mRegrowRunnable);
+        mHandler.postDelayed(mRegrowRunnable, REGROW_INTERVAL);
+    }
+
+    private void regrow() {
+        final MapTileCache cache = mTileProvider.getTileCache();
+        final int targetSize = cache.getMemoryCacheTargetSize();
+        final int limit = Math.min(targetSize,
+                cache.getMemoryCacheLimit() + (int) (targetSize * REGROW_STEP));
+        cache.setMemoryCacheLimit(limit, false);
+        setIconCacheRatio(Math.min(1f, mIconCacheRatio + REGROW_STEP));
+
+        if (limit < targetSize || mIconCacheRatio < 1f) {
+            setLevel(PRESSURE_RECOVERING, limit);
+            mHandler.postDelayed(mRegrowRunnable, REGROW_INTERVAL);
+        } else {
+            setLevel(PRESSURE_NONE, limit);
+        }
+    }
+
+    private void setIconCacheRatio(final float ratio) {
+        mIconCacheRatio = ratio;
+        Icon.setMemoryCacheLimitRatio(ratio);
+    }
+
+    private void setLevel(final int level, final int tileCacheLimit) {
+        final int previousLevel = mLevel;
+        mLevel = level;
+        if (UtilConstants.DEBUGMODE) {
+            Log.d(TAG, "memory pressure " + previousLevel + " -> " + level
+                    + ", tile cache limit: " + tileCacheLimit);
+        }
+        if (mListener != null) {
+            mListener.onMemoryPressureChanged(previousLevel, level, tileCacheLimit);
+        }
+    }
+
+    private static final String TAG = "MemoryPressureHandler";
+}
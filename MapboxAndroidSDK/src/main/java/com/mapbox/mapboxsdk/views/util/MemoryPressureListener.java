@@ -0,0 +1,18 @@
+package com.mapbox.mapboxsdk.views.util;
+
+/**
+ * Notified when the map changes the amount of memory its caches may use, in response to the
+ * memory pressure reported by the system.
+ */
+public interface MemoryPressureListener {
+
+    /**
+     * Called on each transition, including each step of the cache growing back.
+     *
+     * @param previousLevel the previous pressure level, one of the
+     * {@link MemoryPressureHandler} PRESSURE_ constants
+     * @param level the new pressure level
+     * @param tileCacheLimit the size in bytes the tile memory cache is now trimmed to
+     */
+    public void onMemoryPressureChanged(int previousLevel, int level, int tileCacheLimit);
+}
@@ -23,24 +23,21 @@ import android.graphics.BitmapFactory;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Looper;
-import android.os.Process;
 import android.util.Log;
 
 import com.jakewharton.disklrucache.DiskLruCache;
 
 import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.HashMap;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A cache which can be set to use multiple layers of caching for Bitmap objects in an Android app.
@@ -112,9 +109,37 @@ public class BitmapLruCache {
     }
 
     // The number of seconds after the last edit that the Disk Cache should be
-    // flushed
+    // flushed, edits are applied in background by a DiskCacheWriter
     static final int DISK_CACHE_FLUSH_DELAY_SECS = 5;
 
+    // Each Disk Cache entry is a single file: a small header with the time the image was fetched
+    // and the expiration time given by its origin (two longs), the hash of the encoded content and,
+    // for entries sharing the content of another url, that url (two strings, empty if unknown),
+    // followed by the encoded image. Alias entries have no image after their header.
+    static final int DISK_CACHE_VERSION = 3;
+    static final int DISK_CACHE_VALUE_COUNT = 1;
+    static final int DISK_CACHE_DATA_INDEX = 0;
+
+    // Used to size the index of the Disk Cache from its maximum size
+    static final int DISK_CACHE_AVERAGE_ENTRY_SIZE = 8 * 1024;
+
+    /**
+     * Notified when an entry is evicted from the Memory Cache to make room for others. Set it
+     * with {@link Builder#setEvictionListener(EvictionListener)}.
+     */
+    public interface EvictionListener {
+
+        /**
+         * Called on the thread which caused the eviction. The Memory Cache isn't necessarily
+         * locked: evictions run outside of the lock of the underlying {@code LruCache}, so the
+         * listener can be called from several threads at once and must be thread safe.
+         *
+         * @param url  - String representing the URL of the evicted image
+         * @param size - Number of bytes used by the evicted bitmap
+         */
+        void onEvicted(String url, int size);
+    }
+
     /**
      * @throws IllegalStateException if the calling thread is the main/UI thread.
      */
@@ -153,15 +178,13 @@ public class BitmapLruCache {
      */
     private DiskLruCache mDiskCache;
 
-    // Variables which are only used when the Disk Cache is enabled
-    private HashMap<String, ReentrantLock> mDiskCacheEditLocks;
+    // Tells which keys are definitely not in the Disk Cache, may be null
+    private DiskCacheIndex mDiskCacheIndex;
 
-    private ScheduledThreadPoolExecutor mDiskCacheFlusherExecutor;
+    // Applies the edits of the Disk Cache, only used when it is enabled
+    private DiskCacheWriter mDiskCacheWriter;
 
-    private DiskCacheFlushRunnable mDiskCacheFlusherRunnable;
-
-    // Transient
-    private ScheduledFuture<?> mDiskCacheFuture;
+    private boolean mClosed;
 
     BitmapLruCache(Context context) {
         if (null != context) {
@@ -196,14 +219,30 @@ public class BitmapLruCache {
     public boolean containsInDiskCache(String url) {
         if (null != mDiskCache) {
             checkNotOnMainThread();
+            return containsInDiskCacheByKey(transformUrlForDiskCacheKey(url));
+        }
 
-            try {
-                return null != mDiskCache.get(transformUrlForDiskCacheKey(url));
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        return false;
+    }
+
+    private boolean containsInDiskCacheByKey(String key) {
+        if (null != mDiskCacheIndex && !mDiskCacheIndex.mightContain(key)) {
+            return false;
         }
 
+        DiskLruCache.Snapshot snapshot = null;
+        try {
+            snapshot = mDiskCache.get(key);
+            return null != snapshot;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (IllegalStateException e) {
+            // The cache has been closed
+        } finally {
+            if (null != snapshot) {
+                snapshot.close();
+            }
+        }
         return false;
     }
 
@@ -216,7 +255,7 @@ public class BitmapLruCache {
      *         false} otherwise.
      */
     public boolean containsInMemoryCache(String url) {
-        return null != mMemoryCache && null != mMemoryCache.get(url);
+        return null != mMemoryCache && null != mMemoryCache.peek(url);
     }
 
     /**
@@ -263,34 +302,115 @@ public class BitmapLruCache {
      */
     public CacheableBitmapDrawable getFromDiskCache(final String url,
             final BitmapFactory.Options decodeOpts) {
-        CacheableBitmapDrawable result = null;
+        CacheableBitmapDrawable result = getFromCompressedMemoryCache(url, decodeOpts);
+        if (null != result) {
+            return result;
+        }
 
         if (null != mDiskCache) {
             checkNotOnMainThread();
 
+            final String key = transformUrlForDiskCacheKey(url);
+            if (null != mDiskCacheIndex && !mDiskCacheIndex.mightContain(key)) {
+                // Never cached, no need to touch the file system
+                return null;
+            }
+
             try {
-                final String key = transformUrlForDiskCacheKey(url);
-                // Try and decode bitmap
-                result = decodeBitmapToDrawable(new SnapshotInputStreamProvider(key), url, decodeOpts);
+                // The entry is read in a single pass, then decoded from memory
+                final DiskCacheEntry entry = readDiskCacheEntry(key);
+                if (null == entry) {
+                    removeFromDiskCacheByKey(key);
+                    return null;
+                }
+
+                final String aliasOf = entry.mAliasOf;
+                if (null != aliasOf) {
+                    // Identical content may already be decoded for the url the entry points to
+                    final CacheableBitmapDrawable shared = getFromMemoryCache(aliasOf);
+                    if (null != shared && null != shared.getContentKey()
+                            && shared.getContentKey().equals(entry.mContentKey)) {
+                        return putAliasInMemoryCache(url, shared);
+                    }
+                    final DiskCacheEntry target =
+                            readDiskCacheEntry(transformUrlForDiskCacheKey(aliasOf));
+                    if (null != target && null != entry.mContentKey
+                            && entry.mContentKey.equals(target.mContentKey)) {
+                        entry.mData = target.mData;
+                        entry.mDataOffset = target.mDataOffset;
+                    } else {
+                        entry.mData = null;
+                    }
+                }
+
+                // Try and decode bitmap, which follows the header of the entry
+                if (null != entry.mData && entry.mData.length > entry.mDataOffset) {
+                    result = decodeBitmapToDrawable(new ByteArrayInputStreamProvider(entry.mData,
+                            entry.mDataOffset, entry.mData.length - entry.mDataOffset),
+                            null != aliasOf ? aliasOf : url, decodeOpts);
+                }
 
                 if (null != result) {
+                    result.setFetchedTime(entry.mFetchedTime);
+                    result.setExpirationTime(entry.mExpirationTime);
+                    result.setContentKey(entry.mContentKey);
                     if (null != mMemoryCache) {
-                        mMemoryCache.put(result);
+                        synchronized (mMemoryCache) {
+                            mMemoryCache.put(result);
+                        }
+                        if (null != aliasOf) {
+                            putAliasInMemoryCache(url, result);
+                        }
                     }
                 } else {
                     // If we get here, the file in the cache can't be
-                    // decoded. Remove it and schedule a flush.
-                    mDiskCache.remove(key);
-                    scheduleDiskCacheFlush();
+                    // decoded. Remove it.
+                    removeFromDiskCacheByKey(key);
                 }
             } catch (IOException e) {
                 e.printStackTrace();
+            } catch (IllegalStateException e) {
+                // The cache has been closed
             }
         }
 
         return result;
     }
 
+    /**
+     * Decodes the value for {@code url} from the compressed memory cache, if it has one, and moves
+     * it back to the memory cache. {@link #getFromDiskCache(String, BitmapFactory.Options)} looks
+     * there first already, this method only tells both tiers apart.
+     *
+     * @param url        - String representing the URL of the image
+     * @param decodeOpts - Options used for decoding the contents.
+     * @return Value for {@code url} from the compressed memory cache, or {@code null}.
+     */
+    public CacheableBitmapDrawable getFromCompressedMemoryCache(final String url,
+            final BitmapFactory.Options decodeOpts) {
+        final CompressedMemoryCache compressedCache =
+                null != mMemoryCache ? mMemoryCache.getCompressedCache() : null;
+        if (null == compressedCache) {
+            return null;
+        }
+        final CompressedMemoryCache.Entry entry = compressedCache.remove(url);
+        if (null == entry) {
+            return null;
+        }
+        final CacheableBitmapDrawable result =
+                decodeBitmapToDrawable(new ByteArrayInputStreamProvider(entry.mData), url,
+                        decodeOpts);
+        if (null != result) {
+            result.setFetchedTime(entry.mFetchedTime);
+            result.setExpirationTime(entry.mExpirationTime);
+            result.setContentKey(entry.mContentKey);
+            synchronized (mMemoryCache) {
+                mMemoryCache.put(result);
+            }
+        }
+        return result;
+    }
+
     /**
      * Returns the value for {@code url} in the memory cache only. This method is safe to be called
      * from the main thread. <p /> You should check the result of this method before starting a
@@ -301,11 +421,28 @@ public class BitmapLruCache {
      *         enabled.
      */
     public CacheableBitmapDrawable getFromMemoryCache(final String url) {
+        return getFromMemoryCache(url, true);
+    }
+
+    /**
+     * Returns the value for {@code url} in the memory cache only, without making it the most
+     * recently used entry: for lookups which don't use the value for {@code url} itself, such as
+     * drawing it scaled in place of another one. This method is safe to be called from the main
+     * thread.
+     *
+     * @param url - String representing the URL of the image
+     * @return Value for {@code url} from memory cache, or {@code null}
+     */
+    public CacheableBitmapDrawable peekFromMemoryCache(final String url) {
+        return getFromMemoryCache(url, false);
+    }
+
+    private CacheableBitmapDrawable getFromMemoryCache(final String url, final boolean promote) {
         CacheableBitmapDrawable result = null;
 
         if (null != mMemoryCache) {
             synchronized (mMemoryCache) {
-                result = mMemoryCache.get(url);
+                result = promote ? mMemoryCache.get(url) : mMemoryCache.peek(url);
 
                 // If we get a value, but it has a invalid bitmap, remove it
                 if (null != result && !result.isBitmapValid()) {
@@ -320,9 +457,22 @@ public class BitmapLruCache {
 
 
     public Bitmap getBitmapFromRemoved(final int width, final int height) {
+        return getBitmapFromRemoved(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Get a bitmap evicted from the memory cache that can be reused, or null if there is none.
+     *
+     * @param width  - the width of the wanted bitmap
+     * @param height - the height of the wanted bitmap
+     * @param config - the config of the wanted bitmap
+     * @return a reusable bitmap or null
+     */
+    public Bitmap getBitmapFromRemoved(final int width, final int height,
+            final Bitmap.Config config) {
         if (null != mMemoryCache) {
             synchronized (mMemoryCache) {
-                return mMemoryCache.getBitmapFromRemoved(width, height);
+                return mMemoryCache.getBitmapFromRemoved(width, height, config);
             }
         }
         return null;
@@ -344,8 +494,7 @@ public class BitmapLruCache {
 
     /**
      * Caches {@code bitmap} for {@code url} into all enabled caches. If the disk cache is enabled,
-     * the bitmap will be compressed losslessly. <p/> If you have the disk cache enabled, you should
-     * not call this method from main/UI thread.
+     * the bitmap will be compressed losslessly, in background.
      *
      * @param url    - String representing the URL of the image.
      * @param bitmap - Bitmap which has been decoded from {@code url}.
@@ -357,8 +506,7 @@ public class BitmapLruCache {
 
     /**
      * Caches {@code bitmap} for {@code url} into all enabled caches. If the disk cache is enabled,
-     * the bitmap will be compressed with the settings you provide.
-     * <p/> If you have the disk cache enabled, you should not call this method from main/UI thread.
+     * the bitmap will be compressed with the settings you provide, in background.
      *
      * @param url    - String representing the URL of the image.
      * @param bitmap - Bitmap which has been decoded from {@code url}.
@@ -379,6 +527,27 @@ public class BitmapLruCache {
         return d;
     }
 
+    /**
+     * Caches {@code bitmap} for {@code url} into all enabled caches, recording the expiration
+     * time given by its origin. If the disk cache is enabled, the bitmap will be compressed
+     * losslessly, in background.
+     *
+     * @param url    - String representing the URL of the image.
+     * @param bitmap - Bitmap which has been decoded from {@code url}.
+     * @param expirationTime - Expiration time in milliseconds since the epoch, or 0 if unknown.
+     * @return CacheableBitmapDrawable which can be used to display the bitmap.
+     */
+    public CacheableBitmapDrawable put(final String url, final Bitmap bitmap,
+            final long expirationTime) {
+        CacheableBitmapDrawable d = new CacheableBitmapDrawable(url, mResources, bitmap,
+                mRecyclePolicy, CacheableBitmapDrawable.SOURCE_UNKNOWN);
+        d.setExpirationTime(expirationTime);
+
+        putInMemoryCache(url, d, Bitmap.CompressFormat.PNG, 100);
+        putInDiskCache(url, d, Bitmap.CompressFormat.PNG, 100);
+        return d;
+    }
+
     public CacheableBitmapDrawable putInMemoryCache(final String url, final Bitmap bitmap) {
         return putInMemoryCache(url, bitmap, Bitmap.CompressFormat.PNG, 100);
     }
@@ -406,6 +575,62 @@ public class BitmapLruCache {
         return putInMemoryCache(url, d, compressFormat, compressQuality);
     }
 
+    /**
+     * Caches {@code drawable}, which is already cached for another url, for {@code url} in the
+     * memory cache. The drawable is shared rather than copied: its Bitmap is only recycled once
+     * every url referencing it has been removed, and it only counts towards the size of the cache
+     * once.
+     *
+     * @param url      - String representing the URL with identical content.
+     * @param drawable - CacheableBitmapDrawable cached for its own url.
+     * @return {@code drawable}
+     */
+    public CacheableBitmapDrawable putAliasInMemoryCache(final String url,
+            final CacheableBitmapDrawable drawable) {
+        if (null != mMemoryCache && null != drawable) {
+            synchronized (mMemoryCache) {
+                mMemoryCache.putAlias(url, drawable);
+            }
+        }
+        return drawable;
+    }
+
+    /**
+     * Records in the disk cache that {@code url} has the same content as {@code targetUrl}, instead
+     * of storing the content a second time. Reading {@code url} back decodes the content of
+     * {@code targetUrl}, as long as its content hash is still {@code contentKey}; otherwise the
+     * alias is dropped. <p/> The entry is written in background.
+     *
+     * @param url        - String representing the URL with identical content.
+     * @param targetUrl  - String representing the URL holding the content.
+     * @param contentKey - Hash of the encoded content.
+     * @param drawable   - CacheableBitmapDrawable providing the fetched and expiration times.
+     * @return {@code drawable}
+     */
+    public CacheableBitmapDrawable putAliasInDiskCache(final String url, final String targetUrl,
+            final String contentKey, final CacheableBitmapDrawable drawable) {
+        if (null != mDiskCache) {
+            mDiskCacheWriter.enqueue(new DiskCacheWriter.Write(transformUrlForDiskCacheKey(url)) {
+                @Override
+                void perform(DiskLruCache cache) throws IOException {
+                    DiskLruCache.Editor editor = cache.edit(mKey);
+                    if (null != editor) {
+                        final OutputStream os = editor.newOutputStream(DISK_CACHE_DATA_INDEX);
+                        try {
+                            writeDiskCacheHeader(os, drawable, contentKey, targetUrl);
+                        } finally {
+                            IoUtils.closeStream(os);
+                        }
+                        editor.commit();
+                        addToDiskCacheIndex(mKey);
+                    }
+                }
+            });
+        }
+
+        return drawable;
+    }
+
     public CacheableBitmapDrawable putInDiskCache(final String url, final Bitmap bitmap) {
         return putInDiskCache(url, bitmap, Bitmap.CompressFormat.PNG, 100);
     }
@@ -414,31 +639,74 @@ public class BitmapLruCache {
         return putInDiskCache(url, drawable, Bitmap.CompressFormat.PNG, 100);
     }
 
+    /**
+     * Caches {@code drawable} for {@code url} in the disk cache. The bitmap is compressed and
+     * written in background, this method is safe to be called from the main thread.
+     *
+     * @return {@code drawable}
+     */
     public CacheableBitmapDrawable putInDiskCache(final String url, final CacheableBitmapDrawable drawable,
                                                   Bitmap.CompressFormat compressFormat, int compressQuality) {
+        return putInDiskCache(url, drawable, compressFormat, compressQuality, false);
+    }
 
-        if (null != mDiskCache) {
-            checkNotOnMainThread();
+    /**
+     * Caches {@code drawable} for {@code url} in the disk cache, unless it already has an entry
+     * for {@code url}. The check is done in background along with the write, this method is safe
+     * to be called from the main thread.
+     *
+     * @return {@code drawable}
+     */
+    public CacheableBitmapDrawable putInDiskCacheIfAbsent(final String url,
+            final CacheableBitmapDrawable drawable) {
+        return putInDiskCache(url, drawable, Bitmap.CompressFormat.PNG, 100, true);
+    }
 
-            final String key = transformUrlForDiskCacheKey(url);
-            final ReentrantLock lock = getLockForDiskCacheEdit(key);
-            lock.lock();
+    private CacheableBitmapDrawable putInDiskCache(final String url,
+            final CacheableBitmapDrawable drawable, final Bitmap.CompressFormat compressFormat,
+            final int compressQuality, final boolean onlyIfAbsent) {
+        if (null != mDiskCache && drawable.isBitmapValid()) {
+            // Make sure the bitmap isn't recycled before being compressed
+            drawable.setBeingUsed(true);
+            mDiskCacheWriter.enqueue(new DiskCacheWriter.Write(transformUrlForDiskCacheKey(url)) {
+                @Override
+                void perform(DiskLruCache cache) throws IOException {
+                    try {
+                        write(cache);
+                    } finally {
+                        drawable.setBeingUsed(false);
+                    }
+                }
 
-            OutputStream os = null;
+                @Override
+                void discard() {
+                    drawable.setBeingUsed(false);
+                }
 
-            try {
-                DiskLruCache.Editor editor = mDiskCache.edit(key);
-                os = editor.newOutputStream(0);
-                drawable.getBitmap().compress(compressFormat, compressQuality, os);
-                os.flush();
-                editor.commit();
-            } catch (IOException e) {
-                Log.e(Constants.LOG_TAG, "Error while writing to disk cache", e);
-            } finally {
-                IoUtils.closeStream(os);
-                lock.unlock();
-                scheduleDiskCacheFlush();
-            }
+                private void write(DiskLruCache cache) throws IOException {
+                    if (onlyIfAbsent && containsInDiskCacheByKey(mKey)) {
+                        return;
+                    }
+                    if (!drawable.isBitmapValid()) {
+                        return;
+                    }
+                    DiskLruCache.Editor editor = cache.edit(mKey);
+                    if (null == editor) {
+                        return;
+                    }
+                    OutputStream os = null;
+                    try {
+                        os = editor.newOutputStream(DISK_CACHE_DATA_INDEX);
+                        writeDiskCacheHeader(os, drawable, null, null);
+                        drawable.getBitmap().compress(compressFormat, compressQuality, os);
+                        os.flush();
+                        editor.commit();
+                        addToDiskCacheIndex(mKey);
+                    } finally {
+                        IoUtils.closeStream(os);
+                    }
+                }
+            });
         }
 
         return drawable;
@@ -494,22 +762,107 @@ public class BitmapLruCache {
      */
     public CacheableBitmapDrawable put(final String url, final byte[] data,
             final BitmapFactory.Options decodeOpts) {
+        return put(url, data, decodeOpts, 0, null);
+    }
+
+    /**
+     * Caches resulting bitmap from {@code data} for {@code url} into all enabled caches, along
+     * with the expiration time given by its origin and the hash of {@code data}. The contents are
+     * decoded and written to the disk cache straight from the array.
+     * <p/>
+     * You should not call this method from the main/UI thread.
+     *
+     * @param url            - String representing the URL of the image
+     * @param data           - Raw data opened from {@code url}
+     * @param decodeOpts     - Options used for decoding. This does not affect what is cached in
+     *                       the disk cache (if enabled).
+     * @param expirationTime - Expiration time in milliseconds since the epoch, or 0 if unknown.
+     * @param contentKey     - Hash of {@code data}, or null if unknown.
+     * @return CacheableBitmapDrawable which can be used to display the bitmap.
+     */
+    public CacheableBitmapDrawable put(final String url, final byte[] data,
+            final BitmapFactory.Options decodeOpts, final long expirationTime,
+            final String contentKey) {
+        if (data == null) return null;
+        return put(url, data, 0, data.length, decodeOpts, expirationTime, contentKey);
+    }
+
+    /**
+     * Caches resulting bitmap from the remaining contents of {@code buffer} for {@code url} into
+     * all enabled caches, like {@link #put(String, byte[], BitmapFactory.Options, long, String)}.
+     * A buffer backed by an array is decoded and written to the disk cache in place; any other
+     * buffer, such as a memory-mapped file, is copied once into an array since the decoders
+     * can't read it.
+     * <p/>
+     * You should not call this method from the main/UI thread.
+     *
+     * @param url            - String representing the URL of the image
+     * @param buffer         - Raw data opened from {@code url}, from its position to its limit.
+     *                       The position of the buffer isn't changed.
+     * @param decodeOpts     - Options used for decoding. This does not affect what is cached in
+     *                       the disk cache (if enabled).
+     * @param expirationTime - Expiration time in milliseconds since the epoch, or 0 if unknown.
+     * @param contentKey     - Hash of the contents, or null if unknown.
+     * @return CacheableBitmapDrawable which can be used to display the bitmap.
+     */
+    public CacheableBitmapDrawable put(final String url, final ByteBuffer buffer,
+            final BitmapFactory.Options decodeOpts, final long expirationTime,
+            final String contentKey) {
+        if (buffer == null) return null;
+        if (buffer.hasArray()) {
+            return put(url, buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining(), decodeOpts, expirationTime, contentKey);
+        }
+        final byte[] data = new byte[buffer.remaining()];
+        buffer.duplicate().get(data);
+        return put(url, data, 0, data.length, decodeOpts, expirationTime, contentKey);
+    }
+
+    private CacheableBitmapDrawable put(final String url, final byte[] data, final int offset,
+            final int length, final BitmapFactory.Options decodeOpts, final long expirationTime,
+            final String contentKey) {
         checkNotOnMainThread();
 
-        if (null == mDiskCache) {
-            // shortcut to avoid temporary storage on disk
-            CacheableBitmapDrawable d = decodeBitmapToDrawable(new ByteArrayInputStreamProvider(data), url,
-                    decodeOpts);
-            if (null != d) {
-                if (null != mMemoryCache) {
-                    d.setCached(true);
-                    mMemoryCache.put(d.getUrl(), d);
+        CacheableBitmapDrawable d = decodeBitmapToDrawable(
+                new ByteArrayInputStreamProvider(data, offset, length), url, decodeOpts);
+
+        if (null != d) {
+            d.setExpirationTime(expirationTime);
+            d.setContentKey(contentKey);
+
+            if (null != mMemoryCache) {
+                synchronized (mMemoryCache) {
+                    mMemoryCache.put(d);
                 }
-                return d;
+            }
+
+            if (null != mDiskCache) {
+                final CacheableBitmapDrawable drawable = d;
+                mDiskCacheWriter.enqueue(
+                        new DiskCacheWriter.Write(transformUrlForDiskCacheKey(url)) {
+                    @Override
+                    void perform(DiskLruCache cache) throws IOException {
+                        DiskLruCache.Editor editor = cache.edit(mKey);
+                        if (null == editor) {
+                            return;
+                        }
+                        OutputStream os = null;
+                        try {
+                            os = editor.newOutputStream(DISK_CACHE_DATA_INDEX);
+                            writeDiskCacheHeader(os, drawable, contentKey, null);
+                            os.write(data, offset, length);
+                            os.flush();
+                            editor.commit();
+                            addToDiskCacheIndex(mKey);
+                        } finally {
+                            IoUtils.closeStream(os);
+                        }
+                    }
+                });
             }
         }
 
-        return put(url, new ByteArrayInputStream(data), decodeOpts);
+        return d;
     }
 
     /**
@@ -554,6 +907,7 @@ public class BitmapLruCache {
         }
 
         CacheableBitmapDrawable d = null;
+        boolean tmpFileQueued = false;
 
         if (null != tmpFile) {
             // Try and decode File
@@ -561,40 +915,55 @@ public class BitmapLruCache {
 
             if (d != null) {
                 if (null != mMemoryCache) {
-                    d.setCached(true);
                     synchronized (mMemoryCache) {
-                        mMemoryCache.put(d.getUrl(), d);
+                        mMemoryCache.put(d);
                     }
                 }
 
                 if (null != mDiskCache) {
-                    final String key = transformUrlForDiskCacheKey(url);
-                    final ReentrantLock lock = getLockForDiskCacheEdit(url);
-                    lock.lock();
+                    // The temporary file is deleted once written
+                    final File file = tmpFile;
+                    final CacheableBitmapDrawable drawable = d;
+                    tmpFileQueued = mDiskCacheWriter.enqueue(
+                            new DiskCacheWriter.Write(transformUrlForDiskCacheKey(url)) {
+                        @Override
+                        void perform(DiskLruCache cache) throws IOException {
+                            try {
+                                DiskLruCache.Editor editor = cache.edit(mKey);
+                                if (null != editor) {
+                                    final OutputStream os =
+                                            editor.newOutputStream(DISK_CACHE_DATA_INDEX);
+                                    writeDiskCacheHeader(os, drawable, null, null);
+                                    // Closes the stream
+                                    IoUtils.copy(file, os);
+                                    editor.commit();
+                                    addToDiskCacheIndex(mKey);
+                                }
+                            } finally {
+                                file.delete();
+                            }
+                        }
 
-                    try {
-                        DiskLruCache.Editor editor = mDiskCache.edit(key);
-                        IoUtils.copy(tmpFile, editor.newOutputStream(0));
-                        editor.commit();
-                    } catch (IOException e) {
-                        Log.e(Constants.LOG_TAG, "Error writing to disk cache. URL: " + url, e);
-                    } finally {
-                        lock.unlock();
-                        scheduleDiskCacheFlush();
-                    }
+                        @Override
+                        void discard() {
+                            file.delete();
+                        }
+                    });
                 }
             }
 
             // Finally, delete the temporary file
-            tmpFile.delete();
+            if (!tmpFileQueued) {
+                tmpFile.delete();
+            }
         }
 
         return d;
     }
 
     /**
-     * Removes the entry for {@code url} from all enabled caches, if it exists. <p/> If you have the
-     * disk cache enabled, you should not call this method from main/UI thread.
+     * Removes the entry for {@code url} from all enabled caches, if it exists. <p/> The disk cache
+     * entry is removed in background.
      */
     public void remove(String url) {
         if (null != mMemoryCache) {
@@ -603,16 +972,7 @@ public class BitmapLruCache {
             }
         }
 
-        if (null != mDiskCache) {
-            checkNotOnMainThread();
-
-            try {
-                mDiskCache.remove(transformUrlForDiskCacheKey(url));
-                scheduleDiskCacheFlush();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
+        removeFromDiskCache(url);
     }
 
     /**
@@ -627,21 +987,20 @@ public class BitmapLruCache {
     }
 
     /**
-     * Removes the entry for {@code url} from disk cache, if it exists. <p/> You should not call this method from main/UI thread.
+     * Removes the entry for {@code url} from disk cache, if it exists. <p/> The entry is removed
+     * in background, after the edits queued before.
      */
     public void removeFromDiskCache(String url) {
         if (null != mDiskCache) {
-            checkNotOnMainThread();
-
-            try {
-                mDiskCache.remove(transformUrlForDiskCacheKey(url));
-                scheduleDiskCacheFlush();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            removeFromDiskCacheByKey(transformUrlForDiskCacheKey(url));
         }
     }
 
+    private void removeFromDiskCacheByKey(String key) {
+        // Never dropped, even when the write queue is full
+        mDiskCacheWriter.enqueue(new DiskCacheWriter.Remove(key));
+    }
+
     /**
      * This method iterates through the memory cache (if enabled) and removes any entries which are
      * not currently being displayed. A good place to call this would be from {@link
@@ -652,6 +1011,7 @@ public class BitmapLruCache {
             synchronized (mMemoryCache) {
                 mMemoryCache.trimMemory();
             }
+            purgeCompressedMemoryCache();
         }
     }
 
@@ -660,28 +1020,145 @@ public class BitmapLruCache {
             synchronized (mMemoryCache) {
                 mMemoryCache.evictAll();
             }
+            purgeCompressedMemoryCache();
+        }
+    }
+
+    /**
+     * Removes every entry of the compressed memory cache, if it is enabled, and stops its
+     * compressing thread until something is demoted again.
+     */
+    public void purgeCompressedMemoryCache() {
+        if (null != mMemoryCache && null != mMemoryCache.getCompressedCache()) {
+            mMemoryCache.getCompressedCache().clear();
+        }
+    }
+
+    /**
+     * Shrinks the memory cache to {@code limit} bytes, evicting the least recently used entries,
+     * or lets it grow back up to its maximum size. The limit applies until it is set again. This
+     * is a graded alternative to {@link #trimMemory()} for responding to memory pressure.
+     *
+     * @param limit  - the size in bytes the memory cache is trimmed to.
+     * @param demote - whether the entries evicted now are kept compressed, when the compressed
+     *               memory cache is enabled.
+     */
+    public void setMemoryCacheLimit(final int limit, final boolean demote) {
+        if (null != mMemoryCache) {
+            synchronized (mMemoryCache) {
+                mMemoryCache.setLimit(limit, demote);
+            }
         }
     }
 
+    /**
+     * @return the size in bytes the memory cache is currently trimmed to.
+     */
+    public int getMemoryCacheLimit() {
+        return null != mMemoryCache ? mMemoryCache.getLimit() : 0;
+    }
+
+    /**
+     * @return the maximum size in bytes of the memory cache.
+     */
+    public int getMemoryCacheMaxSize() {
+        return null != mMemoryCache ? mMemoryCache.maxSize() : 0;
+    }
+
+    /**
+     * @return the size in bytes of the memory cache.
+     */
+    public int getMemoryCacheSize() {
+        return null != mMemoryCache ? mMemoryCache.size() : 0;
+    }
+
+    /**
+     * @return the size in bytes of the compressed memory cache.
+     */
+    public int getCompressedMemoryCacheSize() {
+        return null != mMemoryCache && null != mMemoryCache.getCompressedCache()
+                ? mMemoryCache.getCompressedCache().size() : 0;
+    }
+
     public void purgeDiskCache() {
         if (null != mDiskCache) {
             checkNotOnMainThread();
+            mDiskCacheWriter.clear();
             try {
                 mDiskCache.delete();
             } catch (IOException ex) {
                 ex.printStackTrace();
             }
+            if (null != mDiskCacheIndex) {
+                mDiskCacheIndex.clear();
+            }
         }
     }
 
-    synchronized void setDiskCache(DiskLruCache diskCache) {
+    synchronized void setDiskCache(DiskLruCache diskCache, DiskCacheIndex diskCacheIndex) {
         mDiskCache = diskCache;
+        mDiskCacheIndex = diskCacheIndex;
 
         if (null != diskCache) {
-            mDiskCacheEditLocks = new HashMap<String, ReentrantLock>();
-            mDiskCacheFlusherExecutor = new ScheduledThreadPoolExecutor(1);
-            mDiskCacheFlusherRunnable = new DiskCacheFlushRunnable(diskCache);
+            mDiskCacheWriter = new DiskCacheWriter(diskCache, diskCacheIndex);
+            if (mClosed) {
+                // Closed while the Disk Cache was being opened
+                mDiskCacheWriter.close();
+            }
+        }
+    }
+
+    /**
+     * Stops using the Disk Cache: the edits already queued are written, then the Disk Cache is
+     * flushed and closed in background, and its writer thread stops. Afterwards the Disk Cache
+     * isn't written anymore, and reading it finds nothing. The compressed memory cache is purged
+     * and its thread stopped, the memory cache keeps working. This method is safe to be called
+     * from the main thread.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        if (null != mDiskCacheWriter) {
+            mDiskCacheWriter.close();
         }
+        purgeCompressedMemoryCache();
+    }
+
+    /**
+     * @return the number of disk cache edits waiting to be applied in background.
+     */
+    public int getDiskCacheWriteQueueSize() {
+        return null != mDiskCacheWriter ? mDiskCacheWriter.getQueueSize() : 0;
+    }
+
+    /**
+     * @return the number of disk cache edits applied so far.
+     */
+    public long getDiskCacheWriteCount() {
+        return null != mDiskCacheWriter ? mDiskCacheWriter.getWriteCount() : 0;
+    }
+
+    /**
+     * @return the number of disk cache edits dropped because the queue was full when they were
+     *         made from the main thread.
+     */
+    public long getDiskCacheDroppedWriteCount() {
+        return null != mDiskCacheWriter ? mDiskCacheWriter.getDroppedWriteCount() : 0;
+    }
+
+    /**
+     * @return the average time between making a disk cache edit and having it applied, in
+     *         milliseconds.
+     */
+    public long getDiskCacheAverageWriteLatency() {
+        return null != mDiskCacheWriter ? mDiskCacheWriter.getAverageWriteLatency() : 0;
+    }
+
+    /**
+     * @return the longest time between making a disk cache edit and having it applied, in
+     *         milliseconds.
+     */
+    public long getDiskCacheMaxWriteLatency() {
+        return null != mDiskCacheWriter ? mDiskCacheWriter.getMaxWriteLatency() : 0;
     }
 
     void setMemoryCache(BitmapMemoryLruCache memoryCache) {
@@ -689,27 +1166,71 @@ public class BitmapLruCache {
         mRecyclePolicy = memoryCache.getRecyclePolicy();
     }
 
-    private ReentrantLock getLockForDiskCacheEdit(String url) {
-        synchronized (mDiskCacheEditLocks) {
-            ReentrantLock lock = mDiskCacheEditLocks.get(url);
-            if (null == lock) {
-                lock = new ReentrantLock();
-                mDiskCacheEditLocks.put(url, lock);
-            }
-            return lock;
+    private void addToDiskCacheIndex(String key) {
+        if (null != mDiskCacheIndex) {
+            mDiskCacheIndex.add(key);
         }
     }
 
-    private void scheduleDiskCacheFlush() {
-        // If we already have a flush scheduled, cancel it
-        if (null != mDiskCacheFuture) {
-            mDiskCacheFuture.cancel(false);
+    /**
+     * Reads an entry of the Disk Cache in a single pass.
+     *
+     * @return the entry, or null if there is none for {@code key}
+     */
+    private DiskCacheEntry readDiskCacheEntry(String key) throws IOException {
+        final DiskLruCache.Snapshot snapshot = mDiskCache.get(key);
+        if (null == snapshot) {
+            return null;
         }
+        final byte[] data;
+        try {
+            data = IoUtils.toByteArray(snapshot.getInputStream(DISK_CACHE_DATA_INDEX),
+                    (int) snapshot.getLength(DISK_CACHE_DATA_INDEX));
+        } finally {
+            snapshot.close();
+        }
+        final DiskCacheEntry entry = readDiskCacheHeader(data);
+        if (null == entry) {
+            Log.w(Constants.LOG_TAG, "Could not read disk cache header for: " + key);
+        }
+        return entry;
+    }
 
-        // Schedule a flush
-        mDiskCacheFuture = mDiskCacheFlusherExecutor
-                .schedule(mDiskCacheFlusherRunnable, DISK_CACHE_FLUSH_DELAY_SECS,
-                        TimeUnit.SECONDS);
+    /**
+     * Parses the header of a Disk Cache entry, the image follows it in {@code data}.
+     *
+     * @return the entry, or null if {@code data} is too short to hold a header
+     */
+    static DiskCacheEntry readDiskCacheHeader(byte[] data) {
+        final ByteArrayInputStream is = new ByteArrayInputStream(data);
+        final DataInputStream dis = new DataInputStream(is);
+        final DiskCacheEntry entry = new DiskCacheEntry();
+        try {
+            entry.mFetchedTime = dis.readLong();
+            entry.mExpirationTime = dis.readLong();
+            final String contentKey = dis.readUTF();
+            final String aliasOf = dis.readUTF();
+            entry.mContentKey = contentKey.length() > 0 ? contentKey : null;
+            entry.mAliasOf = aliasOf.length() > 0 ? aliasOf : null;
+        } catch (IOException e) {
+            return null;
+        }
+        entry.mData = data;
+        entry.mDataOffset = data.length - is.available();
+        return entry;
+    }
+
+    /**
+     * Writes the header of a Disk Cache entry to {@code os}, which is left open for the image.
+     */
+    static void writeDiskCacheHeader(OutputStream os, CacheableBitmapDrawable drawable,
+            String contentKey, String aliasOf) throws IOException {
+        final DataOutputStream dos = new DataOutputStream(os);
+        dos.writeLong(drawable.getFetchedTime());
+        dos.writeLong(drawable.getExpirationTime());
+        dos.writeUTF(null != contentKey ? contentKey : "");
+        dos.writeUTF(null != aliasOf ? aliasOf : "");
+        dos.flush();
     }
 
     public CacheableBitmapDrawable createCacheableBitmapDrawable(Bitmap bitmap, String url, int source)
@@ -758,8 +1279,8 @@ public class BitmapLruCache {
             is = ip.getInputStream();
             // Decode stream
             if (is == null && ip instanceof ByteArrayInputStreamProvider) {
-                byte[] data = ((ByteArrayInputStreamProvider) ip).array;
-                bm = BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+                final ByteArrayInputStreamProvider bp = (ByteArrayInputStreamProvider) ip;
+                bm = BitmapFactory.decodeByteArray(bp.array, bp.offset, bp.length, opts);
             } else {
                 bm = BitmapFactory.decodeStream(is, null, opts);
             }
@@ -778,8 +1299,8 @@ public class BitmapLruCache {
         // Decode the bounds so we know what size Bitmap to look for
         opts.inJustDecodeBounds = true;
         if (is == null && ip instanceof ByteArrayInputStreamProvider) {
-            byte[] data = ((ByteArrayInputStreamProvider) ip).array;
-            BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+            final ByteArrayInputStreamProvider bp = (ByteArrayInputStreamProvider) ip;
+            BitmapFactory.decodeByteArray(bp.array, bp.offset, bp.length, opts);
         } else {
             BitmapFactory.decodeStream(is, null, opts);
         }
@@ -792,7 +1313,9 @@ public class BitmapLruCache {
 
         // Try and find Bitmap to use for inBitmap
         synchronized (mMemoryCache) {
-            Bitmap reusableBm = mMemoryCache.getBitmapFromRemoved(opts.outWidth, opts.outHeight);
+            // The reused bitmap imposes its config, so only take one from the matching pool
+            Bitmap reusableBm = mMemoryCache.getBitmapFromRemoved(opts.outWidth, opts.outHeight,
+                    opts.inPreferredConfig);
             if (reusableBm != null) {
                 if (Constants.DEBUG) {
                     Log.i(Constants.LOG_TAG, "Using inBitmap");
@@ -855,6 +1378,10 @@ public class BitmapLruCache {
 
         private int mMemoryCacheMaxSize;
 
+        private int mCompressedMemoryCacheMaxSize;
+
+        private EvictionListener mEvictionListener;
+
         private RecyclePolicy mRecyclePolicy;
 
         /**
@@ -888,16 +1415,29 @@ public class BitmapLruCache {
                 if (Constants.DEBUG) {
                     Log.d("BitmapLruCache.Builder", "Creating Memory Cache");
                 }
-                cache.setMemoryCache(new BitmapMemoryLruCache(mMemoryCacheMaxSize, mRecyclePolicy));
+                final BitmapMemoryLruCache memoryCache =
+                        new BitmapMemoryLruCache(mMemoryCacheMaxSize, mRecyclePolicy);
+                memoryCache.setEvictionListener(mEvictionListener);
+                if (mCompressedMemoryCacheMaxSize > 0) {
+                    memoryCache.setCompressedCache(
+                            new CompressedMemoryCache(mCompressedMemoryCacheMaxSize));
+                }
+                cache.setMemoryCache(memoryCache);
             }
 
             if (isValidOptionsForDiskCache()) {
                 new AsyncTask<Void, Void, DiskLruCache>() {
 
+                    private DiskCacheIndex mIndex;
+
                     @Override
                     protected DiskLruCache doInBackground(Void... params) {
                         try {
-                            return DiskLruCache.open(mDiskCacheLocation, 0, 1, mDiskCacheMaxSize);
+                            final DiskLruCache diskCache = DiskLruCache.open(mDiskCacheLocation,
+                                    DISK_CACHE_VERSION, DISK_CACHE_VALUE_COUNT, mDiskCacheMaxSize);
+                            mIndex = DiskCacheIndex.open(mDiskCacheLocation, diskCache,
+                                    (int) (mDiskCacheMaxSize / DISK_CACHE_AVERAGE_ENTRY_SIZE));
+                            return diskCache;
                         } catch (IOException e) {
                             e.printStackTrace();
                             return null;
@@ -906,7 +1446,7 @@ public class BitmapLruCache {
 
                     @Override
                     protected void onPostExecute(DiskLruCache result) {
-                        cache.setDiskCache(result);
+                        cache.setDiskCache(result, mIndex);
                     }
 
                 }.execute();
@@ -967,6 +1507,28 @@ public class BitmapLruCache {
             return this;
         }
 
+        /**
+         * Set the maximum number of bytes the compressed Memory Cache should use. Entries evicted
+         * from the Memory Cache by {@link BitmapLruCache#setMemoryCacheLimit(int, boolean)} are
+         * kept there in compressed form. Defaults to 0, which disables it.
+         *
+         * @return This Builder object to allow for chaining of calls to set methods.
+         */
+        public Builder setCompressedMemoryCacheMaxSize(int size) {
+            mCompressedMemoryCacheMaxSize = size;
+            return this;
+        }
+
+        /**
+         * Set a listener notified when entries are evicted from the Memory Cache.
+         *
+         * @return This Builder object to allow for chaining of calls to set methods.
+         */
+        public Builder setEvictionListener(EvictionListener listener) {
+            mEvictionListener = listener;
+            return this;
+        }
+
         /**
          * Sets the Memory Cache maximum size to be the default value of {@value
          * #DEFAULT_MEMORY_CACHE_HEAP_PERCENTAGE}% of heap size.
@@ -1030,29 +1592,6 @@ public class BitmapLruCache {
         }
     }
 
-    static final class DiskCacheFlushRunnable implements Runnable {
-
-        private final DiskLruCache mDiskCache;
-
-        public DiskCacheFlushRunnable(DiskLruCache cache) {
-            mDiskCache = cache;
-        }
-
-        public void run() {
-            // Make sure we're running with a background priority
-            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-
-            if (Constants.DEBUG) {
-                Log.d(Constants.LOG_TAG, "Flushing Disk Cache");
-            }
-            try {
-                mDiskCache.flush();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-    }
-
     public interface InputStreamProvider {
         InputStream getInputStream();
     }
@@ -1077,9 +1616,17 @@ public class BitmapLruCache {
 
     public static class ByteArrayInputStreamProvider implements InputStreamProvider {
         final byte[] array;
+        final int offset;
+        final int length;
 
         public ByteArrayInputStreamProvider(byte[] array) {
+            this(array, 0, array.length);
+        }
+
+        public ByteArrayInputStreamProvider(byte[] array, int offset, int length) {
             this.array = array;
+            this.offset = offset;
+            this.length = length;
         }
 
         /**
@@ -1093,24 +1640,16 @@ public class BitmapLruCache {
         }
     }
 
-    final class SnapshotInputStreamProvider implements InputStreamProvider {
-        final String mKey;
-
-        SnapshotInputStreamProvider(String key) {
-            mKey = key;
-        }
-
-        @Override
-        public InputStream getInputStream() {
-            try {
-                DiskLruCache.Snapshot snapshot = mDiskCache.get(mKey);
-                if (snapshot != null) {
-                    return snapshot.getInputStream(0);
-                }
-            } catch (IOException e) {
-                Log.e(Constants.LOG_TAG, "Could open disk cache for url: " + mKey, e);
-            }
-            return null;
-        }
+    /**
+     * The contents of a Disk Cache entry.
+     */
+    static final class DiskCacheEntry {
+        long mFetchedTime;
+        long mExpirationTime;
+        String mContentKey;
+        String mAliasOf;
+        // The whole entry, header included, the image starts at mDataOffset
+        byte[] mData;
+        int mDataOffset;
     }
 }
@@ -19,58 +19,221 @@ import android.graphics.Bitmap;
 import android.support.v4.util.LruCache;
 
 import java.lang.ref.SoftReference;
-import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 final class BitmapMemoryLruCache extends LruCache<String, CacheableBitmapDrawable> {
 
-    private final Set<SoftReference<CacheableBitmapDrawable>> mRemovedEntries;
+    /**
+     * Removed bitmaps available for reuse, one pool per config: a bitmap can only be reused to
+     * decode a bitmap with the same config.
+     */
+    private final Map<Bitmap.Config, Set<SoftReference<CacheableBitmapDrawable>>> mRemovedEntries;
     private final BitmapLruCache.RecyclePolicy mRecyclePolicy;
 
+    /**
+     * The size the cache is trimmed to, lowered below the maximum size under memory pressure.
+     */
+    private int mLimit;
+
+    /**
+     * Receives the entries evicted while the limit is lowered with demotion, may be null.
+     */
+    private CompressedMemoryCache mCompressedCache;
+
+    private boolean mDemoting = false;
+
+    private BitmapLruCache.EvictionListener mEvictionListener;
+
+    /**
+     * The other urls each drawable is cached under, by the url of the drawable. Aliases cost
+     * nothing in the cache, they are removed along with the drawable so they never keep its
+     * bitmap alive once it isn't accounted for anymore.
+     */
+    private final Map<String, Set<String>> mAliases = new HashMap<String, Set<String>>();
+
+    /**
+     * The same entries as the cache, read by {@link #peek(String)} without moving them in the
+     * order of use. Added before the cache, removed once replaced or removed in the cache.
+     */
+    private final ConcurrentHashMap<String, CacheableBitmapDrawable> mEntries =
+            new ConcurrentHashMap<String, CacheableBitmapDrawable>();
+
     BitmapMemoryLruCache(int maxSize, BitmapLruCache.RecyclePolicy policy) {
         super(maxSize);
 
+        mLimit = maxSize;
         mRecyclePolicy = policy;
         mRemovedEntries = policy.canInBitmap()
-                ? Collections.synchronizedSet(new HashSet<SoftReference<CacheableBitmapDrawable>>())
+                ? new EnumMap<Bitmap.Config, Set<SoftReference<CacheableBitmapDrawable>>>(
+                        Bitmap.Config.class)
                 : null;
     }
 
     CacheableBitmapDrawable put(CacheableBitmapDrawable value) {
         if (null != value) {
             value.setCached(true);
-            return put(value.getUrl(), value);
+            mEntries.put(value.getUrl(), value);
+            final CacheableBitmapDrawable previous = put(value.getUrl(), value);
+            if (size() > mLimit) {
+                trimToSize(mLimit);
+            }
+            return previous;
         }
 
         return null;
     }
 
+    /**
+     * Caches a drawable under another url with identical content, at no cost. The alias is
+     * removed when the drawable is removed from its own url.
+     */
+    CacheableBitmapDrawable putAlias(String url, CacheableBitmapDrawable value) {
+        if (null == value) {
+            return null;
+        }
+        if (url.equals(value.getUrl())) {
+            return put(value);
+        }
+        value.setCached(true);
+        synchronized (mAliases) {
+            Set<String> aliases = mAliases.get(value.getUrl());
+            if (aliases == null) {
+                aliases = new HashSet<String>();
+                mAliases.put(value.getUrl(), aliases);
+            }
+            aliases.add(url);
+        }
+        mEntries.put(url, value);
+        return put(url, value);
+    }
+
+    /**
+     * Returns the value for {@code url} without making it the most recently used one, unlike
+     * {@link #get(Object)}: looking at an entry isn't using it.
+     */
+    CacheableBitmapDrawable peek(String url) {
+        return mEntries.get(url);
+    }
+
+    void setEvictionListener(BitmapLruCache.EvictionListener listener) {
+        mEvictionListener = listener;
+    }
+
+    void setCompressedCache(CompressedMemoryCache compressedCache) {
+        mCompressedCache = compressedCache;
+    }
+
+    CompressedMemoryCache getCompressedCache() {
+        return mCompressedCache;
+    }
+
+    int getLimit() {
+        return mLimit;
+    }
+
+    /**
+     * Sets the size the cache is trimmed to, at most its maximum size, and trims it.
+     *
+     * @param demote - whether the entries evicted now go to the compressed cache.
+     */
+    void setLimit(int limit, boolean demote) {
+        mLimit = Math.max(0, Math.min(limit, maxSize()));
+        if (size() > mLimit) {
+            mDemoting = demote && null != mCompressedCache;
+            try {
+                trimToSize(mLimit);
+            } finally {
+                mDemoting = false;
+            }
+        }
+    }
+
     BitmapLruCache.RecyclePolicy getRecyclePolicy() {
         return mRecyclePolicy;
     }
 
     @Override
     protected int sizeOf(String key, CacheableBitmapDrawable value) {
-        return value.getMemorySize();
+        // A drawable cached under other urls as well (identical content) is only accounted for
+        // under its own url, its aliases don't outlive it
+        return key.equals(value.getUrl()) ? value.getMemorySize() : 0;
     }
 
     @Override
     protected void entryRemoved(boolean evicted, String key, CacheableBitmapDrawable oldValue,
             CacheableBitmapDrawable newValue) {
+        if (oldValue == newValue) {
+            // Put again under the same url: still cached, and still in the mirror
+            return;
+        }
+        // Unless it was replaced meanwhile
+        mEntries.remove(key, oldValue);
+
+        final boolean owner = key.equals(oldValue.getUrl());
+        if (owner) {
+            // Without its own entry the bitmap isn't accounted for, its aliases go as well.
+            // Called outside of the lock of the cache, so removing them here is safe.
+            final Set<String> aliases;
+            synchronized (mAliases) {
+                aliases = mAliases.remove(key);
+            }
+            if (aliases != null) {
+                // Aliases put again with another drawable were already left out
+                for (String alias : aliases) {
+                    remove(alias);
+                }
+            }
+        } else {
+            synchronized (mAliases) {
+                final Set<String> aliases = mAliases.get(oldValue.getUrl());
+                if (aliases != null) {
+                    aliases.remove(key);
+                    if (aliases.isEmpty()) {
+                        mAliases.remove(oldValue.getUrl());
+                    }
+                }
+            }
+        }
+
+        // Aliases of another url's drawable have no content of their own
+        if (evicted && owner) {
+            if (mDemoting) {
+                mCompressedCache.demote(oldValue);
+            }
+            if (null != mEvictionListener) {
+                mEvictionListener.onEvicted(key, oldValue.getMemorySize());
+            }
+        }
+
         // Notify the wrapper that it's no longer being cached
         oldValue.setCached(false);
 
         if (mRemovedEntries != null && canUseForInBitmap(oldValue)) {
+            final Bitmap.Config config = getConfig(oldValue.getBitmap());
             synchronized (mRemovedEntries) {
-                mRemovedEntries.add(new SoftReference<CacheableBitmapDrawable>(oldValue));
+                Set<SoftReference<CacheableBitmapDrawable>> pool = mRemovedEntries.get(config);
+                if (pool == null) {
+                    pool = new HashSet<SoftReference<CacheableBitmapDrawable>>();
+                    mRemovedEntries.put(config, pool);
+                }
+                pool.add(new SoftReference<CacheableBitmapDrawable>(oldValue));
             }
         }
     }
 
     public Bitmap getBitmapFromRemoved(final int width, final int height) {
+        return getBitmapFromRemoved(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    public Bitmap getBitmapFromRemoved(final int width, final int height,
+            final Bitmap.Config config) {
         if (mRemovedEntries == null) {
             return null;
         }
@@ -78,7 +241,12 @@ final class BitmapMemoryLruCache extends LruCache<String, CacheableBitmapDrawabl
         Bitmap result = null;
 
         synchronized (mRemovedEntries) {
-            final Iterator<SoftReference<CacheableBitmapDrawable>> it = mRemovedEntries.iterator();
+            final Set<SoftReference<CacheableBitmapDrawable>> pool =
+                    mRemovedEntries.get(config != null ? config : Bitmap.Config.ARGB_8888);
+            if (pool == null) {
+                return null;
+            }
+            final Iterator<SoftReference<CacheableBitmapDrawable>> it = pool.iterator();
 
             while (it.hasNext()) {
                 CacheableBitmapDrawable value = it.next().get();
@@ -106,6 +274,12 @@ final class BitmapMemoryLruCache extends LruCache<String, CacheableBitmapDrawabl
                 candidate.isBitmapMutable();
     }
 
+    private static Bitmap.Config getConfig(final Bitmap bitmap) {
+        final Bitmap.Config config = bitmap.getConfig();
+        // Bitmaps with an unknown config are only reused for the default one
+        return config != null ? config : Bitmap.Config.ARGB_8888;
+    }
+
     private static boolean canUseForInBitmapForSize(
             CacheableBitmapDrawable candidate, int width, int height) {
         return
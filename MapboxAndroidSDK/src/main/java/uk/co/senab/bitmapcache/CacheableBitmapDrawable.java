@@ -61,6 +61,13 @@ public class CacheableBitmapDrawable extends BitmapDrawable {
 
     private boolean mReused;
 
+    // Time at which the content was fetched, and the expiration given by its origin (0 if unknown)
+    private long mFetchedTime;
+    private long mExpirationTime;
+
+    // Hash of the encoded content, shared by every url caching identical content (null if unknown)
+    private String mContentKey;
+
     public CacheableBitmapDrawable(String url, Resources resources, Bitmap bitmap,
             BitmapLruCache.RecyclePolicy recyclePolicy, int source) {
         super(resources, bitmap);
@@ -73,6 +80,8 @@ public class CacheableBitmapDrawable extends BitmapDrawable {
         mCacheCount = 0;
         mSource = source;
         mReused = false;
+        mFetchedTime = System.currentTimeMillis();
+        mExpirationTime = 0;
     }
 
     @Override
@@ -117,6 +126,41 @@ public class CacheableBitmapDrawable extends BitmapDrawable {
         return mSource;
     }
 
+    /**
+     * @return the time at which the content of this Bitmap was fetched, in milliseconds since the
+     * epoch.
+     */
+    public long getFetchedTime() {
+        return mFetchedTime;
+    }
+
+    public void setFetchedTime(long fetchedTime) {
+        mFetchedTime = fetchedTime;
+    }
+
+    /**
+     * @return the expiration time given by the origin of this Bitmap, in milliseconds since the
+     * epoch, or 0 if unknown.
+     */
+    public long getExpirationTime() {
+        return mExpirationTime;
+    }
+
+    public void setExpirationTime(long expirationTime) {
+        mExpirationTime = expirationTime;
+    }
+
+    /**
+     * @return the hash of the encoded content this Bitmap was decoded from, or null if unknown.
+     */
+    public String getContentKey() {
+        return mContentKey;
+    }
+
+    public void setContentKey(String contentKey) {
+        mContentKey = contentKey;
+    }
+
     /**
      * Returns true when this wrapper has a bitmap and the bitmap has not been recycled.
      *
@@ -0,0 +1,129 @@
+package uk.co.senab.bitmapcache;
+
+import android.graphics.Bitmap;
+import android.os.Process;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A second memory tier holding bitmaps evicted from the {@link BitmapMemoryLruCache} in their
+ * compressed form, which is typically an order of magnitude smaller. Reading an entry back costs
+ * a decode, but no disk access (or none at all if the disk cache is disabled).
+ *
+ * <p> Bitmaps are compressed on a background thread, the drawable is kept from being recycled
+ * until then. Entries are removed when read: they go back to the bitmap tier. </p>
+ *
+ * <p> The compressing thread is started on demand, and stopped when the cache is cleared. </p>
+ */
+final class CompressedMemoryCache extends LruCache<String, CompressedMemoryCache.Entry> {
+
+    static final class Entry {
+
+        final byte[] mData;
+
+        final long mFetchedTime;
+
+        final long mExpirationTime;
+
+        final String mContentKey;
+
+        Entry(byte[] data, CacheableBitmapDrawable drawable) {
+            mData = data;
+            mFetchedTime = drawable.getFetchedTime();
+            mExpirationTime = drawable.getExpirationTime();
+            mContentKey = drawable.getContentKey();
+        }
+    }
+
+    // Compresses the demoted bitmaps, null until something is demoted
+    private ExecutorService mExecutor;
+
+    private final Object mExecutorLock = new Object();
+
+    CompressedMemoryCache(int maxSize) {
+        super(maxSize);
+    }
+
+    @Override
+    protected int sizeOf(String key, Entry value) {
+        return value.mData.length;
+    }
+
+    /**
+     * Compresses the bitmap of {@code drawable} in background and keeps the result.
+     */
+    void demote(final CacheableBitmapDrawable drawable) {
+        if (!drawable.isBitmapValid()) {
+            return;
+        }
+        // Make sure the bitmap isn't recycled before being compressed
+        drawable.setBeingUsed(true);
+        try {
+            getExecutor().execute(new DemoteTask(drawable));
+        } catch (RejectedExecutionException e) {
+            // Cleared meanwhile
+            drawable.setBeingUsed(false);
+        }
+    }
+
+    /**
+     * Removes every entry and stops the compressing thread. Bitmaps waiting to be compressed, or
+     * being compressed, are dropped.
+     */
+    void clear() {
+        synchronized (mExecutorLock) {
+            if (null != mExecutor) {
+                for (Runnable task : mExecutor.shutdownNow()) {
+                    ((DemoteTask) task).mDrawable.setBeingUsed(false);
+                }
+                mExecutor = null;
+            }
+            evictAll();
+        }
+    }
+
+    private ExecutorService getExecutor() {
+        synchronized (mExecutorLock) {
+            if (null == mExecutor) {
+                mExecutor = Executors.newSingleThreadExecutor();
+            }
+            return mExecutor;
+        }
+    }
+
+    private final class DemoteTask implements Runnable {
+
+        final CacheableBitmapDrawable mDrawable;
+
+        DemoteTask(CacheableBitmapDrawable drawable) {
+            mDrawable = drawable;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            try {
+                if (mDrawable.isBitmapValid()) {
+                    final ByteArrayOutputStream os = new ByteArrayOutputStream();
+                    if (mDrawable.getBitmap().compress(Bitmap.CompressFormat.PNG, 100, os)) {
+                        synchronized (mExecutorLock) {
+                            // Unless the cache was cleared while compressing
+                            if (!Thread.currentThread().isInterrupted()) {
+                                put(mDrawable.getUrl(), new Entry(os.toByteArray(), mDrawable));
+                            }
+                        }
+                    }
+                }
+            } catch (RuntimeException e) {
+                Log.w(Constants.LOG_TAG, "Could not compress: " + mDrawable.getUrl(), e);
+            } finally {
+                mDrawable.setBeingUsed(false);
+            }
+        }
+    }
+}
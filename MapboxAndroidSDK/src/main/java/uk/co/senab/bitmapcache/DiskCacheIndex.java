@@ -0,0 +1,203 @@
+package uk.co.senab.bitmapcache;
+
+import android.util.Log;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.jakewharton.disklrucache.DiskLruCache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * An in-memory membership filter over the keys of a {@link DiskLruCache}, so that lookups for
+ * urls which have never been cached don't have to touch the file system.
+ *
+ * <p> The filter is a Bloom filter: {@link #mightContain(String)} can return {@code true} for a
+ * key which isn't in the cache (about {@value #FALSE_POSITIVE_PROBABILITY} of the time, or when
+ * the entry has since been evicted), but never returns {@code false} for a key which is. </p>
+ *
+ * <p> The filter is saved next to the journal whenever the disk cache is flushed. It is only
+ * reused on startup if the cache still has the size it had when the filter was saved, otherwise
+ * it is rebuilt from the entries found in the cache directory. </p>
+ *
+ * <p> Entries can't be removed from a Bloom filter, so the keys evicted from the cache keep
+ * answering {@code true}, and the false positive rate grows past its target once more keys than
+ * expected have been added. The filter is rebuilt from the cache directory whenever the number of
+ * keys added reaches {@value #REBUILD_FACTOR} times the expected number of entries. </p>
+ */
+final class DiskCacheIndex {
+
+    static final String INDEX_FILE = "index.bloom";
+
+    static final int INDEX_VERSION = 1;
+
+    static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+
+    // Lower bound on the expected number of entries
+    static final int MIN_EXPECTED_ENTRIES = 1000;
+
+    // The filter is rebuilt once this many times the expected number of entries have been added
+    static final int REBUILD_FACTOR = 2;
+
+    private final File mDirectory;
+
+    private final File mFile;
+
+    private final int mExpectedEntries;
+
+    private BloomFilter<CharSequence> mFilter;
+
+    private int mEntries;
+
+    private DiskCacheIndex(File directory, int expectedEntries) {
+        mDirectory = directory;
+        mFile = new File(directory, INDEX_FILE);
+        mExpectedEntries = Math.max(MIN_EXPECTED_ENTRIES, expectedEntries);
+        mFilter = createFilter(mExpectedEntries);
+    }
+
+    private static BloomFilter<CharSequence> createFilter(int expectedEntries) {
+        return BloomFilter.create(Funnels.unencodedCharsFunnel(), expectedEntries,
+                FALSE_POSITIVE_PROBABILITY);
+    }
+
+    /**
+     * Loads the saved index of {@code cache}, or rebuilds it if it is missing or out of date. You
+     * should not call this method from the main/UI thread.
+     *
+     * @param directory       - the directory of the disk cache
+     * @param cache           - the opened disk cache
+     * @param expectedEntries - the number of entries the cache is expected to hold when full
+     */
+    static DiskCacheIndex open(File directory, DiskLruCache cache, int expectedEntries) {
+        final DiskCacheIndex index = new DiskCacheIndex(directory, expectedEntries);
+        if (!index.load(cache.size())) {
+            index.rebuild();
+            index.save(cache);
+        }
+        return index;
+    }
+
+    /**
+     * @return false if {@code key} is definitely not in the disk cache.
+     */
+    synchronized boolean mightContain(String key) {
+        return mFilter.mightContain(key);
+    }
+
+    synchronized void add(String key) {
+        if (mFilter.put(key)) {
+            mEntries++;
+        }
+    }
+
+    /**
+     * Rebuilds the filter if enough keys have been added since it was built for evicted keys to
+     * have degraded it. Must be called from the thread applying the edits of the disk cache, so
+     * that no key is added while the cache directory is being listed.
+     *
+     * @return true if the filter was rebuilt.
+     */
+    boolean rebuildIfNeeded() {
+        synchronized (this) {
+            if (mEntries < (long) mExpectedEntries * REBUILD_FACTOR) {
+                return false;
+            }
+        }
+        rebuild();
+        return true;
+    }
+
+    synchronized void clear() {
+        mFilter = createFilter(mExpectedEntries);
+        mEntries = 0;
+        mFile.delete();
+    }
+
+    /**
+     * Saves the index along with the current size of {@code cache}.
+     */
+    void save(DiskLruCache cache) {
+        final File tmpFile = new File(mFile.getPath() + ".tmp");
+        DataOutputStream os = null;
+        try {
+            os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            synchronized (this) {
+                os.writeInt(INDEX_VERSION);
+                os.writeInt(mExpectedEntries);
+                os.writeLong(cache.size());
+                os.writeInt(mEntries);
+                mFilter.writeTo(os);
+            }
+            os.close();
+            os = null;
+            if (!tmpFile.renameTo(mFile)) {
+                tmpFile.delete();
+            }
+        } catch (IOException e) {
+            Log.w(Constants.LOG_TAG, "Could not save disk cache index", e);
+        } finally {
+            IoUtils.closeStream(os);
+        }
+    }
+
+    private boolean load(long cacheSize) {
+        if (!mFile.exists()) {
+            return false;
+        }
+        DataInputStream is = null;
+        try {
+            is = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (is.readInt() != INDEX_VERSION || is.readInt() != mExpectedEntries
+                    || is.readLong() != cacheSize) {
+                return false;
+            }
+            final int entries = is.readInt();
+            final BloomFilter<CharSequence> filter =
+                    BloomFilter.readFrom(is, Funnels.unencodedCharsFunnel());
+            synchronized (this) {
+                mFilter = filter;
+                mEntries = entries;
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(Constants.LOG_TAG, "Could not load disk cache index", e);
+            return false;
+        } finally {
+            IoUtils.closeStream(is);
+        }
+    }
+
+    /**
+     * Replaces the filter by one holding every entry of the cache directory. Each entry has a
+     * clean file named after its key for every one of its values, we only look at the first one.
+     */
+    private void rebuild() {
+        final String[] names = mDirectory.list();
+        if (names == null) {
+            return;
+        }
+        // Lookups keep using the current filter until the new one is complete
+        final BloomFilter<CharSequence> filter = createFilter(mExpectedEntries);
+        int entries = 0;
+        for (String name : names) {
+            if (name.endsWith(".0") && filter.put(name.substring(0, name.length() - 2))) {
+                entries++;
+            }
+        }
+        synchronized (this) {
+            mFilter = filter;
+            mEntries = entries;
+        }
+        if (Constants.DEBUG) {
+            Log.d(Constants.LOG_TAG, "Rebuilt disk cache index with " + entries + " entries");
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package uk.co.senab.bitmapcache;
+
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.jakewharton.disklrucache.DiskLruCache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Applies the edits of a {@link DiskLruCache} on a single background thread, so that callers
+ * don't wait for the file system and edits of the same key never race each other.
+ *
+ * <p> Edits are queued and applied in batches. The journal is flushed and the index saved once,
+ * when no edit has been queued for {@value BitmapLruCache#DISK_CACHE_FLUSH_DELAY_SECS} seconds,
+ * rather than after every edit. The index is rebuilt at that point too when it needs to be. </p>
+ *
+ * <p> The number of queued writes is bounded. When it is reached, background threads block until
+ * there is room, which slows producers down to the speed of the disk. The main thread is never
+ * blocked: its writes are dropped instead, which only means that the image will be fetched again
+ * later. Removals are never dropped nor blocked, since dropping one would leave an entry which
+ * should be gone; they are queued in order with the writes, but don't count towards the bound.
+ * </p>
+ *
+ * <p> Once {@link #close()} is called, the edits still queued are applied, the cache is flushed
+ * and closed, and the thread stops. Edits queued afterwards are dropped. </p>
+ */
+final class DiskCacheWriter implements Runnable {
+
+    static final int MAX_QUEUE_SIZE = 64;
+
+    static final int MAX_BATCH_SIZE = 16;
+
+    /**
+     * A queued edit of the disk cache.
+     */
+    abstract static class Write {
+
+        final String mKey;
+
+        long mQueuedTime;
+
+        Write(String key) {
+            mKey = key;
+        }
+
+        abstract void perform(DiskLruCache cache) throws IOException;
+
+        /**
+         * Called instead of {@link #perform(DiskLruCache)} when the edit is dropped.
+         */
+        void discard() {
+            // Do nothing by default
+        }
+
+        /**
+         * @return whether the edit counts towards the bound of the queue, and may be dropped.
+         */
+        boolean isBounded() {
+            return true;
+        }
+    }
+
+    /**
+     * Removes the entry of a key.
+     */
+    static final class Remove extends Write {
+
+        Remove(String key) {
+            super(key);
+        }
+
+        @Override
+        void perform(DiskLruCache cache) throws IOException {
+            cache.remove(mKey);
+        }
+
+        @Override
+        boolean isBounded() {
+            return false;
+        }
+    }
+
+    private final DiskLruCache mDiskCache;
+
+    private final DiskCacheIndex mDiskCacheIndex;
+
+    private final BlockingQueue<Write> mQueue = new LinkedBlockingQueue<Write>();
+
+    // One permit for each bounded edit that can still be queued
+    private final Semaphore mPermits = new Semaphore(MAX_QUEUE_SIZE);
+
+    private final AtomicLong mWriteCount = new AtomicLong();
+
+    private final AtomicLong mDroppedWriteCount = new AtomicLong();
+
+    private final AtomicLong mTotalWriteLatency = new AtomicLong();
+
+    private volatile long mMaxWriteLatency;
+
+    private final Thread mThread;
+
+    private volatile boolean mClosed;
+
+    // Set by the thread once it stopped taking edits from the queue
+    private volatile boolean mStopped;
+
+    DiskCacheWriter(DiskLruCache cache, DiskCacheIndex index) {
+        mDiskCache = cache;
+        mDiskCacheIndex = index;
+
+        mThread = new Thread(this, "BitmapCache disk writer");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Queues {@code write}. Blocks while the queue is full, unless called from the main thread or
+     * {@code write} isn't bounded.
+     *
+     * @return false if the edit was dropped
+     */
+    boolean enqueue(Write write) {
+        write.mQueuedTime = SystemClock.elapsedRealtime();
+        boolean queued;
+        if (mClosed) {
+            queued = false;
+        } else if (!write.isBounded()) {
+            queued = true;
+        } else if (Looper.myLooper() == Looper.getMainLooper()) {
+            queued = mPermits.tryAcquire();
+        } else {
+            try {
+                mPermits.acquire();
+                queued = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                queued = false;
+            }
+        }
+        if (queued) {
+            mQueue.add(write);
+            if (mStopped) {
+                // Queued after the thread took its last edits
+                clear();
+            }
+        } else {
+            mDroppedWriteCount.incrementAndGet();
+            write.discard();
+            if (Constants.DEBUG) {
+                Log.d(Constants.LOG_TAG, "Disk cache write queue full, dropped: " + write.mKey);
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * Applies the queued edits, then flushes and closes the cache and stops the thread. Returns
+     * without waiting for it.
+     */
+    void close() {
+        mClosed = true;
+        mThread.interrupt();
+    }
+
+    /**
+     * Drops every queued edit.
+     */
+    void clear() {
+        final ArrayList<Write> dropped = new ArrayList<Write>();
+        mQueue.drainTo(dropped);
+        for (Write write : dropped) {
+            release(write);
+            write.discard();
+        }
+    }
+
+    /**
+     * Gives back the room taken in the queue by {@code write}, once it is out of the queue.
+     */
+    private void release(Write write) {
+        if (write.isBounded()) {
+            mPermits.release();
+        }
+    }
+
+    /**
+     * @return the number of edits waiting to be applied.
+     */
+    int getQueueSize() {
+        return mQueue.size();
+    }
+
+    long getWriteCount() {
+        return mWriteCount.get();
+    }
+
+    long getDroppedWriteCount() {
+        return mDroppedWriteCount.get();
+    }
+
+    /**
+     * @return the average time between queuing an edit and having it applied, in milliseconds.
+     */
+    long getAverageWriteLatency() {
+        final long count = mWriteCount.get();
+        return count > 0 ? mTotalWriteLatency.get() / count : 0;
+    }
+
+    /**
+     * @return the longest time between queuing an edit and having it applied, in milliseconds.
+     */
+    long getMaxWriteLatency() {
+        return mMaxWriteLatency;
+    }
+
+    public void run() {
+        // Make sure we're running with a background priority
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        final ArrayList<Write> batch = new ArrayList<Write>(MAX_BATCH_SIZE);
+        boolean dirty = false;
+        while (!mClosed) {
+            try {
+                final Write first = dirty
+                        ? mQueue.poll(BitmapLruCache.DISK_CACHE_FLUSH_DELAY_SECS, TimeUnit.SECONDS)
+                        : mQueue.take();
+                if (null == first) {
+                    // Nothing was queued for a while
+                    flush();
+                    dirty = false;
+                    continue;
+                }
+                batch.add(first);
+                mQueue.drainTo(batch, MAX_BATCH_SIZE - 1);
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            for (Write write : batch) {
+                perform(write);
+            }
+            batch.clear();
+            dirty = true;
+        }
+
+        // Closed, apply what is left
+        mStopped = true;
+        mQueue.drainTo(batch);
+        for (Write write : batch) {
+            perform(write);
+        }
+        flush();
+        try {
+            mDiskCache.close();
+        } catch (IOException e) {
+            Log.w(Constants.LOG_TAG, "Could not close disk cache", e);
+        }
+        clear();
+    }
+
+    private void perform(Write write) {
+        release(write);
+        try {
+            write.perform(mDiskCache);
+        } catch (IOException e) {
+            Log.e(Constants.LOG_TAG, "Error while writing to disk cache: " + write.mKey, e);
+        } catch (IllegalStateException e) {
+            // The cache has been closed, i.e. deleted
+            Log.w(Constants.LOG_TAG, "Disk cache closed, dropped: " + write.mKey);
+        }
+
+        final long latency = SystemClock.elapsedRealtime() - write.mQueuedTime;
+        mWriteCount.incrementAndGet();
+        mTotalWriteLatency.addAndGet(latency);
+        if (latency > mMaxWriteLatency) {
+            mMaxWriteLatency = latency;
+        }
+    }
+
+    private void flush() {
+        if (Constants.DEBUG) {
+            Log.d(Constants.LOG_TAG, "Flushing Disk Cache");
+        }
+        try {
+            mDiskCache.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (IllegalStateException e) {
+            return;
+        }
+        if (null != mDiskCacheIndex) {
+            // No edit is being applied, the cache directory holds exactly the cached entries
+            mDiskCacheIndex.rebuildIfNeeded();
+            mDiskCacheIndex.save(mDiskCache);
+        }
+    }
+}
@@ -54,6 +54,26 @@ class IoUtils {
         return copy(in, new FileOutputStream(out));
     }
 
+    /**
+     * Read an InputStream of known length into an array, then close it.
+     */
+    static byte[] toByteArray(InputStream in, int length) throws IOException {
+        try {
+            final byte[] data = new byte[length];
+            int offset = 0;
+            int n;
+            while (offset < length && -1 != (n = in.read(data, offset, length - offset))) {
+                offset += n;
+            }
+            if (offset < length) {
+                throw new IOException("Unexpected end of stream");
+            }
+            return data;
+        } finally {
+            IoUtils.closeStream(in);
+        }
+    }
+
     /**
      * Pipe an InputStream to the given OutputStream <p /> Taken from Apache Commons IOUtils.
      */
@@ -0,0 +1,139 @@
+package com.mapbox.mapboxsdk.android.testapp.test;
+
+import android.test.AndroidTestCase;
+import com.mapbox.mapboxsdk.tileprovider.util.AssetExtractor;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import junit.framework.Assert;
+
+public class AssetExtractorTest extends AndroidTestCase {
+
+    private static final String ASSET = "ventoux.geojson";
+
+    private File mDestination;
+    private File mStamp;
+    private byte[] mAsset;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDestination = new File(new File(getContext().getCacheDir(), "asset-test"), ASSET);
+        mStamp = new File(mDestination.getPath() + ".version");
+        mDestination.delete();
+        mStamp.delete();
+        mAsset = readFully(getContext().getAssets().open(ASSET));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDestination.delete();
+        mStamp.delete();
+        mDestination.getParentFile().delete();
+        super.tearDown();
+    }
+
+    public void testExtractsOnce() throws Exception {
+        Assert.assertEquals(mDestination, extract());
+        Assert.assertTrue(Arrays.equals(mAsset, readFile(mDestination)));
+        final String stamp = new String(readFile(mStamp), "UTF-8");
+        Assert.assertTrue(stamp.contains("," + mAsset.length + ","));
+
+        // A copy matching its stamp is trusted, without being read again
+        overwriteFirstByte(mDestination);
+        extract();
+        Assert.assertFalse(Arrays.equals(mAsset, readFile(mDestination)));
+    }
+
+    public void testExtractsAgainWhenTruncated() throws Exception {
+        extract();
+        final RandomAccessFile file = new RandomAccessFile(mDestination, "rw");
+        try {
+            file.setLength(mAsset.length / 2);
+        } finally {
+            file.close();
+        }
+        extract();
+        Assert.assertTrue(Arrays.equals(mAsset, readFile(mDestination)));
+    }
+
+    public void testExtractsAgainWithoutStamp() throws Exception {
+        extract();
+        overwriteFirstByte(mDestination);
+        Assert.assertTrue(mStamp.delete());
+        extract();
+        Assert.assertTrue(Arrays.equals(mAsset, readFile(mDestination)));
+        Assert.assertTrue(mStamp.exists());
+    }
+
+    public void testAppUpdateKeepsUnchangedAsset() throws Exception {
+        extract();
+        final String stamp = new String(readFile(mStamp), "UTF-8");
+        final String checksum = stamp.substring(stamp.lastIndexOf(',') + 1);
+        writeFile(mStamp, ("1-0," + mAsset.length + "," + checksum).getBytes("UTF-8"));
+        final long modified = mDestination.lastModified();
+
+        // The checksum of the asset still matches: only the stamp is written again
+        extract();
+        Assert.assertEquals(stamp, new String(readFile(mStamp), "UTF-8"));
+        Assert.assertEquals(modified, mDestination.lastModified());
+    }
+
+    public void testAppUpdateReplacesChangedAsset() throws Exception {
+        extract();
+        overwriteFirstByte(mDestination);
+        final String stamp = new String(readFile(mStamp), "UTF-8");
+        writeFile(mStamp, ("1-0," + mAsset.length + ",0").getBytes("UTF-8"));
+
+        extract();
+        Assert.assertTrue(Arrays.equals(mAsset, readFile(mDestination)));
+        Assert.assertEquals(stamp, new String(readFile(mStamp), "UTF-8"));
+    }
+
+    private File extract() throws IOException {
+        return AssetExtractor.extract(getContext(), ASSET, mDestination);
+    }
+
+    private static void overwriteFirstByte(final File file) throws IOException {
+        final RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            final int first = out.read();
+            out.seek(0);
+            out.write(first ^ 0xff);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] readFile(final File file) throws IOException {
+        return readFully(new FileInputStream(file));
+    }
+
+    private static void writeFile(final File file, final byte[] data) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] readFully(final InputStream in) throws IOException {
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package com.mapbox.mapboxsdk.android.testapp.test;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import com.mapbox.mapboxsdk.util.BitmapUtils;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import junit.framework.Assert;
+import uk.co.senab.bitmapcache.BitmapLruCache;
+import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
+
+public class BitmapLruCacheTest extends AndroidTestCase {
+
+    private static final int TILE_SIZE = 256;
+    private static final long TIMEOUT = 10 * 1000;
+    private static final long DISK_CACHE_SIZE = 10 * 1024 * 1024;
+    // Below the 1000 entries the disk cache index is sized for at least
+    private static final int INDEX_EXPECTED_ENTRIES = 1000;
+
+    private File mDiskCacheDir;
+    private BitmapLruCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDiskCacheDir = new File(getContext().getCacheDir(), "bitmap-cache-test");
+        deleteDirectory(mDiskCacheDir);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mCache != null) {
+            mCache.close();
+        }
+        deleteDirectory(mDiskCacheDir);
+        super.tearDown();
+    }
+
+    public void testDiskCacheKeepsFreshnessHeader() throws Exception {
+        mCache = buildDiskCache();
+        final long expiration = System.currentTimeMillis() + 60 * 1000;
+        final CacheableBitmapDrawable put =
+                mCache.put("a", createPng(Color.RED), null, expiration, "content-a");
+        Assert.assertNotNull(put);
+        awaitDiskWrites(mCache, 1);
+
+        mCache.removeFromMemoryCache("a");
+        final CacheableBitmapDrawable read = mCache.getFromDiskCache("a", null);
+        Assert.assertNotNull(read);
+        Assert.assertEquals(put.getFetchedTime(), read.getFetchedTime());
+        Assert.assertEquals(expiration, read.getExpirationTime());
+        Assert.assertEquals("content-a", read.getContentKey());
+        Assert.assertEquals(Color.RED, read.getBitmap().getPixel(0, 0));
+    }
+
+    public void testDecodesWithRequestedConfig() {
+        mCache = new BitmapLruCache.Builder(getContext()).build();
+        final CacheableBitmapDrawable opaque = mCache.put("opaque", createPng(Color.BLUE),
+                BitmapUtils.getBitmapOptions(Bitmap.Config.RGB_565));
+        Assert.assertEquals(Bitmap.Config.RGB_565, opaque.getBitmap().getConfig());
+
+        final CacheableBitmapDrawable other = mCache.put("other", createPng(Color.BLUE),
+                BitmapUtils.getBitmapOptions(null));
+        Assert.assertEquals(Bitmap.Config.ARGB_8888, other.getBitmap().getConfig());
+    }
+
+    public void testReusesBitmapsOfTheSameConfigOnly() {
+        mCache = new BitmapLruCache.Builder(getContext())
+                .setRecyclePolicy(BitmapLruCache.RecyclePolicy.DISABLED)
+                .build();
+        final Bitmap bitmap = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        mCache.putInMemoryCache("a", bitmap);
+        mCache.removeFromMemoryCache("a");
+
+        Assert.assertNull(mCache.getBitmapFromRemoved(TILE_SIZE, TILE_SIZE,
+                Bitmap.Config.RGB_565));
+        Assert.assertSame(bitmap, mCache.getBitmapFromRemoved(TILE_SIZE, TILE_SIZE,
+                Bitmap.Config.ARGB_8888));
+    }
+
+    public void testMemoryAliasSharesDrawableAndGoesWithIt() {
+        mCache = new BitmapLruCache.Builder(getContext()).build();
+        final CacheableBitmapDrawable owner =
+                mCache.put("a", createPng(Color.GREEN), null, 0, "content");
+        final int size = mCache.getMemoryCacheSize();
+        mCache.putAliasInMemoryCache("b", owner);
+
+        Assert.assertSame(owner, mCache.getFromMemoryCache("b"));
+        // The alias costs nothing
+        Assert.assertEquals(size, mCache.getMemoryCacheSize());
+
+        mCache.removeFromMemoryCache("a");
+        Assert.assertNull(mCache.getFromMemoryCache("b"));
+    }
+
+    public void testPeekSeesWhatGetSees() {
+        final int tileBytes = BitmapUtils.getTileByteCount(TILE_SIZE, Bitmap.Config.ARGB_8888);
+        mCache = new BitmapLruCache.Builder(getContext())
+                .setMemoryCacheMaxSize(2 * tileBytes)
+                .build();
+        final CacheableBitmapDrawable a = mCache.putInMemoryCache("a",
+                Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888));
+        final CacheableBitmapDrawable b = mCache.putInMemoryCache("b",
+                Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888));
+
+        // Put again under their own url and as an alias, they stay cached
+        mCache.putInMemoryCache("a", a);
+        mCache.putAliasInMemoryCache("c", b);
+        mCache.putAliasInMemoryCache("c", b);
+        Assert.assertTrue(a.isReferencedByCache());
+        assertPeekMatchesGet("a", a);
+        assertPeekMatchesGet("b", b);
+        assertPeekMatchesGet("c", b);
+
+        // Peeking doesn't make a the most recently used: it's evicted first
+        Assert.assertSame(a, mCache.peekFromMemoryCache("a"));
+        mCache.putInMemoryCache("d",
+                Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888));
+        assertPeekMatchesGet("a", null);
+        assertPeekMatchesGet("b", b);
+
+        // The alias put twice still goes with its drawable
+        mCache.removeFromMemoryCache("b");
+        assertPeekMatchesGet("b", null);
+        assertPeekMatchesGet("c", null);
+    }
+
+    public void testDiskAliasReadsTheContentOfItsTarget() throws Exception {
+        mCache = buildDiskCache();
+        final CacheableBitmapDrawable owner =
+                mCache.put("a", createPng(Color.GREEN), null, 0, "content");
+        mCache.putAliasInDiskCache("b", "a", "content", owner);
+        awaitDiskWrites(mCache, 2);
+        mCache.purgeMemoryCache();
+
+        final CacheableBitmapDrawable alias = mCache.getFromDiskCache("b", null);
+        Assert.assertNotNull(alias);
+        Assert.assertEquals("content", alias.getContentKey());
+        Assert.assertEquals(Color.GREEN, alias.getBitmap().getPixel(0, 0));
+        // Decoded once, for both urls
+        Assert.assertSame(alias, mCache.getFromMemoryCache("a"));
+    }
+
+    public void testDiskAliasDroppedOnceItsTargetChanged() throws Exception {
+        mCache = buildDiskCache();
+        final CacheableBitmapDrawable owner =
+                mCache.put("a", createPng(Color.GREEN), null, 0, "content");
+        mCache.putAliasInDiskCache("b", "a", "content", owner);
+        mCache.put("a", createPng(Color.RED), null, 0, "other-content");
+        awaitDiskWrites(mCache, 3);
+        mCache.purgeMemoryCache();
+
+        Assert.assertNull(mCache.getFromDiskCache("b", null));
+    }
+
+    public void testPutsBufferFromItsPositionToItsLimit() throws Exception {
+        mCache = buildDiskCache();
+        final byte[] png = createPng(Color.RED);
+        final int margin = 100;
+        final byte[] padded = new byte[margin + png.length + margin];
+        Arrays.fill(padded, (byte) 0x55);
+        System.arraycopy(png, 0, padded, margin, png.length);
+
+        // An array with an offset, a slice of it, and a buffer without an array
+        final ByteBuffer wrapped = ByteBuffer.wrap(padded, margin, png.length);
+        final ByteBuffer slice = ((ByteBuffer) ByteBuffer.wrap(padded).position(margin)).slice();
+        slice.limit(png.length);
+        final ByteBuffer direct = ByteBuffer.allocateDirect(padded.length);
+        direct.put(padded);
+        direct.position(margin);
+        direct.limit(margin + png.length);
+
+        final ByteBuffer[] buffers = { wrapped, slice, direct };
+        for (int i = 0; i < buffers.length; i++) {
+            final int position = buffers[i].position();
+            final CacheableBitmapDrawable put =
+                    mCache.put("buffer-" + i, buffers[i], null, 0, "content-" + i);
+            Assert.assertNotNull(put);
+            Assert.assertEquals(Color.RED, put.getBitmap().getPixel(0, 0));
+            Assert.assertEquals(position, buffers[i].position());
+            Assert.assertEquals(png.length, buffers[i].remaining());
+        }
+        awaitDiskWrites(mCache, buffers.length);
+
+        // Only the content of the buffers was written to the disk cache
+        mCache.purgeMemoryCache();
+        for (int i = 0; i < buffers.length; i++) {
+            final CacheableBitmapDrawable read = mCache.getFromDiskCache("buffer-" + i, null);
+            Assert.assertNotNull(read);
+            Assert.assertEquals("content-" + i, read.getContentKey());
+            Assert.assertEquals(Color.RED, read.getBitmap().getPixel(0, 0));
+        }
+    }
+
+    public void testIndexSavedAndRebuiltFromDirectory() throws Exception {
+        mCache = buildDiskCache();
+        mCache.put("a", createPng(Color.GREEN, 1), null);
+        awaitDiskWrites(mCache, 1);
+        closeDiskCache(mCache);
+
+        // Loaded from the saved index
+        mCache = buildDiskCache();
+        Assert.assertTrue(mCache.containsInDiskCache("a"));
+        Assert.assertFalse(mCache.containsInDiskCache("never-cached"));
+        closeDiskCache(mCache);
+
+        // Rebuilt from the entries of the cache directory
+        Assert.assertTrue(getIndexFile().delete());
+        mCache = buildDiskCache();
+        Assert.assertTrue(mCache.containsInDiskCache("a"));
+        Assert.assertFalse(mCache.containsInDiskCache("never-cached"));
+        Assert.assertTrue(getIndexFile().exists());
+    }
+
+    public void testIndexRebuiltOnceDegradedByEvictions() throws Exception {
+        // Room for a few entries only, most of the keys added to the index are evicted
+        mCache = buildDiskCache(16 * 1024);
+        final byte[] data = createPng(Color.GREEN, 1);
+        final int count = 2 * INDEX_EXPECTED_ENTRIES + 100;
+        for (int i = 0; i < count; i++) {
+            mCache.put("tile-" + i, data, null);
+            mCache.removeFromMemoryCache("tile-" + i);
+        }
+        awaitDiskWrites(mCache, count);
+        // The index is saved, and rebuilt if needed, when the disk cache is closed
+        closeDiskCache(mCache);
+        mCache = null;
+
+        Assert.assertTrue(readIndexEntries() < INDEX_EXPECTED_ENTRIES);
+    }
+
+    public void testMainThreadDropsWritesButNotRemovals() throws Exception {
+        mCache = buildDiskCache();
+        mCache.put("victim", createPng(Color.RED), null);
+        awaitDiskWrites(mCache, 1);
+        Assert.assertTrue(mCache.containsInDiskCache("victim"));
+
+        // Compressing each write takes far longer than queuing it, so the queue fills up
+        final int count = 100;
+        final Bitmap bitmap = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    mCache.putInDiskCache("fill-" + i, bitmap);
+                }
+                mCache.removeFromDiskCache("victim");
+            }
+        });
+        final long dropped = mCache.getDiskCacheDroppedWriteCount();
+        Assert.assertTrue(dropped > 0);
+
+        awaitDiskWrites(mCache, 1 + count - dropped + 1);
+        Assert.assertFalse(mCache.containsInDiskCache("victim"));
+    }
+
+    public void testBackgroundWritesAreNeverDropped() throws Exception {
+        mCache = buildDiskCache();
+        final int count = 100;
+        final Bitmap bitmap = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        for (int i = 0; i < count; i++) {
+            mCache.putInDiskCache("fill-" + i, bitmap);
+        }
+        awaitDiskWrites(mCache, count);
+        Assert.assertEquals(0, mCache.getDiskCacheDroppedWriteCount());
+        Assert.assertTrue(mCache.containsInDiskCache("fill-" + (count - 1)));
+    }
+
+    /**
+     * Builds a cache with its disk cache enabled, on the main thread since the disk cache is
+     * opened by an AsyncTask, and waits until the disk cache is open.
+     */
+    private BitmapLruCache buildDiskCache() throws Exception {
+        return buildDiskCache(DISK_CACHE_SIZE);
+    }
+
+    private BitmapLruCache buildDiskCache(final long maxSize) throws Exception {
+        final BitmapLruCache.Builder builder = new BitmapLruCache.Builder(getContext())
+                .setDiskCacheEnabled(true)
+                .setDiskCacheLocation(mDiskCacheDir)
+                .setDiskCacheMaxSize(maxSize);
+        final BitmapLruCache[] cache = new BitmapLruCache[1];
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                cache[0] = builder.build();
+            }
+        });
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!cache[0].isDiskCacheEnabled()) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        return cache[0];
+    }
+
+    private static void runOnMainThread(final Runnable runnable) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        Assert.assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    private void assertPeekMatchesGet(final String url, final CacheableBitmapDrawable expected) {
+        Assert.assertSame(expected, mCache.peekFromMemoryCache(url));
+        Assert.assertEquals(expected != null, mCache.containsInMemoryCache(url));
+        Assert.assertSame(expected, mCache.getFromMemoryCache(url));
+    }
+
+    private static void awaitDiskWrites(final BitmapLruCache cache, final long count)
+            throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (cache.getDiskCacheWriteCount() < count) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Encodes an opaque tile, without an alpha channel so it can be decoded as RGB_565.
+     */
+    static byte[] createPng(final int color) {
+        return createPng(color, TILE_SIZE);
+    }
+
+    static byte[] createPng(final int color, final int size) {
+        final Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.RGB_565);
+        bitmap.eraseColor(color);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        bitmap.recycle();
+        return out.toByteArray();
+    }
+
+    /**
+     * Closes the disk cache of {@code cache} and waits for its journal to be released and its
+     * index to be saved.
+     */
+    private void closeDiskCache(final BitmapLruCache cache) throws InterruptedException {
+        final File index = getIndexFile();
+        // Only saved again when the cache is flushed
+        index.delete();
+        cache.close();
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!index.exists()) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        // Saving the index is the last step before closing the journal
+        Thread.sleep(100);
+    }
+
+    private File getIndexFile() {
+        return new File(mDiskCacheDir, "index.bloom");
+    }
+
+    /**
+     * Reads the number of keys added to the saved index, stored after its version, its expected
+     * number of entries and the size of the cache.
+     */
+    private int readIndexEntries() throws IOException {
+        final DataInputStream is = new DataInputStream(new FileInputStream(getIndexFile()));
+        try {
+            is.readInt();
+            is.readInt();
+            is.readLong();
+            return is.readInt();
+        } finally {
+            is.close();
+        }
+    }
+
+    private static void deleteDirectory(final File dir) {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,118 @@
+package com.mapbox.mapboxsdk.android.testapp.test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A tile server on the loopback interface, standing in for a tile service in tests. Every
+ * "/{z}/{x}/{y}.png" request gets the same tile, unless it was told to fail.
+ */
+public class LocalTileServer {
+
+    private final ServerSocket mSocket;
+    private final byte[] mTile;
+    private final AtomicInteger mRequestCount = new AtomicInteger(0);
+    private final Set<String> mFailingPaths = Collections.synchronizedSet(new HashSet<String>());
+    private volatile boolean mClosed = false;
+
+    public LocalTileServer(final byte[] tile) throws IOException {
+        mTile = tile;
+        mSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        final Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!mClosed) {
+                    try {
+                        final Socket socket = mSocket.accept();
+                        new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                handle(socket);
+                            }
+                        }).start();
+                    } catch (IOException e) {
+                        // Closed
+                    }
+                }
+            }
+        }, "LocalTileServer");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * @return the tile URL template of the server
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + mSocket.getLocalPort() + "/{z}/{x}/{y}.png";
+    }
+
+    /**
+     * Answer the next request for a tile with an error.
+     */
+    public void failOnce(final int z, final int x, final int y) {
+        mFailingPaths.add("/" + z + "/" + x + "/" + y + ".png");
+    }
+
+    /**
+     * @return the number of tile requests received
+     */
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    public void close() {
+        mClosed = true;
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    private void handle(final Socket socket) {
+        try {
+            final BufferedReader reader =
+                    new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            final String requestLine = reader.readLine();
+            String header = requestLine;
+            while (header != null && header.length() > 0) {
+                header = reader.readLine();
+            }
+            if (requestLine == null) {
+                return;
+            }
+            mRequestCount.incrementAndGet();
+            final String[] parts = requestLine.split(" ");
+            final String path = parts.length > 1 ? parts[1] : "";
+
+            final OutputStream out = socket.getOutputStream();
+            if (mFailingPaths.remove(path) || !path.endsWith(".png")) {
+                out.write(("HTTP/1.1 500 Internal Server Error\r\nContent-Length: 0\r\n"
+                        + "Connection: close\r\n\r\n").getBytes("US-ASCII"));
+            } else {
+                out.write(("HTTP/1.1 200 OK\r\nContent-Type: image/png\r\nContent-Length: "
+                        + mTile.length + "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+                out.write(mTile);
+            }
+            out.flush();
+        } catch (IOException e) {
+            // The client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.mapbox.mapboxsdk.android.testapp.test;
+
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.test.AndroidTestCase;
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.modules.MBTilesFileArchive;
+import com.mapbox.mapboxsdk.tileprovider.util.StreamUtils;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import junit.framework.Assert;
+
+/**
+ * Compares the ways of reading a tile blob: a compiled statement handing the blob over in shared
+ * memory, a cursor copying it through its window, and what MBTilesFileArchive does.
+ */
+public class MBTilesBlobReadBenchmark extends AndroidTestCase {
+
+    private static final int ZOOM = 5;
+    private static final int ROUNDS = 3;
+    private static final String SQL_SELECT_TILE = "SELECT tile_data FROM tiles"
+            + " WHERE zoom_level=? AND tile_column=? AND tile_row=?";
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "blob-benchmark.mbtiles");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testSmallTiles() throws Exception {
+        benchmark(2 * 1024);
+    }
+
+    public void testTypicalTiles() throws Exception {
+        benchmark(16 * 1024);
+    }
+
+    public void testLargeTiles() throws Exception {
+        benchmark(64 * 1024);
+    }
+
+    private void benchmark(final int tileSize) throws Exception {
+        TestTiles.createMBTiles(mFile, ZOOM, tileSize);
+        final int count = 1 << (2 * ZOOM);
+        final SQLiteDatabase db = SQLiteDatabase.openDatabase(mFile.getAbsolutePath(), null,
+                SQLiteDatabase.OPEN_READONLY);
+        final MBTilesFileArchive archive = MBTilesFileArchive.getDatabaseFileArchive(mFile, 1);
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < count; i++) {
+                    Assert.assertEquals(tileSize, readWithCursor(db, i).length);
+                }
+                TestTiles.logBenchmark("cursor, " + tileSize + " bytes", count,
+                        System.nanoTime() - start);
+
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                    final SQLiteStatement statement = db.compileStatement(SQL_SELECT_TILE);
+                    try {
+                        start = System.nanoTime();
+                        for (int i = 0; i < count; i++) {
+                            Assert.assertEquals(tileSize,
+                                    StatementHoneycomb.read(statement, i).length);
+                        }
+                        TestTiles.logBenchmark("shared memory, " + tileSize + " bytes", count,
+                                System.nanoTime() - start);
+                    } finally {
+                        statement.close();
+                    }
+                }
+
+                start = System.nanoTime();
+                for (int i = 0; i < count; i++) {
+                    Assert.assertEquals(tileSize,
+                            archive.getTileData(new MapTile(ZOOM, i >> ZOOM, i & ((1 << ZOOM) - 1)))
+                                    .length);
+                }
+                TestTiles.logBenchmark("MBTilesFileArchive, " + tileSize + " bytes", count,
+                        System.nanoTime() - start);
+            }
+        } finally {
+            archive.close();
+            db.close();
+        }
+    }
+
+    private static String[] getTileArgs(final int i) {
+        return new String[] {
+                Integer.toString(ZOOM), Integer.toString(i >> ZOOM),
+                Integer.toString(i & ((1 << ZOOM) - 1))
+        };
+    }
+
+    private static byte[] readWithCursor(final SQLiteDatabase db, final int i) {
+        final Cursor cur = db.rawQuery(SQL_SELECT_TILE, getTileArgs(i));
+        try {
+            return cur.moveToFirst() ? cur.getBlob(0) : null;
+        } finally {
+            cur.close();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static class StatementHoneycomb {
+        static byte[] read(final SQLiteStatement statement, final int i) throws IOException {
+            statement.bindLong(1, ZOOM);
+            statement.bindLong(2, i >> ZOOM);
+            statement.bindLong(3, i & ((1 << ZOOM) - 1));
+            final ParcelFileDescriptor descriptor = statement.simpleQueryForBlobFileDescriptor();
+            final InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
+            try {
+                final ByteArrayOutputStream data =
+                        new ByteArrayOutputStream((int) descriptor.getStatSize());
+                StreamUtils.copy(in, data);
+                return data.toByteArray();
+            } finally {
+                StreamUtils.closeStream(in);
+            }
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package com.mapbox.mapboxsdk.android.testapp.test;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
+import com.mapbox.mapboxsdk.tileprovider.modules.MBTilesFileArchive;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import junit.framework.Assert;
+
+public class MBTilesFileArchiveTest extends AndroidTestCase {
+
+    private static final int ZOOM = 2;
+    private static final int TILE_SIZE = 1024;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "archive-test.mbtiles");
+        TestTiles.createMBTiles(mFile, ZOOM, TILE_SIZE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testReadsFromThreads() throws Exception {
+        final MBTilesFileArchive archive = MBTilesFileArchive.getDatabaseFileArchive(mFile, 2);
+        try {
+            // Each thread compiles its own statements, the ones of dead threads are closed
+            for (int i = 0; i < 8; i++) {
+                final MapTile tile = new MapTile(ZOOM, i % 4, i / 4);
+                final byte[] data = readOnThread(archive, tile);
+                Assert.assertNotNull(data);
+                Assert.assertEquals(TILE_SIZE, data.length);
+            }
+            Assert.assertNull(archive.getTileData(new MapTile(ZOOM + 1, 0, 0)));
+        } finally {
+            archive.close();
+        }
+    }
+
+    public void testReadsAfterClose() throws Exception {
+        final MBTilesFileArchive archive = MBTilesFileArchive.getDatabaseFileArchive(mFile, 2);
+        final MapTile tile = new MapTile(ZOOM, 1, 1);
+        Assert.assertTrue(archive.containsTile(tile));
+        Assert.assertNotNull(archive.getTileData(tile));
+        archive.close();
+
+        // Neither the statements of this thread nor new ones are used anymore
+        Assert.assertFalse(archive.containsTile(tile));
+        Assert.assertNull(archive.getTileData(tile));
+        Assert.assertNull(readOnThread(archive, tile));
+        Assert.assertFalse(containsOnThread(archive, tile));
+    }
+
+    public void testIndexIsBuiltInBackgroundAndShared() throws Exception {
+        final MapTile missing = new MapTile(ZOOM + 1, 0, 0);
+        MBTilesFileArchive archive = MBTilesFileArchive.getDatabaseFileArchive(mFile, 1);
+        try {
+            // Every tile may be contained until the level is indexed
+            Assert.assertTrue(archive.mayContainTile(missing));
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (archive.mayContainTile(missing) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertFalse(archive.mayContainTile(missing));
+            Assert.assertTrue(archive.mayContainTile(new MapTile(ZOOM, 1, 1)));
+        } finally {
+            archive.close();
+        }
+
+        // Opening the same file again doesn't index it again
+        archive = MBTilesFileArchive.getDatabaseFileArchive(mFile, 1);
+        try {
+            Assert.assertFalse(archive.mayContainTile(missing));
+        } finally {
+            archive.close();
+        }
+    }
+
+    public void testLargeLevelIndexedByBlocks() throws Exception {
+        // More tiles than the blocks of the index, each block covering 2 x 2 tiles at zoom 10
+        final int zoom = TileLayerConstants.TILE_ARCHIVE_INDEX_EXACT_ZOOM + 1;
+        final int side = 1 << zoom;
+        final int rows = 264;
+        final SQLiteDatabase database = SQLiteDatabase.openDatabase(mFile.getPath(), null,
+                SQLiteDatabase.OPEN_READWRITE);
+        try {
+            final SQLiteStatement insert = database.compileStatement(
+                    "INSERT INTO tiles (zoom_level, tile_column, tile_row, tile_data) "
+                            + "VALUES (?, ?, ?, ?)");
+            database.beginTransaction();
+            try {
+                for (int y = 0; y < rows; y++) {
+                    for (int x = 0; x < side; x++) {
+                        insert.bindLong(1, zoom);
+                        insert.bindLong(2, x);
+                        insert.bindLong(3, side - y - 1);
+                        insert.bindBlob(4, new byte[1]);
+                        insert.executeInsert();
+                    }
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+                insert.close();
+            }
+        } finally {
+            database.close();
+        }
+
+        final MapTile missing = new MapTile(zoom, 0, side - 1);
+        final MBTilesFileArchive archive = MBTilesFileArchive.getDatabaseFileArchive(mFile, 1);
+        try {
+            Assert.assertTrue(archive.mayContainTile(missing));
+            final long deadline = System.currentTimeMillis() + 60000;
+            while (archive.mayContainTile(missing) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+            Assert.assertFalse(archive.mayContainTile(missing));
+            Assert.assertTrue(archive.mayContainTile(new MapTile(zoom, side - 1, rows - 1)));
+            Assert.assertFalse(archive.mayContainTile(new MapTile(zoom, 0, rows)));
+        } finally {
+            archive.close();
+        }
+    }
+
+    public void testReadsOnlyRequestedTiles() throws Exception {
+        final MBTilesFileArchive archive = MBTilesFileArchive.getDatabaseFileArchive(mFile, 1);
+        try {
+            // Close together, read with one query on their range
+            final List<MapTile> dense = new ArrayList<MapTile>();
+            dense.add(new MapTile(ZOOM, 0, 0));
+            dense.add(new MapTile(ZOOM, 1, 0));
+            dense.add(new MapTile(ZOOM, 0, 1));
+            Assert.assertEquals(dense, readTiles(archive, dense));
+
+            // Opposite corners, read one by one
+            final List<MapTile> sparse = new ArrayList<MapTile>();
+            sparse.add(new MapTile(ZOOM, 0, 0));
+            sparse.add(new MapTile(ZOOM, 3, 3));
+            Assert.assertEquals(sparse, readTiles(archive, sparse));
+        } finally {
+            archive.close();
+        }
+    }
+
+    public void testReadsDeduplicatedFile() throws Exception {
+        final File file = new File(getContext().getCacheDir(), "archive-test-dedup.mbtiles");
+        final int imageCount = 3;
+        TestTiles.createDeduplicatedMBTiles(file, ZOOM, TILE_SIZE, imageCount);
+        final MBTilesFileArchive archive = MBTilesFileArchive.getDatabaseFileArchive(file, 2);
+        try {
+            Assert.assertTrue(archive.isDeduplicated());
+            // Each tile is read through the map table, from the image it points at
+            for (int x = 0; x < 1 << ZOOM; x++) {
+                for (int y = 0; y < 1 << ZOOM; y++) {
+                    final MapTile tile = new MapTile(ZOOM, x, y);
+                    final byte[] image = TestTiles.getImage(
+                            TestTiles.getImageId(ZOOM, x, y, imageCount), TILE_SIZE);
+                    Assert.assertTrue(archive.containsTile(tile));
+                    Assert.assertTrue(Arrays.equals(image, archive.getTileData(tile)));
+                    Assert.assertTrue(Arrays.equals(image, readOnThread(archive, tile)));
+                }
+            }
+            Assert.assertFalse(archive.containsTile(new MapTile(ZOOM + 1, 0, 0)));
+            Assert.assertNull(archive.getTileData(new MapTile(ZOOM + 1, 0, 0)));
+
+            // And with a single query for a range of tiles
+            final int count = archive.getTilesData(ZOOM, 0, 3, 1, 2,
+                    new MBTilesFileArchive.TileDataReceiver() {
+                        @Override
+                        public void onTileData(final int x, final int y, final byte[] data) {
+                            Assert.assertTrue(y >= 1 && y <= 2);
+                            Assert.assertTrue(Arrays.equals(TestTiles.getImage(
+                                    TestTiles.getImageId(ZOOM, x, y, imageCount), TILE_SIZE),
+                                    data));
+                        }
+                    });
+            Assert.assertEquals(8, count);
+
+            // Tiles can't be added to it
+            Assert.assertFalse(archive.putTile(new MapTile(ZOOM, 0, 0), new byte[1]));
+        } finally {
+            archive.close();
+            file.delete();
+        }
+    }
+
+    public void testMetadataReadWhileWritten() throws Exception {
+        final MBTilesFileArchive archive = MBTilesFileArchive.createDatabaseFileArchive(mFile);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        // Keeps loading the metadata again as it is written to
+        final Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (writing.get()) {
+                    archive.getMetadata();
+                }
+            }
+        });
+        reader.start();
+        try {
+            for (int i = 0; i < 200; i++) {
+                archive.setMetadata("version", String.valueOf(i));
+                Assert.assertEquals(String.valueOf(i), archive.getMetadata("version"));
+            }
+        } finally {
+            writing.set(false);
+            reader.join();
+            archive.close();
+        }
+    }
+
+    private static List<MapTile> readTiles(final MBTilesFileArchive archive,
+            final List<MapTile> tiles) {
+        final Set<MapTile> read = new HashSet<MapTile>();
+        final int count = archive.getTilesData(tiles, new MBTilesFileArchive.TileDataReceiver() {
+            @Override
+            public void onTileData(final int x, final int y, final byte[] data) {
+                Assert.assertEquals(TILE_SIZE, data.length);
+                Assert.assertTrue(read.add(new MapTile(ZOOM, x, y)));
+            }
+        });
+        Assert.assertEquals(read.size(), count);
+        final List<MapTile> result = new ArrayList<MapTile>();
+        for (MapTile tile : tiles) {
+            if (read.contains(tile)) {
+                result.add(tile);
+            }
+        }
+        Assert.assertEquals(tiles.size(), result.size());
+        return result;
+    }
+
+    private static boolean containsOnThread(final MBTilesFileArchive archive, final MapTile tile)
+            throws InterruptedException {
+        // A thread which never read from the archive doesn't open a reader for it
+        final AtomicReference<Boolean> result = new AtomicReference<Boolean>();
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result.set(archive.containsTile(tile)
+                        || archive.getTilesData(ZOOM, 0, 3, 0, 3, null) > 0);
+            }
+        });
+        thread.start();
+        thread.join();
+        return result.get();
+    }
+
+    private static byte[] readOnThread(final MBTilesFileArchive archive, final MapTile tile)
+            throws InterruptedException {
+        final AtomicReference<byte[]> result = new AtomicReference<byte[]>();
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result.set(archive.getTileData(tile));
+            }
+        });
+        thread.start();
+        thread.join();
+        return result.get();
+    }
+}
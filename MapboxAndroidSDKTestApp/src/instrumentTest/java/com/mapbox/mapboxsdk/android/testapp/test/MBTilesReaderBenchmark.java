@@ -0,0 +1,88 @@
+package com.mapbox.mapboxsdk.android.testapp.test;
+
+import android.test.AndroidTestCase;
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.modules.MBTilesFileArchive;
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.Assert;
+
+/**
+ * Measures how many tiles MBTilesFileArchive reads per second with several threads reading at
+ * the same time, with as many readers as threads and with a single shared one.
+ */
+public class MBTilesReaderBenchmark extends AndroidTestCase {
+
+    private static final int ZOOM = 5;
+    private static final int TILE_SIZE = 16 * 1024;
+    private static final int ROUNDS = 3;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "reader-benchmark.mbtiles");
+        TestTiles.createMBTiles(mFile, ZOOM, TILE_SIZE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testThreadCounts() throws Exception {
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int threads = 1; threads <= 8; threads *= 2) {
+                benchmark(threads, threads);
+                benchmark(threads, 1);
+            }
+        }
+    }
+
+    private void benchmark(final int threadCount, final int readerCount) throws Exception {
+        final MBTilesFileArchive archive =
+                MBTilesFileArchive.getDatabaseFileArchive(mFile, readerCount);
+        final int tilesPerSide = 1 << ZOOM;
+        final int count = tilesPerSide * tilesPerSide;
+        final AtomicInteger failures = new AtomicInteger(0);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        try {
+            for (int t = 0; t < threadCount; t++) {
+                final int first = t;
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            // Every thread reads every tile, starting at a different one
+                            for (int i = 0; i < count; i++) {
+                                final int tile = (first * count / threadCount + i) % count;
+                                final byte[] data = archive.getTileData(new MapTile(ZOOM,
+                                        tile / tilesPerSide, tile % tilesPerSide));
+                                if (data == null || data.length != TILE_SIZE) {
+                                    failures.incrementAndGet();
+                                }
+                            }
+                        } catch (InterruptedException e) {
+                            failures.incrementAndGet();
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }).start();
+            }
+            final long startTime = System.nanoTime();
+            start.countDown();
+            done.await();
+            TestTiles.logBenchmark(threadCount + " threads, " + readerCount + " readers",
+                    count * threadCount, System.nanoTime() - startTime);
+            Assert.assertEquals(0, failures.get());
+        } finally {
+            archive.close();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.mapbox.mapboxsdk.android.testapp.test;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
+import com.mapbox.mapboxsdk.tileprovider.modules.MBTilesTileSink;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.TileLayer;
+import java.io.File;
+import junit.framework.Assert;
+
+public class MBTilesTileSinkTest extends AndroidTestCase {
+
+    private static final int ZOOM = 4;
+    private static final int BATCH_SIZE = TileLayerConstants.OFFLINE_WRITE_BATCH_SIZE;
+    private static final long DELAY = TileLayerConstants.TILE_SINK_MAXIMUM_DELAY;
+    private static final String THREAD_NAME = "MBTilesTileSink";
+
+    private File mFile;
+    private MBTilesTileSink mSink;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "sink-test.mbtiles");
+        mFile.delete();
+        mSink = new MBTilesTileSink(mFile, new TileLayer("sink-test", null));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSink.close();
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testWritesFullBatches() throws Exception {
+        for (int i = 0; i < BATCH_SIZE - 1; i++) {
+            mSink.putTile(getTile(i), new byte[] { (byte) i });
+        }
+        Assert.assertEquals(0, countTiles());
+
+        // The last tile of the batch writes it, on the thread queueing it
+        mSink.putTile(getTile(BATCH_SIZE - 1), new byte[] { 0 });
+        Assert.assertEquals(BATCH_SIZE, countTiles());
+
+        mSink.putTile(getTile(BATCH_SIZE), new byte[] { 0 });
+        Assert.assertEquals(BATCH_SIZE, countTiles());
+        mSink.flush();
+        Assert.assertEquals(BATCH_SIZE + 1, countTiles());
+    }
+
+    public void testCloseWritesQueuedTiles() throws Exception {
+        mSink.putTile(getTile(0), new byte[] { 0 });
+        mSink.close();
+        Assert.assertEquals(1, countTiles());
+
+        // Tiles received afterwards are ignored
+        mSink.putTile(getTile(1), new byte[] { 0 });
+        mSink.flush();
+        Assert.assertEquals(1, countTiles());
+    }
+
+    public void testQueuedTilesWrittenAfterDelay() throws Exception {
+        final long start = System.currentTimeMillis();
+        mSink.putTile(getTile(0), new byte[] { 0 });
+        Assert.assertTrue(isFlushThreadAlive());
+        while (countTiles() == 0) {
+            Assert.assertTrue(System.currentTimeMillis() - start < DELAY + 5000);
+            Thread.sleep(200);
+        }
+        Assert.assertTrue(System.currentTimeMillis() - start >= DELAY);
+
+        // Without tiles to write, the thread doesn't outlive the sink left open
+        while (isFlushThreadAlive()) {
+            Assert.assertTrue(System.currentTimeMillis() - start < 2 * DELAY + 5000);
+            Thread.sleep(200);
+        }
+    }
+
+    public void testRefusesDeduplicatedFile() throws Exception {
+        final File file = new File(getContext().getCacheDir(), "sink-test-dedup.mbtiles");
+        TestTiles.createDeduplicatedMBTiles(file, ZOOM, 16, 2);
+        try {
+            new MBTilesTileSink(file, new TileLayer("sink-test", null));
+            Assert.fail("Tiles can't be added to a deduplicated file");
+        } catch (final IllegalArgumentException e) {
+            // Expected
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static MapTile getTile(final int index) {
+        return new MapTile(ZOOM, index % (1 << ZOOM), index / (1 << ZOOM));
+    }
+
+    /**
+     * Count the tiles written to the file, read with a separate connection.
+     */
+    private int countTiles() {
+        final SQLiteDatabase database = SQLiteDatabase.openDatabase(mFile.getPath(), null,
+                SQLiteDatabase.OPEN_READONLY);
+        try {
+            return (int) DatabaseUtils.longForQuery(database, "SELECT COUNT(*) FROM tiles", null);
+        } finally {
+            database.close();
+        }
+    }
+
+    private static boolean isFlushThreadAlive() {
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (THREAD_NAME.equals(thread.getName()) && thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
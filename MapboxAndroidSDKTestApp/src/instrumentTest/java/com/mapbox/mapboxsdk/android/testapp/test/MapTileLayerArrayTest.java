@@ -0,0 +1,239 @@
+package com.mapbox.mapboxsdk.android.testapp.test;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
+import android.test.AndroidTestCase;
+import com.mapbox.mapboxsdk.geometry.BoundingBox;
+import com.mapbox.mapboxsdk.geometry.LatLng;
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.MapTileCache;
+import com.mapbox.mapboxsdk.tileprovider.MapTileCacheStats;
+import com.mapbox.mapboxsdk.tileprovider.MapTileLayerArray;
+import com.mapbox.mapboxsdk.tileprovider.MapTileRequestState;
+import com.mapbox.mapboxsdk.tileprovider.TileFreshnessPolicy;
+import com.mapbox.mapboxsdk.tileprovider.modules.MapTileModuleLayerBase;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.TileLayer;
+import com.mapbox.mapboxsdk.util.BitmapUtils;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.Assert;
+import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
+
+public class MapTileLayerArrayTest extends AndroidTestCase {
+
+    private static final int TILE_SIZE = 256;
+
+    private TileLayer mLayer;
+    private TestLayerArray mArray;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // Tiles expire as soon as they are fetched
+        mLayer = new TileLayer("layer-array-test", null);
+        mLayer.setFreshnessPolicy(new TileFreshnessPolicy(0, 0, false));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mArray != null) {
+            mArray.detach();
+        }
+        super.tearDown();
+    }
+
+    public void testFailedExpiredTileNotRequestedAgainOffline() throws Exception {
+        checkExpiredTileRequestedOnce(new TestProvider(mLayer, false), 0);
+    }
+
+    public void testServedExpiredTileNotRequestedAgainOffline() throws Exception {
+        checkExpiredTileRequestedOnce(new TestProvider(mLayer, true), 1);
+    }
+
+    private void checkExpiredTileRequestedOnce(final TestProvider provider, final int x)
+            throws Exception {
+        mArray = new TestLayerArray(provider);
+        mArray.setUseDataConnection(false);
+        final MapTile tile = new MapTile(mLayer.getCacheKey(), 4, x, 0);
+        final CacheableBitmapDrawable expired = mArray.getTileCache().putTileInMemoryCache(tile,
+                Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.RGB_565));
+
+        // Drawn as a placeholder while it is requested
+        Assert.assertSame(expired, mArray.getMapTile(tile, true));
+        Assert.assertTrue(mArray.mFinished.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(1, provider.mLoads.get());
+
+        for (int frame = 0; frame < 10; frame++) {
+            final Drawable drawn = mArray.getMapTile(tile, true);
+            Assert.assertNotNull(drawn);
+            Assert.assertTrue(drawn instanceof CacheableBitmapDrawable);
+        }
+        Thread.sleep(200);
+        Assert.assertEquals(1, provider.mLoads.get());
+    }
+
+    public void testMemoryHitCountedEachTimeDrawn() throws Exception {
+        mLayer.setFreshnessPolicy(TileFreshnessPolicy.DEFAULT);
+        mArray = new TestLayerArray(new TestProvider(mLayer, false));
+        MapTileCache.resetStats();
+        final MapTile tile = new MapTile(mLayer.getCacheKey(), 4, 2, 0);
+        final CacheableBitmapDrawable cached = mArray.getTileCache().putTileInMemoryCache(tile,
+                Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.RGB_565));
+
+        for (int frame = 0; frame < 3; frame++) {
+            Assert.assertSame(cached, mArray.getMapTile(tile, true));
+        }
+        final MapTileCacheStats stats = MapTileCache.getStats(mLayer.getCacheKey());
+        Assert.assertEquals(3, stats.getMemoryHits());
+        Assert.assertEquals(0, stats.getMemoryMisses());
+        Assert.assertTrue(stats.getMemoryBytes() > 0);
+    }
+
+    public void testMemoryMissCountedOncePerRequest() throws Exception {
+        mArray = new TestLayerArray(new TestProvider(mLayer, false));
+        mArray.setUseDataConnection(false);
+        MapTileCache.resetStats();
+        final MapTile tile = new MapTile(mLayer.getCacheKey(), 4, 3, 0);
+
+        // Looked up without being requested
+        Assert.assertNull(mArray.getMapTile(tile, false));
+        Assert.assertEquals(0, MapTileCache.getStats(mLayer.getCacheKey()).getMemoryMisses());
+
+        for (int frame = 0; frame < 10; frame++) {
+            Assert.assertNull(mArray.getMapTile(tile, true));
+        }
+        Assert.assertTrue(mArray.mFinished.await(10, TimeUnit.SECONDS));
+        Assert.assertNull(mArray.getMapTile(tile, true));
+
+        final MapTileCacheStats stats = MapTileCache.getStats(mLayer.getCacheKey());
+        Assert.assertEquals(1, stats.getMemoryMisses());
+        Assert.assertEquals(0, stats.getMemoryHits());
+    }
+
+    /**
+     * Counts down once the request of a tile went through every provider.
+     */
+    private class TestLayerArray extends MapTileLayerArray {
+        final CountDownLatch mFinished = new CountDownLatch(1);
+
+        TestLayerArray(final TestProvider provider) {
+            super(getContext(), mLayer, null, new MapTileModuleLayerBase[] { provider });
+        }
+
+        @Override
+        public void mapTileRequestFailed(final MapTileRequestState aState) {
+            super.mapTileRequestFailed(aState);
+            synchronized (mWorking) {
+                if (mWorking.isEmpty()) {
+                    mFinished.countDown();
+                }
+            }
+        }
+
+        @Override
+        public void mapTileRequestExpiredTile(final MapTileRequestState aState,
+                final CacheableBitmapDrawable aDrawable) {
+            super.mapTileRequestExpiredTile(aState, aDrawable);
+            synchronized (mWorking) {
+                if (mWorking.isEmpty()) {
+                    mFinished.countDown();
+                }
+            }
+        }
+    }
+
+    /**
+     * A provider which doesn't need the data connection, and either fails to load tiles or
+     * loads an expired copy of them.
+     */
+    private class TestProvider extends MapTileModuleLayerBase {
+        final AtomicInteger mLoads = new AtomicInteger(0);
+        private final ITileLayer mTileLayer;
+        private final boolean mServeExpired;
+
+        TestProvider(final ITileLayer tileLayer, final boolean serveExpired) {
+            super(1, 4);
+            mTileLayer = tileLayer;
+            mServeExpired = serveExpired;
+        }
+
+        @Override
+        protected String getName() {
+            return "Test provider";
+        }
+
+        @Override
+        protected String getThreadGroupName() {
+            return "test";
+        }
+
+        @Override
+        protected Runnable getTileLoader() {
+            return new TileLoader() {
+                @Override
+                protected Drawable loadTile(final MapTileRequestState pState) {
+                    mLoads.incrementAndGet();
+                    if (!mServeExpired) {
+                        return null;
+                    }
+                    final CacheableBitmapDrawable drawable = mArray.getTileCache()
+                            .createCacheableBitmapDrawable(Bitmap.createBitmap(TILE_SIZE,
+                                    TILE_SIZE, Bitmap.Config.RGB_565), pState.getMapTile());
+                    BitmapUtils.setCacheDrawableExpired(drawable);
+                    return drawable;
+                }
+            };
+        }
+
+        @Override
+        public boolean getUsesDataConnection() {
+            return false;
+        }
+
+        @Override
+        public float getMinimumZoomLevel() {
+            return 0;
+        }
+
+        @Override
+        public float getMaximumZoomLevel() {
+            return 22;
+        }
+
+        @Override
+        public BoundingBox getBoundingBox() {
+            return mTileLayer.getBoundingBox();
+        }
+
+        @Override
+        public LatLng getCenterCoordinate() {
+            return mTileLayer.getCenterCoordinate();
+        }
+
+        @Override
+        public float getCenterZoom() {
+            return mTileLayer.getCenterZoom();
+        }
+
+        @Override
+        public int getTileSizePixels() {
+            return TILE_SIZE;
+        }
+
+        @Override
+        public void setTileSource(final ITileLayer tileSource) {
+        }
+
+        @Override
+        public ITileLayer getTileSource() {
+            return mTileLayer;
+        }
+
+        @Override
+        public String getCacheKey() {
+            return mTileLayer.getCacheKey();
+        }
+    }
+}
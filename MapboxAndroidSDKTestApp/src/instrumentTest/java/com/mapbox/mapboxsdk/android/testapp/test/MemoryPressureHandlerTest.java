@@ -0,0 +1,105 @@
+package com.mapbox.mapboxsdk.android.testapp.test;
+
+import android.content.ComponentCallbacks2;
+import android.test.AndroidTestCase;
+import com.mapbox.mapboxsdk.tileprovider.MapTileCache;
+import com.mapbox.mapboxsdk.tileprovider.MapTileLayerArray;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.TileLayer;
+import com.mapbox.mapboxsdk.util.BitmapUtils;
+import com.mapbox.mapboxsdk.views.util.MemoryPressureHandler;
+import com.mapbox.mapboxsdk.views.util.MemoryPressureListener;
+import com.mapbox.mapboxsdk.views.util.Projection;
+import junit.framework.Assert;
+
+public class MemoryPressureHandlerTest extends AndroidTestCase {
+
+    private static final int WIDTH = 720;
+    private static final int HEIGHT = 1280;
+
+    private MapTileLayerArray mTileProvider;
+    private MapTileCache mCache;
+    private MemoryPressureHandler mHandler;
+    private int mLevel;
+    private int mTransitions;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTileProvider = new MapTileLayerArray(getContext(),
+                new TileLayer("memory-pressure-test", null), null, null);
+        mCache = mTileProvider.getTileCache();
+        mHandler = new MemoryPressureHandler(getContext(), mTileProvider);
+        mHandler.setViewportSize(WIDTH, HEIGHT);
+        mHandler.setListener(new MemoryPressureListener() {
+            @Override
+            public void onMemoryPressureChanged(final int previousLevel, final int level,
+                    final int tileCacheLimit) {
+                Assert.assertEquals(mLevel, previousLevel);
+                Assert.assertEquals(tileCacheLimit, mCache.getMemoryCacheLimit());
+                mLevel = level;
+                mTransitions++;
+            }
+        });
+        mLevel = MemoryPressureHandler.PRESSURE_NONE;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHandler.unregister();
+        mTileProvider.detach();
+        super.tearDown();
+    }
+
+    public void testHiddenUiTrimsNothing() {
+        final int limit = mCache.getMemoryCacheLimit();
+        mHandler.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        Assert.assertEquals(0, mTransitions);
+        Assert.assertEquals(limit, mCache.getMemoryCacheLimit());
+    }
+
+    public void testBackgroundOnlyDropsCompressedTiles() {
+        final int limit = mCache.getMemoryCacheLimit();
+        mHandler.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+        Assert.assertEquals(0, mTransitions);
+        Assert.assertEquals(limit, mCache.getMemoryCacheLimit());
+    }
+
+    public void testModerateKeepsViewportAndRing() {
+        final int limit = mCache.getMemoryCacheLimit();
+        mHandler.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        Assert.assertEquals(MemoryPressureHandler.PRESSURE_MODERATE, mLevel);
+        Assert.assertEquals(Math.min(limit, getTileBudget(1)), mCache.getMemoryCacheLimit());
+    }
+
+    public void testCriticalKeepsViewportOnly() {
+        final int limit = mCache.getMemoryCacheLimit();
+        mHandler.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+        Assert.assertEquals(MemoryPressureHandler.PRESSURE_CRITICAL, mLevel);
+        Assert.assertEquals(Math.min(limit, getTileBudget(0)), mCache.getMemoryCacheLimit());
+    }
+
+    public void testLowerPressureGivesNothingBack() {
+        mHandler.onLowMemory();
+        Assert.assertEquals(MemoryPressureHandler.PRESSURE_CRITICAL, mLevel);
+        final int limit = mCache.getMemoryCacheLimit();
+
+        mHandler.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        Assert.assertEquals(MemoryPressureHandler.PRESSURE_CRITICAL, mLevel);
+        Assert.assertEquals(limit, mCache.getMemoryCacheLimit());
+    }
+
+    public void testUnregisterRestoresTargetSize() {
+        mHandler.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        Assert.assertEquals(MemoryPressureHandler.PRESSURE_CRITICAL, mLevel);
+
+        mHandler.unregister();
+        Assert.assertEquals(MemoryPressureHandler.PRESSURE_NONE, mLevel);
+        Assert.assertEquals(mCache.getMemoryCacheTargetSize(), mCache.getMemoryCacheLimit());
+    }
+
+    private int getTileBudget(final int ring) {
+        final int tileSize = Projection.getTileSize();
+        return BitmapUtils.getViewportTileCount(WIDTH, HEIGHT, tileSize, ring)
+                * BitmapUtils.getTileByteCount(tileSize, mTileProvider.getBitmapConfig());
+    }
+}
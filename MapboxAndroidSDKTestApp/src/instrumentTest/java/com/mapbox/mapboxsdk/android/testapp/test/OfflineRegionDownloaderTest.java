@@ -0,0 +1,226 @@
+package com.mapbox.mapboxsdk.android.testapp.test;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import com.mapbox.mapboxsdk.geometry.BoundingBox;
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
+import com.mapbox.mapboxsdk.tileprovider.modules.MBTilesFileArchive;
+import com.mapbox.mapboxsdk.tileprovider.modules.OfflineRegionDownloader;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.WebSourceTileLayer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import junit.framework.Assert;
+
+public class OfflineRegionDownloaderTest extends AndroidTestCase {
+
+    // 1 tile at zoom level 0, then 4 tiles at each of the zoom levels 1 to 4
+    private static final BoundingBox REGION = new BoundingBox(10d, 10d, -10d, -10d);
+    private static final int MIN_ZOOM = 0;
+    private static final int MAX_ZOOM = 4;
+    private static final int TILE_COUNT = 17;
+
+    private LocalTileServer mServer;
+    private WebSourceTileLayer mLayer;
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final Bitmap bitmap = Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.BLUE);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        bitmap.recycle();
+        mServer = new LocalTileServer(out.toByteArray());
+        mLayer = new WebSourceTileLayer("offline-test", mServer.getUrl());
+        mFile = new File(getContext().getCacheDir(), "offline-test.mbtiles");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testEstimate() throws Exception {
+        final OfflineRegionDownloader downloader = newDownloader();
+        Assert.assertEquals(TILE_COUNT, downloader.getTileCount());
+        Assert.assertEquals(TILE_COUNT, downloader.estimate().getTileCount());
+        Assert.assertEquals(TILE_COUNT * TileLayerConstants.OFFLINE_ESTIMATED_TILE_SIZE,
+                downloader.estimate().getByteCount());
+    }
+
+    public void testDownload() throws Exception {
+        final TestListener listener = new TestListener();
+        newDownloader().setListener(listener).start();
+        listener.await();
+
+        Assert.assertTrue(listener.mCompleted);
+        Assert.assertEquals(0, listener.mFailedTiles.get());
+        Assert.assertEquals(TILE_COUNT, mServer.getRequestCount());
+        Assert.assertEquals(TILE_COUNT, countStoredTiles());
+
+        final MBTilesFileArchive archive = MBTilesFileArchive.getDatabaseFileArchive(mFile, 1);
+        try {
+            Assert.assertTrue(archive.containsTile(new MapTile(mLayer.getCacheKey(), 0, 0, 0)));
+            Assert.assertEquals("png", archive.getMetadata("format"));
+            Assert.assertEquals(Integer.toString(MIN_ZOOM), archive.getMetadata("minzoom"));
+            Assert.assertEquals(Integer.toString(MAX_ZOOM), archive.getMetadata("maxzoom"));
+        } finally {
+            archive.close();
+        }
+    }
+
+    public void testFailedTilesAreRetried() throws Exception {
+        mServer.failOnce(1, 0, 0);
+        mServer.failOnce(4, 8, 8);
+        TestListener listener = new TestListener();
+        final OfflineRegionDownloader downloader = newDownloader().setListener(listener);
+        downloader.start();
+        listener.await();
+        Assert.assertTrue(listener.mCompleted);
+        Assert.assertEquals(2, listener.mFailedTiles.get());
+        Assert.assertEquals(TILE_COUNT - 2, countStoredTiles());
+
+        // Only the failed tiles are requested again
+        final int requests = mServer.getRequestCount();
+        listener = new TestListener();
+        downloader.setListener(listener).start();
+        listener.await();
+        Assert.assertTrue(listener.mCompleted);
+        Assert.assertEquals(0, listener.mFailedTiles.get());
+        Assert.assertEquals(2, mServer.getRequestCount() - requests);
+        Assert.assertEquals(TILE_COUNT, countStoredTiles());
+    }
+
+    public void testCancelAndResume() throws Exception {
+        final CountDownLatch firstTile = new CountDownLatch(1);
+        TestListener listener = new TestListener() {
+            @Override
+            public void onProgress(final long completedTiles, final long totalTiles,
+                    final long downloadedBytes) {
+                firstTile.countDown();
+            }
+        };
+        final OfflineRegionDownloader downloader =
+                newDownloader().setRequestsPerSecond(10).setListener(listener);
+        downloader.start();
+        Assert.assertTrue(firstTile.await(10, TimeUnit.SECONDS));
+        downloader.cancel();
+        listener.await();
+        Assert.assertTrue(listener.mCancelled);
+        Assert.assertFalse(downloader.isRunning());
+        final int requests = mServer.getRequestCount();
+        Assert.assertTrue(requests < TILE_COUNT);
+
+        // Resuming doesn't download the stored tiles again
+        listener = new TestListener();
+        downloader.setRequestsPerSecond(0).setListener(listener).start();
+        listener.await();
+        Assert.assertTrue(listener.mCompleted);
+        Assert.assertEquals(TILE_COUNT, countStoredTiles());
+        Assert.assertTrue(mServer.getRequestCount() <= TILE_COUNT + 1);
+    }
+
+    public void testCancelledDownloadDescribesRegion() throws Exception {
+        final CountDownLatch firstTile = new CountDownLatch(1);
+        final TestListener listener = new TestListener() {
+            @Override
+            public void onProgress(final long completedTiles, final long totalTiles,
+                    final long downloadedBytes) {
+                firstTile.countDown();
+            }
+        };
+        final OfflineRegionDownloader downloader =
+                newDownloader().setRequestsPerSecond(10).setListener(listener);
+        downloader.start();
+        Assert.assertTrue(firstTile.await(10, TimeUnit.SECONDS));
+        downloader.cancel();
+        listener.await();
+        Assert.assertTrue(listener.mCancelled);
+
+        final MBTilesFileArchive archive = MBTilesFileArchive.getDatabaseFileArchive(mFile, 1);
+        try {
+            Assert.assertEquals("png", archive.getMetadata("format"));
+            Assert.assertEquals(Integer.toString(MIN_ZOOM), archive.getMetadata("minzoom"));
+            Assert.assertEquals(Integer.toString(MAX_ZOOM), archive.getMetadata("maxzoom"));
+            Assert.assertNotNull(archive.getMetadata("bounds"));
+        } finally {
+            archive.close();
+        }
+    }
+
+    public void testRequestsPerSecond() throws Exception {
+        final TestListener listener = new TestListener();
+        final long start = SystemClock.elapsedRealtime();
+        newDownloader().setRequestsPerSecond(20).setListener(listener).start();
+        listener.await();
+        Assert.assertTrue(listener.mCompleted);
+        // The first request is immediate, the others 50ms apart
+        Assert.assertTrue(SystemClock.elapsedRealtime() - start >= (TILE_COUNT - 1) * 50);
+    }
+
+    private OfflineRegionDownloader newDownloader() {
+        return new OfflineRegionDownloader(mLayer, REGION, MIN_ZOOM, MAX_ZOOM, mFile)
+                .setThreadCount(2).setRequestsPerSecond(0);
+    }
+
+    private long countStoredTiles() {
+        final SQLiteDatabase db = SQLiteDatabase.openDatabase(mFile.getAbsolutePath(), null,
+                SQLiteDatabase.OPEN_READONLY);
+        try {
+            return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM tiles", null);
+        } finally {
+            db.close();
+        }
+    }
+
+    private static class TestListener implements OfflineRegionDownloader.Listener {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        final AtomicLong mFailedTiles = new AtomicLong(-1);
+        volatile boolean mCompleted = false;
+        volatile boolean mCancelled = false;
+        volatile Exception mError;
+
+        void await() throws Exception {
+            Assert.assertTrue("download timed out", mDone.await(30, TimeUnit.SECONDS));
+            if (mError != null) {
+                throw mError;
+            }
+        }
+
+        @Override
+        public void onProgress(final long completedTiles, final long totalTiles,
+                final long downloadedBytes) {
+        }
+
+        @Override
+        public void onComplete(final long failedTiles) {
+            mFailedTiles.set(failedTiles);
+            mCompleted = true;
+            mDone.countDown();
+        }
+
+        @Override
+        public void onCancel() {
+            mCancelled = true;
+            mDone.countDown();
+        }
+
+        @Override
+        public void onError(final Exception e) {
+            mError = e;
+            mDone.countDown();
+        }
+    }
+}
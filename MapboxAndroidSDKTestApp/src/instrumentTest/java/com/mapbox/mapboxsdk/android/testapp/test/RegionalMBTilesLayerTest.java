@@ -0,0 +1,234 @@
+package com.mapbox.mapboxsdk.android.testapp.test;
+
+import android.graphics.Color;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import com.mapbox.mapboxsdk.geometry.BoundingBox;
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.MapTileCache;
+import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
+import com.mapbox.mapboxsdk.tileprovider.modules.MBTilesFileArchive;
+import com.mapbox.mapboxsdk.tileprovider.modules.MapTileDownloader;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.RegionalMBTilesLayer;
+import com.mapbox.mapboxsdk.views.MapView;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import junit.framework.Assert;
+import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
+
+public class RegionalMBTilesLayerTest extends AndroidTestCase {
+
+    private static final int TILE_SIZE = 16;
+    private static final int MAXIMUM_OPEN = TileLayerConstants.TILE_ARCHIVE_MAXIMUM_OPEN;
+    // One region for each of the columns of tiles at this zoom level, more than can be open
+    private static final int COLUMN_ZOOM = 4;
+    private static final int COLUMN_COUNT = MAXIMUM_OPEN + 2;
+
+    private final List<File> mFiles = new ArrayList<File>();
+    private RegionalMBTilesLayer mLayer;
+    private MapTileDownloader mDownloader;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mDownloader != null) {
+            mDownloader.detach();
+        }
+        if (mLayer != null) {
+            mLayer.detach();
+        }
+        for (File file : mFiles) {
+            file.delete();
+        }
+        super.tearDown();
+    }
+
+    public void testRoutesTilesToTheirRegion() throws Exception {
+        // Each half of the world, with every tile of zoom levels 2 and 8 along the equator
+        final List<MapTile> tiles = new ArrayList<MapTile>();
+        for (int x = 0; x < 4; x++) {
+            tiles.add(new MapTile(2, x, 2));
+        }
+        for (int x = 0; x < 256; x++) {
+            tiles.add(new MapTile(8, x, 128));
+        }
+        createRegion("west", new BoundingBox(85d, -0.01d, -85d, -180d), 2, 8, Color.RED, tiles);
+        createRegion("east", new BoundingBox(85d, 180d, -85d, 0d), 2, 8, Color.BLUE, tiles);
+        createLayer();
+        Assert.assertEquals(2, mLayer.getRegionCount());
+
+        Assert.assertEquals(Color.RED, getTileColor(new MapTile(2, 1, 2)));
+        Assert.assertEquals(Color.BLUE, getTileColor(new MapTile(2, 2, 2)));
+        Assert.assertEquals(Color.RED, getTileColor(new MapTile(8, 127, 128)));
+        Assert.assertEquals(Color.BLUE, getTileColor(new MapTile(8, 128, 128)));
+        // Outside the zoom levels of both regions
+        Assert.assertNull(getTile(new MapTile(1, 0, 1)));
+    }
+
+    public void testRoutesTilesAcrossAntimeridian() throws Exception {
+        // From 170 degrees east to 170 degrees west, around the equator
+        final BoundingBox bounds = new BoundingBox(10d, -170d, -10d, 170d);
+        final List<MapTile> tiles = new ArrayList<MapTile>();
+        for (int x = 0; x < 8; x++) {
+            tiles.add(new MapTile(3, x, 3));
+        }
+        for (int x = 0; x < 256; x++) {
+            tiles.add(new MapTile(8, x, 128));
+        }
+        createRegion("pacific", bounds, 3, 8, Color.GREEN, tiles);
+        createLayer();
+
+        // The westernmost and easternmost columns, below and above the grid
+        Assert.assertEquals(Color.GREEN, getTileColor(new MapTile(3, 7, 3)));
+        Assert.assertEquals(Color.GREEN, getTileColor(new MapTile(3, 0, 3)));
+        Assert.assertNull(getTile(new MapTile(3, 3, 3)));
+        Assert.assertEquals(Color.GREEN, getTileColor(new MapTile(8, 255, 128)));
+        Assert.assertEquals(Color.GREEN, getTileColor(new MapTile(8, 0, 128)));
+        Assert.assertEquals(Color.GREEN, getTileColor(new MapTile(8, 7, 128)));
+        Assert.assertNull(getTile(new MapTile(8, 8, 128)));
+        Assert.assertNull(getTile(new MapTile(8, 128, 128)));
+    }
+
+    public void testClosesLeastRecentlyUsed() throws Exception {
+        createColumnRegions();
+        createLayer();
+        for (int x = 0; x < COLUMN_COUNT; x++) {
+            Assert.assertEquals(getColumnColor(x), getTileColor(getColumnTile(x)));
+            Assert.assertEquals(Math.min(x + 1, MAXIMUM_OPEN), mLayer.getOpenRegionCount());
+        }
+        // The first regions were closed, and are opened again
+        Assert.assertEquals(getColumnColor(0), getTileColor(getColumnTile(0)));
+        Assert.assertEquals(MAXIMUM_OPEN, mLayer.getOpenRegionCount());
+
+        mLayer.detach();
+        Assert.assertEquals(0, mLayer.getOpenRegionCount());
+        Assert.assertNull(getTile(getColumnTile(0)));
+    }
+
+    public void testArchivesReadConcurrentlyStayOpen() throws Exception {
+        createColumnRegions();
+        createLayer();
+        // Every thread reads from more regions than can be open, closing those being read by the
+        // others: they are only closed once released
+        final int threadCount = 4;
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final int first = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 20 * COLUMN_COUNT; j++) {
+                            final int x = (first + j) % COLUMN_COUNT;
+                            Assert.assertEquals(getColumnColor(x),
+                                    getTileColor(getColumnTile(x)));
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join(60000);
+            Assert.assertFalse(thread.isAlive());
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        Assert.assertEquals(MAXIMUM_OPEN, mLayer.getOpenRegionCount());
+    }
+
+    private void createColumnRegions() {
+        final double width = 360d / (1 << COLUMN_ZOOM);
+        for (int x = 0; x < COLUMN_COUNT; x++) {
+            final double west = -180d + x * width;
+            final List<MapTile> tiles = new ArrayList<MapTile>();
+            tiles.add(getColumnTile(x));
+            createRegion("column-" + x, new BoundingBox(85d, west + width - 0.01d, -85d, west),
+                    COLUMN_ZOOM, COLUMN_ZOOM, getColumnColor(x), tiles);
+        }
+    }
+
+    private static MapTile getColumnTile(final int x) {
+        return new MapTile(COLUMN_ZOOM, x, 1 << (COLUMN_ZOOM - 1));
+    }
+
+    /**
+     * @return a shade of blue kept as is by the RGB_565 bitmaps encoded into tiles
+     */
+    private static int getColumnColor(final int x) {
+        final int blue = x + 1;
+        return Color.rgb(0, 0, (blue << 3) | (blue >> 2));
+    }
+
+    /**
+     * Write an MBTiles file covering {@code bounds}, holding {@code tiles} filled with
+     * {@code color}.
+     */
+    private void createRegion(final String name, final BoundingBox bounds, final int minZoom,
+            final int maxZoom, final int color, final List<MapTile> tiles) {
+        final File file = new File(getContext().getCacheDir(), "region-test-" + name + ".mbtiles");
+        file.delete();
+        mFiles.add(file);
+        final byte[] data = BitmapLruCacheTest.createPng(color, TILE_SIZE);
+        final MBTilesFileArchive archive = MBTilesFileArchive.createDatabaseFileArchive(file);
+        boolean success = false;
+        archive.beginTransaction();
+        try {
+            for (MapTile tile : tiles) {
+                archive.putTile(tile, data);
+            }
+            archive.setMetadata("bounds", bounds.getLonWest() + "," + bounds.getLatSouth() + ","
+                    + bounds.getLonEast() + "," + bounds.getLatNorth());
+            archive.setMetadata("minzoom", Integer.toString(minZoom));
+            archive.setMetadata("maxzoom", Integer.toString(maxZoom));
+            success = true;
+        } finally {
+            archive.endTransaction(success);
+            archive.close();
+        }
+    }
+
+    private void createLayer() throws InterruptedException {
+        mLayer = new RegionalMBTilesLayer("region-test", mFiles);
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mDownloader = new MapTileDownloader(mLayer, new MapTileCache(getContext()), null,
+                        new MapView(getContext()));
+            }
+        });
+    }
+
+    private CacheableBitmapDrawable getTile(final MapTile tile) {
+        return mLayer.getDrawableFromTile(mDownloader, tile, false);
+    }
+
+    private int getTileColor(final MapTile tile) {
+        final CacheableBitmapDrawable drawable = getTile(tile);
+        Assert.assertNotNull(drawable);
+        return drawable.getBitmap().getPixel(0, 0);
+    }
+
+    private static void runOnMainThread(final Runnable runnable) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+}
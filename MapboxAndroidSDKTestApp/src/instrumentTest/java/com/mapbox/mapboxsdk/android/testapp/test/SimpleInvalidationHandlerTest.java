@@ -0,0 +1,217 @@
+package com.mapbox.mapboxsdk.android.testapp.test;
+
+import android.content.Context;
+import android.graphics.PointF;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import android.view.View;
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.util.SimpleInvalidationHandler;
+import com.mapbox.mapboxsdk.views.MapView;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import junit.framework.Assert;
+
+public class SimpleInvalidationHandlerTest extends AndroidTestCase {
+
+    private static final int SIZE = 512;
+    private static final long TIMEOUT = 10 * 1000;
+
+    private TestMapView mMapView;
+    private SimpleInvalidationHandler mHandler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mMapView = new TestMapView(getContext());
+                final int spec = View.MeasureSpec.makeMeasureSpec(SIZE, View.MeasureSpec.EXACTLY);
+                mMapView.measure(spec, spec);
+                mMapView.layout(0, 0, SIZE, SIZE);
+                mHandler = new SimpleInvalidationHandler(mMapView);
+                // Only what the tiles invalidate from now on
+                mMapView.mInvalidated.clear();
+                mMapView.mInvalidatedAll = 0;
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mMapView.getTileProvider().detach();
+            }
+        });
+        super.tearDown();
+    }
+
+    public void testTilesArrivedBeforeFrameInvalidatedTogether() throws Exception {
+        // Three of the four tiles around the center of the map, in map coordinates
+        sendTiles(new Rect(-256, -256, 0, 0), new Rect(0, -256, 256, 0),
+                new Rect(-256, 0, 0, 256));
+        awaitFrames(1);
+
+        // Their union, the map being drawn from the center of the view
+        Assert.assertEquals(new Rect(0, 0, SIZE, SIZE), mMapView.mInvalidated.get(0));
+        Assert.assertEquals(0, mMapView.mInvalidatedAll);
+    }
+
+    public void testEachFrameInvalidatesItsOwnTiles() throws Exception {
+        sendTiles(new Rect(-256, -256, 0, 0));
+        awaitFrames(1);
+        sendTiles(new Rect(0, 0, 256, 256));
+        awaitFrames(2);
+
+        Assert.assertEquals(new Rect(0, 0, 256, 256), mMapView.mInvalidated.get(0));
+        Assert.assertEquals(new Rect(256, 256, SIZE, SIZE), mMapView.mInvalidated.get(1));
+    }
+
+    public void testTileWithoutRectInvalidatesEverything() throws Exception {
+        sendTiles(new Rect(-256, -256, 0, 0), null);
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (getInvalidatedAll() == 0) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        Assert.assertEquals(1, getInvalidatedAll());
+        Assert.assertEquals(0, getInvalidatedCount());
+    }
+
+    public void testMapCoordinatesMappedLikeDrawing() throws Exception {
+        final Rect dirty = new Rect(10, 20, 30, 60);
+        final Rect[] invalidated = new Rect[1];
+        final int[] scroll = new int[2];
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mMapView.setMapOrientation(90);
+                mMapView.setScalePoint(new PointF(100, 50));
+                mMapView.setScale(2f);
+                scroll[0] = mMapView.getScrollX();
+                scroll[1] = mMapView.getScrollY();
+                mMapView.mInvalidated.clear();
+                mMapView.invalidateMapCoordinates(dirty);
+                invalidated[0] = mMapView.mInvalidated.get(0);
+            }
+        });
+
+        // Rotated a quarter turn clockwise around the scroll position
+        final int sx = scroll[0];
+        final int sy = scroll[1];
+        final Rect expected = new Rect(sx - (dirty.bottom - sy), sy + (dirty.left - sx),
+                sx - (dirty.top - sy), sy + (dirty.right - sx));
+        // Scaled twice from the scale point, then moved to the center of the view
+        expected.set(2 * expected.left - 100, 2 * expected.top - 50, 2 * expected.right - 100,
+                2 * expected.bottom - 50);
+        expected.offset(SIZE / 2, SIZE / 2);
+        // Rounded out, a pixel larger at most
+        Assert.assertTrue(invalidated[0].contains(expected));
+        expected.inset(-1, -1);
+        Assert.assertTrue(expected.contains(invalidated[0]));
+    }
+
+    /**
+     * Send the messages of tiles arriving with their rects, all handled before the next frame.
+     */
+    private void sendTiles(final Rect... tileRects) throws InterruptedException {
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                for (Rect tileRect : tileRects) {
+                    mHandler.obtainMessage(MapTile.MAPTILE_SUCCESS_ID, tileRect).sendToTarget();
+                }
+            }
+        });
+    }
+
+    /**
+     * Wait for {@code count} parts of the map invalidated in all, then for a few more frames to
+     * check that none follows.
+     */
+    private void awaitFrames(final int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (getInvalidatedCount() < count) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        Assert.assertEquals(count, getInvalidatedCount());
+    }
+
+    private int getInvalidatedCount() throws InterruptedException {
+        final int[] count = new int[1];
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                count[0] = mMapView.mInvalidated.size();
+            }
+        });
+        return count[0];
+    }
+
+    private int getInvalidatedAll() throws InterruptedException {
+        final int[] count = new int[1];
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                count[0] = mMapView.mInvalidatedAll;
+            }
+        });
+        return count[0];
+    }
+
+    private static void runOnMainThread(final Runnable runnable) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        Assert.assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Records what is invalidated, and runs the frame callbacks without being attached to a
+     * window, on the next turn of the main thread.
+     */
+    private static class TestMapView extends MapView {
+        final List<Rect> mInvalidated = new ArrayList<Rect>();
+        int mInvalidatedAll;
+        private final Handler mFrameHandler = new Handler(Looper.getMainLooper());
+
+        TestMapView(final Context context) {
+            super(context);
+        }
+
+        @Override
+        public void invalidate(final Rect dirty) {
+            mInvalidated.add(new Rect(dirty));
+            super.invalidate(dirty);
+        }
+
+        @Override
+        public void invalidate() {
+            mInvalidatedAll++;
+            super.invalidate();
+        }
+
+        @Override
+        public void postOnAnimation(final Runnable action) {
+            mFrameHandler.post(action);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.mapbox.mapboxsdk.android.testapp.test;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.modules.MBTilesFileArchive;
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Builds tile files for the tests and benchmarks.
+ */
+public final class TestTiles {
+
+    private TestTiles() {
+    }
+
+    /**
+     * Write an MBTiles file holding every tile of a zoom level, each made of random bytes so
+     * nothing shares or compresses them.
+     *
+     * @param file the file, replaced if it exists
+     * @param zoom the zoom level, 1 << zoom tiles on a side
+     * @param tileSize the size in bytes of each tile
+     */
+    public static void createMBTiles(final File file, final int zoom, final int tileSize) {
+        file.delete();
+        final MBTilesFileArchive archive = MBTilesFileArchive.createDatabaseFileArchive(file);
+        final Random random = new Random(zoom);
+        final byte[] data = new byte[tileSize];
+        boolean success = false;
+        archive.beginTransaction();
+        try {
+            for (int x = 0; x < 1 << zoom; x++) {
+                for (int y = 0; y < 1 << zoom; y++) {
+                    random.nextBytes(data);
+                    archive.putTile(new MapTile(zoom, x, y), data);
+                }
+            }
+            archive.setMetadata("minzoom", Integer.toString(zoom));
+            archive.setMetadata("maxzoom", Integer.toString(zoom));
+            success = true;
+        } finally {
+            archive.endTransaction(success);
+            archive.close();
+        }
+    }
+
+    /**
+     * Write a deduplicated MBTiles file holding every tile of a zoom level: the tiles are rows of
+     * the map table pointing at a few images shared by many tiles, tile (x, y) showing the image
+     * {@link #getImageId(int, int, int, int)}.
+     *
+     * @param file the file, replaced if it exists
+     * @param zoom the zoom level, 1 << zoom tiles on a side
+     * @param tileSize the size in bytes of each image
+     * @param imageCount the number of distinct images
+     */
+    public static void createDeduplicatedMBTiles(final File file, final int zoom,
+            final int tileSize, final int imageCount) {
+        file.delete();
+        final SQLiteDatabase database = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            database.beginTransaction();
+            try {
+                database.execSQL("CREATE TABLE map (zoom_level INTEGER, tile_column INTEGER, "
+                        + "tile_row INTEGER, tile_id TEXT)");
+                database.execSQL("CREATE UNIQUE INDEX map_index ON map "
+                        + "(zoom_level, tile_column, tile_row)");
+                database.execSQL("CREATE TABLE images (tile_data BLOB, tile_id TEXT)");
+                database.execSQL("CREATE UNIQUE INDEX images_id ON images (tile_id)");
+                database.execSQL("CREATE TABLE metadata (name TEXT, value TEXT)");
+                database.execSQL("CREATE VIEW tiles AS SELECT map.zoom_level AS zoom_level, "
+                        + "map.tile_column AS tile_column, map.tile_row AS tile_row, "
+                        + "images.tile_data AS tile_data FROM map "
+                        + "JOIN images ON images.tile_id = map.tile_id");
+                for (int i = 0; i < imageCount; i++) {
+                    final ContentValues values = new ContentValues();
+                    values.put("tile_id", "image-" + i);
+                    values.put("tile_data", getImage(i, tileSize));
+                    database.insertOrThrow("images", null, values);
+                }
+                for (int x = 0; x < 1 << zoom; x++) {
+                    for (int y = 0; y < 1 << zoom; y++) {
+                        final ContentValues values = new ContentValues();
+                        values.put("zoom_level", zoom);
+                        values.put("tile_column", x);
+                        values.put("tile_row", (1 << zoom) - y - 1);
+                        values.put("tile_id", "image-" + getImageId(zoom, x, y, imageCount));
+                        database.insertOrThrow("map", null, values);
+                    }
+                }
+                database.execSQL("INSERT INTO metadata VALUES ('minzoom', ?)",
+                        new Object[] { zoom });
+                database.execSQL("INSERT INTO metadata VALUES ('maxzoom', ?)",
+                        new Object[] { zoom });
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        } finally {
+            database.close();
+        }
+    }
+
+    /**
+     * @return the image shown by a tile of a file written by
+     * {@link #createDeduplicatedMBTiles(File, int, int, int)}
+     */
+    public static int getImageId(final int zoom, final int x, final int y,
+            final int imageCount) {
+        return (x + y * (1 << zoom)) % imageCount;
+    }
+
+    /**
+     * @return the content of an image of a file written by
+     * {@link #createDeduplicatedMBTiles(File, int, int, int)}
+     */
+    public static byte[] getImage(final int imageId, final int tileSize) {
+        final byte[] data = new byte[tileSize];
+        new Random(imageId).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Log the result of a benchmark.
+     *
+     * @param name what was measured
+     * @param count the number of operations
+     * @param nanos the time they took, in nanoseconds
+     */
+    public static void logBenchmark(final String name, final int count, final long nanos) {
+        Log.i("Benchmark", name + ": " + count + " in " + nanos / 1000000 + "ms, "
+                + (count > 0 ? nanos / 1000 / count : 0) + "us each");
+    }
+}
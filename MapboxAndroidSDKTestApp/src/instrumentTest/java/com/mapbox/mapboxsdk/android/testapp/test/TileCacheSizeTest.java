@@ -0,0 +1,115 @@
+package com.mapbox.mapboxsdk.android.testapp.test;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import android.util.DisplayMetrics;
+import com.mapbox.mapboxsdk.tileprovider.MapTileLayerBase;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.WebSourceTileLayer;
+import com.mapbox.mapboxsdk.util.BitmapUtils;
+import com.mapbox.mapboxsdk.views.MapView;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import junit.framework.Assert;
+
+public class TileCacheSizeTest extends AndroidTestCase {
+
+    private static final int TILE_SIZE = 256;
+    private static final int WIDTH = 300;
+    private static final int HEIGHT = 200;
+
+    private MapView mMapView;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mMapView != null) {
+            runOnMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    mMapView.getTileProvider().detach();
+                }
+            });
+        }
+        super.tearDown();
+    }
+
+    public void testBudgetCoversScreensAndLayers() {
+        // 3 columns and 2 rows of tiles, at most
+        final int tileBytes = BitmapUtils.getTileByteCount(TILE_SIZE, Bitmap.Config.ARGB_8888);
+        Assert.assertEquals(6, BitmapUtils.getViewportTileCount(WIDTH, HEIGHT, TILE_SIZE, 0));
+
+        Assert.assertEquals(6 * tileBytes, calculateSize(false, Bitmap.Config.ARGB_8888, 1f, 1));
+        Assert.assertEquals(3 * 6 * tileBytes,
+                calculateSize(false, Bitmap.Config.ARGB_8888, 3f, 1));
+        Assert.assertEquals(2 * 6 * tileBytes,
+                calculateSize(false, Bitmap.Config.ARGB_8888, 1f, 2));
+        // The visible tiles of a single layer are always kept
+        Assert.assertEquals(6 * tileBytes, calculateSize(false, Bitmap.Config.ARGB_8888, 0f, 0));
+    }
+
+    public void testBudgetFollowsDecodedTileSize() {
+        final int size = calculateSize(false, Bitmap.Config.ARGB_8888, 1f, 1);
+        Assert.assertEquals(4 * size, calculateSize(true, Bitmap.Config.ARGB_8888, 1f, 1));
+        Assert.assertEquals(size / 2, calculateSize(false, Bitmap.Config.RGB_565, 1f, 1));
+    }
+
+    public void testBudgetCappedByHeapClass() {
+        final int maxSize = BitmapUtils.calculateMemoryCacheSize(getContext());
+        Assert.assertEquals(maxSize, BitmapUtils.calculateMemoryCacheSize(getContext(), 4096,
+                4096, TILE_SIZE, true, Bitmap.Config.ARGB_8888, 10f, 4));
+        // Before the map is laid out
+        Assert.assertEquals(maxSize, BitmapUtils.calculateMemoryCacheSize(getContext(), 0, 0,
+                TILE_SIZE, false, Bitmap.Config.ARGB_8888, 3f, 1));
+    }
+
+    public void testLayersOfTheMap() throws Exception {
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mMapView = new MapView(getContext());
+                mMapView.setTileSource(new ITileLayer[] {
+                        new WebSourceTileLayer("base", "http://localhost/base/{z}/{x}/{y}.png"),
+                        new WebSourceTileLayer("labels",
+                                "http://localhost/labels/{z}/{x}/{y}{2x}.png")
+                });
+            }
+        });
+        final MapTileLayerBase tileProvider = mMapView.getTileProvider();
+        Assert.assertEquals(2, tileProvider.getTileLayerCount());
+        // The labels are downloaded at twice their size on high density screens
+        Assert.assertEquals(getContext().getResources().getDisplayMetrics().densityDpi
+                > DisplayMetrics.DENSITY_HIGH, tileProvider.isHdpi());
+
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mMapView.removeTileSource(1);
+            }
+        });
+        Assert.assertEquals(1, tileProvider.getTileLayerCount());
+        Assert.assertFalse(tileProvider.isHdpi());
+    }
+
+    private int calculateSize(final boolean hdpi, final Bitmap.Config config,
+            final float screens, final int layers) {
+        return BitmapUtils.calculateMemoryCacheSize(getContext(), WIDTH, HEIGHT, TILE_SIZE, hdpi,
+                config, screens, layers);
+    }
+
+    private static void runOnMainThread(final Runnable runnable) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,79 @@
+package com.mapbox.mapboxsdk.android.testapp.test;
+
+import android.test.AndroidTestCase;
+import com.mapbox.mapboxsdk.tileprovider.TileFreshnessPolicy;
+import junit.framework.Assert;
+
+public class TileFreshnessPolicyTest extends AndroidTestCase {
+
+    private static final long FETCHED = 1000000L;
+    private static final long MAX_AGE = 60 * 1000;
+    private static final long STALE_WHILE_REVALIDATE = 30 * 1000;
+
+    public void testFreshStaleExpired() {
+        final TileFreshnessPolicy policy =
+                new TileFreshnessPolicy(MAX_AGE, STALE_WHILE_REVALIDATE, false);
+        Assert.assertEquals(TileFreshnessPolicy.FRESH, policy.getFreshness(FETCHED, 0, FETCHED));
+        Assert.assertEquals(TileFreshnessPolicy.FRESH,
+                policy.getFreshness(FETCHED, 0, FETCHED + MAX_AGE - 1));
+        Assert.assertEquals(TileFreshnessPolicy.STALE,
+                policy.getFreshness(FETCHED, 0, FETCHED + MAX_AGE));
+        Assert.assertEquals(TileFreshnessPolicy.STALE,
+                policy.getFreshness(FETCHED, 0, FETCHED + MAX_AGE + STALE_WHILE_REVALIDATE - 1));
+        Assert.assertEquals(TileFreshnessPolicy.EXPIRED,
+                policy.getFreshness(FETCHED, 0, FETCHED + MAX_AGE + STALE_WHILE_REVALIDATE));
+    }
+
+    public void testNoStaleWindow() {
+        final TileFreshnessPolicy policy = new TileFreshnessPolicy(MAX_AGE, 0, false);
+        Assert.assertEquals(TileFreshnessPolicy.EXPIRED,
+                policy.getFreshness(FETCHED, 0, FETCHED + MAX_AGE));
+    }
+
+    public void testDefaultNeverExpires() {
+        final TileFreshnessPolicy policy = TileFreshnessPolicy.DEFAULT;
+        Assert.assertFalse(policy.canExpire());
+        Assert.assertEquals(Long.MAX_VALUE, policy.getExpirationTime(FETCHED, 0));
+        Assert.assertEquals(TileFreshnessPolicy.FRESH,
+                policy.getFreshness(FETCHED, FETCHED + 1, Long.MAX_VALUE - 1));
+    }
+
+    public void testServerExpirationOnlyWhenHonoured() {
+        final long serverExpiration = FETCHED + 10 * MAX_AGE;
+        final TileFreshnessPolicy ignoring = new TileFreshnessPolicy(MAX_AGE, 0, false);
+        Assert.assertEquals(FETCHED + MAX_AGE,
+                ignoring.getExpirationTime(FETCHED, serverExpiration));
+
+        final TileFreshnessPolicy honouring = new TileFreshnessPolicy(MAX_AGE, 0, true);
+        Assert.assertTrue(honouring.canExpire());
+        Assert.assertEquals(serverExpiration,
+                honouring.getExpirationTime(FETCHED, serverExpiration));
+        Assert.assertEquals(TileFreshnessPolicy.FRESH,
+                honouring.getFreshness(FETCHED, serverExpiration, FETCHED + 2 * MAX_AGE));
+        // Without an expiration from the server, the maximum age of the policy applies
+        Assert.assertEquals(FETCHED + MAX_AGE, honouring.getExpirationTime(FETCHED, 0));
+    }
+
+    public void testParseMaxAge() {
+        Assert.assertEquals(FETCHED + 3600 * 1000L,
+                TileFreshnessPolicy.parseExpirationTime(FETCHED, "public, max-age=3600", 0));
+        Assert.assertEquals(FETCHED + 60 * 1000L,
+                TileFreshnessPolicy.parseExpirationTime(FETCHED, " max-age= 60 ,public", 0));
+    }
+
+    public void testParseNoCache() {
+        Assert.assertEquals(FETCHED,
+                TileFreshnessPolicy.parseExpirationTime(FETCHED, "no-cache", FETCHED + 1000));
+        Assert.assertEquals(FETCHED,
+                TileFreshnessPolicy.parseExpirationTime(FETCHED, "private, no-store", 0));
+    }
+
+    public void testParseFallsBackToExpires() {
+        final long expires = FETCHED + 5000;
+        Assert.assertEquals(expires,
+                TileFreshnessPolicy.parseExpirationTime(FETCHED, null, expires));
+        Assert.assertEquals(expires,
+                TileFreshnessPolicy.parseExpirationTime(FETCHED, "max-age=soon", expires));
+        Assert.assertEquals(0, TileFreshnessPolicy.parseExpirationTime(FETCHED, "public", 0));
+    }
+}
@@ -0,0 +1,103 @@
+package com.mapbox.mapboxsdk.android.testapp.test;
+
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.util.TileLooper;
+import junit.framework.Assert;
+
+public class TileLooperTest extends AndroidTestCase {
+
+    private static final String LAYER = "looper-test";
+    private static final int TILE_SIZE = 256;
+    private static final int ZOOM = 8;
+
+    public void testUnchangedViewportAllocatesNothing() throws Exception {
+        final RecordingLooper looper = new RecordingLooper();
+        final Rect viewport = new Rect(0, 0, 4 * TILE_SIZE, 6 * TILE_SIZE);
+        // The first frame creates the keys, and warms up the handler's message pool
+        looper.loop(null, LAYER, ZOOM, TILE_SIZE, viewport, viewport);
+        final MapTile[] first = looper.copyTiles();
+
+        Assert.assertEquals(0, countAllocations(looper, viewport));
+        Assert.assertEquals(first.length, looper.mCount);
+        for (int i = 0; i < first.length; i++) {
+            Assert.assertSame(first[i], looper.mTiles[i]);
+        }
+    }
+
+    public void testPannedViewportOnlyAllocatesNewTiles() throws Exception {
+        final RecordingLooper looper = new RecordingLooper();
+        final Rect viewport = new Rect(0, 0, 4 * TILE_SIZE, 6 * TILE_SIZE);
+        looper.loop(null, LAYER, ZOOM, TILE_SIZE, viewport, viewport);
+
+        // One more column of tiles on the right, each tile being a single MapTile
+        viewport.offset(TILE_SIZE, 0);
+        final int rows = looper.mRows;
+        Assert.assertTrue(countAllocations(looper, viewport) <= rows);
+    }
+
+    public void testViewportLargerThanInitialWindow() throws Exception {
+        final RecordingLooper looper = new RecordingLooper();
+        // 40 tiles wide, more than the 32 tiles of the initial window
+        final Rect viewport = new Rect(0, 0, 40 * TILE_SIZE, 2 * TILE_SIZE);
+        looper.loop(null, LAYER, ZOOM, TILE_SIZE, viewport, viewport);
+        final MapTile[] first = looper.copyTiles();
+        for (int i = 0; i < first.length; i++) {
+            for (int j = i + 1; j < first.length; j++) {
+                Assert.assertNotSame(first[i], first[j]);
+            }
+        }
+
+        // Every key is kept, none of them evicted another one from its slot
+        Assert.assertEquals(0, countAllocations(looper, viewport));
+        for (int i = 0; i < first.length; i++) {
+            Assert.assertSame(first[i], looper.mTiles[i]);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static int countAllocations(final TileLooper looper, final Rect viewport) {
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        looper.loop(null, LAYER, ZOOM, TILE_SIZE, viewport, viewport);
+        Debug.stopAllocCounting();
+        return Debug.getThreadAllocCount();
+    }
+
+    /**
+     * Records the tiles of the last frame, in arrays allocated up front.
+     */
+    private static class RecordingLooper extends TileLooper {
+        final MapTile[] mTiles = new MapTile[1024];
+        int mCount;
+        int mRows;
+        private int mLastY = Integer.MIN_VALUE;
+
+        @Override
+        public void initializeLoop(final float pZoomLevel, final int pTileSizePx) {
+            mCount = 0;
+            mRows = 0;
+            mLastY = Integer.MIN_VALUE;
+        }
+
+        @Override
+        public void handleTile(final Canvas pCanvas, final String pCacheKey,
+                final int pTileSizePx, final MapTile pTile, final int pX, final int pY,
+                final Rect pClipRect) {
+            mTiles[mCount++] = pTile;
+            if (pY != mLastY) {
+                mRows++;
+                mLastY = pY;
+            }
+        }
+
+        MapTile[] copyTiles() {
+            final MapTile[] tiles = new MapTile[mCount];
+            System.arraycopy(mTiles, 0, tiles, 0, mCount);
+            return tiles;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.mapbox.mapboxsdk.android.testapp.test;
+
+import android.test.AndroidTestCase;
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.modules.MBTilesFileArchive;
+import com.mapbox.mapboxsdk.tileprovider.modules.TilePackConverter;
+import com.mapbox.mapboxsdk.tileprovider.modules.TilePackFileArchive;
+import java.io.File;
+import java.nio.ByteBuffer;
+import junit.framework.Assert;
+
+/**
+ * Compares reading the tiles of an MBTiles file with reading the same tiles once converted to a
+ * tile pack, both as a buffer over the mapped file and copied into an array.
+ */
+public class TilePackBenchmark extends AndroidTestCase {
+
+    private static final int ZOOM = 5;
+    private static final int TILE_SIZE = 16 * 1024;
+    private static final int ROUNDS = 3;
+
+    private File mMBTiles;
+    private File mPack;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMBTiles = new File(getContext().getCacheDir(), "pack-benchmark.mbtiles");
+        mPack = new File(getContext().getCacheDir(), "pack-benchmark.tilepack");
+        TestTiles.createMBTiles(mMBTiles, ZOOM, TILE_SIZE);
+        Assert.assertEquals(1 << (2 * ZOOM), TilePackConverter.convert(mMBTiles, mPack));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mMBTiles.delete();
+        mPack.delete();
+        super.tearDown();
+    }
+
+    public void testMetadata() throws Exception {
+        final TilePackFileArchive pack = new TilePackFileArchive(mPack);
+        Assert.assertEquals(ZOOM, (int) pack.getMetadata().getMinZoomLevel());
+        Assert.assertEquals(ZOOM, (int) pack.getMetadata().getMaxZoomLevel());
+    }
+
+    public void testReads() throws Exception {
+        final int tilesPerSide = 1 << ZOOM;
+        final int count = tilesPerSide * tilesPerSide;
+        final MBTilesFileArchive mbtiles = MBTilesFileArchive.getDatabaseFileArchive(mMBTiles, 1);
+        final TilePackFileArchive pack = new TilePackFileArchive(mPack);
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < count; i++) {
+                    final MapTile tile = new MapTile(ZOOM, i / tilesPerSide, i % tilesPerSide);
+                    Assert.assertEquals(TILE_SIZE, mbtiles.getTileData(tile).length);
+                }
+                TestTiles.logBenchmark("MBTilesFileArchive", count, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                for (int i = 0; i < count; i++) {
+                    final MapTile tile = new MapTile(ZOOM, i / tilesPerSide, i % tilesPerSide);
+                    final ByteBuffer buffer = pack.getEntryBuffer(pack.findEntry(tile));
+                    Assert.assertEquals(TILE_SIZE, buffer.remaining());
+                }
+                TestTiles.logBenchmark("TilePackFileArchive buffer", count,
+                        System.nanoTime() - start);
+
+                start = System.nanoTime();
+                for (int i = 0; i < count; i++) {
+                    final MapTile tile = new MapTile(ZOOM, i / tilesPerSide, i % tilesPerSide);
+                    Assert.assertEquals(TILE_SIZE, pack.getTileData(tile).length);
+                }
+                TestTiles.logBenchmark("TilePackFileArchive copy", count,
+                        System.nanoTime() - start);
+            }
+        } finally {
+            mbtiles.close();
+        }
+    }
+}
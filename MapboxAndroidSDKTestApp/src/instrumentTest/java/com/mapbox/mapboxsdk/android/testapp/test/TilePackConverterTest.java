@@ -0,0 +1,84 @@
+package com.mapbox.mapboxsdk.android.testapp.test;
+
+import android.test.AndroidTestCase;
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.modules.MBTilesFileArchive;
+import com.mapbox.mapboxsdk.tileprovider.modules.TilePackConverter;
+import com.mapbox.mapboxsdk.tileprovider.modules.TilePackFileArchive;
+import java.io.File;
+import java.util.Arrays;
+import junit.framework.Assert;
+
+public class TilePackConverterTest extends AndroidTestCase {
+
+    private static final int ZOOM = 2;
+    private static final int TILE_SIZE = 256;
+
+    private File mMBTiles;
+    private File mPack;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMBTiles = new File(getContext().getCacheDir(), "converter-test.mbtiles");
+        mPack = new File(getContext().getCacheDir(), "converter-test.tilepack");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mMBTiles.delete();
+        mPack.delete();
+        super.tearDown();
+    }
+
+    public void testConvertsLevelsMissingFromMetadata() throws Exception {
+        TestTiles.createMBTiles(mMBTiles, ZOOM, TILE_SIZE);
+        // Tiles one level deeper than the metadata says
+        final MBTilesFileArchive archive = MBTilesFileArchive.createDatabaseFileArchive(mMBTiles);
+        try {
+            archive.putTile(new MapTile(ZOOM + 1, 5, 6), new byte[TILE_SIZE]);
+            Assert.assertEquals(ZOOM, (int) archive.getMetadata().getMaxZoomLevel());
+            Assert.assertTrue(Arrays.equals(new int[] { ZOOM, ZOOM + 1 },
+                    archive.getTileZoomRange()));
+        } finally {
+            archive.close();
+        }
+
+        Assert.assertEquals((1 << (2 * ZOOM)) + 1, TilePackConverter.convert(mMBTiles, mPack));
+        final TilePackFileArchive pack = new TilePackFileArchive(mPack);
+        Assert.assertEquals(TILE_SIZE, pack.getTileData(new MapTile(ZOOM + 1, 5, 6)).length);
+        Assert.assertEquals(TILE_SIZE, pack.getTileData(new MapTile(ZOOM, 3, 3)).length);
+        Assert.assertFalse(pack.containsTile(new MapTile(ZOOM + 1, 0, 0)));
+    }
+
+    public void testConvertsDeduplicatedFile() throws Exception {
+        final int imageCount = 3;
+        TestTiles.createDeduplicatedMBTiles(mMBTiles, ZOOM, TILE_SIZE, imageCount);
+        Assert.assertEquals(1 << (2 * ZOOM), TilePackConverter.convert(mMBTiles, mPack));
+
+        final TilePackFileArchive pack = new TilePackFileArchive(mPack);
+        for (int x = 0; x < 1 << ZOOM; x++) {
+            for (int y = 0; y < 1 << ZOOM; y++) {
+                final MapTile tile = new MapTile(ZOOM, x, y);
+                Assert.assertTrue(Arrays.equals(TestTiles.getImage(
+                        TestTiles.getImageId(ZOOM, x, y, imageCount), TILE_SIZE),
+                        pack.getTileData(tile)));
+            }
+        }
+        // The tiles showing the same image share it in the pack
+        Assert.assertEquals(pack.getTileOffset(new MapTile(ZOOM, 0, 0)),
+                pack.getTileOffset(new MapTile(ZOOM, imageCount, 0)));
+    }
+
+    public void testConvertsFileWithoutTiles() throws Exception {
+        mMBTiles.delete();
+        final MBTilesFileArchive archive = MBTilesFileArchive.createDatabaseFileArchive(mMBTiles);
+        try {
+            Assert.assertNull(archive.getTileZoomRange());
+        } finally {
+            archive.close();
+        }
+        Assert.assertEquals(0, TilePackConverter.convert(mMBTiles, mPack));
+        Assert.assertEquals(0, new TilePackFileArchive(mPack).getTileCount());
+    }
+}
@@ -0,0 +1,266 @@
+package com.mapbox.mapboxsdk.android.testapp.test;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import android.view.View;
+import com.mapbox.mapboxsdk.overlay.TilesOverlay;
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.MapTileLayerArray;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.TileLayer;
+import com.mapbox.mapboxsdk.util.GeometryMath;
+import com.mapbox.mapboxsdk.views.MapView;
+import com.mapbox.mapboxsdk.views.util.Projection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import junit.framework.Assert;
+
+public class TilesOverlayTest extends AndroidTestCase {
+
+    private static final int TILE_SIZE = 256;
+    private static final long TIMEOUT = 10 * 1000;
+
+    private MapTileLayerArray mTileProvider;
+    private TilesOverlay mOverlay;
+    private MapView mMapView;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTileProvider = new MapTileLayerArray(getContext(),
+                new TileLayer("tiles-overlay-test", null), null, null);
+        mTileProvider.setUseDataConnection(false);
+        mOverlay = new TilesOverlay(mTileProvider);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        // Stops the rescale thread, and detaches the tile provider
+        mOverlay.onDetach(mMapView);
+        if (mMapView != null) {
+            runOnMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    mMapView.getTileProvider().detach();
+                }
+            });
+        }
+        super.tearDown();
+    }
+
+    public void testDrawsPartOfParentInPlaceOfMissingTile() {
+        // The grandparent is left out for the nearest ancestor
+        putTile(0, 0, 0, createGrid(1));
+        putTile(1, 0, 0, createGrid(2));
+
+        final Bitmap drawn = draw(2, 2 * TILE_SIZE);
+        for (int x = 0; x < 2; x++) {
+            for (int y = 0; y < 2; y++) {
+                // Each tile shows a quarter of its parent, scaled up twice
+                assertTileColor(drawn, x, y, getCellColor(x, y));
+            }
+        }
+    }
+
+    public void testDrawsPartOfDistantAncestorInPlaceOfMissingTile() {
+        putTile(0, 0, 0, createGrid(4));
+
+        final Bitmap drawn = draw(2, 4 * TILE_SIZE);
+        for (int x = 0; x < 4; x++) {
+            for (int y = 0; y < 4; y++) {
+                // Each tile shows a sixteenth of the root tile, scaled up four times
+                assertTileColor(drawn, x, y, getCellColor(x, y));
+            }
+        }
+    }
+
+    public void testDrawsChildrenInPlaceOfMissingTile() {
+        putTile(3, 0, 0, createTile(Color.RED));
+        putTile(3, 1, 0, createTile(Color.GREEN));
+        putTile(3, 0, 1, createTile(Color.BLUE));
+
+        // Each child in its quarter, the missing one leaving its quarter as it was
+        final Bitmap drawn = draw(2, TILE_SIZE);
+        final int half = TILE_SIZE / 2;
+        assertAreaColor(drawn, 0, 0, half, Color.RED);
+        assertAreaColor(drawn, half, 0, half, Color.GREEN);
+        assertAreaColor(drawn, 0, half, half, Color.BLUE);
+        assertAreaColor(drawn, half, half, half, Color.WHITE);
+    }
+
+    public void testRescaleScalesCachedTiles() throws Exception {
+        final Projection projection = createProjection();
+        putZoomLevel(2);
+        rescale(projection, 3, 2);
+
+        awaitTile(getCenterTile(projection, 3));
+    }
+
+    public void testRescaleCancelledByNextRescale() throws Exception {
+        final Projection projection = createProjection();
+        putZoomLevel(2);
+        // Both started before the tiles of either can be put in the cache, on the main thread
+        rescale(projection, 3, 2, 1, 2);
+
+        awaitTile(getCenterTile(projection, 1));
+        Assert.assertNull(mTileProvider.peekMapTileFromMemory(getCenterTile(projection, 3)));
+    }
+
+    public void testRescaleCancelledByZoomBeyondRescaleRange() throws Exception {
+        final Projection projection = createProjection();
+        putZoomLevel(2);
+        // Too far to be rescaled, the zoom level still changed
+        rescale(projection, 3, 2, 8, 2);
+
+        // Once the next rescale is done, so is the one cancelled: they run one after the other
+        rescale(projection, 1, 2);
+        awaitTile(getCenterTile(projection, 1));
+        Assert.assertNull(mTileProvider.peekMapTileFromMemory(getCenterTile(projection, 3)));
+    }
+
+    /**
+     * Create a laid out map, for the projection giving the area of the tiles to rescale.
+     */
+    private Projection createProjection() throws InterruptedException {
+        final Projection[] projection = new Projection[1];
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mMapView = new MapView(getContext());
+                final int spec = View.MeasureSpec.makeMeasureSpec(2 * TILE_SIZE,
+                        View.MeasureSpec.EXACTLY);
+                mMapView.measure(spec, spec);
+                mMapView.layout(0, 0, 2 * TILE_SIZE, 2 * TILE_SIZE);
+                projection[0] = mMapView.getProjection();
+            }
+        });
+        return projection[0];
+    }
+
+    /**
+     * Rescale the cache, from one zoom level to another then to the next pair of levels if any,
+     * on the main thread.
+     */
+    private void rescale(final Projection projection, final float... zoomLevels)
+            throws InterruptedException {
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < zoomLevels.length; i += 2) {
+                    mOverlay.rescaleCache(zoomLevels[i], zoomLevels[i + 1], projection);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the tile at the center of the area rescaled to zoom level {@code zoom}
+     */
+    private MapTile getCenterTile(final Projection projection, final int zoom) {
+        final Rect viewPort = GeometryMath.viewPortRectForTileDrawing(zoom, projection, null);
+        final Point tile = Projection.pixelXYToTileXY(viewPort.centerX(), viewPort.centerY(),
+                null);
+        return new MapTile(mTileProvider.getCacheKey(), zoom, tile.x, tile.y);
+    }
+
+    private void putZoomLevel(final int z) {
+        for (int x = 0; x < 1 << z; x++) {
+            for (int y = 0; y < 1 << z; y++) {
+                putTile(z, x, y, createTile(Color.RED));
+            }
+        }
+    }
+
+    private void awaitTile(final MapTile tile) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (mTileProvider.peekMapTileFromMemory(tile) == null) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Draw the tiles of the upper left corner of the world at zoom level {@code zoom}, over a white
+     * canvas.
+     */
+    private Bitmap draw(final int zoom, final int size) {
+        final Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.WHITE);
+        final Rect viewPort = new Rect(0, 0, size, size);
+        mOverlay.drawTiles(new Canvas(bitmap), zoom, TILE_SIZE, viewPort, new Rect(viewPort));
+        return bitmap;
+    }
+
+    private void putTile(final int z, final int x, final int y, final Bitmap bitmap) {
+        mTileProvider.getTileCache().putTileInMemoryCache(
+                new MapTile(mTileProvider.getCacheKey(), z, x, y), bitmap);
+    }
+
+    private static Bitmap createTile(final int color) {
+        final Bitmap bitmap = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(color);
+        return bitmap;
+    }
+
+    /**
+     * @return a tile made of {@code cells} by {@code cells} squares, each of its own color
+     */
+    private static Bitmap createGrid(final int cells) {
+        final Bitmap bitmap = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(bitmap);
+        final Paint paint = new Paint();
+        final int size = TILE_SIZE / cells;
+        for (int x = 0; x < cells; x++) {
+            for (int y = 0; y < cells; y++) {
+                paint.setColor(getCellColor(x, y));
+                canvas.drawRect(x * size, y * size, (x + 1) * size, (y + 1) * size, paint);
+            }
+        }
+        return bitmap;
+    }
+
+    private static int getCellColor(final int x, final int y) {
+        return Color.rgb(40 * (x + 1), 40 * (y + 1), 200);
+    }
+
+    private static void assertTileColor(final Bitmap drawn, final int x, final int y,
+            final int color) {
+        assertAreaColor(drawn, x * TILE_SIZE, y * TILE_SIZE, TILE_SIZE, color);
+    }
+
+    /**
+     * Check the center and corners of a square, away from its edges where the scaled bitmaps are
+     * blended with their neighbors.
+     */
+    private static void assertAreaColor(final Bitmap drawn, final int left, final int top,
+            final int size, final int color) {
+        final int inset = size / 16;
+        Assert.assertEquals(color, drawn.getPixel(left + size / 2, top + size / 2));
+        Assert.assertEquals(color, drawn.getPixel(left + inset, top + inset));
+        Assert.assertEquals(color, drawn.getPixel(left + size - 1 - inset, top + inset));
+        Assert.assertEquals(color, drawn.getPixel(left + inset, top + size - 1 - inset));
+        Assert.assertEquals(color, drawn.getPixel(left + size - 1 - inset,
+                top + size - 1 - inset));
+    }
+
+    private static void runOnMainThread(final Runnable runnable) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        Assert.assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+}